@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.app.Instrumentation;
 import android.support.test.InstrumentationRegistry;
 import android.test.ActivityInstrumentationTestCase2;
+import org.junit.After;
 import org.junit.Before;
 
 import static android.support.test.espresso.Espresso.onView;
@@ -12,6 +13,7 @@ import static android.support.test.espresso.matcher.ViewMatchers.*;
 
 public class MapsActivityTest extends ActivityInstrumentationTestCase2<MapsActivity> {
     private MapsActivity mActivity;
+    private int mGuardMode;
 
     public MapsActivityTest() {
         super(MapsActivity.class);
@@ -21,9 +23,19 @@ public class MapsActivityTest extends ActivityInstrumentationTestCase2<MapsActiv
     public void setUp() throws Exception {
         super.setUp();
         injectInstrumentation(InstrumentationRegistry.getInstrumentation());
+
+        // Fail on any DB access from the UI thread
+        mGuardMode = MainThreadGuard.getMode();
+        MainThreadGuard.setMode(MainThreadGuard.STRICT);
         mActivity = getActivity();
     }
 
+    @After
+    public void tearDown() throws Exception {
+        MainThreadGuard.setMode(mGuardMode);
+        super.tearDown();
+    }
+
     public void test() throws Exception {
 
         Instrumentation.ActivityMonitor activityMonitor = getInstrumentation()
@@ -4,6 +4,7 @@ import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.location.Location;
 import android.os.Bundle;
@@ -14,14 +15,20 @@ import android.widget.CheckBox;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.pmann.treemap.core.TreeFlags;
+
 /**
  * This dialog opens when the user taps on the 'add marker' button. The user can enter
  * information to populate the new record, or abort if it was an inadvertent click.
  */
 public class AddDialogFragment extends DialogFragment {
+    // DB results arrive after the dialog has been dismissed, so we hold on to the application
+    // context for reporting them
+    private Context mAppContext;
 
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
+        mAppContext = getActivity().getApplicationContext();
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
         LayoutInflater inflater = getActivity().getLayoutInflater();
 
@@ -43,35 +50,29 @@ public class AddDialogFragment extends DialogFragment {
 
                 .setPositiveButton("Add", new DialogInterface.OnClickListener() {
                             public void onClick(DialogInterface dialog, int id) {
-                                String newType = type.getText().toString();
-                                String newSubtype = subtype.getText().toString();
-                                String newComment = comment.getText().toString();
+                                final String newType = type.getText().toString();
+                                final String newSubtype = subtype.getText().toString();
+                                final String newComment = comment.getText().toString();
 
                                 int flag = 0;
-                                if (cbShortlist.isChecked()) flag |= DBHelper.MASK_SHORTLIST;
-                                if (cbFollowup.isChecked()) flag |= DBHelper.MASK_FOLLOWUP;
-                                if (cbHarvest.isChecked()) flag |= DBHelper.MASK_HARVEST;
-                                if (cbPrune.isChecked()) flag |= DBHelper.MASK_PRUNE;
-                                if (cbScion.isChecked()) flag |= DBHelper.MASK_SCION;
-
-                                Location loc = MapsActivity.getMap().getAdjustedLocation();
-                                if (loc == null) {
-                                    simpleToast("Creation failed!");
-                                    Log.e(MapsActivity.APP_NAME, "Failed to get location!");
-                                    return;
-                                }
-
-                                double lat = loc.getLatitude();
-                                double lng = loc.getLongitude();
-                                long newRowID = DB.helper().insertTree(lat, lng, newType, newSubtype, newComment, flag);
-
-                                if (newRowID != -1) {
-                                    simpleToast("New record added");
-                                    MapsActivity.getMap().addMarker(newRowID, lat, lng, newType, newSubtype, newComment, flag);
-                                } else {
-                                    simpleToast("Creation failed!");
-                                    Log.e(MapsActivity.APP_NAME, "DB failure: insert");
-                                }
+                                if (cbShortlist.isChecked()) flag |= TreeFlags.MASK_SHORTLIST;
+                                if (cbFollowup.isChecked()) flag |= TreeFlags.MASK_FOLLOWUP;
+                                if (cbHarvest.isChecked()) flag |= TreeFlags.MASK_HARVEST;
+                                if (cbPrune.isChecked()) flag |= TreeFlags.MASK_PRUNE;
+                                if (cbScion.isChecked()) flag |= TreeFlags.MASK_SCION;
+                                final int newFlag = flag;
+
+                                MapsActivity.getMap().getAdjustedLocation(new TreeRepository.Callback<Map.Reservation>() {
+                                    @Override
+                                    public void onResult(Map.Reservation reservation) {
+                                        if (reservation == null) {
+                                            simpleToast("Creation failed!");
+                                            Log.e(MapsActivity.APP_NAME, "Failed to get location!");
+                                            return;
+                                        }
+                                        insertTree(reservation, newType, newSubtype, newComment, newFlag);
+                                    }
+                                });
                             }
                         }
                 )
@@ -87,9 +88,27 @@ public class AddDialogFragment extends DialogFragment {
         return builder.create();
     }
 
+    private void insertTree(final Map.Reservation reservation, final String type, final String subtype,
+                            final String comment, final int flag) {
+        Location loc = reservation.getLocation();
+        DB.repository().insertTree(loc.getLatitude(), loc.getLongitude(), type, subtype, comment, flag, new TreeRepository.Callback<Long>() {
+            @Override
+            public void onResult(Long newRowID) {
+                if (newRowID != -1) {
+                    reservation.confirm(newRowID);
+                    simpleToast("New record added");    //the map picks up the new record by itself
+                } else {
+                    reservation.release();
+                    simpleToast("Creation failed!");
+                    Log.e(MapsActivity.APP_NAME, "DB failure: insert");
+                }
+            }
+        });
+    }
+
     private void simpleToast(String msg) {
         Toast toast = Toast.makeText(
-                getActivity().getApplicationContext(),
+                mAppContext,
                 msg,
                 Toast.LENGTH_SHORT
         );
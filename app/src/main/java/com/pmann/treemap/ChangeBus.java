@@ -0,0 +1,202 @@
+package com.pmann.treemap;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * <p>Notifies the UI of changes to the tree records. {@code DBHelper} publishes an event for every
+ * record it inserts, updates or deletes, no matter who asked for the write: a dialog, an import
+ * or a sync. Subscribers such as the map apply just the changes instead of reloading.</p>
+ * <p>
+ * Events published within a transaction are held back until {@code commitStaged()} is called
+ * after the transaction committed, and dropped by {@code discardStaged()} if it failed, so
+ * subscribers never see changes that aren't in the DB. {@code TreeRepository} takes care of this
+ * for all writes it runs.</p>
+ * <p>
+ * Events are delivered on the UI thread at the next frame. Events for the same record that arrive
+ * within a frame are coalesced into one, e.g. an insert followed by updates becomes an insert, and
+ * an insert followed by a delete disappears.</p>
+ */
+class ChangeBus {
+    // Kinds of events
+    public static final int INSERT = 0;
+    public static final int UPDATE = 1;
+    public static final int DELETE = 2;
+    public static final int RESET = 3;      //any record may have changed, e.g. after an import
+
+    // Groups of columns changed by an update
+    public static final int COLUMNS_LOCATION = 0x01;   //lat, long
+    public static final int COLUMNS_FIELDS = 0x02;     //type, subtype, comment, flag
+    public static final int COLUMNS_ALL = COLUMNS_LOCATION | COLUMNS_FIELDS;
+
+    /**
+     * A change of a single record, or of all records for {@code RESET}
+     */
+    public static class Change {
+        public final int kind;
+        public final long rowID;        //-1 for RESET
+        public final int columns;       //changed columns of an UPDATE; COLUMNS_ALL otherwise
+
+        Change(int kind, long rowID, int columns) {
+            this.kind = kind;
+            this.rowID = rowID;
+            this.columns = columns;
+        }
+    }
+
+    /**
+     * Receives the changes of a frame on the UI thread
+     */
+    public interface Listener {
+        void onChanges(List<Change> changes);
+    }
+
+    private static final Change RESET_CHANGE = new Change(RESET, -1, COLUMNS_ALL);
+
+    // Subscribers; accessed on the UI thread only
+    final private List<Listener> mListeners = new ArrayList<>();
+
+    // Events published within a transaction, per thread
+    final private ThreadLocal<List<Change>> mStaged = new ThreadLocal<List<Change>>() {
+        @Override
+        protected List<Change> initialValue() {
+            return new ArrayList<>();
+        }
+    };
+
+    // Events waiting for the next frame, by row ID. Guarded by mPending.
+    final private LinkedHashMap<Long, Change> mPending = new LinkedHashMap<>();
+    private boolean mReset = false;
+    private boolean mScheduled = false;
+
+    final private Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    final private Runnable mSchedule = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mDispatch);
+        }
+    };
+
+    final private Choreographer.FrameCallback mDispatch = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            dispatch();
+        }
+    };
+
+    /**
+     * Start receiving events. Call this on the UI thread.
+     */
+    public void subscribe(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Stop receiving events. Call this on the UI thread.
+     */
+    public void unsubscribe(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Publish a change that is already committed
+     *
+     * @param kind    INSERT, UPDATE, DELETE or RESET
+     * @param rowID   the record; ignored for RESET
+     * @param columns the changed columns of an UPDATE
+     */
+    public void publish(int kind, long rowID, int columns) {
+        synchronized (mPending) {
+            add(new Change(kind, rowID, columns));
+            schedule();
+        }
+    }
+
+    /**
+     * Publish a change made within a transaction of the calling thread. It is delivered once
+     * {@code commitStaged()} is called on the same thread.
+     */
+    public void stage(int kind, long rowID, int columns) {
+        mStaged.get().add(new Change(kind, rowID, columns));
+    }
+
+    /**
+     * Publish the changes staged by the calling thread, after their transaction committed
+     */
+    public void commitStaged() {
+        List<Change> staged = mStaged.get();
+        if (staged.isEmpty())
+            return;
+        synchronized (mPending) {
+            for (Change c : staged)
+                add(c);
+            schedule();
+        }
+        staged.clear();
+    }
+
+    /**
+     * Drop the changes staged by the calling thread, after their transaction failed
+     */
+    public void discardStaged() {
+        mStaged.get().clear();
+    }
+
+    // Merge an event into the pending ones. Called with mPending locked.
+    private void add(Change change) {
+        if (mReset)
+            return;     //subscribers reload everything anyway
+        if (change.kind == RESET) {
+            mReset = true;
+            mPending.clear();
+            return;
+        }
+
+        Change previous = mPending.remove(change.rowID);
+        Change merged = change;
+        if (previous != null) {
+            if (previous.kind == INSERT && change.kind == UPDATE)
+                merged = previous;
+            else if (previous.kind == INSERT && change.kind == DELETE)
+                merged = null;      //subscribers never knew the record
+            else if (previous.kind == UPDATE && change.kind == UPDATE)
+                merged = new Change(UPDATE, change.rowID, previous.columns | change.columns);
+            else if (previous.kind == DELETE && change.kind == INSERT)
+                merged = new Change(UPDATE, change.rowID, COLUMNS_ALL);
+        }
+        if (merged != null)
+            mPending.put(change.rowID, merged);
+    }
+
+    // Called with mPending locked
+    private void schedule() {
+        if (!mScheduled && (mReset || !mPending.isEmpty())) {
+            mScheduled = true;
+            mMainHandler.post(mSchedule);     //the Choreographer must be called on the UI thread
+        }
+    }
+
+    private void dispatch() {
+        List<Change> changes;
+        synchronized (mPending) {
+            mScheduled = false;
+            if (mReset)
+                changes = Collections.singletonList(RESET_CHANGE);
+            else
+                changes = new ArrayList<>(mPending.values());
+            mReset = false;
+            mPending.clear();
+        }
+        if (changes.isEmpty())
+            return;
+        for (Listener listener : new ArrayList<>(mListeners))
+            listener.onChanges(changes);
+    }
+}
@@ -9,13 +9,17 @@ import android.content.Context;
  * Creating a DBHelper instance requires a Context. This is not always readily available, e.g. in
  * an AlertDialog. So we provide a global instance of the helper which we instantiate in the main
  * activity. This is cleaner than passing context all over the place.</p>
+ * <p>
+ * UI code should go through {@code repository()}, which runs the DB work on background threads.</p>
  */
 class DB {
     private static DBHelper mDBHelper = null;
+    private static TreeRepository mRepository = null;
 
     public static void init(Context context) {
         if (mDBHelper == null) {
             mDBHelper = new DBHelper(context);
+            mRepository = new TreeRepository(mDBHelper);
         }
     }
 
@@ -25,4 +29,11 @@ class DB {
         }
         return mDBHelper;
     }
+
+    public static TreeRepository repository() {
+        if (mRepository == null) {
+            Log.e("TreeMap", "DB not initialized");
+        }
+        return mRepository;
+    }
 }
@@ -3,68 +3,366 @@ package com.pmann.treemap;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.util.Log;
+import android.util.LruCache;
+
+import com.pmann.treemap.core.SpatialGrid;
+import com.pmann.treemap.core.TreeRecord;
+import com.pmann.treemap.core.TreeSchema;
+import com.pmann.treemap.core.TreeStore;
+import com.pmann.treemap.core.TreeTypes;
+import com.pmann.treemap.core.TypeDictionary;
+import com.pmann.treemap.sync.Change;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 @SuppressWarnings({"SameParameterValue", "SpellCheckingInspection"})
 
 /**
  * <p>SQLite helper class. It takes care of the actual DB access and encapsulates things
- * like table and column names.</p>
+ * like table and column names. It is the app's implementation of {@code TreeStore}.</p>
  * <p>
  * Table columns are pretty self-explanatory, except FLAG, which is a 32-bit field that tracks up
- * to 32 boolean values per record. Semantics of the bit field are defined as:</p>
- * <ul>
- * <li>Bit 1: short listed</li>
- * <li>Bit 2: flagged for follow up</li>
- * <li>Bit 3: needs harvesting</li>
- * <li>Bit 4: needs pruning</li>
- * <li>Bit 5: collect scion wood</li>
- * <li>Bit 6 ... : unassignedpublic</li>
- * </ul>
+ * to 32 boolean values per record; see {@code TreeFlags} for the semantics.</p>
+ * <p>
+ * CELL is a spatial key derived from LAT and LONG: the number of the {@code SpatialGrid} cell the
+ * record lies in. The column is indexed, so bounding box and radius queries only visit the index
+ * ranges of the cells they overlap instead of scanning the whole table.</p>
+ * <p>
+ * Types and subtypes are stored once each, in the lookup tables TYPES and SUBTYPES, and
+ * referenced from the trees table by TYPE_ID and SUBTYPE_ID. Names are unique regardless of case;
+ * a new name is added to its lookup table the first time it is stored. The lookup tables are
+ * also kept in memory, see {@code types()} and {@code subtypes()}, so the rest of the app can
+ * work with the small integer IDs. Queries that need the names read from the view
+ * {@code VIEW_TREES}, which has the same columns as the original trees table.</p>
+ * <p>
+ * TYPE, SUBTYPE and COMMENT are also indexed for full-text search in a separate FTS4 table.
+ * Triggers keep it in sync with the trees table, so all writes, including bulk inserts, are
+ * searchable right away.</p>
+ * <p>
+ * The schema of the current DB version and the search ranking are defined in
+ * {@code TreeSchema}, which the benchmarks share; this class adds the migrations from older
+ * versions.</p>
  */
-class DBHelper extends SQLiteOpenHelper implements BaseColumns {
-    public static final int MASK_SHORTLIST = 0x0001;
-    public static final int MASK_FOLLOWUP = 0x0002;
-    public static final int MASK_HARVEST = 0x0004;
-    public static final int MASK_PRUNE = 0x0008;
-    public static final int MASK_SCION = 0x0010;
-
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 1;
+class DBHelper extends SQLiteOpenHelper implements BaseColumns, TreeStore {
+    // The schema lives in TreeSchema. If you change it, you must increment its version and add a
+    // migration to MIGRATIONS.
+    private static final int DATABASE_VERSION = TreeSchema.VERSION;
 
     // String constants for DB access. These are not localizable or related to the view, so
     // they don't belong in the string resource file.
     private static final String DATABASE_NAME = "TreeMap.db";
-    public static final String TABLE_TREES = "trees";
-    public static final String COLUMN_LAT = "lat";
-    public static final String COLUMN_LONG = "long";
-    public static final String COLUMN_TYPE = "type";
-    public static final String COLUMN_SUBTYPE = "subtype";
-    public static final String COLUMN_COMMENT = "comment";
-    public static final String COLUMN_FLAG = "flag";
+    public static final String TABLE_TREES = TreeSchema.TABLE_TREES;
+    public static final String TABLE_TYPES = TreeSchema.TABLE_TYPES;
+    public static final String TABLE_SUBTYPES = TreeSchema.TABLE_SUBTYPES;
+    public static final String VIEW_TREES = TreeSchema.VIEW_TREES;
+    public static final String COLUMN_LAT = TreeSchema.COLUMN_LAT;
+    public static final String COLUMN_LONG = TreeSchema.COLUMN_LONG;
+    public static final String COLUMN_TYPE = TreeSchema.COLUMN_TYPE;
+    public static final String COLUMN_SUBTYPE = TreeSchema.COLUMN_SUBTYPE;
+    public static final String COLUMN_COMMENT = TreeSchema.COLUMN_COMMENT;
+    public static final String COLUMN_FLAG = TreeSchema.COLUMN_FLAG;
     @SuppressWarnings("WeakerAccess")
-    public static final String COLUMN_DATE = "date";
-
-    private static final String SQL_CREATE_TREES =
-            "CREATE TABLE IF NOT EXISTS " + TABLE_TREES + " (" +
-                    BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
-                    COLUMN_LAT + " REAL," +
-                    COLUMN_LONG + " REAL," +
-                    COLUMN_TYPE + " TEXT," +
-                    COLUMN_SUBTYPE + " TEXT," +
-                    COLUMN_COMMENT + " TEXT," +
-                    COLUMN_FLAG + " INTEGER," +
-                    COLUMN_DATE + " TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
-                    " )";
+    public static final String COLUMN_DATE = TreeSchema.COLUMN_DATE;
+    private static final String COLUMN_CELL = TreeSchema.COLUMN_CELL;
+    public static final String COLUMN_TYPE_ID = TreeSchema.COLUMN_TYPE_ID;
+    public static final String COLUMN_SUBTYPE_ID = TreeSchema.COLUMN_SUBTYPE_ID;
+    private static final String COLUMN_NAME = TreeSchema.COLUMN_NAME;
+    private static final String COLUMN_HUE = TreeSchema.COLUMN_HUE;
+    public static final String COLUMN_UUID = TreeSchema.COLUMN_UUID;
+    public static final String COLUMN_VERSION = TreeSchema.COLUMN_VERSION;
+    private static final String COLUMN_SEQ = TreeSchema.COLUMN_SEQ;
+    private static final String COLUMN_VALUE = TreeSchema.COLUMN_VALUE;
+    private static final String INDEX_TYPE = TreeSchema.INDEX_TYPE;
+    private static final String INDEX_SUBTYPE = TreeSchema.INDEX_SUBTYPE;
+    private static final String INDEX_FLAG = "trees_flag";
+    private static final String TABLE_TOMBSTONES = TreeSchema.TABLE_TOMBSTONES;
+    private static final String TABLE_CHANGES = TreeSchema.TABLE_CHANGES;
+    private static final String TABLE_SYNC_STATE = TreeSchema.TABLE_SYNC_STATE;
+    private static final String TABLE_FTS = TreeSchema.TABLE_FTS;
+
+    // Columns needed to build a TreeRecord with toRecord(), in the expected order. The row ID
+    // is always included as the first column by the query methods. Query VIEW_TREES for these.
+    public static final String[] RECORD_COLUMNS = {
+            COLUMN_LAT, COLUMN_LONG, COLUMN_TYPE, COLUMN_SUBTYPE, COLUMN_COMMENT, COLUMN_FLAG, COLUMN_DATE};
+
+    // Number of records kept by getRecord()
+    private static final int RECORD_CACHE_SIZE = 256;
+
+    // MainThreadGuard operation of getReadableDatabase() and getWritableDatabase()
+    private static final String OPERATION_OPEN = "db.open";
+
+    // The view of DB version 5, without the sync columns
+    private static final String SQL_CREATE_VIEW_V5 =
+            "CREATE VIEW IF NOT EXISTS " + VIEW_TREES + " AS SELECT " + TreeSchema.SQL_VIEW_COLUMNS + TreeSchema.SQL_VIEW_JOINS;
+    private static final String SQL_DELETE_VIEW =
+            "DROP VIEW IF EXISTS " + VIEW_TREES;
+
+    // Type and subtype are compared case-insensitively, so their indexes use NOCASE. The type
+    // index includes the subtype, so it serves filters on both columns. These are the indexes
+    // of DB versions 3 and 4, which stored the names in the trees table.
+    private static final String SQL_CREATE_TYPE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_TYPE + " ON " + TABLE_TREES + " (" +
+                    COLUMN_TYPE + " COLLATE NOCASE," + COLUMN_SUBTYPE + " COLLATE NOCASE)";
+    private static final String SQL_CREATE_SUBTYPE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_SUBTYPE + " ON " + TABLE_TREES + " (" +
+                    COLUMN_SUBTYPE + " COLLATE NOCASE)";
+
+    // Versions 4 and 5 also had an index on the flag, which no query used; version 6 drops it
+    private static final String SQL_CREATE_FLAG_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_FLAG + " ON " + TABLE_TREES + " (" + COLUMN_FLAG + ")";
+    private static final String SQL_DELETE_FLAG_INDEX =
+            "DROP INDEX IF EXISTS " + INDEX_FLAG;
+
+    // Triggers of DB version 4, which stored the names in the trees table
+    private static final String SQL_CREATE_FTS_INSERT_TRIGGER_V4 =
+            "CREATE TRIGGER IF NOT EXISTS " + TABLE_FTS + "_insert AFTER INSERT ON " + TABLE_TREES + " BEGIN " +
+                    "INSERT INTO " + TABLE_FTS + "(docid," + COLUMN_TYPE + "," + COLUMN_SUBTYPE + "," + COLUMN_COMMENT + ") " +
+                    "VALUES (new." + _ID + ",new." + COLUMN_TYPE + ",new." + COLUMN_SUBTYPE + ",new." + COLUMN_COMMENT + "); END";
+    private static final String SQL_CREATE_FTS_UPDATE_TRIGGER_V4 =
+            "CREATE TRIGGER IF NOT EXISTS " + TABLE_FTS + "_update AFTER UPDATE OF " +
+                    COLUMN_TYPE + "," + COLUMN_SUBTYPE + "," + COLUMN_COMMENT + " ON " + TABLE_TREES + " BEGIN " +
+                    "UPDATE " + TABLE_FTS + " SET " + COLUMN_TYPE + "=new." + COLUMN_TYPE + "," +
+                    COLUMN_SUBTYPE + "=new." + COLUMN_SUBTYPE + "," + COLUMN_COMMENT + "=new." + COLUMN_COMMENT +
+                    " WHERE docid=new." + _ID + "; END";
+
+    // Version 4 fills the full-text index from the names in the trees table
+    private static final String SQL_FILL_FTS =
+            "INSERT INTO " + TABLE_FTS + "(docid," + COLUMN_TYPE + "," + COLUMN_SUBTYPE + "," + COLUMN_COMMENT + ") " +
+                    "SELECT " + _ID + "," + COLUMN_TYPE + "," + COLUMN_SUBTYPE + "," + COLUMN_COMMENT + " FROM " + TABLE_TREES;
+    private static final String SQL_DELETE_FTS =
+            "DROP TABLE IF EXISTS " + TABLE_FTS;
+
+    // Same computation as SpatialGrid.spatialKey(), for records that predate the CELL column
+    private static final String SQL_ADD_CELL = "ALTER TABLE " + TABLE_TREES + " ADD COLUMN " + COLUMN_CELL + " INTEGER";
+    private static final String SQL_FILL_CELL =
+            "UPDATE " + TABLE_TREES + " SET " + COLUMN_CELL + "=" +
+                    "CAST((" + COLUMN_LAT + "+90)/" + SpatialGrid.CELL_SIZE + " AS INTEGER)*" + SpatialGrid.CELL_COLUMNS + "+" +
+                    "CAST((" + COLUMN_LONG + "+180)/" + SpatialGrid.CELL_SIZE + " AS INTEGER)";
+
+    // Version 5 moves type and subtype names into the lookup tables. SQLite can't drop columns,
+    // so we copy the records into a new trees table. Names that differ only in case share an
+    // entry, under the spelling that was stored first. The row ID sequence is carried over, so
+    // row IDs of deleted records are not reused.
+    private static final String TABLE_TREES_NEW = TABLE_TREES + "_new";
+    private static final String SQL_FILL_TYPES =
+            "INSERT OR IGNORE INTO " + TABLE_TYPES + "(" + COLUMN_NAME + ") SELECT " + COLUMN_TYPE +
+                    " FROM " + TABLE_TREES + " WHERE " + COLUMN_TYPE + " IS NOT NULL ORDER BY " + _ID;
+    private static final String SQL_FILL_SUBTYPES =
+            "INSERT OR IGNORE INTO " + TABLE_SUBTYPES + "(" + COLUMN_NAME + ") SELECT " + COLUMN_SUBTYPE +
+                    " FROM " + TABLE_TREES + " WHERE " + COLUMN_SUBTYPE + " IS NOT NULL ORDER BY " + _ID;
+    private static final String SQL_COPY_TREES =
+            "INSERT INTO " + TABLE_TREES_NEW + " (" + _ID + "," + COLUMN_LAT + "," + COLUMN_LONG + "," +
+                    COLUMN_TYPE_ID + "," + COLUMN_SUBTYPE_ID + "," + COLUMN_COMMENT + "," + COLUMN_FLAG + "," +
+                    COLUMN_DATE + "," + COLUMN_CELL + ") SELECT " + _ID + "," + COLUMN_LAT + "," + COLUMN_LONG + "," +
+                    "(SELECT " + _ID + " FROM " + TABLE_TYPES + " WHERE " + COLUMN_NAME + "=" + TABLE_TREES + "." + COLUMN_TYPE + ")," +
+                    "(SELECT " + _ID + " FROM " + TABLE_SUBTYPES + " WHERE " + COLUMN_NAME + "=" + TABLE_TREES + "." + COLUMN_SUBTYPE + ")," +
+                    COLUMN_COMMENT + "," + COLUMN_FLAG + "," + COLUMN_DATE + "," + COLUMN_CELL + " FROM " + TABLE_TREES;
+    // The copy only has a sequence entry if there were records to copy, so we add one with the
+    // high-water mark of both tables, then drop the entry the copy may have made. sqlite_sequence
+    // has no unique names, so INSERT OR REPLACE wouldn't replace it.
+    private static final String SQL_COPY_SEQUENCE =
+            "INSERT INTO sqlite_sequence(name,seq) SELECT '" + TABLE_TREES_NEW + "',seq FROM " +
+                    "(SELECT MAX(seq) AS seq FROM sqlite_sequence WHERE name IN ('" +
+                    TABLE_TREES + "','" + TABLE_TREES_NEW + "')) WHERE seq IS NOT NULL";
+    private static final String SQL_TRIM_SEQUENCE =
+            "DELETE FROM sqlite_sequence WHERE name='" + TABLE_TREES_NEW + "' AND rowid<" +
+                    "(SELECT MAX(rowid) FROM sqlite_sequence WHERE name='" + TABLE_TREES_NEW + "')";
+    private static final String SQL_RENAME_TREES =
+            "ALTER TABLE " + TABLE_TREES_NEW + " RENAME TO " + TABLE_TREES;
+
+    // Version 6 adds change tracking for sync; see TreeSchema. Existing records get a UUID and
+    // are logged as changed, since they have not been pushed yet.
+    private static final String SQL_ADD_UUID =
+            "ALTER TABLE " + TABLE_TREES + " ADD COLUMN " + COLUMN_UUID + " TEXT";
+    private static final String SQL_ADD_VERSION =
+            "ALTER TABLE " + TABLE_TREES + " ADD COLUMN " + COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0";
+    private static final String SQL_FILL_UUID =
+            "UPDATE " + TABLE_TREES + " SET " + COLUMN_UUID + "=" + TreeSchema.SQL_NEW_UUID;
+    private static final String SQL_FILL_CHANGES =
+            "INSERT INTO " + TABLE_CHANGES + "(" + COLUMN_UUID + ") SELECT " + COLUMN_UUID +
+                    " FROM " + TABLE_TREES + " ORDER BY " + _ID;
+
+    // Pending changes with the current state of their records, oldest first. Records without a
+    // row in the trees table were deleted.
+    private static final String SQL_SELECT_CHANGES =
+            "SELECT c." + COLUMN_SEQ + ",c." + COLUMN_UUID + ",t." + _ID + "," +
+                    "COALESCE(t." + COLUMN_VERSION + ",d." + COLUMN_VERSION + ")," +
+                    "t." + COLUMN_LAT + ",t." + COLUMN_LONG + ",t." + COLUMN_TYPE + ",t." + COLUMN_SUBTYPE + "," +
+                    "t." + COLUMN_COMMENT + ",t." + COLUMN_FLAG + ",t." + COLUMN_DATE +
+                    " FROM " + TABLE_CHANGES + " c" +
+                    " LEFT JOIN " + VIEW_TREES + " t ON t." + COLUMN_UUID + "=c." + COLUMN_UUID +
+                    " LEFT JOIN " + TABLE_TOMBSTONES + " d ON d." + COLUMN_UUID + "=c." + COLUMN_UUID +
+                    " WHERE c." + COLUMN_SEQ + ">? ORDER BY c." + COLUMN_SEQ + " LIMIT ?";
+
+    /**
+     * A schema change from one DB version to the next. Migrations must preserve the existing data.
+     */
+    private interface Migration {
+        void apply(SQLiteDatabase db);
+    }
+
+    /**
+     * Create the trees table of DB version 5 under the given name
+     */
+    private static String createTreesV5(String table) {
+        return "CREATE TABLE IF NOT EXISTS " + table + " (" +
+                BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                COLUMN_LAT + " REAL," +
+                COLUMN_LONG + " REAL," +
+                COLUMN_TYPE_ID + " INTEGER REFERENCES " + TABLE_TYPES + "(" + _ID + ")," +
+                COLUMN_SUBTYPE_ID + " INTEGER REFERENCES " + TABLE_SUBTYPES + "(" + _ID + ")," +
+                COLUMN_COMMENT + " TEXT," +
+                COLUMN_FLAG + " INTEGER," +
+                COLUMN_DATE + " TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+                COLUMN_CELL + " INTEGER" +
+                " )";
+    }
+
+    /**
+     * A migration that consists of SQL statements only
+     */
+    private static class SqlMigration implements Migration {
+        final private String[] mStatements;
+
+        SqlMigration(String... statements) {
+            mStatements = statements;
+        }
+
+        @Override
+        public void apply(SQLiteDatabase db) {
+            for (String sql : mStatements)
+                db.execSQL(sql);
+        }
+    }
+
+    // Migrations, indexed by the DB version they upgrade to. Version 1 is the original schema.
+    private static final Migration[] MIGRATIONS = {
+            null,
+            null,
+            new SqlMigration(SQL_ADD_CELL, SQL_FILL_CELL, TreeSchema.SQL_CREATE_CELL_INDEX),
+            new SqlMigration(SQL_CREATE_TYPE_INDEX, SQL_CREATE_SUBTYPE_INDEX, SQL_CREATE_FLAG_INDEX,
+                    TreeSchema.SQL_CREATE_DATE_INDEX),
+            new SqlMigration(TreeSchema.SQL_CREATE_FTS, SQL_FILL_FTS, SQL_CREATE_FTS_INSERT_TRIGGER_V4,
+                    SQL_CREATE_FTS_UPDATE_TRIGGER_V4, TreeSchema.SQL_CREATE_FTS_DELETE_TRIGGER),
+            new Migration() {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    db.execSQL(TreeSchema.SQL_CREATE_TYPES);
+                    db.execSQL(TreeSchema.SQL_CREATE_SUBTYPES);
+                    db.execSQL(SQL_FILL_TYPES);
+                    db.execSQL(SQL_FILL_SUBTYPES);
+                    addStandardTypes(db);
+                    db.execSQL(createTreesV5(TABLE_TREES_NEW));
+                    db.execSQL(SQL_COPY_TREES);
+                    db.execSQL(SQL_COPY_SEQUENCE);
+                    db.execSQL(SQL_TRIM_SEQUENCE);
+                    db.execSQL(SQL_DELETE_TREES);   //also drops the old indexes and triggers
+                    db.execSQL(SQL_RENAME_TREES);
+                    createIndexes(db);
+                    db.execSQL(SQL_CREATE_VIEW_V5);
+                }
+            },
+            new Migration() {
+                @Override
+                public void apply(SQLiteDatabase db) {
+                    db.execSQL(SQL_DELETE_FLAG_INDEX);
+                    db.execSQL(SQL_ADD_UUID);
+                    db.execSQL(SQL_ADD_VERSION);
+                    db.execSQL(SQL_FILL_UUID);
+                    db.execSQL(TreeSchema.SQL_CREATE_UUID_INDEX);
+                    db.execSQL(TreeSchema.SQL_CREATE_TOMBSTONES);
+                    db.execSQL(TreeSchema.SQL_CREATE_CHANGES);
+                    db.execSQL(TreeSchema.SQL_CREATE_SYNC_STATE);
+                    db.execSQL(SQL_FILL_CHANGES);   //existing records have not been pushed yet
+                    createSyncTriggers(db);
+                    db.execSQL(SQL_DELETE_VIEW);
+                    db.execSQL(TreeSchema.SQL_CREATE_VIEW);
+                }
+            },
+    };
+
+    // Number of records per transaction for bulk inserts
+    private static final int BULK_BATCH_SIZE = 1000;
 
     private static final String SQL_DELETE_TREES =
             "DROP TABLE IF EXISTS " + TABLE_TREES;
+    private static final String SQL_DELETE_TYPES =
+            "DROP TABLE IF EXISTS " + TABLE_TYPES;
+    private static final String SQL_DELETE_SUBTYPES =
+            "DROP TABLE IF EXISTS " + TABLE_SUBTYPES;
+    private static final String SQL_DELETE_TOMBSTONES =
+            "DROP TABLE IF EXISTS " + TABLE_TOMBSTONES;
+    private static final String SQL_DELETE_CHANGES =
+            "DROP TABLE IF EXISTS " + TABLE_CHANGES;
+    private static final String SQL_DELETE_SYNC_STATE =
+            "DROP TABLE IF EXISTS " + TABLE_SYNC_STATE;
+
+    // Recently requested records, so that tapping through markers doesn't hit the DB every time.
+    // mCacheEpoch is incremented on every invalidation. A query that started before an
+    // invalidation must not put its (possibly stale) result into the cache.
+    private final LruCache<Long, TreeRecord> mRecordCache = new LruCache<>(RECORD_CACHE_SIZE);
+    private final Object mCacheLock = new Object();
+    private long mCacheEpoch = 0;
+
+    // Compiled statements for single-value queries and updates
+    private final StatementCache mStatements = new StatementCache(this);
+
+    // In-memory copies of the lookup tables
+    private final TypeDictionary mTypes = new TypeDictionary();
+    private final TypeDictionary mSubtypes = new TypeDictionary();
+
+    // Names added to the lookup tables by a transaction of the calling thread that has not yet
+    // committed. They are only copied to the dictionaries on commit, so a rollback can't leave
+    // behind an ID that SQLite then hands out again for a different name.
+    private final ThreadLocal<TypeDictionary> mStagedTypes = newStagedNames();
+    private final ThreadLocal<TypeDictionary> mStagedSubtypes = newStagedNames();
+
+    // Notifies subscribers of changed records
+    private final ChangeBus mChanges = new ChangeBus();
 
     public DBHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        // With write-ahead logging, readers see the last committed state while a write is in
+        // progress instead of waiting for it, and a commit only needs to sync the log
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Open the DB if needed, creating or migrating it on first use. Checked by
+     * {@code MainThreadGuard} like the query methods, so that opening and migrating the DB are
+     * caught on the UI thread too, as is any caller that works on the DB directly, e.g. to run a
+     * transaction. Inside an operation of this class, the check costs a thread comparison.
+     */
+    @Override
+    public SQLiteDatabase getReadableDatabase() {
+        MainThreadGuard.enter(OPERATION_OPEN);
+        try {
+            return super.getReadableDatabase();
+        } finally {
+            MainThreadGuard.exit(OPERATION_OPEN);
+        }
+    }
+
+    /**
+     * See {@code getReadableDatabase()}
+     */
+    @Override
+    public SQLiteDatabase getWritableDatabase() {
+        MainThreadGuard.enter(OPERATION_OPEN);
+        try {
+            return super.getWritableDatabase();
+        } finally {
+            MainThreadGuard.exit(OPERATION_OPEN);
+        }
     }
 
     /**
@@ -74,11 +372,215 @@ class DBHelper extends SQLiteOpenHelper implements BaseColumns {
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.d(MapsActivity.APP_NAME, "OnCreate");
-        db.execSQL(SQL_CREATE_TREES);
+        for (String sql : TreeSchema.createStatements())
+            db.execSQL(sql);
+        addStandardTypes(db);
+    }
+
+    /**
+     * Create the change tracking triggers of the trees table
+     */
+    private static void createSyncTriggers(SQLiteDatabase db) {
+        db.execSQL(TreeSchema.SQL_CREATE_SYNC_INSERT_TRIGGER);
+        db.execSQL(TreeSchema.SQL_CREATE_SYNC_UPDATE_TRIGGER);
+        db.execSQL(TreeSchema.SQL_CREATE_SYNC_DELETE_TRIGGER);
+    }
+
+    /**
+     * Create the indexes and full-text triggers of the trees table
+     */
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL(TreeSchema.SQL_CREATE_CELL_INDEX);
+        db.execSQL(TreeSchema.SQL_CREATE_TYPE_ID_INDEX);
+        db.execSQL(TreeSchema.SQL_CREATE_SUBTYPE_ID_INDEX);
+        db.execSQL(TreeSchema.SQL_CREATE_DATE_INDEX);
+        db.execSQL(TreeSchema.SQL_CREATE_FTS_INSERT_TRIGGER);
+        db.execSQL(TreeSchema.SQL_CREATE_FTS_UPDATE_TRIGGER);
+        db.execSQL(TreeSchema.SQL_CREATE_FTS_DELETE_TRIGGER);
+    }
+
+    /**
+     * Add the standard tree types with their hues to the types table. Existing types keep their
+     * spelling, but get the standard hue.
+     */
+    private static void addStandardTypes(SQLiteDatabase db) {
+        String[] names = TreeTypes.standardTypes();
+        for (int i = 0; i < names.length; i++) {
+            db.execSQL(TreeSchema.SQL_INSERT_STANDARD_TYPE, new Object[]{names[i]});
+            db.execSQL(TreeSchema.SQL_SET_HUE, new Object[]{TreeTypes.standardHue(i), names[i]});
+        }
     }
 
     /**
-     * Take appropriate action when the app indicates it is using a newer version of the DB.
+     * Load the lookup tables into memory
+     * @param db
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        loadDictionary(db, TABLE_TYPES, COLUMN_HUE, mTypes);
+        loadDictionary(db, TABLE_SUBTYPES, null, mSubtypes);
+    }
+
+    /**
+     * Reload the lookup tables into memory, e.g. after a failed write whose effect on the tables
+     * is unknown
+     */
+    public void reloadDictionaries() {
+        long start = begin(Metrics.DB_RELOAD_TYPES);
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            loadDictionary(db, TABLE_TYPES, COLUMN_HUE, mTypes);
+            loadDictionary(db, TABLE_SUBTYPES, null, mSubtypes);
+        } finally {
+            end(Metrics.DB_RELOAD_TYPES, start);
+        }
+    }
+
+    private static void loadDictionary(SQLiteDatabase db, String table, String hueColumn, TypeDictionary dict) {
+        Cursor res = db.rawQuery("SELECT " + _ID + "," + COLUMN_NAME + "," +
+                (hueColumn != null ? hueColumn : "NULL") + " FROM " + table, null);
+        synchronized (dict) {
+            dict.clear();
+            res.moveToFirst();
+            while (!res.isAfterLast()) {
+                dict.put(res.getInt(0), res.getString(1), res.isNull(2) ? null : res.getFloat(2));
+                res.moveToNext();
+            }
+        }
+        res.close();
+    }
+
+    /**
+     * @return the tree types, with their IDs and hues
+     */
+    @Override
+    public TypeDictionary types() {
+        return mTypes;
+    }
+
+    /**
+     * @return the tree subtypes, with their IDs
+     */
+    @Override
+    public TypeDictionary subtypes() {
+        return mSubtypes;
+    }
+
+    /**
+     * @return the bus on which changes of records are published
+     */
+    public ChangeBus changes() {
+        return mChanges;
+    }
+
+    /**
+     * Call when the transactions of the calling thread have committed: adds the type and subtype
+     * names they created to the dictionaries, then publishes their change events
+     */
+    public void commitStaged() {
+        commitStagedNames();
+        mChanges.commitStaged();
+    }
+
+    /**
+     * Call when a transaction of the calling thread was rolled back: drops the type and subtype
+     * names and the change events it staged
+     */
+    public void discardStaged() {
+        mStagedTypes.get().clear();
+        mStagedSubtypes.get().clear();
+        mChanges.discardStaged();
+    }
+
+    private void commitStagedNames() {
+        TypeDictionary staged = mStagedTypes.get();
+        if (!staged.isEmpty()) {
+            mTypes.putAll(staged);
+            staged.clear();
+        }
+        staged = mStagedSubtypes.get();
+        if (!staged.isEmpty()) {
+            mSubtypes.putAll(staged);
+            staged.clear();
+        }
+    }
+
+    private static ThreadLocal<TypeDictionary> newStagedNames() {
+        return new ThreadLocal<TypeDictionary>() {
+            @Override
+            protected TypeDictionary initialValue() {
+                return new TypeDictionary();
+            }
+        };
+    }
+
+    /**
+     * Publish a change of a record. If the change was made in a transaction, it is held back
+     * until the transaction has committed; see {@code ChangeBus}.
+     */
+    private void publish(SQLiteDatabase db, int kind, long rowID, int columns) {
+        if (db.inTransaction())
+            mChanges.stage(kind, rowID, columns);
+        else
+            mChanges.publish(kind, rowID, columns);
+    }
+
+    private Long resolveType(SQLiteDatabase db, String name) {
+        return resolve(db, TABLE_TYPES, mTypes, mStagedTypes.get(), name);
+    }
+
+    private Long resolveSubtype(SQLiteDatabase db, String name) {
+        return resolve(db, TABLE_SUBTYPES, mSubtypes, mStagedSubtypes.get(), name);
+    }
+
+    /**
+     * Find the ID of a type or subtype, adding it to the lookup table if it is new. Within a
+     * transaction, a new name is staged and only added to the dictionary on commit; see
+     * {@code commitStaged()}.
+     * @param db writable DB
+     * @param table TABLE_TYPES or TABLE_SUBTYPES
+     * @param dict in-memory copy of the table
+     * @param staged names added by the uncommitted transaction of this thread
+     * @param name type or subtype name
+     * @return the ID, or null if the name is null
+     */
+    private static Long resolve(SQLiteDatabase db, String table, TypeDictionary dict, TypeDictionary staged,
+                                String name) {
+        if (name == null)
+            return null;
+        int id = dict.idOf(name);
+        if (id == TypeDictionary.NONE)
+            id = staged.idOf(name);
+        if (id != TypeDictionary.NONE)
+            return (long) id;
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME, name);
+        long rowID = db.insertWithOnConflict(table, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        if (rowID == -1) {
+            // Someone else added it in the meantime
+            rowID = DatabaseUtils.longForQuery(db, "SELECT " + _ID + " FROM " + table +
+                    " WHERE " + COLUMN_NAME + "=?", new String[]{name});
+        }
+        if (db.inTransaction())
+            staged.put((int) rowID, name, null);
+        else
+            dict.put((int) rowID, name, null);
+        return rowID;
+    }
+
+    /**
+     * Get the type or subtype ID from a cursor column that may be null
+     * @return the ID, or {@code TypeDictionary.NONE} if the column is null
+     */
+    public static int getTypeID(Cursor cursor, int column) {
+        return cursor.isNull(column) ? TypeDictionary.NONE : cursor.getInt(column);
+    }
+
+    /**
+     * Take appropriate action when the app indicates it is using a newer version of the DB. We
+     * apply the migrations for each version in turn. SQLiteOpenHelper runs this in a transaction,
+     * so if a migration fails, the DB is left at the old version with its data intact.
      * @param db
      * @param oldVersion
      * @param newVersion
@@ -86,7 +588,13 @@ class DBHelper extends SQLiteOpenHelper implements BaseColumns {
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.d(MapsActivity.APP_NAME, "OnUpgrade");
-        flushDB();
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            if (version >= MIGRATIONS.length || MIGRATIONS[version] == null)
+                throw new IllegalStateException("No migration to DB version " + version);
+            Log.d(MapsActivity.APP_NAME, "Migrating DB to version " + version);
+            MIGRATIONS[version].apply(db);
+        }
+        mStatements.clear();
     }
 
     /**
@@ -107,17 +615,232 @@ class DBHelper extends SQLiteOpenHelper implements BaseColumns {
      * @return a cursor for the selected data
      */
     public Cursor getValues(String tableName, String... colName) {
-        SQLiteDatabase db = this.getReadableDatabase();
+        long start = begin(Metrics.DB_GET_VALUES);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            StringBuilder sb = selectColumns(tableName, colName);
+
+            Cursor res = db.rawQuery(sb.toString(), null);
+            res.moveToFirst();
+            return res;
+        } finally {
+            end(Metrics.DB_GET_VALUES, start);
+        }
+    }
+
+    /**
+     * Like {@code getValues()}, but only for records located within the given bounding box.
+     * If west is greater than east, the box is assumed to cross the 180th meridian.
+     * @param tableName
+     * @param south southern latitude boundary
+     * @param west western longitude boundary
+     * @param north northern latitude boundary
+     * @param east eastern longitude boundary
+     * @param colName a variable number of column names that are to be included
+     * @return a cursor for the selected data
+     */
+    public Cursor queryBoundingBox(String tableName, double south, double west, double north, double east,
+                                   String... colName) {
+        long start = begin(Metrics.DB_QUERY_BOX);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            List<String> args = new ArrayList<>();
+            StringBuilder sb = selectColumns(tableName, colName);
+            sb.append(" WHERE ").append(SpatialGrid.boundingBoxCriteria(south, west, north, east, args));
+
+            Cursor res = db.rawQuery(sb.toString(), args.toArray(new String[args.size()]));
+            res.moveToFirst();
+            return res;
+        } finally {
+            end(Metrics.DB_QUERY_BOX, start);
+        }
+    }
+
+    @Override
+    public List<TreeRecord> getRecords(double south, double west, double north, double east) {
+        long start = begin(Metrics.DB_GET_RECORDS);
+        try {
+            Cursor cursor = queryBoundingBox(VIEW_TREES, south, west, north, east, RECORD_COLUMNS);
+            List<TreeRecord> records = new ArrayList<>(cursor.getCount());
+            while (!cursor.isAfterLast()) {
+                records.add(toRecord(cursor));
+                cursor.moveToNext();
+            }
+            cursor.close();
+            return records;
+        } finally {
+            end(Metrics.DB_GET_RECORDS, start);
+        }
+    }
+
+    @Override
+    public void forEachTree(TreeVisitor visitor) {
+        long start = begin(Metrics.DB_FOR_EACH_TREE);
+        try {
+            Cursor cursor = getValues(TABLE_TREES, COLUMN_LAT, COLUMN_LONG, COLUMN_TYPE_ID, COLUMN_SUBTYPE_ID, COLUMN_FLAG);
+            while (!cursor.isAfterLast()) {
+                visitor.visit(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2),
+                        getTypeID(cursor, 3), getTypeID(cursor, 4), cursor.getInt(5));
+                cursor.moveToNext();
+            }
+            cursor.close();
+        } finally {
+            end(Metrics.DB_FOR_EACH_TREE, start);
+        }
+    }
+
+    /**
+     * Like {@code getValues()}, but only for records located within the given distance of a
+     * point. Distances are approximated on a flat projection, which is accurate enough for the
+     * small radii we deal with.
+     * @param tableName
+     * @param lat latitude of the center point
+     * @param lng longitude of the center point
+     * @param radius in meters
+     * @param colName a variable number of column names that are to be included
+     * @return a cursor for the selected data
+     */
+    public Cursor queryWithinRadius(String tableName, double lat, double lng, double radius, String... colName) {
+        long start = begin(Metrics.DB_QUERY_RADIUS);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            List<String> args = new ArrayList<>();
+            StringBuilder sb = selectColumns(tableName, colName);
+            sb.append(" WHERE ").append(SpatialGrid.radiusCriteria(lat, lng, radius, args));
+
+            Cursor res = db.rawQuery(sb.toString(), args.toArray(new String[args.size()]));
+            res.moveToFirst();
+            return res;
+        } finally {
+            end(Metrics.DB_QUERY_RADIUS, start);
+        }
+    }
+
+    /**
+     * Select one page of records, in row ID order. To read a whole table with constant memory,
+     * start with row ID 0 and then pass the last row ID of each page to get the next one.
+     * @param tableName
+     * @param afterRowID only return records with a greater row ID
+     * @param limit maximum number of records to return
+     * @param colName a variable number of column names that are to be included
+     * @return a cursor for the selected data
+     */
+    public Cursor getPage(String tableName, long afterRowID, int limit, String... colName) {
+        long start = begin(Metrics.DB_GET_PAGE);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            StringBuilder sb = selectColumns(tableName, colName);
+            sb.append(" WHERE ").append(BaseColumns._ID).append(">? ORDER BY ").append(BaseColumns._ID)
+                    .append(" LIMIT ").append(limit);
+
+            Cursor res = db.rawQuery(sb.toString(), new String[]{String.valueOf(afterRowID)});
+            res.moveToFirst();
+            return res;
+        } finally {
+            end(Metrics.DB_GET_PAGE, start);
+        }
+    }
+
+    /**
+     * Build a SELECT statement for the given columns. We always include the row ID as the first column.
+     */
+    private StringBuilder selectColumns(String tableName, String... colName) {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT " + BaseColumns._ID);
         for (String c : colName){
             sb.append(",").append(c);
         }
         sb.append(" FROM ").append(tableName);
+        return sb;
+    }
+
+    /**
+     * Call before every public method that queries or writes, and {@code end()} after it, also if
+     * it failed. This times the operation, see {@code Metrics}, and checks that it doesn't run on
+     * the UI thread, see {@code MainThreadGuard}. Opening the DB is checked separately, in
+     * {@code getReadableDatabase()} and {@code getWritableDatabase()}.
+     * @param timer the operation
+     * @return start time to pass to {@code end()}
+     */
+    private static long begin(Metrics.Timer timer) {
+        MainThreadGuard.enter(timer.mName);
+        return timer.start();
+    }
+
+    private static void end(Metrics.Timer timer, long start) {
+        timer.stop(start);
+        MainThreadGuard.exit(timer.mName);
+    }
+
+    /**
+     * Obtain all values of a record in a single query. Recently requested records are served from
+     * a cache.
+     * @param rowID get this record
+     * @return the record or null, if it could not be retrieved
+     */
+    @Override
+    public TreeRecord getRecord(long rowID) {
+        long epoch;
+        synchronized (mCacheLock) {
+            TreeRecord cached = mRecordCache.get(rowID);
+            if (cached != null) {
+                Metrics.DB_RECORD_CACHE_HITS.add(1);
+                return cached;
+            }
+            epoch = mCacheEpoch;
+        }
 
-        Cursor res = db.rawQuery(sb.toString(), null);
-        res.moveToFirst();
-        return res;
+        TreeRecord record;
+        long start = begin(Metrics.DB_GET_RECORD);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            StringBuilder sb = selectColumns(VIEW_TREES, RECORD_COLUMNS);
+            sb.append(" WHERE ").append(BaseColumns._ID).append("=?");
+            Cursor res = db.rawQuery(sb.toString(), new String[]{String.valueOf(rowID)});
+            if (res.getCount() != 1) {
+                res.close();
+                return null;
+            }
+            res.moveToFirst();
+            record = toRecord(res);
+            res.close();
+        } finally {
+            end(Metrics.DB_GET_RECORD, start);
+        }
+
+        synchronized (mCacheLock) {
+            if (epoch == mCacheEpoch)
+                mRecordCache.put(rowID, record);
+        }
+        return record;
+    }
+
+    /**
+     * Build a record from the current row of a cursor that was created with {@code RECORD_COLUMNS}
+     * @param cursor positioned on a row
+     * @return the record
+     */
+    public static TreeRecord toRecord(Cursor cursor) {
+        return new TreeRecord(
+                cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2),
+                cursor.getString(3), cursor.getString(4), cursor.getString(5), cursor.getInt(6),
+                cursor.getString(7));
+    }
+
+    /**
+     * Remove a record from the cache after it was modified. Modifications made in a transaction
+     * must be invalidated again once the transaction is committed, since until then concurrent
+     * readers still see, and may cache, the previous state.
+     * @param rowID the modified record, or -1 to clear the entire cache
+     */
+    public void invalidateRecord(long rowID) {
+        synchronized (mCacheLock) {
+            mCacheEpoch++;
+            if (rowID == -1)
+                mRecordCache.evictAll();
+            else
+                mRecordCache.remove(rowID);
+        }
     }
 
     /**
@@ -128,16 +851,12 @@ class DBHelper extends SQLiteOpenHelper implements BaseColumns {
      * @return desired string value or null, if it could not be retrieved
      */
     public String getStrValue(String table, String column, long rowID){
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor res = db.rawQuery("SELECT " + column + " FROM " + table + " WHERE " + BaseColumns._ID + "=" + rowID, null);
-        if (res.getCount() != 1) {
-            res.close();
-            return null;
+        long start = begin(Metrics.DB_GET_VALUE);
+        try {
+            return mStatements.queryString(selectValue(table, column), rowID);
+        } finally {
+            end(Metrics.DB_GET_VALUE, start);
         }
-        res.moveToFirst();
-        String result = res.getString(0);
-        res.close();
-        return result;
     }
 
     /**
@@ -148,29 +867,105 @@ class DBHelper extends SQLiteOpenHelper implements BaseColumns {
      * @return desired int value or -1, if it could not be retrieved
      */
     public int getIntValue (String table, String column, long rowID){
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor res = db.rawQuery("SELECT " + column + " FROM " + table + " WHERE " + BaseColumns._ID + "=" + rowID, null);
-        if (res.getCount() != 1) {
-            res.close();
-            return -1;
+        long start = begin(Metrics.DB_GET_VALUE);
+        try {
+            return (int) mStatements.queryLong(selectValue(table, column), -1, rowID);
+        } finally {
+            end(Metrics.DB_GET_VALUE, start);
         }
-        res.moveToFirst();
-        int result = res.getInt(0);
-        res.close();
-        return result;
+    }
+
+    private static String selectValue(String table, String column) {
+        return "SELECT " + column + " FROM " + table + " WHERE " + BaseColumns._ID + "=?";
     }
 
     /**
-     * Return row IDs of all records matching the given selection criteria
-     * @param table
-     * @param criteria any valid SQL expression
+     * Return row IDs of all records matching the given type and subtype. Both are matched with
+     * LIKE, so they may contain the wildcards % and _. Case is ignored.
+     * @param table usually VIEW_TREES
+     * @param type match this type, or null for any type
+     * @param subtype match this subtype, or null for any subtype
      * @return cursor for the selected data
      */
-    public Cursor selectRecords (String table, String criteria) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor res = db.rawQuery("SELECT " + BaseColumns._ID + " FROM " + table + " WHERE " + criteria, null);
-        res.moveToFirst();
-        return res;
+    public Cursor selectRecords (String table, String type, String subtype) {
+        long start = begin(Metrics.DB_SELECT_RECORDS);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            List<String> args = new ArrayList<>();
+            StringBuilder sb = selectColumns(table);
+            String conjunction = " WHERE ";
+            if (type != null) {
+                sb.append(conjunction).append(matchCriteria(COLUMN_TYPE, type));
+                args.add(type);
+                conjunction = " AND ";
+            }
+            if (subtype != null) {
+                sb.append(conjunction).append(matchCriteria(COLUMN_SUBTYPE, subtype));
+                args.add(subtype);
+            }
+
+            Cursor res = db.rawQuery(sb.toString(), args.toArray(new String[args.size()]));
+            res.moveToFirst();
+            return res;
+        } finally {
+            end(Metrics.DB_SELECT_RECORDS, start);
+        }
+    }
+
+    /**
+     * Build a case-insensitive comparison of a column with a pattern. Without wildcards we
+     * compare for equality, which is guaranteed to use the NOCASE index of the lookup table.
+     */
+    private static String matchCriteria(String column, String pattern) {
+        if (pattern.indexOf('%') >= 0 || pattern.indexOf('_') >= 0)
+            return column + " LIKE ?";
+        return column + "=? COLLATE NOCASE";
+    }
+
+    /**
+     * Full-text search over type, subtype and comment. The query uses the SQLite FTS syntax:
+     * words match whole words, {@code word*} matches words starting with a prefix, text in double
+     * quotes matches a phrase, and terms may be combined with OR and NOT. Case is ignored.
+     * @param query search terms
+     * @return row IDs of the matching records, best matches first. Hits in the type and subtype
+     * count more than hits in the comment, and hits on rare terms count more than hits on common ones.
+     * @throws android.database.sqlite.SQLiteException if the query is malformed
+     */
+    @Override
+    public long[] search(String query) {
+        long start = begin(Metrics.DB_SEARCH);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor res = db.rawQuery(TreeSchema.SQL_SEARCH, new String[]{query});
+
+            int n = res.getCount();
+            long[] rowIDs = new long[n];
+            final double[] scores = new double[n];
+            res.moveToFirst();
+            for (int i = 0; i < n; i++) {
+                rowIDs[i] = res.getLong(0);
+                scores[i] = TreeSchema.rank(res.getBlob(1));
+                res.moveToNext();
+            }
+            res.close();
+
+            // Sort by descending score
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++)
+                order[i] = i;
+            Arrays.sort(order, new java.util.Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(scores[b], scores[a]);
+                }
+            });
+            long[] result = new long[n];
+            for (int i = 0; i < n; i++)
+                result[i] = rowIDs[order[i]];
+            return result;
+        } finally {
+            end(Metrics.DB_SEARCH, start);
+        }
     }
 
     /**
@@ -183,20 +978,130 @@ class DBHelper extends SQLiteOpenHelper implements BaseColumns {
      * @param pFlag
      * @return row ID of new record or -1, if an error occurred
      */
+    @Override
     public long insertTree(double pLat, double pLong, String pType, String pSubtype, String pComment, int pFlag) {
-        Log.d(MapsActivity.APP_NAME, "InsertTree");
-        SQLiteDatabase db = this.getWritableDatabase();
+        long start = begin(Metrics.DB_INSERT);
+        try {
+            Log.d(MapsActivity.APP_NAME, "InsertTree");
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(COLUMN_LAT, pLat);
+            contentValues.put(COLUMN_LONG, pLong);
+            contentValues.put(COLUMN_TYPE_ID, resolveType(db, pType));
+            contentValues.put(COLUMN_SUBTYPE_ID, resolveSubtype(db, pSubtype));
+            contentValues.put(COLUMN_COMMENT, pComment);
+            contentValues.put(COLUMN_FLAG, pFlag);
+            contentValues.put(COLUMN_CELL, SpatialGrid.spatialKey(pLat, pLong));
+
+            // Insert the new row, returning the primary key value of the new row
+            long rowID = db.insert(TABLE_TREES, null, contentValues);
+            if (rowID != -1)
+                publish(db, ChangeBus.INSERT, rowID, ChangeBus.COLUMNS_ALL);
+            return rowID;
+        } finally {
+            end(Metrics.DB_INSERT, start);
+        }
+    }
+
+    /**
+     * Start inserting a large number of records. The caller must close the returned object when
+     * done, even if an error occurred.
+     * @return object to insert records with
+     */
+    public BulkInsert beginBulkInsert() {
+        long start = begin(Metrics.DB_BULK_INSERT);
+        try {
+            return new BulkInsert(getWritableDatabase());
+        } finally {
+            end(Metrics.DB_BULK_INSERT, start);
+        }
+    }
+
+    /**
+     * <p>Inserts records through a single compiled statement, committing every
+     * {@code BULK_BATCH_SIZE} records. This avoids building a ContentValues object and
+     * committing a transaction for every record, which dominates the cost of large imports.</p>
+     * <p>
+     * Rather than an event per record, a single {@code ChangeBus.RESET} is published on close.</p>
+     * <p>
+     * Not thread-safe; use it from a single thread only.</p>
+     */
+    public class BulkInsert {
+        final private SQLiteDatabase mDb;
+        final private SQLiteStatement mInsert;
+        private int mPending = 0;
+        private int mInserted = 0;
+
+        private BulkInsert(SQLiteDatabase db) {
+            mDb = db;
+            mInsert = db.compileStatement(TreeSchema.SQL_INSERT_TREE);
+            mDb.beginTransaction();
+        }
+
+        /**
+         * Insert a record. See {@code insertTree()} for the parameters.
+         * @return row ID of the new record
+         * @throws android.database.SQLException if the record could not be inserted
+         */
+        public long insert(double pLat, double pLong, String pType, String pSubtype, String pComment, int pFlag) {
+            long start = begin(Metrics.DB_BULK_INSERT);
+            try {
+                mInsert.bindDouble(1, pLat);
+                mInsert.bindDouble(2, pLong);
+                mInsert.bindLong(3, SpatialGrid.spatialKey(pLat, pLong));
+                bindID(mInsert, 4, resolveType(mDb, pType));
+                bindID(mInsert, 5, resolveSubtype(mDb, pSubtype));
+                bindString(mInsert, 6, pComment);
+                mInsert.bindLong(7, pFlag);
+                long rowID = mInsert.executeInsert();
+                mInserted++;
+
+                if (++mPending >= BULK_BATCH_SIZE) {
+                    mDb.setTransactionSuccessful();
+                    mDb.endTransaction();
+                    if (!mDb.inTransaction())
+                        commitStagedNames();
+                    mDb.beginTransaction();
+                    mPending = 0;
+                }
+                return rowID;
+            } finally {
+                end(Metrics.DB_BULK_INSERT, start);
+            }
+        }
+
+        /**
+         * Commit the remaining records and release the statement
+         */
+        public void close() {
+            long start = begin(Metrics.DB_BULK_INSERT);
+            try {
+                mDb.setTransactionSuccessful();
+                mDb.endTransaction();
+                if (!mDb.inTransaction())
+                    commitStagedNames();
+                mInsert.close();
+                if (mInserted > 0)
+                    publish(mDb, ChangeBus.RESET, -1, ChangeBus.COLUMNS_ALL);
+            } finally {
+                end(Metrics.DB_BULK_INSERT, start);
+            }
+        }
+    }
 
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(COLUMN_LAT, pLat);
-        contentValues.put(COLUMN_LONG, pLong);
-        contentValues.put(COLUMN_TYPE, pType);
-        contentValues.put(COLUMN_SUBTYPE, pSubtype);
-        contentValues.put(COLUMN_COMMENT, pComment);
-        contentValues.put(COLUMN_FLAG, pFlag);
+    private static void bindID(SQLiteStatement statement, int index, Long id) {
+        if (id == null)
+            statement.bindNull(index);
+        else
+            statement.bindLong(index, id);
+    }
 
-        // Insert the new row, returning the primary key value of the new row
-        return db.insert(TABLE_TREES, null, contentValues);
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, value);
     }
 
     /**
@@ -210,19 +1115,27 @@ class DBHelper extends SQLiteOpenHelper implements BaseColumns {
      * @return true, if record was updated
      */
     public boolean updateRow (String table, long rowID, String type, String subtype, String comment, int flag){
-        SQLiteDatabase db = this.getWritableDatabase();
+        long start = begin(Metrics.DB_UPDATE_FIELDS);
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
 
-        ContentValues values = new ContentValues();
-        values.put(DBHelper.COLUMN_TYPE, type);
-        values.put(DBHelper.COLUMN_SUBTYPE, subtype);
-        values.put(DBHelper.COLUMN_COMMENT, comment);
-        values.put(DBHelper.COLUMN_FLAG, flag);
+            ContentValues values = new ContentValues();
+            values.put(DBHelper.COLUMN_TYPE_ID, resolveType(db, type));
+            values.put(DBHelper.COLUMN_SUBTYPE_ID, resolveSubtype(db, subtype));
+            values.put(DBHelper.COLUMN_COMMENT, comment);
+            values.put(DBHelper.COLUMN_FLAG, flag);
 
-        String selection = BaseColumns._ID + "=?";
-        String [] selectionArgs = {String.valueOf(rowID)};
+            String selection = BaseColumns._ID + "=?";
+            String [] selectionArgs = {String.valueOf(rowID)};
 
-        int modifiedRows = db.update(table, values, selection, selectionArgs);
-        return (1 == modifiedRows);
+            int modifiedRows = db.update(table, values, selection, selectionArgs);
+            invalidateRecord(rowID);
+            if (modifiedRows > 0)
+                publish(db, ChangeBus.UPDATE, rowID, ChangeBus.COLUMNS_FIELDS);
+            return (1 == modifiedRows);
+        } finally {
+            end(Metrics.DB_UPDATE_FIELDS, start);
+        }
     }
 
     /**
@@ -234,17 +1147,26 @@ class DBHelper extends SQLiteOpenHelper implements BaseColumns {
      * @return true, if record was updated
      */
     public boolean updateRow (String table, long rowID, double lat, double lng){
-        SQLiteDatabase db = this.getWritableDatabase();
+        long start = begin(Metrics.DB_UPDATE_LOCATION);
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
 
-        ContentValues values = new ContentValues();
-        values.put(DBHelper.COLUMN_LAT, lat);
-        values.put(DBHelper.COLUMN_LONG, lng);
+            ContentValues values = new ContentValues();
+            values.put(DBHelper.COLUMN_LAT, lat);
+            values.put(DBHelper.COLUMN_LONG, lng);
+            values.put(DBHelper.COLUMN_CELL, SpatialGrid.spatialKey(lat, lng));
 
-        String selection = BaseColumns._ID + "=?";
-        String [] selectionArgs = {String.valueOf(rowID)};
+            String selection = BaseColumns._ID + "=?";
+            String [] selectionArgs = {String.valueOf(rowID)};
 
-        int modifiedRows = db.update(table, values, selection, selectionArgs);
-        return (1 == modifiedRows);
+            int modifiedRows = db.update(table, values, selection, selectionArgs);
+            invalidateRecord(rowID);
+            if (modifiedRows > 0)
+                publish(db, ChangeBus.UPDATE, rowID, ChangeBus.COLUMNS_LOCATION);
+            return (1 == modifiedRows);
+        } finally {
+            end(Metrics.DB_UPDATE_LOCATION, start);
+        }
     }
 
     /**
@@ -254,33 +1176,294 @@ class DBHelper extends SQLiteOpenHelper implements BaseColumns {
      * @return true, if record was deleted
      */
     public boolean deleteRow(String table, long rowID) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        int deletedRows = db.delete(table, "_id=" + rowID, null);
-        return (1 == deletedRows);
+        long start = begin(Metrics.DB_DELETE);
+        try {
+            int deletedRows = mStatements.executeUpdateDelete(
+                    "DELETE FROM " + table + " WHERE " + BaseColumns._ID + "=?", rowID);
+            invalidateRecord(rowID);
+            if (deletedRows > 0)
+                publish(getWritableDatabase(), ChangeBus.DELETE, rowID, ChangeBus.COLUMNS_ALL);
+            return (1 == deletedRows);
+        } finally {
+            end(Metrics.DB_DELETE, start);
+        }
+    }
+
+    @Override
+    public boolean updateFields(long rowID, String type, String subtype, String comment, int flag) {
+        return updateRow(TABLE_TREES, rowID, type, subtype, comment, flag);
+    }
+
+    @Override
+    public boolean updateLocation(long rowID, double lat, double lng) {
+        return updateRow(TABLE_TREES, rowID, lat, lng);
+    }
+
+    @Override
+    public boolean deleteTree(long rowID) {
+        return deleteRow(TABLE_TREES, rowID);
+    }
+
+    /**
+     * List the records changed since they were last pushed to the sync server, oldest change
+     * first. Deleted records have a null row ID and only the UUID and version of their tombstone.
+     * The version is that of the server state the local state is based on.
+     * @param afterSeq only list changes with a higher sequence number, 0 for all
+     * @param limit maximum number of changes to return
+     * @return cursor with the columns seq, uuid, _id, version, lat, long, type, subtype, comment,
+     * flag and date
+     */
+    public Cursor getChanges(long afterSeq, int limit) {
+        long start = begin(Metrics.DB_GET_CHANGES);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor res = db.rawQuery(SQL_SELECT_CHANGES, new String[]{String.valueOf(afterSeq), String.valueOf(limit)});
+            res.moveToFirst();
+            return res;
+        } finally {
+            end(Metrics.DB_GET_CHANGES, start);
+        }
+    }
+
+    /**
+     * Remove changes from the change log once the sync server has received them. Records changed
+     * again in the meantime have a higher sequence number, so they stay in the log.
+     * @param throughSeq remove changes up to this sequence number
+     * @return number of changes removed
+     */
+    public int clearChanges(long throughSeq) {
+        long start = begin(Metrics.DB_CLEAR_CHANGES);
+        try {
+            return mStatements.executeUpdateDelete(
+                    "DELETE FROM " + TABLE_CHANGES + " WHERE " + COLUMN_SEQ + "<=?", throughSeq);
+        } finally {
+            end(Metrics.DB_CLEAR_CHANGES, start);
+        }
+    }
+
+    /**
+     * Get the version of the server state that a record or its tombstone is based on
+     * @param uuid the record
+     * @return the version, 0 if the record was never synced, or -1 if it is unknown
+     */
+    public long getSyncVersion(String uuid) {
+        long start = begin(Metrics.DB_SYNC_VERSION);
+        try {
+            long version = mStatements.queryLong(
+                    "SELECT " + COLUMN_VERSION + " FROM " + TABLE_TREES + " WHERE " + COLUMN_UUID + "=?", -1, uuid);
+            if (version == -1) {
+                version = mStatements.queryLong(
+                        "SELECT " + COLUMN_VERSION + " FROM " + TABLE_TOMBSTONES + " WHERE " + COLUMN_UUID + "=?", -1, uuid);
+            }
+            return version;
+        } finally {
+            end(Metrics.DB_SYNC_VERSION, start);
+        }
+    }
+
+    /**
+     * Note that a record or its tombstone is now based on the given server version, e.g. because
+     * the server accepted its pushed state. The change is not logged for the next push.
+     * @param uuid the record
+     * @param version server version
+     */
+    public void setSyncVersion(String uuid, long version) {
+        long start = begin(Metrics.DB_SYNC_VERSION);
+        try {
+            mStatements.executeUpdateDelete(
+                    "UPDATE " + TABLE_TREES + " SET " + COLUMN_VERSION + "=? WHERE " + COLUMN_UUID + "=?", version, uuid);
+            mStatements.executeUpdateDelete(
+                    "UPDATE " + TABLE_TOMBSTONES + " SET " + COLUMN_VERSION + "=? WHERE " + COLUMN_UUID + "=?", version, uuid);
+        } finally {
+            end(Metrics.DB_SYNC_VERSION, start);
+        }
+    }
+
+    /**
+     * Replace the local state of a record with its state on the sync server. A local change of
+     * the record that was not yet pushed is dropped, and the change is not logged for the next
+     * push. Call this in a transaction along with the other changes of a sync, and invalidate the
+     * record cache once it is committed.
+     * @param change state of the record on the server
+     */
+    public void applyChange(Change change) {
+        long start = begin(Metrics.DB_APPLY_CHANGE);
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            long rowID = mStatements.queryLong(
+                    "SELECT " + _ID + " FROM " + TABLE_TREES + " WHERE " + COLUMN_UUID + "=?", -1, change.uuid);
+
+            if (change.deleted) {
+                if (rowID != -1) {
+                    db.delete(TABLE_TREES, _ID + "=?", new String[]{String.valueOf(rowID)});
+                    publish(db, ChangeBus.DELETE, rowID, ChangeBus.COLUMNS_ALL);
+                }
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_UUID, change.uuid);
+                values.put(COLUMN_VERSION, change.version);
+                db.insertWithOnConflict(TABLE_TOMBSTONES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            } else {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_LAT, change.lat);
+                values.put(COLUMN_LONG, change.lng);
+                values.put(COLUMN_CELL, SpatialGrid.spatialKey(change.lat, change.lng));
+                values.put(COLUMN_TYPE_ID, resolveType(db, change.type));
+                values.put(COLUMN_SUBTYPE_ID, resolveSubtype(db, change.subtype));
+                values.put(COLUMN_COMMENT, change.comment);
+                values.put(COLUMN_FLAG, change.flag);
+                values.put(COLUMN_DATE, change.date);
+                values.put(COLUMN_VERSION, change.version);
+                if (rowID != -1) {
+                    db.update(TABLE_TREES, values, _ID + "=?", new String[]{String.valueOf(rowID)});
+                    publish(db, ChangeBus.UPDATE, rowID, ChangeBus.COLUMNS_ALL);
+                } else {
+                    values.put(COLUMN_UUID, change.uuid);
+                    rowID = db.insert(TABLE_TREES, null, values);
+                    if (rowID != -1)
+                        publish(db, ChangeBus.INSERT, rowID, ChangeBus.COLUMNS_ALL);
+                }
+                mStatements.executeUpdateDelete(
+                        "DELETE FROM " + TABLE_TOMBSTONES + " WHERE " + COLUMN_UUID + "=?", change.uuid);
+            }
+            // The local change, if any, is superseded. The triggers log the delete, the insert,
+            // and an update that keeps the version, so drop the log entry in any case.
+            mStatements.executeUpdateDelete(
+                    "DELETE FROM " + TABLE_CHANGES + " WHERE " + COLUMN_UUID + "=?", change.uuid);
+            if (rowID != -1)
+                invalidateRecord(rowID);
+        } finally {
+            end(Metrics.DB_APPLY_CHANGE, start);
+        }
+    }
+
+    /**
+     * Read a value of the sync state, e.g. the sync token
+     * @param name name of the value
+     * @return the value, or null if it was never set
+     */
+    public String getSyncState(String name) {
+        long start = begin(Metrics.DB_SYNC_STATE);
+        try {
+            return mStatements.queryString(
+                    "SELECT " + COLUMN_VALUE + " FROM " + TABLE_SYNC_STATE + " WHERE " + COLUMN_NAME + "=?", name);
+        } finally {
+            end(Metrics.DB_SYNC_STATE, start);
+        }
+    }
+
+    /**
+     * Store a value of the sync state
+     * @param name name of the value
+     * @param value the value
+     */
+    public void setSyncState(String name, String value) {
+        long start = begin(Metrics.DB_SYNC_STATE);
+        try {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_NAME, name);
+            values.put(COLUMN_VALUE, value);
+            getWritableDatabase().insertWithOnConflict(TABLE_SYNC_STATE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        } finally {
+            end(Metrics.DB_SYNC_STATE, start);
+        }
     }
 
     /**
-     * Dump all records from a table to log
+     * Dump a sample of records from a table into a string
      * @param tableName
+     * @param maxRows maximum number of records to include
+     * @return one line per record, with tab separated values
      */
-    public void dumpTable(String tableName) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor res = db.rawQuery("SELECT * FROM " + tableName, null);
+    public String dumpTable(String tableName, int maxRows) {
+        long start = begin(Metrics.DB_DIAGNOSTICS);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor res = db.rawQuery("SELECT * FROM " + tableName + " LIMIT " + maxRows, null);
 
-        int nCols = res.getColumnCount();
-        StringBuilder sb = new StringBuilder();
-        res.moveToFirst();
-        while (!res.isAfterLast()) {
-            for (int i = 0; i < nCols; i++) {
-                sb.append(res.getString(i));
-                sb.append("\t");
+            int nCols = res.getColumnCount();
+            StringBuilder sb = new StringBuilder();
+            res.moveToFirst();
+            while (!res.isAfterLast()) {
+                for (int i = 0; i < nCols; i++) {
+                    sb.append(res.getString(i));
+                    sb.append("\t");
+                }
+                sb.append("\n");
+                res.moveToNext();
             }
-            sb.append("\n");
-            res.moveToNext();
+            res.close();
+            return sb.toString();
+        } finally {
+            end(Metrics.DB_DIAGNOSTICS, start);
         }
-        res.close();
+    }
+
+    /**
+     * Count the records in a table
+     * @param tableName
+     * @return number of records
+     */
+    public long countRows(String tableName) {
+        long start = begin(Metrics.DB_DIAGNOSTICS);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            return DatabaseUtils.queryNumEntries(db, tableName);
+        } finally {
+            end(Metrics.DB_DIAGNOSTICS, start);
+        }
+    }
 
-        Log.d(MapsActivity.APP_NAME, sb.toString());
+    /**
+     * Read a numeric SQLite pragma, e.g. page_count
+     * @param name name of the pragma
+     * @return value of the pragma
+     */
+    public long getPragma(String name) {
+        long start = begin(Metrics.DB_DIAGNOSTICS);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            return DatabaseUtils.longForQuery(db, "PRAGMA " + name, null);
+        } finally {
+            end(Metrics.DB_DIAGNOSTICS, start);
+        }
+    }
+
+    /**
+     * Count the records for each distinct value of a column, ignoring case. Most frequent values come first.
+     * @param tableName
+     * @param column count values of this column
+     * @param limit maximum number of values to return
+     * @return cursor with the value in the first column and its count in the second
+     */
+    public Cursor countByValue(String tableName, String column, int limit) {
+        long start = begin(Metrics.DB_DIAGNOSTICS);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor res = db.rawQuery(
+                    "SELECT " + column + ", COUNT(*) AS n FROM " + tableName +
+                            " GROUP BY " + column + " COLLATE NOCASE ORDER BY n DESC LIMIT " + limit, null);
+            res.moveToFirst();
+            return res;
+        } finally {
+            end(Metrics.DB_DIAGNOSTICS, start);
+        }
+    }
+
+    /**
+     * List the indexes of a table
+     * @param tableName
+     * @return cursor with one row per index; see the SQLite docs for PRAGMA index_list
+     */
+    public Cursor getIndexList(String tableName) {
+        long start = begin(Metrics.DB_DIAGNOSTICS);
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor res = db.rawQuery("PRAGMA index_list(" + tableName + ")", null);
+            res.moveToFirst();
+            return res;
+        } finally {
+            end(Metrics.DB_DIAGNOSTICS, start);
+        }
     }
 
     /**
@@ -288,18 +1471,46 @@ class DBHelper extends SQLiteOpenHelper implements BaseColumns {
      */
     public void populateDB() {
         Log.d(MapsActivity.APP_NAME, "populateDB");
-
-        insertTree(47.5588789, -122.2695519, "Apple", "Spitzenberg", "2015 bumper crop", 1);
-        insertTree(47.5587872,-122.2692267, "Apple", "Winesap", "Come back next year for scion collection", 3);
-        insertTree(47.5573659, -122.2729869, "Pear", "Seckel", "Very tasty aldf alsdkfj aldskfj aslfk lk l ladkjf l aldkfj  ladkf l aldkfj lak", 7);
+        long start = begin(Metrics.DB_RESET);
+        try {
+            insertTree(47.5588789, -122.2695519, "Apple", "Spitzenberg", "2015 bumper crop", 1);
+            insertTree(47.5587872,-122.2692267, "Apple", "Winesap", "Come back next year for scion collection", 3);
+            insertTree(47.5573659, -122.2729869, "Pear", "Seckel", "Very tasty aldf alsdkfj aldskfj aslfk lk l ladkjf l aldkfj  ladkf l aldkfj lak", 7);
+        } finally {
+            end(Metrics.DB_RESET, start);
+        }
     }
 
     /**
      * Delete existing DB and recreate an empty DB.
      */
     public void flushDB() {
-        SQLiteDatabase db = this.getWritableDatabase();
-        db.execSQL(SQL_DELETE_TREES);
-        onCreate(db);
+        long start = begin(Metrics.DB_RESET);
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            mStatements.clear();
+            db.execSQL(SQL_DELETE_VIEW);
+            db.execSQL(SQL_DELETE_TREES);
+            db.execSQL(SQL_DELETE_FTS);
+            db.execSQL(SQL_DELETE_TYPES);
+            db.execSQL(SQL_DELETE_SUBTYPES);
+            db.execSQL(SQL_DELETE_TOMBSTONES);
+            db.execSQL(SQL_DELETE_CHANGES);
+            db.execSQL(SQL_DELETE_SYNC_STATE);
+            onCreate(db);
+            mStagedTypes.get().clear();
+            mStagedSubtypes.get().clear();
+            onOpen(db);
+            invalidateRecord(-1);
+            publish(db, ChangeBus.RESET, -1, ChangeBus.COLUMNS_ALL);
+        } finally {
+            end(Metrics.DB_RESET, start);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mStatements.clear();
+        super.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+package com.pmann.treemap;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * <p>Collects statistics about the DB for troubleshooting: row and page counts, the indexes on
+ * the trees table, the most common tree types, a small sample of records, and the DB accesses on
+ * the UI thread caught by {@code MainThreadGuard}, with stack samples.</p>
+ * <p>
+ * Only the record sample is bounded. The row count and the type counts are aggregate queries
+ * (COUNT, GROUP BY) over the whole trees table, so the cost of the report grows with the size of
+ * the inventory. That's acceptable for a report that only runs on request, in the background.</p>
+ * <p>
+ * Diagnostics are only available in debug builds, and only run when requested from the
+ * options menu.</p>
+ */
+class Diagnostics {
+    public static final boolean ENABLED = BuildConfig.DEBUG;
+
+    private static final int SAMPLE_ROWS = 20;
+    private static final int TOP_TYPES = 20;
+
+    // logcat truncates long messages, so we log the report in chunks
+    private static final int LOG_CHUNK = 3000;
+
+    /**
+     * Build the report. This queries the DB and must not be called on the UI thread.
+     *
+     * @param helper DB to report on
+     * @return the report as plain text
+     */
+    public static String collect(DBHelper helper) {
+        StringBuilder sb = new StringBuilder();
+
+        long pageSize = helper.getPragma("page_size");
+        long pageCount = helper.getPragma("page_count");
+        sb.append("Rows: ").append(helper.countRows(DBHelper.TABLE_TREES)).append('\n');
+        sb.append("Pages: ").append(pageCount)
+                .append(" x ").append(pageSize).append(" bytes")
+                .append(" (").append(helper.getPragma("freelist_count")).append(" free)\n");
+        sb.append("DB size: ").append(pageCount * pageSize / 1024).append(" KB\n");
+
+        sb.append("\nIndexes:\n");
+        Cursor indexes = helper.getIndexList(DBHelper.TABLE_TREES);
+        int nameColumn = indexes.getColumnIndex("name");
+        while (!indexes.isAfterLast()) {
+            sb.append("  ").append(indexes.getString(nameColumn)).append('\n');
+            indexes.moveToNext();
+        }
+        indexes.close();
+
+        sb.append("\nTypes:\n");
+        Cursor types = helper.countByValue(DBHelper.VIEW_TREES, DBHelper.COLUMN_TYPE, TOP_TYPES);
+        while (!types.isAfterLast()) {
+            sb.append("  ").append(types.getString(0)).append(": ").append(types.getLong(1)).append('\n');
+            types.moveToNext();
+        }
+        types.close();
+
+        sb.append("\nSample:\n");
+        sb.append(helper.dumpTable(DBHelper.VIEW_TREES, SAMPLE_ROWS));
+
+        String offenders = MainThreadGuard.report(true);
+        if (!offenders.isEmpty())
+            sb.append('\n').append(offenders);
+        return sb.toString();
+    }
+
+    /**
+     * Write a report to the log
+     *
+     * @param report as returned by {@code collect()}
+     */
+    public static void log(String report) {
+        for (int i = 0; i < report.length(); i += LOG_CHUNK)
+            Log.d(MapsActivity.APP_NAME, report.substring(i, Math.min(report.length(), i + LOG_CHUNK)));
+    }
+}
@@ -4,6 +4,7 @@ import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.location.Location;
 import android.os.Bundle;
@@ -15,26 +16,39 @@ import android.widget.CheckBox;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.google.android.gms.maps.model.BitmapDescriptorFactory;
-import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.Marker;
+import com.pmann.treemap.core.TreeFlags;
+import com.pmann.treemap.core.TreeRecord;
 
 /**
  * This dialog opens when the user taps on the InfoWindow of a map marker. The user can modify the
- * existing DB record or delete it.
+ * existing DB record or delete it. The map updates the marker when the DB publishes the change.
+ * The record is read in the background; until it has arrived, Update and Delete are disabled, so
+ * an update can't be built from the empty fields.
  */
 public class EditDialogFragment extends DialogFragment {
     private AlertDialog mDialog;
-    private Location mLoc;
+
+    // DB results arrive after the dialog has been dismissed, so we hold on to the application
+    // context for reporting them
+    private Context mAppContext;
+
+    // When the user tapped the marker, for timing how long it takes until the record is shown
+    private long mOpenStart = 0;
+
+    // Whether the record has been read and filled into the fields
+    private boolean mLoaded = false;
 
     private Marker mMarker;
     public void setMarker(Marker pMarker) {
         mMarker = pMarker;
+        mOpenStart = Metrics.DIALOG_EDIT.mark();
     }
 
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
         final long rowID = Map.getRowID(mMarker);
+        mAppContext = getActivity().getApplicationContext();
 
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
         LayoutInflater inflater = getActivity().getLayoutInflater();
@@ -46,22 +60,35 @@ public class EditDialogFragment extends DialogFragment {
         final TextView subtype = (TextView) dialogView.findViewById(R.id.txt_subtype);
         final TextView comment = (TextView) dialogView.findViewById(R.id.txt_comment);
 
-        type.setText(DB.helper().getStrValue(DBHelper.TABLE_TREES, DBHelper.COLUMN_TYPE, rowID));
-        subtype.setText(DB.helper().getStrValue(DBHelper.TABLE_TREES, DBHelper.COLUMN_SUBTYPE, rowID));
-        comment.setText(DB.helper().getStrValue(DBHelper.TABLE_TREES, DBHelper.COLUMN_COMMENT, rowID));
-
         final CheckBox cbShortlist = (CheckBox) dialogView.findViewById(R.id.chk_shortlist);
         final CheckBox cbFollowup = (CheckBox) dialogView.findViewById(R.id.chk_followup);
         final CheckBox cbHarvest = (CheckBox) dialogView.findViewById(R.id.chk_harvest);
         final CheckBox cbPrune = (CheckBox) dialogView.findViewById(R.id.chk_prune);
         final CheckBox cbScion = (CheckBox) dialogView.findViewById(R.id.chk_scion);
 
-        int flag = DB.helper().getIntValue(DBHelper.TABLE_TREES, DBHelper.COLUMN_FLAG, rowID);
-        if ((flag & DBHelper.MASK_SHORTLIST) > 0) cbShortlist.setChecked(true);
-        if ((flag & DBHelper.MASK_FOLLOWUP) > 0) cbFollowup.setChecked(true);
-        if ((flag & DBHelper.MASK_HARVEST) > 0) cbHarvest.setChecked(true);
-        if ((flag & DBHelper.MASK_PRUNE) > 0) cbPrune.setChecked(true);
-        if ((flag & DBHelper.MASK_SCION) > 0) cbScion.setChecked(true);
+        // Fill in the current values once they have been read from the DB
+        DB.repository().getRecord(rowID, new TreeRepository.Callback<TreeRecord>() {
+            @Override
+            public void onResult(TreeRecord record) {
+                if (record == null) {
+                    simpleToast("Record not found!");
+                    return;
+                }
+                type.setText(record.type);
+                subtype.setText(record.subtype);
+                comment.setText(record.comment);
+
+                int flag = record.flag;
+                if ((flag & TreeFlags.MASK_SHORTLIST) > 0) cbShortlist.setChecked(true);
+                if ((flag & TreeFlags.MASK_FOLLOWUP) > 0) cbFollowup.setChecked(true);
+                if ((flag & TreeFlags.MASK_HARVEST) > 0) cbHarvest.setChecked(true);
+                if ((flag & TreeFlags.MASK_PRUNE) > 0) cbPrune.setChecked(true);
+                if ((flag & TreeFlags.MASK_SCION) > 0) cbScion.setChecked(true);
+                mLoaded = true;
+                enableEditButtons();
+                Metrics.DIALOG_EDIT.record(mOpenStart);
+            }
+        });
 
         // The Re-Locate button updates the stored location with the current location. This
         // is handy if your initial location wasn't accurate enough - no need to delete and
@@ -70,21 +97,17 @@ public class EditDialogFragment extends DialogFragment {
         btn_relocate.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mLoc = MapsActivity.getMap().getAdjustedLocation();
-                if (mLoc != null) {
-                    double lat = mLoc.getLatitude();
-                    double lng = mLoc.getLongitude();
-                    if (DB.helper().updateRow(DBHelper.TABLE_TREES, rowID, lat, lng)) {
-                        simpleToast("Location updated");
-                        mMarker.setPosition(new LatLng(lat, lng));
-                    } else {
-                        simpleToast("Update failed!");
-                        Log.e(MapsActivity.APP_NAME, "DB failure: location update");
+                MapsActivity.getMap().getAdjustedLocation(new TreeRepository.Callback<Map.Reservation>() {
+                    @Override
+                    public void onResult(Map.Reservation reservation) {
+                        if (reservation != null) {
+                            updateLocation(rowID, reservation);
+                        } else {
+                            simpleToast("Update failed!");
+                            Log.e(MapsActivity.APP_NAME, "DB failure: location update");
+                        }
                     }
-                }else {
-                    simpleToast("Update failed!");
-                    Log.e(MapsActivity.APP_NAME, "DB failure: location update");
-                }
+                });
                 mDialog.dismiss();
             }
         });
@@ -94,38 +117,46 @@ public class EditDialogFragment extends DialogFragment {
 
                 .setPositiveButton("Delete", new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int id) {
-                        if (DB.helper().deleteRow(DBHelper.TABLE_TREES, rowID)) {
-                            simpleToast("Record deleted");
-                            mMarker.remove();
-                        } else {
-                            simpleToast("Delete failed!");
-                            Log.e(MapsActivity.APP_NAME, "DB failure: delete");
-                        }
+                        DB.repository().deleteRow(rowID, new TreeRepository.Callback<Boolean>() {
+                            @Override
+                            public void onResult(Boolean deleted) {
+                                if (deleted) {
+                                    simpleToast("Record deleted");
+                                } else {
+                                    simpleToast("Delete failed!");
+                                    Log.e(MapsActivity.APP_NAME, "DB failure: delete");
+                                }
+                            }
+                        });
                     }
                 })
 
                 .setNegativeButton("Update", new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int id) {
-                        String newType = type.getText().toString();
-                        String newSubtype = subtype.getText().toString();
-                        String newComment = comment.getText().toString();
+                        final String newType = type.getText().toString();
+                        final String newSubtype = subtype.getText().toString();
+                        final String newComment = comment.getText().toString();
 
                         int flag = 0;
-                        if (cbShortlist.isChecked()) flag |= DBHelper.MASK_SHORTLIST;
-                        if (cbFollowup.isChecked()) flag |= DBHelper.MASK_FOLLOWUP;
-                        if (cbHarvest.isChecked()) flag |= DBHelper.MASK_HARVEST;
-                        if (cbPrune.isChecked()) flag |= DBHelper.MASK_PRUNE;
-                        if (cbScion.isChecked()) flag |= DBHelper.MASK_SCION;
-
-                        if (DB.helper().updateRow(DBHelper.TABLE_TREES, rowID, newType, newSubtype, newComment, flag)) {
-                            simpleToast("Record updated");
-                            mMarker.setTitle(newType + ": " + newSubtype);
-                            mMarker.setSnippet(newComment);
-                            mMarker.setIcon(BitmapDescriptorFactory.defaultMarker(Tree.hueByType(newType)));
-                        } else {
-                            simpleToast("Update failed!");
-                            Log.e(MapsActivity.APP_NAME, "DB failure: update");
-                        }
+                        if (cbShortlist.isChecked()) flag |= TreeFlags.MASK_SHORTLIST;
+                        if (cbFollowup.isChecked()) flag |= TreeFlags.MASK_FOLLOWUP;
+                        if (cbHarvest.isChecked()) flag |= TreeFlags.MASK_HARVEST;
+                        if (cbPrune.isChecked()) flag |= TreeFlags.MASK_PRUNE;
+                        if (cbScion.isChecked()) flag |= TreeFlags.MASK_SCION;
+                        final int newFlag = flag;
+
+                        DB.repository().updateRow(rowID, newType, newSubtype, newComment, newFlag,
+                                new TreeRepository.Callback<Boolean>() {
+                                    @Override
+                                    public void onResult(Boolean updated) {
+                                        if (updated) {
+                                            simpleToast("Record updated");
+                                        } else {
+                                            simpleToast("Update failed!");
+                                            Log.e(MapsActivity.APP_NAME, "DB failure: update");
+                                        }
+                                    }
+                                });
                     }
                 })
 
@@ -136,12 +167,47 @@ public class EditDialogFragment extends DialogFragment {
                 });
 
         mDialog = builder.create();
+
+        // The buttons only exist once the dialog is shown, which may be before or after the
+        // record arrives
+        mDialog.setOnShowListener(new DialogInterface.OnShowListener() {
+            @Override
+            public void onShow(DialogInterface dialog) {
+                enableEditButtons();
+            }
+        });
         return mDialog;
     }
 
+    private void enableEditButtons() {
+        Button delete = mDialog.getButton(DialogInterface.BUTTON_POSITIVE);
+        Button update = mDialog.getButton(DialogInterface.BUTTON_NEGATIVE);
+        if (delete != null)
+            delete.setEnabled(mLoaded);
+        if (update != null)
+            update.setEnabled(mLoaded);
+    }
+
+    private void updateLocation(final long rowID, final Map.Reservation reservation) {
+        Location loc = reservation.getLocation();
+        DB.repository().updateLocation(rowID, loc.getLatitude(), loc.getLongitude(), new TreeRepository.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean updated) {
+                if (updated) {
+                    reservation.confirm(rowID);
+                    simpleToast("Location updated");
+                } else {
+                    reservation.release();
+                    simpleToast("Update failed!");
+                    Log.e(MapsActivity.APP_NAME, "DB failure: location update");
+                }
+            }
+        });
+    }
+
     private void simpleToast(String msg) {
         Toast toast = Toast.makeText(
-                getActivity().getApplicationContext(),
+                mAppContext,
                 msg,
                 Toast.LENGTH_SHORT
         );
@@ -4,26 +4,38 @@ import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.DialogFragment;
+import android.content.Context;
 import android.content.DialogInterface;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.Toast;
+
+import com.pmann.treemap.core.FilterEngine;
+import com.pmann.treemap.core.RowBitmap;
+import com.pmann.treemap.core.TreeFlags;
 
 import java.util.ArrayList;
-import java.util.TreeSet;
 
 /**
  * Dialog for entering filter criteria. Visibility of map markers is updated based on the
  * active filter criteria. Filtering persists until the filter is explicitly reset.
+ * <p>
+ * Filters are evaluated in memory by the map's {@code FilterEngine}; applying one doesn't query
+ * the DB. The exception is full-text search, which runs against the FTS index in the background
+ * before the filter is applied. The best match is highlighted.</p>
  */
 public class FilterDialogFragment extends DialogFragment {
     private ArrayList<CheckBox> mChkBoxList;
     private int mFlagFilter = 0;
 
+    // Search results arrive after the dialog has been dismissed, so we hold on to the application
+    // context for reporting them
+    private Context mAppContext;
+
     @Override
     public Dialog onCreateDialog(Bundle savedInstanceState) {
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
@@ -34,7 +46,9 @@ public class FilterDialogFragment extends DialogFragment {
 
         final EditText txtType = (EditText) dialogView.findViewById(R.id.txt_type);
         final EditText txtSubtype = (EditText) dialogView.findViewById(R.id.txt_subtype);
+        final EditText txtSearch = (EditText) dialogView.findViewById(R.id.txt_search);
         initializeCheckboxes(dialogView);
+        mAppContext = getActivity().getApplicationContext();
 
         builder.setView(dialogView)
                 .setTitle("Define Filter Criteria")
@@ -43,25 +57,17 @@ public class FilterDialogFragment extends DialogFragment {
                             public void onClick(DialogInterface dialog, int id) {
                                 String strType = txtType.getText().toString();
                                 String strSubtype = txtSubtype.getText().toString();
-
-                                StringBuilder criteria = new StringBuilder();
-                                if (strType.length() > 0)
-                                    criteria.append(DBHelper.COLUMN_TYPE).append(" LIKE '").append(strType).append("'");
-                                if (strSubtype.length() > 0)
-                                    criteria.append(DBHelper.COLUMN_SUBTYPE).append(" LIKE '").append(strSubtype).append("'");
-                                Log.d(MapsActivity.APP_NAME, criteria.toString());
-                                if (criteria.length() > 0) {
-                                    Cursor res = DB.helper().selectRecords(DBHelper.TABLE_TREES, criteria.toString());
-                                    TreeSet<Long> rowIDs = new TreeSet<>();
-                                    while (!res.isAfterLast()) {
-                                        rowIDs.add(res.getLong(0));
-                                        res.moveToNext();
-                                    }
-                                    res.close();
-
-                                    MapsActivity.getMap().setVisible(rowIDs);
+                                String strSearch = txtSearch.getText().toString().trim();
+
+                                String type = strType.length() > 0 ? strType : null;
+                                String subtype = strSubtype.length() > 0 ? strSubtype : null;
+                                Log.d(MapsActivity.APP_NAME, "Filter: " + type + ", " + subtype + ", " + strSearch);
+                                if (strSearch.length() > 0) {
+                                    search(strSearch, type, subtype, mFlagFilter);
+                                } else {
+                                    MapsActivity.getMap().setFilter(
+                                            new FilterEngine.Criteria(type, subtype, mFlagFilter));
                                 }
-                                MapsActivity.getMap().setVisible(mFlagFilter);
                             }
                         }
                 ).
@@ -76,6 +82,43 @@ public class FilterDialogFragment extends DialogFragment {
         return builder.create();
     }
 
+    /**
+     * Run a full-text search in the background, then apply the filter restricted to its results
+     */
+    private void search(final String query, final String type, final String subtype, final int flags) {
+        DB.repository().read(new TreeRepository.Task<long[]>() {
+            @Override
+            public long[] run(DBHelper helper) {
+                return helper.search(query);
+            }
+        }, new TreeRepository.Callback<long[]>() {
+            @Override
+            public void onResult(long[] rowIDs) {
+                if (rowIDs == null) {
+                    simpleToast("Invalid search: " + query);
+                    return;
+                }
+                RowBitmap matches = new RowBitmap();
+                for (long rowID : rowIDs)
+                    matches.add(rowID);
+                Map map = MapsActivity.getMap();
+                map.setFilter(new FilterEngine.Criteria(type, subtype, flags, matches));
+                simpleToast(rowIDs.length + (rowIDs.length == 1 ? " tree found" : " trees found"));
+                if (rowIDs.length > 0)
+                    map.highlight(rowIDs[0]);
+            }
+        });
+    }
+
+    private void simpleToast(String msg) {
+        Toast toast = Toast.makeText(
+                mAppContext,
+                msg,
+                Toast.LENGTH_SHORT
+        );
+        toast.show();
+    }
+
     // click listeners must be dynamically assigned in fragments; they can't be hooked up
     // in the layout XML
 
@@ -125,33 +168,33 @@ public class FilterDialogFragment extends DialogFragment {
                     break;
                 case R.id.chk_followup:
                     if (checked)
-                        mFlagFilter |= DBHelper.MASK_FOLLOWUP;
+                        mFlagFilter |= TreeFlags.MASK_FOLLOWUP;
                     else
-                        mFlagFilter &= ~DBHelper.MASK_FOLLOWUP;
+                        mFlagFilter &= ~TreeFlags.MASK_FOLLOWUP;
                     break;
                 case R.id.chk_harvest:
                     if (checked)
-                        mFlagFilter |= DBHelper.MASK_HARVEST;
+                        mFlagFilter |= TreeFlags.MASK_HARVEST;
                     else
-                        mFlagFilter &= ~DBHelper.MASK_HARVEST;
+                        mFlagFilter &= ~TreeFlags.MASK_HARVEST;
                     break;
                 case R.id.chk_prune:
                     if (checked)
-                        mFlagFilter |= DBHelper.MASK_PRUNE;
+                        mFlagFilter |= TreeFlags.MASK_PRUNE;
                     else
-                        mFlagFilter &= ~DBHelper.MASK_PRUNE;
+                        mFlagFilter &= ~TreeFlags.MASK_PRUNE;
                     break;
                 case R.id.chk_scion:
                     if (checked)
-                        mFlagFilter |= DBHelper.MASK_SCION;
+                        mFlagFilter |= TreeFlags.MASK_SCION;
                     else
-                        mFlagFilter &= ~DBHelper.MASK_SCION;
+                        mFlagFilter &= ~TreeFlags.MASK_SCION;
                     break;
                 case R.id.chk_shortlist:
                     if (checked)
-                        mFlagFilter |= DBHelper.MASK_SHORTLIST;
+                        mFlagFilter |= TreeFlags.MASK_SHORTLIST;
                     else
-                        mFlagFilter &= ~DBHelper.MASK_SHORTLIST;
+                        mFlagFilter &= ~TreeFlags.MASK_SHORTLIST;
                     break;
             }
         }
@@ -0,0 +1,55 @@
+package com.pmann.treemap;
+
+import android.annotation.SuppressLint;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.os.Environment;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.EditText;
+
+import java.io.File;
+
+/**
+ * Dialog for selecting a CSV or GeoJSON file to import. The import itself is run by the
+ * main activity, so that it can report progress after the dialog is gone.
+ */
+public class ImportDialogFragment extends DialogFragment {
+    private static final String DEFAULT_FILE = "trees.csv";
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        LayoutInflater inflater = getActivity().getLayoutInflater();
+
+        //Since this is a dialog it's OK to pass null as the root parameter
+        @SuppressLint("InflateParams") View dialogView = inflater.inflate(R.layout.import_dialog, null);
+
+        final EditText txtFile = (EditText) dialogView.findViewById(R.id.txt_file);
+        File downloads = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        txtFile.setText(new File(downloads, DEFAULT_FILE).getPath());
+
+        builder.setView(dialogView)
+                .setTitle("Import Trees")
+
+                .setPositiveButton("Import", new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int id) {
+                                File file = new File(txtFile.getText().toString().trim());
+                                ((MapsActivity) getActivity()).importTrees(file);
+                            }
+                        }
+                )
+
+                .setNeutralButton("Cancel", new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int id) {
+                                // User cancelled the dialog - do nothing
+                            }
+                        }
+
+                );
+        return builder.create();
+    }
+}
@@ -0,0 +1,212 @@
+package com.pmann.treemap;
+
+import android.os.Looper;
+import android.util.Log;
+
+import com.pmann.treemap.core.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <p>Catches DB access on the UI thread, where every query risks a dropped frame. DB work is
+ * supposed to go through {@code TreeRepository}; this guard finds the places that don't.</p>
+ * <p>
+ * {@code DBHelper} brackets each of its public operations with {@code enter()} and
+ * {@code exit()}, and so do its {@code getReadableDatabase()} and {@code getWritableDatabase()}.
+ * That covers opening the DB with its creation or migration, and every caller that gets hold of
+ * the {@code SQLiteDatabase}, e.g. the transactions of {@code TreeRepository} and
+ * {@code TreeSync}. Not covered is work on a database or cursor obtained earlier on another
+ * thread, e.g. reading on the UI thread past the first window of a returned cursor. On a
+ * background thread, a check costs a comparison of thread objects. On the UI thread, the access is
+ * recorded under its operation, e.g. "db.getRecord", which stands for the query shape, and the
+ * caller's code location. Each offender keeps a count, the distribution of durations and the
+ * stack of its first occurrence. A warning is logged the first time an offender is seen. Nested
+ * operations count as the outermost one.</p>
+ * <p>
+ * The mode decides how much of this is done:</p>
+ * <ul>
+ * <li>{@code REPORT}: record every access; the default in debug builds</li>
+ * <li>{@code SAMPLE}: record one access in {@code SAMPLE_INTERVAL}, so that the cost of taking a
+ * stack stays low; the default in release builds</li>
+ * <li>{@code STRICT}: throw an {@code IllegalStateException} before the access, e.g. to fail
+ * instrumentation tests</li>
+ * <li>{@code OFF}: do nothing</li>
+ * </ul>
+ * <p>
+ * Offenders are listed in the performance dialog and in the diagnostics report.</p>
+ */
+class MainThreadGuard {
+    public static final int OFF = 0;
+    public static final int SAMPLE = 1;
+    public static final int REPORT = 2;
+    public static final int STRICT = 3;
+
+    private static final int SAMPLE_INTERVAL = 16;
+
+    // Stack frames shown per offender in the report
+    private static final int REPORT_FRAMES = 8;
+
+    private static final Thread sMainThread = Looper.getMainLooper().getThread();
+    private static volatile int sMode = BuildConfig.DEBUG ? REPORT : SAMPLE;
+
+    // State of the access in progress; only touched on the UI thread
+    private static int sDepth = 0;
+    private static long sStart = 0;
+    private static boolean sSampled = false;
+    private static int sAccesses = 0;
+
+    // Offenders by operation and code location, in the order they were first seen
+    private static final LinkedHashMap<String, Offender> sOffenders = new LinkedHashMap<>();
+
+    /**
+     * An operation called on the UI thread from one code location
+     */
+    private static class Offender {
+        final String mOperation;
+        final StackTraceElement[] mStack;
+        final LatencyHistogram mDurations = new LatencyHistogram();
+
+        Offender(String operation, StackTraceElement[] stack) {
+            mOperation = operation;
+            mStack = stack;
+        }
+    }
+
+    private MainThreadGuard() {
+    }
+
+    /**
+     * @param mode one of {@code OFF}, {@code SAMPLE}, {@code REPORT} and {@code STRICT}
+     */
+    static void setMode(int mode) {
+        sMode = mode;
+    }
+
+    static int getMode() {
+        return sMode;
+    }
+
+    /**
+     * Call before a DB operation
+     *
+     * @param operation name of the operation, for the exception in strict mode
+     * @throws IllegalStateException in strict mode, if called on the UI thread
+     */
+    static void enter(String operation) {
+        if (Thread.currentThread() != sMainThread)
+            return;
+        int mode = sMode;
+        if (mode == STRICT)
+            throw new IllegalStateException("DB access on the UI thread: " + operation);
+        if (sDepth++ > 0 || mode == OFF)
+            return;
+        sSampled = mode == REPORT || sAccesses++ % SAMPLE_INTERVAL == 0;
+        if (sSampled)
+            sStart = System.nanoTime();
+    }
+
+    /**
+     * Call after a DB operation, also if it failed
+     *
+     * @param operation name of the operation; see {@code Metrics}
+     */
+    static void exit(String operation) {
+        if (Thread.currentThread() != sMainThread || sDepth == 0)
+            return;     //not entered, e.g. the mode changed in between
+        if (--sDepth > 0 || !sSampled)
+            return;
+        sSampled = false;
+        record(operation, System.nanoTime() - sStart);
+    }
+
+    private static void record(String operation, long duration) {
+        StackTraceElement[] stack = callerStack();
+        String key = operation + " @ " + (stack.length > 0 ? stack[0] : "?");
+        synchronized (sOffenders) {
+            Offender offender = sOffenders.get(key);
+            if (offender == null) {
+                offender = new Offender(operation, stack);
+                sOffenders.put(key, offender);
+                Log.w(MapsActivity.APP_NAME, "DB access on the UI thread: " + key);
+            }
+            offender.mDurations.record(duration);
+        }
+    }
+
+    /**
+     * @return stack of the current thread, starting with the caller of {@code DBHelper}
+     */
+    private static StackTraceElement[] callerStack() {
+        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+        int first = stack.length;
+        for (int i = stack.length - 1; i >= 0; i--) {
+            String cls = stack[i].getClassName();
+            if (cls.startsWith(DBHelper.class.getName()) || cls.equals(MainThreadGuard.class.getName()))
+                break;
+            first = i;
+        }
+        List<StackTraceElement> caller = new ArrayList<>();
+        for (int i = first; i < stack.length; i++)
+            caller.add(stack[i]);
+        return caller.toArray(new StackTraceElement[caller.size()]);
+    }
+
+    /**
+     * @return number of distinct offenders recorded
+     */
+    static int getOffenderCount() {
+        synchronized (sOffenders) {
+            return sOffenders.size();
+        }
+    }
+
+    /**
+     * Forget the offenders recorded so far
+     */
+    static void reset() {
+        synchronized (sOffenders) {
+            sOffenders.clear();
+        }
+    }
+
+    /**
+     * @param stacks whether to include a stack sample of each offender
+     * @return the offenders, most frequent first, as plain text; empty if there are none
+     */
+    static String report(boolean stacks) {
+        List<Offender> offenders;
+        synchronized (sOffenders) {
+            offenders = new ArrayList<>(sOffenders.values());
+        }
+        if (offenders.isEmpty())
+            return "";
+
+        // Most frequent first
+        Collections.sort(offenders, new Comparator<Offender>() {
+            @Override
+            public int compare(Offender a, Offender b) {
+                return Long.compare(b.mDurations.getCount(), a.mDurations.getCount());
+            }
+        });
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("DB access on the UI thread");
+        if (sMode == SAMPLE)
+            sb.append(", 1 in ").append(SAMPLE_INTERVAL).append(" sampled");
+        sb.append(":\n");
+        for (Offender o : offenders) {
+            LatencyHistogram d = o.mDurations;
+            sb.append(o.mOperation).append(String.format(Locale.US, "  %d x, p50 %.1f, max %.1f ms\n",
+                    d.getCount(), d.getPercentile(50) / 1e6, d.getMax() / 1e6));
+            int frames = stacks ? Math.min(o.mStack.length, REPORT_FRAMES) : Math.min(o.mStack.length, 1);
+            for (int i = 0; i < frames; i++)
+                sb.append("  at ").append(o.mStack[i]).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -1,23 +1,31 @@
 package com.pmann.treemap;
 
-import android.database.Cursor;
 import android.location.Location;
+import android.os.AsyncTask;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.view.Choreographer;
 
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
-import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.pmann.treemap.core.ClusterEngine;
+import com.pmann.treemap.core.FilterEngine;
+import com.pmann.treemap.core.MarkerRegistry;
+import com.pmann.treemap.core.RowBitmap;
+import com.pmann.treemap.core.SpatialHash;
+import com.pmann.treemap.core.TreeRecord;
+import com.pmann.treemap.core.TreeStore;
 
-import java.util.Random;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Manage a Google map API client with its associated markers
@@ -34,13 +42,75 @@ public class Map {
             .setFastestInterval(500)    // 500ms
             .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
 
-    // Map markers to associated DB record IDs. This tells us which record to use when
-    // operating on a given marker.
-    private static ArrayMap<Marker, Long> mMarkerMap = null;
-
-    // Map marker to flag value. This makes it easy to show and hide markers based on the
-    // flag settings.
-    private static ArrayMap<Marker, Integer> mFlagMap = null;
+    // Map markers to associated DB record IDs and back. This tells us which record to use when
+    // operating on a given marker, and which records already have a marker when loading the
+    // visible part of the map. The registry also keeps the flag value and type of each marker,
+    // which makes it easy to show and hide markers based on the filter settings.
+    private static MarkerRegistry<Marker> mRegistry = null;
+
+    // Margin around the visible region, as a fraction of the visible span, for which we keep
+    // markers loaded. This avoids reloading on every small pan.
+    private static final double VIEWPORT_MARGIN = 0.5;
+
+    // Region for which markers are currently loaded, or null if nothing has been loaded yet
+    private LatLngBounds mLoadedBounds = null;
+
+    // Incremented whenever markers are (re)loaded or evicted, so that results of outdated
+    // background queries can be discarded
+    private int mLoadGeneration = 0;
+
+    // Active filter settings. We need these to set the visibility of markers that are loaded
+    // after the filter was applied, and to compute clusters. Filters are evaluated by
+    // mFilterEngine, which like the cluster engine knows every record. The engines and the index
+    // of positions are only modified on the UI thread; createMarkers() fills new instances in the
+    // background and swaps them in.
+    private FilterEngine mFilterEngine = new FilterEngine(DB.helper().types(), DB.helper().subtypes());
+    private ActiveFilter mFilter = new ActiveFilter(new FilterEngine.Criteria(null, null, 0), null);
+
+    // When the filter changes, only markers whose visibility flips are touched, a batch per frame
+    private final VisibilityUpdater mVisibilityUpdater = new VisibilityUpdater();
+
+    // Time per frame we spend on marker visibility changes. The rest of the frame (16ms at 60fps)
+    // is left for rendering.
+    private static final long VISIBILITY_BUDGET_NANOS = 4000000;
+
+    // At low zoom levels we show clusters instead of individual markers. The engine knows the
+    // position, type and flag of every record; mClusterMap tracks the cluster markers on the map.
+    private ClusterEngine mClusterEngine = new ClusterEngine(DB.helper().types());
+    private final ArrayMap<Marker, ClusterEngine.Cluster> mClusterMap = new ArrayMap<>();
+    private boolean mClustered = false;
+    private ClusterTask mClusterTask = null;
+
+    // Transparency of cluster markers, to set them apart from individual trees
+    private static final float CLUSTER_ALPHA = 0.7f;
+
+    // Positions of all trees, for keeping new trees apart from existing ones. Trees closer than
+    // mMinSeparation (in meters) are considered a collision; see makeUnique().
+    private static final double DEFAULT_MIN_SEPARATION = 2.0;
+    private static final double MIN_SEPARATION_EPSILON = 0.01;
+    private static final int MAX_SEPARATION_RINGS = 3;
+    private SpatialHash mPositions = new SpatialHash(DEFAULT_MIN_SEPARATION);
+    private double mMinSeparation = DEFAULT_MIN_SEPARATION;
+    // Positions handed out by getAdjustedLocation() are held under negative IDs until the DB
+    // change is made; see Reservation
+    private long mNextReservationID = -1;
+
+    // The engines and the index are filled in the background; location requests and record
+    // changes that arrive before they are complete wait for them. The generation tells a current
+    // load from one superseded by reload().
+    private boolean mPositionsLoaded = false;
+    private int mPositionsGeneration = 0;
+    private final List<TreeRepository.Callback<Reservation>> mPendingLocationRequests = new ArrayList<>();
+
+    // Record changes published by the DB, waiting to be applied; see applyQueuedChanges()
+    private final List<ChangeBus.Change> mQueuedChanges = new ArrayList<>();
+    private boolean mApplyingChanges = false;
+    private final ChangeBus.Listener mChangeListener = new ChangeBus.Listener() {
+        @Override
+        public void onChanges(List<ChangeBus.Change> changes) {
+            Map.this.onChanges(changes);
+        }
+    };
 
     /**
      * Determine which DB record corresponds to a given marker
@@ -50,16 +120,24 @@ public class Map {
      */
     public static long getRowID(Marker pMarker) {
         long result = -1;
-        if (mMarkerMap != null) {
-            Long rowID = mMarkerMap.get(pMarker);
-            if (rowID != null)
-                result = rowID;
-            else
+        if (mRegistry != null) {
+            result = mRegistry.getRowID(pMarker);
+            if (result == -1)
                 Log.e(MapsActivity.APP_NAME, "No DB record " + pMarker.getTitle());
         }
         return result;
     }
 
+    /**
+     * Find the marker for a given DB record
+     *
+     * @param pRowID row ID of the DB record
+     * @return the marker, or null if the record currently has no marker on the map
+     */
+    public static Marker getMarker(long pRowID) {
+        return mRegistry == null ? null : mRegistry.getMarker(pRowID);
+    }
+
     /**
      * Initialize the map with callbacks, markers, etc. Set an initial zoom level
      * and show the current location on the map.
@@ -77,8 +155,7 @@ public class Map {
                 .addOnConnectionFailedListener(mMapsActivity)
                 .build();
         mGoogleApiClient.connect();
-        mMarkerMap = new ArrayMap<>();
-        mFlagMap = new ArrayMap<>();
+        mRegistry = new MarkerRegistry<>();
 
         mMap.moveCamera(CameraUpdateFactory.zoomTo(14));
         mMap.setMyLocationEnabled(true);
@@ -86,6 +163,15 @@ public class Map {
         mMap.setInfoWindowAdapter(new TreeInfoWindow(mMapsActivity.getApplicationContext()));
         mMap.setOnInfoWindowClickListener(mMapsActivity);
 
+        // Markers and clusters are loaded once the camera has settled on a location
+        mMap.setOnCameraChangeListener(new GoogleMap.OnCameraChangeListener() {
+            @Override
+            public void onCameraChange(CameraPosition position) {
+                updateMarkers(position);
+            }
+        });
+
+        DB.helper().changes().subscribe(mChangeListener);
         createMarkers();
     }
 
@@ -109,42 +195,495 @@ public class Map {
     }
 
     /**
-     * Create a map marker and add it to the internal management data structures
+     * Stop receiving DB changes. Call this when the map is discarded.
+     */
+    public void detach() {
+        DB.helper().changes().unsubscribe(mChangeListener);
+    }
+
+    /**
+     * Queue changes published by the DB and apply them, unless a previous batch is still being
+     * applied; in that case they are applied after it, so changes are always applied in order.
+     */
+    private void onChanges(List<ChangeBus.Change> changes) {
+        mQueuedChanges.addAll(changes);
+        if (!mApplyingChanges)
+            applyQueuedChanges();
+    }
+
+    /**
+     * Bring the engines and markers up to date with the queued changes. Deleted records are
+     * removed; the current state of inserted and updated records is read in the background, and
+     * then applied together with the deletions in the original order. A reset reloads everything.
+     * While the engines are being loaded, changes stay queued; the load applies them when done.
+     */
+    private void applyQueuedChanges() {
+        for (ChangeBus.Change c : mQueuedChanges) {
+            if (c.kind == ChangeBus.RESET) {
+                mQueuedChanges.clear();
+                mApplyingChanges = false;
+                reload();
+                return;
+            }
+        }
+        if (mQueuedChanges.isEmpty() || !mPositionsLoaded) {
+            mApplyingChanges = false;
+            return;
+        }
+        final List<ChangeBus.Change> changes = new ArrayList<>(mQueuedChanges);
+        mQueuedChanges.clear();
+
+        mApplyingChanges = true;
+        DB.repository().read(new TreeRepository.Task<List<TreeRecord>>() {
+            @Override
+            public List<TreeRecord> run(DBHelper helper) {
+                List<TreeRecord> records = new ArrayList<>(changes.size());
+                for (ChangeBus.Change c : changes)
+                    records.add(c.kind == ChangeBus.DELETE ? null : helper.getRecord(c.rowID));
+                return records;
+            }
+        }, new TreeRepository.Callback<List<TreeRecord>>() {
+            @Override
+            public void onResult(List<TreeRecord> records) {
+                if (!mPositionsLoaded) {
+                    // A reload started meanwhile; apply the changes to the new engines
+                    mQueuedChanges.addAll(0, changes);
+                    mApplyingChanges = false;
+                    return;
+                }
+                if (records == null) {
+                    reload();   //we can't tell what changed
+                } else {
+                    long start = Metrics.MAP_APPLY_CHANGES.start();
+                    try {
+                        RowBitmap changed = new RowBitmap();
+                        for (int i = 0; i < changes.size(); i++) {
+                            ChangeBus.Change c = changes.get(i);
+                            TreeRecord r = records.get(i);
+                            if (c.kind == ChangeBus.DELETE)
+                                removeRecord(c.rowID);
+                            else if (r != null)     //otherwise deleted since; its deletion is queued
+                                putRecord(r, c.kind == ChangeBus.INSERT ? ChangeBus.COLUMNS_ALL : c.columns);
+                            changed.add(c.rowID);
+                        }
+                        refilter();
+                        mVisibilityUpdater.schedule(changed);
+                        if (mClustered)
+                            refreshClusters();
+                    } finally {
+                        Metrics.MAP_APPLY_CHANGES.stop(start);
+                    }
+                }
+                applyQueuedChanges();
+            }
+        });
+    }
+
+    /**
+     * Add a new or modified record to the engines, and create or update its marker. A new marker
+     * is only created if the record lies in the loaded region; see {@code loadVisibleMarkers()}.
      *
-     * @param pRowID   DB record ID
-     * @param pLat     latitude
-     * @param pLng     longitude
-     * @param pType    type of tree - this can be any string
-     * @param pSubtype subtype of tree - this can be any string
-     * @param pComment another string field for comments, etc.
-     * @param pFlag    bit vector that encodes up to 32 flag settings. See DBHelper class for details.
-     */
-    public void addMarker(
+     * @param r       current state of the record
+     * @param columns the changed columns; see {@code ChangeBus}
+     */
+    private void putRecord(TreeRecord r, int columns) {
+        int typeID = Tree.typeID(r.type);
+        mClusterEngine.add(r.rowID, r.lat, r.lng, typeID, r.flag);
+        mPositions.put(r.rowID, r.lat, r.lng);
+        mFilterEngine.add(r.rowID, typeID, Tree.subtypeID(r.subtype), r.flag);
+        if (mClustered)
+            return;
+
+        int index = mRegistry.indexOfRow(r.rowID);
+        if (index < 0) {
+            if (mLoadedBounds == null || mLoadedBounds.contains(new LatLng(r.lat, r.lng)))
+                createMarker(r.rowID, r.lat, r.lng, r.type, r.subtype, r.comment, r.flag);
+            return;
+        }
+
+        Marker marker = mRegistry.markerAt(index);
+        if ((columns & ChangeBus.COLUMNS_LOCATION) != 0)
+            marker.setPosition(new LatLng(r.lat, r.lng));
+        if ((columns & ChangeBus.COLUMNS_FIELDS) != 0) {
+            marker.setTitle(r.type + ": " + r.subtype);
+            marker.setSnippet(r.comment);
+            if (mRegistry.typeIDAt(index) != typeID)
+                marker.setIcon(MarkerIcons.forTypeID(typeID));
+            mRegistry.setAt(index, r.flag, typeID);
+        }
+    }
+
+    /**
+     * Remove a deleted record from the engines, and its marker from the map
+     *
+     * @param rowID DB record ID
+     */
+    private void removeRecord(long rowID) {
+        mClusterEngine.remove(rowID);
+        mPositions.remove(rowID);
+        mFilterEngine.remove(rowID);
+        Marker marker = mRegistry.removeRow(rowID);
+        if (marker != null)
+            marker.remove();
+    }
+
+    /**
+     * Create a map marker and add it to the internal management data structures
+     */
+    private void createMarker(
             long pRowID, double pLat, double pLng, String pType, String pSubtype, String pComment, int pFlag) {
-        Marker marker = mMap.addMarker(new MarkerOptions()
-                .position(new LatLng(pLat, pLng))
-                .icon(BitmapDescriptorFactory.defaultMarker(Tree.hueByType(pType)))
-                .title(pType + ": " + pSubtype)
-                .snippet(pComment));
-        mMarkerMap.put(marker, pRowID); //associate DB ID with marker reference
-        mFlagMap.put(marker, pFlag);    //save flag value for efficient filtering
+        boolean visible = mFilter.accept(pRowID, pFlag);
+        int typeID = Tree.typeID(pType);
+        Marker marker;
+        long start = Metrics.MAP_ADD_MARKER.start();
+        try {
+            marker = mMap.addMarker(new MarkerOptions()
+                    .position(new LatLng(pLat, pLng))
+                    .icon(MarkerIcons.forTypeID(typeID))
+                    .title(pType + ": " + pSubtype)
+                    .snippet(pComment)
+                    .visible(visible));
+        } finally {
+            Metrics.MAP_ADD_MARKER.stop(start);
+        }
+        Metrics.MAP_MARKERS_ADDED.add(1);
+        mRegistry.put(marker, pRowID, pFlag, typeID, visible);
     }
 
     /**
-     * Loop through the DB and create a marker for each record
+     * Loop through the DB in the background and feed every record to new cluster and filter
+     * engines and a new index of positions. They replace the current ones on the UI thread, unless
+     * a later load has started since. Markers themselves are only created for the visible part of
+     * the map; see {@code updateMarkers()}.
      */
     private void createMarkers() {
-        Cursor cursor = DB.helper().getValues(
-                DBHelper.TABLE_TREES, DBHelper.COLUMN_LAT, DBHelper.COLUMN_LONG,
-                DBHelper.COLUMN_TYPE, DBHelper.COLUMN_SUBTYPE, DBHelper.COLUMN_COMMENT, DBHelper.COLUMN_FLAG);
-
-        while (!cursor.isAfterLast()) {
-            addMarker(
-                    cursor.getInt(0), cursor.getDouble(1), cursor.getDouble(2),
-                    cursor.getString(3), cursor.getString(4), cursor.getString(5), cursor.getInt(6));
-            cursor.moveToNext();
+        final int generation = ++mPositionsGeneration;
+        mPositionsLoaded = false;
+        final Engines engines = new Engines();
+        DB.repository().read(new TreeRepository.Task<Engines>() {
+            @Override
+            public Engines run(DBHelper helper) {
+                long start = Metrics.MAP_CREATE_MARKERS.start();
+                try {
+                    helper.forEachTree(new TreeStore.TreeVisitor() {
+                        @Override
+                        public void visit(long rowID, double lat, double lng, int typeID, int subtypeID, int flag) {
+                            engines.mClusters.add(rowID, lat, lng, typeID, flag);
+                            engines.mPositions.put(rowID, lat, lng);
+                            engines.mFilter.add(rowID, typeID, subtypeID, flag);
+                        }
+                    });
+                } finally {
+                    Metrics.MAP_CREATE_MARKERS.stop(start);
+                }
+                return engines;
+            }
+        }, new TreeRepository.Callback<Engines>() {
+            @Override
+            public void onResult(Engines result) {
+                if (generation != mPositionsGeneration)
+                    return;     //superseded by a later load
+                if (result != null) {
+                    mClusterEngine = result.mClusters;
+                    mFilterEngine = result.mFilter;
+                    mPositions = result.mPositions;
+                }
+                onPositionsLoaded();
+                if (!mFilter.isEmpty())
+                    applyFilter(mFilter.mCriteria);
+                else if (mClustered)
+                    refreshClusters();
+            }
+        });
+    }
+
+    /**
+     * Engines filled by {@code createMarkers()}. Only the loading thread touches them until they
+     * are handed to the UI thread.
+     */
+    private static class Engines {
+        final ClusterEngine mClusters = new ClusterEngine(DB.helper().types());
+        final FilterEngine mFilter = new FilterEngine(DB.helper().types(), DB.helper().subtypes());
+        final SpatialHash mPositions = new SpatialHash(DEFAULT_MIN_SEPARATION);
+    }
+
+    /**
+     * Serve the location requests and apply the record changes that waited for the engines
+     */
+    private void onPositionsLoaded() {
+        mPositionsLoaded = true;
+        List<TreeRepository.Callback<Reservation>> pending = new ArrayList<>(mPendingLocationRequests);
+        mPendingLocationRequests.clear();
+        for (TreeRepository.Callback<Reservation> callback : pending)
+            getAdjustedLocation(callback);
+        if (!mApplyingChanges)
+            applyQueuedChanges();
+    }
+
+    /**
+     * Discard all markers and clusters and load them again from the DB. This happens when the DB
+     * publishes a {@code ChangeBus.RESET}, e.g. after an import. The types may have new IDs
+     * afterwards, so the marker icons are created again as well.
+     */
+    public void reload() {
+        if (mClusterTask != null)
+            mClusterTask.cancel(false);
+        removeClusterMarkers();
+        evictMarkers(null);
+        mLoadedBounds = null;
+        mLoadGeneration++;
+        mClusterEngine = new ClusterEngine(DB.helper().types());
+        mFilterEngine = new FilterEngine(DB.helper().types(), DB.helper().subtypes());
+        mPositions = new SpatialHash(DEFAULT_MIN_SEPARATION);
+        MarkerIcons.invalidate();
+
+        createMarkers();
+        updateMarkers(mMap.getCameraPosition());
+    }
+
+    /**
+     * Show clusters or individual markers, depending on the zoom level of the camera
+     *
+     * @param position the new camera position
+     */
+    private void updateMarkers(CameraPosition position) {
+        if (position.zoom <= ClusterEngine.MAX_CLUSTER_ZOOM) {
+            if (!mClustered) {
+                mClustered = true;
+                evictMarkers(null);
+                mLoadedBounds = null;
+                mLoadGeneration++;
+            }
+            refreshClusters();
+        } else {
+            if (mClustered) {
+                mClustered = false;
+                if (mClusterTask != null)
+                    mClusterTask.cancel(false);
+                removeClusterMarkers();
+            }
+            loadVisibleMarkers();
+        }
+    }
+
+    /**
+     * Recompute the clusters for the current camera position in the background. The cluster
+     * markers are replaced once the computation is done.
+     */
+    private void refreshClusters() {
+        if (mClusterTask != null)
+            mClusterTask.cancel(false);
+
+        LatLngBounds bounds = expand(mMap.getProjection().getVisibleRegion().latLngBounds, VIEWPORT_MARGIN);
+        int zoom = (int) mMap.getCameraPosition().zoom;
+        mClusterTask = new ClusterTask(zoom, bounds, mFilter.isEmpty() ? null : mFilter);
+        mClusterTask.execute();
+    }
+
+    private void removeClusterMarkers() {
+        for (int i = mClusterMap.size() - 1; i >= 0; i--)
+            mClusterMap.keyAt(i).remove();
+        mClusterMap.clear();
+    }
+
+    /**
+     * Check whether a marker represents a cluster rather than an individual tree
+     *
+     * @param pMarker the selected marker
+     * @return true, if the marker is a cluster
+     */
+    public boolean isCluster(Marker pMarker) {
+        return mClusterMap.containsKey(pMarker);
+    }
+
+    /**
+     * Zoom in on a cluster far enough to break it up
+     *
+     * @param pMarker a cluster marker
+     */
+    public void zoomToCluster(Marker pMarker) {
+        float zoom = mMap.getCameraPosition().zoom;
+        mMap.animateCamera(CameraUpdateFactory.newLatLngZoom(pMarker.getPosition(), zoom + 2));
+    }
+
+    /**
+     * Computes the clusters for a region off the UI thread and then puts them on the map
+     */
+    private class ClusterTask extends AsyncTask<Void, Void, List<ClusterEngine.Cluster>> {
+        final private ClusterEngine mEngine = mClusterEngine;
+        final private int mZoom;
+        final private LatLngBounds mBounds;
+        final private ClusterEngine.Filter mTaskFilter;
+
+        ClusterTask(int zoom, LatLngBounds bounds, ClusterEngine.Filter filter) {
+            mZoom = zoom;
+            mBounds = bounds;
+            mTaskFilter = filter;
+        }
+
+        @Override
+        protected List<ClusterEngine.Cluster> doInBackground(Void... params) {
+            return mEngine.getClusters(mZoom,
+                    mBounds.southwest.latitude, mBounds.southwest.longitude,
+                    mBounds.northeast.latitude, mBounds.northeast.longitude,
+                    mTaskFilter);
+        }
+
+        @Override
+        protected void onPostExecute(List<ClusterEngine.Cluster> clusters) {
+            if (!mClustered)
+                return;
+
+            long start = Metrics.MAP_SHOW_CLUSTERS.start();
+            try {
+                removeClusterMarkers();
+                for (ClusterEngine.Cluster c : clusters) {
+                    Marker marker = mMap.addMarker(new MarkerOptions()
+                            .position(new LatLng(c.lat, c.lng))
+                            .icon(MarkerIcons.forTypeID(c.getDominantTypeID()))
+                            .alpha(CLUSTER_ALPHA)
+                            .title(c.count + (c.count == 1 ? " tree" : " trees"))
+                            .snippet(c.describeTypes()));
+                    mClusterMap.put(marker, c);
+                }
+            } finally {
+                Metrics.MAP_SHOW_CLUSTERS.stop(start);
+            }
+        }
+    }
+
+    /**
+     * Make sure there is a marker for every record within the visible part of the map (plus a
+     * margin), and remove markers that are out of range. We skip the DB query if the visible
+     * region is still covered by the markers we loaded last time. The query runs in the
+     * background; markers are created when the results arrive.
+     */
+    private void loadVisibleMarkers() {
+        LatLngBounds visible = mMap.getProjection().getVisibleRegion().latLngBounds;
+        if (isLoaded(visible))
+            return;
+
+        final LatLngBounds bounds = expand(visible, VIEWPORT_MARGIN);
+        final int generation = ++mLoadGeneration;
+
+        DB.repository().read(new TreeRepository.Task<List<TreeRecord>>() {
+            @Override
+            public List<TreeRecord> run(DBHelper helper) {
+                return helper.getRecords(
+                        bounds.southwest.latitude, bounds.southwest.longitude,
+                        bounds.northeast.latitude, bounds.northeast.longitude);
+            }
+        }, new TreeRepository.Callback<List<TreeRecord>>() {
+            @Override
+            public void onResult(List<TreeRecord> records) {
+                if (generation != mLoadGeneration || records == null)
+                    return;     //outdated or failed; a newer load is on its way
+
+                long start = Metrics.MAP_LOAD_VISIBLE.start();
+                try {
+                    evictMarkers(bounds);
+                    for (TreeRecord r : records) {
+                        if (mRegistry.indexOfRow(r.rowID) < 0)
+                            createMarker(r.rowID, r.lat, r.lng, r.type, r.subtype, r.comment, r.flag);
+                    }
+                    mLoadedBounds = bounds;
+                } finally {
+                    Metrics.MAP_LOAD_VISIBLE.stop(start);
+                }
+            }
+        });
+    }
+
+    /**
+     * Check whether the markers for the given region are already loaded. If we have zoomed in a
+     * long way since the last load, we report false so that the excess markers get evicted.
+     *
+     * @param visible the visible region of the map
+     * @return true, if no reload is needed
+     */
+    private boolean isLoaded(LatLngBounds visible) {
+        if (mLoadedBounds == null)
+            return false;
+        if (!mLoadedBounds.contains(visible.southwest) || !mLoadedBounds.contains(visible.northeast))
+            return false;
+
+        double loadedSpan = mLoadedBounds.northeast.latitude - mLoadedBounds.southwest.latitude;
+        double visibleSpan = visible.northeast.latitude - visible.southwest.latitude;
+        return visibleSpan * (1 + 2 * VIEWPORT_MARGIN) * 2 > loadedSpan;
+    }
+
+    /**
+     * Grow a region by the given fraction of its span on each side
+     *
+     * @param bounds the region
+     * @param margin fraction of the span to add on each side
+     * @return the enlarged region
+     */
+    private static LatLngBounds expand(LatLngBounds bounds, double margin) {
+        double latSpan = bounds.northeast.latitude - bounds.southwest.latitude;
+        double lngSpan = bounds.northeast.longitude - bounds.southwest.longitude;
+        if (lngSpan < 0)
+            lngSpan += 360;     //region crosses the 180th meridian
+
+        double south = Math.max(-90, bounds.southwest.latitude - latSpan * margin);
+        double north = Math.min(90, bounds.northeast.latitude + latSpan * margin);
+        if (lngSpan * (1 + 2 * margin) >= 360)
+            return new LatLngBounds(new LatLng(south, -180), new LatLng(north, 180));
+
+        double west = wrapLongitude(bounds.southwest.longitude - lngSpan * margin);
+        double east = wrapLongitude(bounds.northeast.longitude + lngSpan * margin);
+        return new LatLngBounds(new LatLng(south, west), new LatLng(north, east));
+    }
+
+    private static double wrapLongitude(double lng) {
+        if (lng < -180)
+            return lng + 360;
+        if (lng > 180)
+            return lng - 360;
+        return lng;
+    }
+
+    /**
+     * Remove all markers that lie outside the given region. We keep any marker that currently
+     * shows its info window, since the user is interacting with it.
+     *
+     * @param bounds region for which markers should be kept, or null to remove all markers
+     */
+    private void evictMarkers(LatLngBounds bounds) {
+        for (int i = mRegistry.size() - 1; i >= 0; i--) {
+            Marker m = mRegistry.markerAt(i);
+            if (bounds != null && (bounds.contains(m.getPosition()) || m.isInfoWindowShown()))
+                continue;
+            mRegistry.removeAt(i);
+            m.remove();
+            Metrics.MAP_MARKERS_EVICTED.add(1);
+        }
+    }
+
+    /**
+     * Filter settings as applied by {@code setFilter()}, along with the records that pass.
+     * Instances are never modified, so they can be handed to a background task.
+     */
+    private static class ActiveFilter implements ClusterEngine.Filter {
+        final private FilterEngine.Criteria mCriteria;
+        final private RowBitmap mRowIDs;    //null, if the criteria are empty
+
+        ActiveFilter(FilterEngine.Criteria criteria, RowBitmap rowIDs) {
+            mCriteria = criteria;
+            mRowIDs = rowIDs;
+        }
+
+        boolean isEmpty() {
+            return mRowIDs == null;
+        }
+
+        /**
+         * Determine whether a marker should be visible under these filter settings
+         */
+        @Override
+        public boolean accept(long rowID, int flag) {
+            return mRowIDs == null || mRowIDs.contains(rowID);
         }
-        cursor.close();
     }
 
     /**
@@ -161,24 +700,40 @@ public class Map {
     }
 
     /**
-     * Get last known location,  but adjust if necessary to prevent collision with locations
-     * already stored in the database.
+     * Get last known location, but adjust if necessary to keep the minimum separation from the
+     * trees already stored. The collision check uses the in-memory index of tree positions and
+     * doesn't touch the DB, so the callback is invoked right away, unless the index is still
+     * being loaded; then it is invoked once the load is complete. Call on the UI thread.
+     * <p>
+     * The location is reserved right away, so that a tree added before the DB publishes this one
+     * keeps its distance. The caller must confirm or release the reservation once the DB change
+     * has been made.</p>
      *
-     * @return current (adjusted) location; or null, in case of error
+     * @param callback receives the reservation of the current (adjusted) location; or null, in
+     *                 case of error
      */
-    public Location getAdjustedLocation() {
+    public void getAdjustedLocation(TreeRepository.Callback<Reservation> callback) {
+        if (!mPositionsLoaded) {
+            mPendingLocationRequests.add(callback);
+            return;
+        }
         Location loc = getCurrentLocation();
-        if (loc == null)
-            return loc;
-
-        // Note that when we adjust for a collision, we may end up causing a new collision.
-        // So we must disambiguate repeatedly until we succeed, or until we time out.
-        for (int i = 1; i <= 3; i++)
-            if (makeUnique(loc))
-                return loc;             //location is unique
+        if (loc == null || !makeUnique(loc)) {
+            if (loc != null)
+                Log.e(MapsActivity.APP_NAME, "Failed to make location unique");
+            callback.onResult(null);
+            return;
+        }
+        callback.onResult(new Reservation(mNextReservationID--, loc));
+    }
 
-        Log.e(MapsActivity.APP_NAME, "Failed to make location unique");
-        return null;                    //failed to make location unique
+    /**
+     * Set the minimum distance between a new tree and the existing ones
+     *
+     * @param meters the distance; 0 only avoids exact duplicates
+     */
+    public void setMinSeparation(double meters) {
+        mMinSeparation = meters;
     }
 
     /**
@@ -191,75 +746,198 @@ public class Map {
     }
 
     /**
-     * Ensure that a given set of markers is turned on. Note that we don't adjust the map
-     * view so they may not actually be currently displayed.
+     * Turn on markers that meet the given filter criteria; turn off all others. The filter stays
+     * active until it is replaced, and applies to markers loaded later. Note that we don't adjust
+     * the map view here.
      *
-     * @param rowIDs set of markers to be made visible
+     * @param criteria filter settings
      */
-    public void setVisible(TreeSet<Long> rowIDs) {
-        if (rowIDs == null) return; // ignore - probably a result of a typo in the entry form
+    public void setFilter(FilterEngine.Criteria criteria) {
+        applyFilter(criteria);
+    }
 
-        Set<java.util.Map.Entry<Marker, Long>> markers = mMarkerMap.entrySet();
-        for (java.util.Map.Entry<Marker, Long> entry : markers) {
-            Marker m = entry.getKey();
-            m.setVisible(rowIDs.contains(entry.getValue()));
+    /**
+     * Evaluate the filter criteria and update the visibility of markers and clusters. Only the
+     * records that pass either the old or the new filter, but not both, can change visibility;
+     * these are handed to the visibility updater.
+     */
+    private void applyFilter(FilterEngine.Criteria criteria) {
+        long start = Metrics.MAP_APPLY_FILTER.start();
+        try {
+            ActiveFilter previous = mFilter;
+            mFilter = new ActiveFilter(criteria, criteria.isEmpty() ? null : mFilterEngine.evaluate(criteria));
+            if (previous.mRowIDs != null || mFilter.mRowIDs != null) {
+                RowBitmap before = previous.mRowIDs != null ? previous.mRowIDs : mFilterEngine.all();
+                RowBitmap after = mFilter.mRowIDs != null ? mFilter.mRowIDs : mFilterEngine.all();
+                mVisibilityUpdater.schedule(before.xor(after));
+            }
+            if (mClustered)
+                refreshClusters();
+        } finally {
+            Metrics.MAP_APPLY_FILTER.stop(start);
         }
     }
 
     /**
-     * Turn on markers that meet the given filter criteria; turn off all others. Note that we don't adjust the map
-     * view here.
-     *
-     * @param flagFilter bit vector that encodes the desired criteria. See DBHelper class for details.
+     * <p>Applies marker visibility changes in batches, one batch per frame, so that a filter
+     * change on a large number of markers doesn't freeze the UI. Each batch runs until the
+     * per-frame time budget is used up.</p>
+     * <p>
+     * Pending records are checked against the filter that is active when their turn comes, so a
+     * filter change that arrives while an earlier one is still being applied simply supersedes
+     * it. Records that no longer have a marker are skipped.</p>
      */
-    public void setVisible(int flagFilter) {
-        if (flagFilter == 0 || flagFilter == 0xFFFF) return;
+    private class VisibilityUpdater implements Choreographer.FrameCallback {
+        private long[] mPending = new long[0];
+        private int mNext = 0;
+        private boolean mScheduled = false;
+
+        /**
+         * Queue records whose visibility may have changed
+         *
+         * @param rowIDs the records to check
+         */
+        void schedule(RowBitmap rowIDs) {
+            if (mNext < mPending.length) {
+                // Merge with the records still pending from the previous change
+                RowBitmap pending = new RowBitmap();
+                for (int i = mNext; i < mPending.length; i++)
+                    pending.add(mPending[i]);
+                rowIDs = rowIDs.or(pending);
+            }
+            mPending = rowIDs.toArray();
+            mNext = 0;
+            if (!mScheduled && mPending.length > 0) {
+                mScheduled = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
 
-        Set<java.util.Map.Entry<Marker, Integer>> markers = mFlagMap.entrySet();
-        for (java.util.Map.Entry<Marker, Integer> entry : markers) {
-            Marker m = entry.getKey();
-            int f = entry.getValue();
-            m.setVisible((f & flagFilter) != 0);
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mScheduled = false;
+            long frameStart = Metrics.MAP_VISIBILITY_FRAME.start();
+            long deadline = System.nanoTime() + VISIBILITY_BUDGET_NANOS;
+            while (mNext < mPending.length) {
+                long rowID = mPending[mNext++];
+                int index = mRegistry.indexOfRow(rowID);
+                if (index >= 0) {
+                    boolean visible = mFilter.accept(rowID, mRegistry.flagAt(index));
+                    if (mRegistry.setVisibleAt(index, visible)) {
+                        // Not traced; a section per marker would flood the trace
+                        long start = Metrics.MAP_SET_VISIBLE.mark();
+                        mRegistry.markerAt(index).setVisible(visible);
+                        Metrics.MAP_SET_VISIBLE.record(start);
+                    }
+                }
+                if ((mNext & 0x0F) == 0 && System.nanoTime() > deadline)
+                    break;
+            }
+            Metrics.MAP_VISIBILITY_FRAME.stop(frameStart);
+            if (mNext < mPending.length) {
+                mScheduled = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
         }
     }
 
     /**
-     * Make all markers visible, regardless of filter criteria
+     * Evaluate the active filter again after records were added, modified or removed. Marker
+     * visibility is left to the caller.
      */
-    public void showAll() {
-        for (Marker m : mMarkerMap.keySet()) {
-            m.setVisible(true);
-        }
+    private void refilter() {
+        if (!mFilter.isEmpty())
+            mFilter = new ActiveFilter(mFilter.mCriteria, mFilterEngine.evaluate(mFilter.mCriteria));
     }
 
     /**
-     * Ensure that the provided location does not correspond to any existing marker. If
-     * necessary, add a small random offset.
+     * Draw attention to a record by opening the info window of its marker. Nothing happens if the
+     * record has no visible marker, e.g. because it is outside the loaded region.
      *
-     * @param loc location
-     * @return false if location needed to be adjusted; true if it was already unique.
+     * @param pRowID row ID of the DB record
      */
-    final private static double LOC_OFFSET = 0.00005;
-    final private Random mRandom = new Random(); //don't care about seed for this application
+    public void highlight(long pRowID) {
+        int index = mRegistry.indexOfRow(pRowID);
+        if (index >= 0 && mRegistry.isVisibleAt(index))
+            mRegistry.markerAt(index).showInfoWindow();
+    }
 
-    private boolean makeUnique(Location loc) {
-        StringBuilder crit = new StringBuilder();
-        crit.append(DBHelper.COLUMN_LAT).append('=').append(loc.getLatitude());
-        crit.append(" AND ").append(DBHelper.COLUMN_LONG).append('=').append(loc.getLongitude());
-        Cursor cursor = DB.helper().selectRecords(DBHelper.TABLE_TREES, crit.toString());
+    /**
+     * Get the active filter settings. The returned object does not change when the filter is
+     * modified later, so it can safely be used on a background thread.
+     *
+     * @return active filter, or null if no filter is active
+     */
+    public ClusterEngine.Filter getFilter() {
+        return mFilter.isEmpty() ? null : mFilter;
+    }
 
-        if (cursor.getCount() == 0)
-            return true;    //no collision, no adjustment
+    /**
+     * Make all markers visible, regardless of filter criteria
+     */
+    public void showAll() {
+        long start = Metrics.MAP_SHOW_ALL.start();
+        try {
+            applyFilter(new FilterEngine.Criteria(null, null, 0));
+        } finally {
+            Metrics.MAP_SHOW_ALL.stop(start);
+        }
+    }
 
-        double rndFactorLat = mRandom.nextDouble() * (mRandom.nextBoolean()? 1 : -1);
-        double offsetLat = LOC_OFFSET * rndFactorLat;
+    /**
+     * A location handed out by {@code getAdjustedLocation()}, held in the index of tree positions
+     * until the DB has the tree. Use it on the UI thread only.
+     */
+    class Reservation {
+        private final long mID;
+        private final Location mLocation;
+        private final SpatialHash mHeldIn;
+
+        Reservation(long id, Location loc) {
+            mID = id;
+            mLocation = loc;
+            mHeldIn = mPositions;
+            mHeldIn.put(id, loc.getLatitude(), loc.getLongitude());
+        }
 
-        double rndFactorLong = mRandom.nextDouble() * (mRandom.nextBoolean()? 1 : -1);
-        double offsetLong = LOC_OFFSET * rndFactorLong;
+        public Location getLocation() {
+            return mLocation;
+        }
+
+        /**
+         * Hand the position over to the tree that was stored or moved there. The change event
+         * published by the DB later puts the same position again.
+         *
+         * @param rowID DB record ID
+         */
+        public void confirm(long rowID) {
+            release();
+            if (mHeldIn == mPositions)
+                mPositions.put(rowID, mLocation.getLatitude(), mLocation.getLongitude());
+        }
 
-        loc.setLatitude(loc.getLatitude() + offsetLat);
-        loc.setLongitude(loc.getLongitude() + offsetLong);
+        /**
+         * Give up the position, e.g. because the DB change failed
+         */
+        public void release() {
+            mHeldIn.remove(mID);
+        }
+    }
 
-        return false;   //location was not unique and needed to be adjusted
+    /**
+     * Ensure that the provided location keeps the minimum separation from all known trees. If
+     * necessary, move it to the nearest free position, as found by {@code SpatialHash}.
+     *
+     * @param loc location; adjusted in place
+     * @return false, if there is no free position nearby
+     */
+    private boolean makeUnique(Location loc) {
+        double separation = Math.max(mMinSeparation, MIN_SEPARATION_EPSILON);
+        double[] free = mPositions.findFreePosition(loc.getLatitude(), loc.getLongitude(), separation, MAX_SEPARATION_RINGS);
+        if (free == null)
+            return false;
+        loc.setLatitude(free[0]);
+        loc.setLongitude(free[1]);
+        return true;
     }
 }
@@ -1,6 +1,8 @@
 package com.pmann.treemap;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.location.Location;
 import android.os.Bundle;
 import android.util.Log;
@@ -17,6 +19,9 @@ import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.MapFragment;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.model.Marker;
+import com.pmann.treemap.core.ClusterEngine;
+
+import java.io.File;
 
 /**
  * <h1>TreeMap</h1>
@@ -61,6 +66,7 @@ public class MapsActivity extends Activity
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu items for use in the action bar
         getMenuInflater().inflate(R.menu.maps_activity_menu, menu);
+        menu.findItem(R.id.action_diagnostics).setVisible(Diagnostics.ENABLED);
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -71,6 +77,21 @@ public class MapsActivity extends Activity
             case R.id.action_filter:
                 openFilter();
                 return true;
+            case R.id.action_import:
+                new ImportDialogFragment().show(getFragmentManager(), "ImportDialogFragment");
+                return true;
+            case R.id.action_export:
+                new ExportDialogFragment().show(getFragmentManager(), "ExportDialogFragment");
+                return true;
+            case R.id.action_sync:
+                new SyncDialogFragment().show(getFragmentManager(), "SyncDialogFragment");
+                return true;
+            case R.id.action_metrics:
+                new MetricsDialogFragment().show(getFragmentManager(), "MetricsDialogFragment");
+                return true;
+            case R.id.action_diagnostics:
+                showDiagnostics();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -81,6 +102,130 @@ public class MapsActivity extends Activity
         dialog.show(getFragmentManager(), "FilterDialogFragment");
     }
 
+    /**
+     * Import tree records from a CSV or GeoJSON file in the background. Progress is shown in a
+     * dialog; the map reloads once the DB publishes the import.
+     *
+     * @param file the file to import
+     */
+    public void importTrees(final File file) {
+        final ProgressDialog progress = new ProgressDialog(this);
+        progress.setTitle("Importing " + file.getName());
+        progress.setMessage("Starting...");
+        progress.setCancelable(false);
+        progress.show();
+
+        final TreeImporter importer = new TreeImporter(file, new TreeImporter.ProgressListener() {
+            @Override
+            public void onProgress(int imported, int rejected) {
+                progress.setMessage(imported + " imported, " + rejected + " rejected");
+            }
+        });
+
+        DB.repository().write(new TreeRepository.Task<TreeImporter.Result>() {
+            @Override
+            public TreeImporter.Result run(DBHelper helper) {
+                return importer.run(helper);
+            }
+        }, new TreeRepository.Callback<TreeImporter.Result>() {
+            @Override
+            public void onResult(TreeImporter.Result result) {
+                progress.dismiss();
+                if (result == null || result.error != null) {
+                    Log.e(APP_NAME, "Import failed: " + file);
+                    Toast.makeText(MapsActivity.this, "Import failed!", Toast.LENGTH_LONG).show();
+                } else {
+                    String msg = result.imported + " records imported";
+                    if (result.rejected > 0)
+                        msg += "; " + result.rejected + " rejected, see " + result.rejectsFile.getName();
+                    Toast.makeText(MapsActivity.this, msg, Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+    }
+
+    /**
+     * Export tree records to a CSV or GeoJSON file in the background. Progress is shown in a
+     * dialog.
+     *
+     * @param file         the target file
+     * @param onlyFiltered if set, only export the records that pass the active filter
+     */
+    public void exportTrees(final File file, boolean onlyFiltered) {
+        final ProgressDialog progress = new ProgressDialog(this);
+        progress.setTitle("Exporting " + file.getName());
+        progress.setMessage("Starting...");
+        progress.setCancelable(false);
+        progress.show();
+
+        ClusterEngine.Filter filter = (onlyFiltered && mMap != null) ? mMap.getFilter() : null;
+        final TreeExporter exporter = new TreeExporter(file, filter, new TreeExporter.ProgressListener() {
+            @Override
+            public void onProgress(int exported) {
+                progress.setMessage(exported + " exported");
+            }
+        });
+
+        DB.repository().read(new TreeRepository.Task<Integer>() {
+            @Override
+            public Integer run(DBHelper helper) {
+                return exporter.run(helper);
+            }
+        }, new TreeRepository.Callback<Integer>() {
+            @Override
+            public void onResult(Integer exported) {
+                progress.dismiss();
+                if (exported == null || exported < 0) {
+                    Log.e(APP_NAME, "Export failed: " + file);
+                    Toast.makeText(MapsActivity.this, "Export failed!", Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(MapsActivity.this, exported + " records exported", Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+    }
+
+    /**
+     * Synchronize the tree records with a sync server in the background. Progress is shown in a
+     * dialog; the map applies the received records as the DB publishes them.
+     *
+     * @param url base URL of the sync server
+     */
+    public void syncTrees(String url) {
+        final ProgressDialog progress = new ProgressDialog(this);
+        progress.setTitle("Syncing with " + url);
+        progress.setMessage("Starting...");
+        progress.setCancelable(false);
+        progress.show();
+
+        final TreeSync sync = new TreeSync(url, DB.repository(), new TreeSync.ProgressListener() {
+            @Override
+            public void onProgress(int pushed, int pulled) {
+                progress.setMessage(pushed + " sent, " + pulled + " received");
+            }
+        });
+
+        DB.repository().background(new TreeRepository.Task<TreeSync.Result>() {
+            @Override
+            public TreeSync.Result run(DBHelper helper) {
+                return sync.run();
+            }
+        }, new TreeRepository.Callback<TreeSync.Result>() {
+            @Override
+            public void onResult(TreeSync.Result result) {
+                progress.dismiss();
+                if (result == null || result.error != null) {
+                    Toast.makeText(MapsActivity.this, "Sync failed!", Toast.LENGTH_LONG).show();
+                } else {
+                    String msg = result.pushed + " records sent, " + result.pulled + " received";
+                    if (result.rejected > 0)
+                        msg += "; " + result.rejected + " conflicts resolved in favor of the server";
+                    Toast.makeText(MapsActivity.this, msg, Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -102,7 +247,6 @@ public class MapsActivity extends Activity
         mapFragment.getMapAsync(this);
 
         //resetDB();    //erase and recreate DB with test data
-        dumpDB();       //dump contents of DB to log file
     }
 
     @Override
@@ -115,10 +259,18 @@ public class MapsActivity extends Activity
     @Override
     public void onPause() {
         super.onPause();
+        DB.repository().flush();    //don't leave edits pending while in the background
         if (mMap != null) // map may not yet be initialized
             mMap.disconnect();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mMap != null)
+            mMap.detach();
+        super.onDestroy();
+    }
+
     @Override
     public void onMapReady(GoogleMap pMap) {
         Log.d(APP_NAME,"onMapReady()");
@@ -156,12 +308,18 @@ public class MapsActivity extends Activity
     /**
      * Called when user clicks anywhere on the info window of a map marker.
      * <p>In this app we understand that to mean that the user wishes to modify or
-     * delete the related DB record.</p>
+     * delete the related DB record. For a cluster marker, we zoom in to show the individual
+     * trees instead.</p>
      *
      * @param marker
      */
     public void onInfoWindowClick(Marker marker) {
         marker.hideInfoWindow();
+        if (mMap.isCluster(marker)) {
+            mMap.zoomToCluster(marker);
+            return;
+        }
+
         EditDialogFragment dialog = new EditDialogFragment();
         dialog.setMarker(marker);
         dialog.show(getFragmentManager(), "EditDialogFragment");
@@ -187,9 +345,29 @@ public class MapsActivity extends Activity
     }
 
     /**
-     * Dump the entire contents of the DB to the log
+     * Collect DB statistics in the background, then write them to the log and show them in a dialog
      */
-    private void dumpDB() {
-        DB.helper().dumpTable(DBHelper.TABLE_TREES);
+    private void showDiagnostics() {
+        if (!Diagnostics.ENABLED)
+            return;
+
+        DB.repository().read(new TreeRepository.Task<String>() {
+            @Override
+            public String run(DBHelper helper) {
+                return Diagnostics.collect(helper);
+            }
+        }, new TreeRepository.Callback<String>() {
+            @Override
+            public void onResult(String report) {
+                if (report == null)
+                    return;
+                Diagnostics.log(report);
+                new AlertDialog.Builder(MapsActivity.this)
+                        .setTitle("Diagnostics")
+                        .setMessage(report)
+                        .setPositiveButton("OK", null)
+                        .show();
+            }
+        });
     }
 }
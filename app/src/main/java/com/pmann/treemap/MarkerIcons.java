@@ -0,0 +1,40 @@
+package com.pmann.treemap;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.maps.model.BitmapDescriptor;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+
+/**
+ * <p>Cache of marker icons. Trees of the same type share one icon, so each icon is created only
+ * once and then handed to every marker of that type.</p>
+ * <p>
+ * Icons can only be created once the map has been initialized, so they are created on first use.
+ * They are cached by type ID, so {@code invalidate()} must be called when the IDs or colors of
+ * the tree types change, e.g. after the DB was reset. Use this class from the UI thread only.</p>
+ */
+class MarkerIcons {
+    // Icons by type ID, including Tree.TYPE_OTHER
+    private static final SparseArray<BitmapDescriptor> mIcons = new SparseArray<>();
+
+    /**
+     * Get the icon for a tree type
+     * @param pTypeID type ID as returned by {@code Tree.typeID()}
+     * @return the icon
+     */
+    public static BitmapDescriptor forTypeID(int pTypeID) {
+        BitmapDescriptor icon = mIcons.get(pTypeID);
+        if (icon == null) {
+            icon = BitmapDescriptorFactory.defaultMarker(Tree.hueByTypeID(pTypeID));
+            mIcons.put(pTypeID, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * Discard all icons, e.g. after the tree types were assigned new IDs
+     */
+    public static void invalidate() {
+        mIcons.clear();
+    }
+}
@@ -0,0 +1,372 @@
+package com.pmann.treemap;
+
+import android.os.Environment;
+import android.os.Trace;
+import android.util.Log;
+
+import com.pmann.treemap.core.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Timers and counters on the hot paths of the app: DB queries and writes, loading and
+ * filtering markers, and opening dialogs. They answer the question what was slow when a user
+ * reports that the map is slow.</p>
+ * <p>
+ * A timer keeps a {@code LatencyHistogram} of all durations since the last reset, and one of the
+ * last one to two minutes. Timed sections also show up as {@code Trace} sections in systrace and
+ * Perfetto. The current figures can be viewed in the app, see {@code MetricsDialogFragment}, and
+ * exported to a file.</p>
+ * <p>
+ * Metrics are collected in debug builds, and in release builds once they are enabled from the
+ * stats dialog. When disabled, a timer costs a single field read and does not allocate.</p>
+ */
+class Metrics {
+    private static volatile boolean sEnabled = BuildConfig.DEBUG;
+
+    // Length of a window of the rolling statistics
+    private static final long WINDOW_NANOS = 60 * 1000000000L;
+
+    // All timers and counters, in the order they were created
+    private static final List<Metric> sMetrics = new ArrayList<>();
+
+    // DB queries and writes; see DBHelper
+    static final Timer DB_GET_RECORD = new Timer("db.getRecord");
+    static final Counter DB_RECORD_CACHE_HITS = new Counter("db.recordCacheHits");
+    static final Timer DB_GET_RECORDS = new Timer("db.getRecords");
+    static final Timer DB_FOR_EACH_TREE = new Timer("db.forEachTree");
+    static final Timer DB_GET_VALUE = new Timer("db.getValue");
+    static final Timer DB_QUERY_RADIUS = new Timer("db.queryWithinRadius");
+    static final Timer DB_GET_PAGE = new Timer("db.getPage");
+    static final Timer DB_SELECT_RECORDS = new Timer("db.selectRecords");
+    static final Timer DB_SEARCH = new Timer("db.search");
+    static final Timer DB_INSERT = new Timer("db.insert");
+    static final Timer DB_BULK_INSERT = new Timer("db.bulkInsert");
+    static final Timer DB_UPDATE_FIELDS = new Timer("db.updateFields");
+    static final Timer DB_UPDATE_LOCATION = new Timer("db.updateLocation");
+    static final Timer DB_DELETE = new Timer("db.delete");
+    static final Timer DB_GET_CHANGES = new Timer("db.getChanges");
+    static final Timer DB_CLEAR_CHANGES = new Timer("db.clearChanges");
+    static final Timer DB_APPLY_CHANGE = new Timer("db.applyChange");
+    static final Timer DB_SYNC_VERSION = new Timer("db.syncVersion");
+    static final Timer DB_SYNC_STATE = new Timer("db.syncState");
+    static final Timer DB_GET_VALUES = new Timer("db.getValues");
+    static final Timer DB_QUERY_BOX = new Timer("db.queryBoundingBox");
+    static final Timer DB_RELOAD_TYPES = new Timer("db.reloadTypes");
+    static final Timer DB_DIAGNOSTICS = new Timer("db.diagnostics");
+    static final Timer DB_RESET = new Timer("db.reset");
+
+    // Map; see Map
+    static final Timer MAP_CREATE_MARKERS = new Timer("map.createMarkers");
+    static final Timer MAP_LOAD_VISIBLE = new Timer("map.loadVisibleMarkers");
+    static final Timer MAP_ADD_MARKER = new Timer("map.addMarker");
+    static final Counter MAP_MARKERS_ADDED = new Counter("map.markersAdded");
+    static final Counter MAP_MARKERS_EVICTED = new Counter("map.markersEvicted");
+    static final Timer MAP_SHOW_CLUSTERS = new Timer("map.showClusters");
+    static final Timer MAP_APPLY_FILTER = new Timer("map.applyFilter");
+    static final Timer MAP_SHOW_ALL = new Timer("map.showAll");
+    static final Timer MAP_VISIBILITY_FRAME = new Timer("map.visibilityFrame");
+    static final Timer MAP_SET_VISIBLE = new Timer("map.setVisible");
+    static final Timer MAP_APPLY_CHANGES = new Timer("map.applyChanges");
+
+    // Time from the tap until the dialog shows the record
+    static final Timer DIALOG_EDIT = new Timer("dialog.edit");
+
+    private static final String SNAPSHOT_PREFIX = "treemap_metrics_";
+
+    /**
+     * Common part of timers and counters
+     */
+    abstract static class Metric {
+        final String mName;
+
+        Metric(String name) {
+            mName = name;
+            synchronized (sMetrics) {
+                sMetrics.add(this);
+            }
+        }
+
+        abstract void reset();
+
+        abstract void appendReport(StringBuilder sb);
+
+        abstract void appendJson(StringBuilder sb);
+    }
+
+    /**
+     * <p>Measures the duration of an operation. Use it like this:</p>
+     * <pre>
+     * long start = Metrics.X.start();
+     * try {
+     *     ...
+     * } finally {
+     *     Metrics.X.stop(start);
+     * }
+     * </pre>
+     * <p>
+     * {@code start()} and {@code stop()} also begin and end a trace section, so they must be
+     * called on the same thread. For operations that span threads or callbacks, use
+     * {@code mark()} and {@code record()}, which don't trace.</p>
+     */
+    static class Timer extends Metric {
+        final private LatencyHistogram mTotal = new LatencyHistogram();
+        private LatencyHistogram mCurrent = new LatencyHistogram();
+        private LatencyHistogram mPrevious = new LatencyHistogram();
+        private long mWindowStart = System.nanoTime();
+
+        Timer(String name) {
+            super(name);
+        }
+
+        /**
+         * Begin timing and a trace section
+         *
+         * @return the start time to pass to {@code stop()}; 0 if metrics are disabled
+         */
+        long start() {
+            if (!sEnabled)
+                return 0;
+            Trace.beginSection(mName);
+            return System.nanoTime();
+        }
+
+        /**
+         * End the trace section and count the duration
+         *
+         * @param start as returned by {@code start()}
+         */
+        void stop(long start) {
+            if (start == 0)
+                return;
+            long now = System.nanoTime();
+            Trace.endSection();
+            add(now, now - start);
+        }
+
+        /**
+         * Begin timing without tracing
+         *
+         * @return the start time to pass to {@code record()}; 0 if metrics are disabled
+         */
+        long mark() {
+            return sEnabled ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Count the time since {@code mark()}
+         *
+         * @param start as returned by {@code mark()}
+         */
+        void record(long start) {
+            if (start == 0)
+                return;
+            long now = System.nanoTime();
+            add(now, now - start);
+        }
+
+        private synchronized void add(long now, long duration) {
+            long elapsed = now - mWindowStart;
+            if (elapsed >= WINDOW_NANOS) {
+                // Start a new window. The one that ended becomes the previous one, unless it
+                // ended too long ago to be of interest.
+                LatencyHistogram ended = mCurrent;
+                mCurrent = mPrevious;
+                mCurrent.clear();
+                mPrevious = ended;
+                if (elapsed >= 2 * WINDOW_NANOS)
+                    mPrevious.clear();
+                mWindowStart = now;
+            }
+            mCurrent.record(duration);
+            mTotal.record(duration);
+        }
+
+        /**
+         * @return durations of the last one to two minutes
+         */
+        synchronized LatencyHistogram getRecent() {
+            LatencyHistogram recent = mCurrent.copy();
+            if (System.nanoTime() - mWindowStart < WINDOW_NANOS)
+                recent.add(mPrevious);
+            return recent;
+        }
+
+        /**
+         * @return durations since the last reset
+         */
+        LatencyHistogram getTotal() {
+            return mTotal.copy();
+        }
+
+        @Override
+        synchronized void reset() {
+            mTotal.clear();
+            mCurrent.clear();
+            mPrevious.clear();
+            mWindowStart = System.nanoTime();
+        }
+
+        @Override
+        void appendReport(StringBuilder sb) {
+            LatencyHistogram total = getTotal();
+            if (total.getCount() == 0)
+                return;
+            LatencyHistogram recent = getRecent();
+            sb.append(mName).append('\n');
+            sb.append(String.format(Locale.US, "  all %6d  p50 %7.1f  p99 %7.1f  max %7.1f ms\n",
+                    total.getCount(), millis(total.getPercentile(50)), millis(total.getPercentile(99)),
+                    millis(total.getMax())));
+            if (recent.getCount() > 0)
+                sb.append(String.format(Locale.US, "  now %6d  p50 %7.1f  p99 %7.1f  max %7.1f ms\n",
+                        recent.getCount(), millis(recent.getPercentile(50)), millis(recent.getPercentile(99)),
+                        millis(recent.getMax())));
+        }
+
+        @Override
+        void appendJson(StringBuilder sb) {
+            LatencyHistogram h = getTotal();
+            sb.append(String.format(Locale.US,
+                    "{\"count\": %d, \"mean\": %.0f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d}",
+                    h.getCount(), h.getMean(), h.getPercentile(50), h.getPercentile(90),
+                    h.getPercentile(99), h.getMax()));
+        }
+    }
+
+    /**
+     * Counts events, e.g. cache hits
+     */
+    static class Counter extends Metric {
+        final private AtomicLong mCount = new AtomicLong();
+
+        Counter(String name) {
+            super(name);
+        }
+
+        void add(long n) {
+            if (sEnabled)
+                mCount.addAndGet(n);
+        }
+
+        long get() {
+            return mCount.get();
+        }
+
+        @Override
+        void reset() {
+            mCount.set(0);
+        }
+
+        @Override
+        void appendReport(StringBuilder sb) {
+            long count = get();
+            if (count > 0)
+                sb.append(mName).append(": ").append(count).append('\n');
+        }
+
+        @Override
+        void appendJson(StringBuilder sb) {
+            sb.append(get());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Turn collection on or off. Figures collected so far are kept.
+     */
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Forget all figures collected so far
+     */
+    static void reset() {
+        for (Metric m : metrics())
+            m.reset();
+    }
+
+    private static List<Metric> metrics() {
+        synchronized (sMetrics) {
+            return new ArrayList<>(sMetrics);
+        }
+    }
+
+    /**
+     * @return the figures of all timers and counters that have seen any use, as plain text
+     */
+    static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Metric m : metrics())
+            m.appendReport(sb);
+        if (sb.length() == 0)
+            sb.append(sEnabled ? "No data yet" : "Metrics are disabled");
+        return sb.toString();
+    }
+
+    /**
+     * @return the figures of all timers and counters, and the report of {@code MainThreadGuard},
+     * as JSON; durations in nanoseconds
+     */
+    static String toJson() {
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"time\": \"").append(timestamp("yyyy-MM-dd'T'HH:mm:ssZ")).append("\"");
+        for (Metric m : metrics()) {
+            sb.append(",\n  \"").append(m.mName).append("\": ");
+            m.appendJson(sb);
+        }
+        sb.append(",\n  \"uiThreadDb\": \"").append(escape(MainThreadGuard.report(true))).append("\"");
+        sb.append("\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Write a snapshot of all figures as JSON to the downloads directory
+     *
+     * @return the file, or null if it could not be written
+     */
+    static File export() {
+        File downloads = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        File file = new File(downloads, SNAPSHOT_PREFIX + timestamp("yyyyMMdd_HHmmss") + ".json");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                out.write(toJson());
+            } finally {
+                out.close();
+            }
+            return file;
+        } catch (IOException e) {
+            Log.e(MapsActivity.APP_NAME, "Failed to export metrics: " + file, e);
+            return null;
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String timestamp(String pattern) {
+        return new SimpleDateFormat(pattern, Locale.US).format(new Date());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
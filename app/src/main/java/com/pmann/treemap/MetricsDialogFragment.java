@@ -0,0 +1,121 @@
+package com.pmann.treemap;
+
+import android.annotation.SuppressLint;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+
+/**
+ * Shows the figures collected by {@code Metrics}, and the DB accesses on the UI thread caught by
+ * {@code MainThreadGuard}, refreshed every second while the dialog is open. Collection can be
+ * turned on and off here, and a snapshot exported to the downloads directory for a bug report.
+ */
+public class MetricsDialogFragment extends DialogFragment {
+    private static final long REFRESH_MS = 1000;
+
+    final private Handler mHandler = new Handler(Looper.getMainLooper());
+    private TextView mText;
+
+    // The export finishes after the dialog has been dismissed, so we hold on to the application
+    // context for reporting it
+    private Context mAppContext;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            String offenders = MainThreadGuard.report(false);
+            mText.setText(offenders.isEmpty() ? Metrics.report() : Metrics.report() + "\n" + offenders);
+            mHandler.postDelayed(this, REFRESH_MS);
+        }
+    };
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        mAppContext = getActivity().getApplicationContext();
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        LayoutInflater inflater = getActivity().getLayoutInflater();
+
+        //Since this is a dialog it's OK to pass null as the root parameter
+        @SuppressLint("InflateParams") View dialogView = inflater.inflate(R.layout.metrics_dialog, null);
+
+        mText = (TextView) dialogView.findViewById(R.id.txt_metrics);
+        CheckBox cbEnabled = (CheckBox) dialogView.findViewById(R.id.chk_enabled);
+        cbEnabled.setChecked(Metrics.isEnabled());
+        cbEnabled.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                Metrics.setEnabled(isChecked);
+            }
+        });
+
+        builder.setView(dialogView)
+                .setTitle(R.string.metrics)
+
+                .setPositiveButton("Export", new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int id) {
+                                export();
+                            }
+                        }
+                )
+
+                .setNegativeButton("Reset", new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int id) {
+                                Metrics.reset();
+                                MainThreadGuard.reset();
+                            }
+                        }
+                )
+
+                .setNeutralButton("Close", new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int id) {
+                                // Nothing to do
+                            }
+                        }
+
+                );
+        return builder.create();
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        mRefresh.run();
+    }
+
+    @Override
+    public void onStop() {
+        mHandler.removeCallbacks(mRefresh);
+        super.onStop();
+    }
+
+    /**
+     * Write a snapshot in the background and report where it went
+     */
+    private void export() {
+        DB.repository().background(new TreeRepository.Task<File>() {
+            @Override
+            public File run(DBHelper helper) {
+                return Metrics.export();
+            }
+        }, new TreeRepository.Callback<File>() {
+            @Override
+            public void onResult(File file) {
+                String msg = file != null ? "Metrics saved to " + file.getPath() : "Export failed!";
+                Toast.makeText(mAppContext, msg, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+}
@@ -0,0 +1,116 @@
+package com.pmann.treemap;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+
+/**
+ * <p>Compiles SQL statements once and keeps them for reuse. Statements are identified by their
+ * SQL text, so callers must put all variable values into parameters ("?") rather than into the
+ * text itself. Besides saving SQLite the work of parsing and planning the same statement over and
+ * over, this keeps user input out of the SQL.</p>
+ * <p>
+ * A statement holds its parameter bindings until it is executed, so binding and executing happen
+ * while holding the statement's lock. Different statements can run concurrently.</p>
+ * <p>
+ * Queries that return a cursor don't go through this class. {@code SQLiteDatabase.rawQuery()}
+ * already looks up its statements in the connection's statement cache by SQL text; bound
+ * parameters are all it takes to hit that cache.</p>
+ */
+class StatementCache {
+    final private SQLiteOpenHelper mHelper;
+    final private HashMap<String, SQLiteStatement> mStatements = new HashMap<>();
+
+    public StatementCache(SQLiteOpenHelper helper) {
+        mHelper = helper;
+    }
+
+    /**
+     * Run a query that returns a single number
+     * @param sql SELECT statement with "?" for each parameter
+     * @param defaultValue returned if the query yields no rows
+     * @param args parameter values; Long, Integer, Double, String or null
+     * @return value of the first column of the first row
+     */
+    public long queryLong(String sql, long defaultValue, Object... args) {
+        SQLiteStatement statement = get(sql);
+        synchronized (statement) {
+            bind(statement, args);
+            try {
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return defaultValue;
+            }
+        }
+    }
+
+    /**
+     * Run a query that returns a single string
+     * @param sql SELECT statement with "?" for each parameter
+     * @param args parameter values; Long, Integer, Double, String or null
+     * @return value of the first column of the first row, or null if the query yields no rows
+     */
+    public String queryString(String sql, Object... args) {
+        SQLiteStatement statement = get(sql);
+        synchronized (statement) {
+            bind(statement, args);
+            try {
+                return statement.simpleQueryForString();
+            } catch (SQLiteDoneException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Run an UPDATE or DELETE statement
+     * @param sql statement with "?" for each parameter
+     * @param args parameter values; Long, Integer, Double, String or null
+     * @return number of rows affected
+     */
+    public int executeUpdateDelete(String sql, Object... args) {
+        SQLiteStatement statement = get(sql);
+        synchronized (statement) {
+            bind(statement, args);
+            return statement.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Release all statements. They are compiled again when next used. Must not be called while
+     * another thread may be executing a statement.
+     */
+    public synchronized void clear() {
+        for (SQLiteStatement statement : mStatements.values())
+            statement.close();
+        mStatements.clear();
+    }
+
+    private synchronized SQLiteStatement get(String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            statement = db.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private static void bind(SQLiteStatement statement, Object[] args) {
+        statement.clearBindings();
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            if (arg == null)
+                statement.bindNull(i + 1);
+            else if (arg instanceof Long || arg instanceof Integer)
+                statement.bindLong(i + 1, ((Number) arg).longValue());
+            else if (arg instanceof Double)
+                statement.bindDouble(i + 1, (Double) arg);
+            else
+                statement.bindString(i + 1, arg.toString());
+        }
+    }
+}
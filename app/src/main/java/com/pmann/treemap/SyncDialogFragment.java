@@ -0,0 +1,56 @@
+package com.pmann.treemap;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.DialogInterface;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.EditText;
+
+/**
+ * Dialog for entering the address of the sync server. The last address is remembered. The sync
+ * itself is run by the main activity, so that it can report progress after the dialog is gone.
+ */
+public class SyncDialogFragment extends DialogFragment {
+    private static final String PREF_URL = "sync_url";
+    private static final String DEFAULT_URL = "http://10.0.2.2:8080";     //host machine, as seen from the emulator
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        LayoutInflater inflater = getActivity().getLayoutInflater();
+
+        //Since this is a dialog it's OK to pass null as the root parameter
+        @SuppressLint("InflateParams") View dialogView = inflater.inflate(R.layout.sync_dialog, null);
+
+        final SharedPreferences prefs = getActivity().getPreferences(Activity.MODE_PRIVATE);
+        final EditText txtUrl = (EditText) dialogView.findViewById(R.id.txt_url);
+        txtUrl.setText(prefs.getString(PREF_URL, DEFAULT_URL));
+
+        builder.setView(dialogView)
+                .setTitle("Sync Trees")
+
+                .setPositiveButton("Sync", new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int id) {
+                                String url = txtUrl.getText().toString().trim();
+                                prefs.edit().putString(PREF_URL, url).apply();
+                                ((MapsActivity) getActivity()).syncTrees(url);
+                            }
+                        }
+                )
+
+                .setNeutralButton("Cancel", new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int id) {
+                                // User cancelled the dialog - do nothing
+                            }
+                        }
+
+                );
+        return builder.create();
+    }
+}
@@ -1,39 +1,39 @@
 package com.pmann.treemap;
 
-import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.pmann.treemap.core.TreeTypes;
+import com.pmann.treemap.core.TypeDictionary;
 
 /**
- * This class encapsulates properties of trees, e.g. the color coding on the map. Any methods
- * that reference specific tree names should be in this class, to facilitate maintenance.
- * <p>
- * Note: For future proofing and localizing, this information should really live in the DB.
- * </p>
+ * This class encapsulates properties of trees, e.g. the color coding on the map, for the tree
+ * types of the app's DB. The standard types and their colors are defined in {@code TreeTypes}.
  */
 class Tree {
 
-    @SuppressWarnings("SpellCheckingInspection")
-    final private static String[] mStandardTrees =
-            {"apple", "cherry", "crabapple", "fig", "filbert", "grape", "loquat",
-                    "peach", "pear", "persimmon", "plum", "quince"};
-    final private static int mHueMultiplier = 360 / mStandardTrees.length;
+    // Type ID of trees without a type
+    public static final int TYPE_OTHER = TypeDictionary.NONE;
 
     /**
-     * Return a color value or hue (float between 0 and 360) corresponding to a given tree.
-     * <p>
-     * Note that colors will change, if the list of known tree types is expanded. We are just
-     * ensuring that colors are as distinct as possible, as measured by the hue value.
-     * </p>
+     * Return a compact ID for a tree type, suitable for storing with each marker
      * @param pType string identifying a tree type
-     * @return the corresponding hue or yellow, if the type is unknown
+     * @return ID of the type in the DB, or {@code TYPE_OTHER} if the type is null or unknown
      */
-    public static float hueByType(String pType) {
-        for  (int i=0; i < mStandardTrees.length; i++) {
-            if (pType.equalsIgnoreCase(mStandardTrees[i])) {
-                return (float) i * mHueMultiplier;
-            }
-        }
-        return BitmapDescriptorFactory.HUE_YELLOW;
+    public static int typeID(String pType) {
+        return DB.helper().types().idOf(pType);
     }
-}
 
+    /**
+     * Like {@code typeID()}, for a subtype
+     */
+    public static int subtypeID(String pSubtype) {
+        return DB.helper().subtypes().idOf(pSubtype);
+    }
 
+    /**
+     * Return a color value or hue (float between 0 and 360) corresponding to a given tree type.
+     * @param pTypeID type ID as returned by {@code typeID()}
+     * @return the corresponding hue or yellow, if the type is unknown or has no hue
+     */
+    public static float hueByTypeID(int pTypeID) {
+        return TreeTypes.hueOf(DB.helper().types(), pTypeID);
+    }
+}
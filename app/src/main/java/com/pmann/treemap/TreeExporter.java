@@ -0,0 +1,192 @@
+package com.pmann.treemap;
+
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.pmann.treemap.core.ClusterEngine;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * <p>Exports tree records to a CSV or GeoJSON file. Records are read from the DB one page at a
+ * time and written straight to a buffered file, so memory use does not depend on the size of the
+ * table.</p>
+ * <p>
+ * The CSV format matches what {@code TreeImporter} reads, so exported files can be imported on
+ * another device.</p>
+ */
+class TreeExporter {
+    // Number of records read from the DB at a time
+    private static final int PAGE_SIZE = 500;
+
+    private static final String[] COLUMNS = {
+            DBHelper.COLUMN_LAT, DBHelper.COLUMN_LONG, DBHelper.COLUMN_TYPE, DBHelper.COLUMN_SUBTYPE,
+            DBHelper.COLUMN_COMMENT, DBHelper.COLUMN_FLAG, DBHelper.COLUMN_DATE};
+
+    /**
+     * Receives progress reports on the UI thread
+     */
+    public interface ProgressListener {
+        void onProgress(int exported);
+    }
+
+    final private File mTarget;
+    final private ClusterEngine.Filter mFilter;
+    final private ProgressListener mListener;
+    final private Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param target   CSV file, or GeoJSON file if the name ends in .json or .geojson
+     * @param filter   only export records that pass this filter; null to export all records
+     * @param listener receives progress reports; may be null
+     */
+    public TreeExporter(File target, ClusterEngine.Filter filter, ProgressListener listener) {
+        mTarget = target;
+        mFilter = filter;
+        mListener = listener;
+    }
+
+    /**
+     * Run the export. This does disk I/O and must not be called on the UI thread.
+     *
+     * @param helper DB to export from
+     * @return number of exported records, or -1 if the export failed
+     */
+    public int run(DBHelper helper) {
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mTarget), "UTF-8"));
+            try {
+                String name = mTarget.getName().toLowerCase(Locale.US);
+                if (name.endsWith(".json") || name.endsWith(".geojson"))
+                    return exportGeoJson(helper, out);
+                else
+                    return exportCsv(helper, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(MapsActivity.APP_NAME, "Export failed", e);
+            return -1;
+        }
+    }
+
+    private int exportCsv(DBHelper helper, Writer out) throws IOException {
+        out.write("id");
+        for (String c : COLUMNS)
+            out.write("," + c);
+        out.write('\n');
+
+        int count = 0;
+        long lastRowID = 0;
+        while (true) {
+            Cursor page = helper.getPage(DBHelper.VIEW_TREES, lastRowID, PAGE_SIZE, COLUMNS);
+            int rows = page.getCount();
+            try {
+                while (!page.isAfterLast()) {
+                    lastRowID = page.getLong(0);
+                    if (mFilter == null || mFilter.accept(lastRowID, page.getInt(6))) {
+                        out.write(String.valueOf(lastRowID));
+                        out.write(',');
+                        out.write(String.valueOf(page.getDouble(1)));
+                        out.write(',');
+                        out.write(String.valueOf(page.getDouble(2)));
+                        for (int i = 3; i <= 5; i++) {
+                            out.write(',');
+                            out.write(quote(page.getString(i)));
+                        }
+                        out.write(',');
+                        out.write(String.valueOf(page.getInt(6)));
+                        out.write(',');
+                        out.write(quote(page.getString(7)));
+                        out.write('\n');
+                        count++;
+                    }
+                    page.moveToNext();
+                }
+            } finally {
+                page.close();
+            }
+            if (rows < PAGE_SIZE)
+                break;
+            reportProgress(count);
+        }
+        return count;
+    }
+
+    private int exportGeoJson(DBHelper helper, Writer out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("type").value("FeatureCollection");
+        json.name("features").beginArray();
+
+        int count = 0;
+        long lastRowID = 0;
+        while (true) {
+            Cursor page = helper.getPage(DBHelper.VIEW_TREES, lastRowID, PAGE_SIZE, COLUMNS);
+            int rows = page.getCount();
+            try {
+                while (!page.isAfterLast()) {
+                    lastRowID = page.getLong(0);
+                    if (mFilter == null || mFilter.accept(lastRowID, page.getInt(6))) {
+                        json.beginObject();
+                        json.name("type").value("Feature");
+                        json.name("id").value(lastRowID);
+                        json.name("geometry").beginObject();
+                        json.name("type").value("Point");
+                        json.name("coordinates").beginArray()
+                                .value(page.getDouble(2))   //GeoJSON lists longitude first
+                                .value(page.getDouble(1))
+                                .endArray();
+                        json.endObject();
+                        json.name("properties").beginObject();
+                        json.name(DBHelper.COLUMN_TYPE).value(page.getString(3));
+                        json.name(DBHelper.COLUMN_SUBTYPE).value(page.getString(4));
+                        json.name(DBHelper.COLUMN_COMMENT).value(page.getString(5));
+                        json.name(DBHelper.COLUMN_FLAG).value(page.getInt(6));
+                        json.name(DBHelper.COLUMN_DATE).value(page.getString(7));
+                        json.endObject();
+                        json.endObject();
+                        count++;
+                    }
+                    page.moveToNext();
+                }
+            } finally {
+                page.close();
+            }
+            if (rows < PAGE_SIZE)
+                break;
+            reportProgress(count);
+        }
+
+        json.endArray();
+        json.endObject();
+        json.flush();
+        return count;
+    }
+
+    private void reportProgress(final int exported) {
+        if (mListener == null)
+            return;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onProgress(exported);
+            }
+        });
+    }
+
+    private static String quote(String s) {
+        if (s == null)
+            return "";
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,415 @@
+package com.pmann.treemap;
+
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <p>Imports tree records from a CSV or GeoJSON file. The file is parsed incrementally, so its
+ * size is not limited by available memory, and records are written through
+ * {@code DBHelper.BulkInsert}.</p>
+ * <p>
+ * CSV files must start with a header line naming the columns. We recognize lat, long, type,
+ * subtype, comment and flag (plus a few common aliases such as latitude or lng); other columns
+ * are ignored. GeoJSON files must contain a FeatureCollection of Point features whose properties
+ * use the same names.</p>
+ * <p>
+ * Records that can't be imported don't abort the import. They are written to a rejects file next
+ * to the source file, along with the reason. For CSV, the rejects file is itself a valid import
+ * file, so it can be corrected and imported again.</p>
+ */
+class TreeImporter {
+    // Progress is reported after this many records
+    private static final int PROGRESS_INTERVAL = 500;
+
+    private static final String REJECTS_SUFFIX = ".rejects";
+    private static final String REASON_COLUMN = "reject_reason";
+
+    /**
+     * Receives progress reports on the UI thread
+     */
+    public interface ProgressListener {
+        void onProgress(int imported, int rejected);
+    }
+
+    /**
+     * Outcome of an import
+     */
+    public static class Result {
+        public final int imported;
+        public final int rejected;
+        public final File rejectsFile;  //null, if no records were rejected
+        public final String error;      //null, unless the import was aborted
+
+        Result(int imported, int rejected, File rejectsFile, String error) {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.rejectsFile = rejectsFile;
+            this.error = error;
+        }
+    }
+
+    // A record as read from the file, before validation
+    private static class Fields {
+        String lat;
+        String lng;
+        String type;
+        String subtype;
+        String comment;
+        String flag;
+    }
+
+    final private File mSource;
+    final private ProgressListener mListener;
+    final private Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private int mImported = 0;
+    private int mRejected = 0;
+    private File mRejectsFile = null;
+    private Writer mRejects = null;
+    private String mRejectsHeader = null;
+
+    /**
+     * @param source   CSV file, or GeoJSON file if the name ends in .json or .geojson
+     * @param listener receives progress reports; may be null
+     */
+    public TreeImporter(File source, ProgressListener listener) {
+        mSource = source;
+        mListener = listener;
+    }
+
+    /**
+     * Run the import. This does disk I/O and must not be called on the UI thread.
+     *
+     * @param helper DB to import into
+     * @return counts of imported and rejected records
+     */
+    public Result run(DBHelper helper) {
+        String error = null;
+        DBHelper.BulkInsert insert = helper.beginBulkInsert();
+        try {
+            Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(mSource), "UTF-8"));
+            try {
+                String name = mSource.getName().toLowerCase(Locale.US);
+                if (name.endsWith(".json") || name.endsWith(".geojson"))
+                    importGeoJson(in, insert);
+                else
+                    importCsv(in, insert);
+            } finally {
+                in.close();
+            }
+        } catch (IOException | IllegalStateException e) {
+            Log.e(MapsActivity.APP_NAME, "Import failed", e);
+            error = e.getMessage();
+        } finally {
+            insert.close();
+            closeRejects();
+        }
+        return new Result(mImported, mRejected, mRejectsFile, error);
+    }
+
+    private void importCsv(Reader in, DBHelper.BulkInsert insert) throws IOException {
+        StringBuilder raw = new StringBuilder();
+        List<String> header = readCsvRecord(in, raw);
+        if (header == null)
+            return;
+        mRejectsHeader = raw.toString() + "," + REASON_COLUMN;
+
+        HashMap<String, Integer> columns = new HashMap<>();
+        for (int i = 0; i < header.size(); i++)
+            columns.put(header.get(i).trim().toLowerCase(Locale.US), i);
+        int colLat = column(columns, "lat", "latitude");
+        int colLng = column(columns, "long", "lng", "lon", "longitude");
+        int colType = column(columns, "type");
+        int colSubtype = column(columns, "subtype", "variety");
+        int colComment = column(columns, "comment", "comments");
+        int colFlag = column(columns, "flag", "flags");
+
+        List<String> record;
+        while ((record = readCsvRecord(in, raw)) != null) {
+            Fields f = new Fields();
+            f.lat = field(record, colLat);
+            f.lng = field(record, colLng);
+            f.type = field(record, colType);
+            f.subtype = field(record, colSubtype);
+            f.comment = field(record, colComment);
+            f.flag = field(record, colFlag);
+
+            String reason = insert(insert, f);
+            if (reason != null)
+                reject(raw + "," + quote(reason));
+        }
+    }
+
+    private void importGeoJson(Reader in, DBHelper.BulkInsert insert) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        int feature = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("features")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                feature++;
+                Fields f = new Fields();
+                String reason = readFeature(reader, f);
+                if (reason == null)
+                    reason = insert(insert, f);
+                if (reason != null)
+                    reject("feature " + feature + ": " + reason);
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Read a GeoJSON feature into the given fields
+     *
+     * @return null if the feature was read, otherwise the reason for rejecting it
+     */
+    private static String readFeature(JsonReader reader, Fields f) throws IOException {
+        String reason = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("geometry") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reason = readPoint(reader, f);
+            } else if (name.equals("properties") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String property = reader.nextName().toLowerCase(Locale.US);
+                    String value = readScalar(reader);
+                    if (property.equals("type"))
+                        f.type = value;
+                    else if (property.equals("subtype") || property.equals("variety"))
+                        f.subtype = value;
+                    else if (property.equals("comment") || property.equals("comments"))
+                        f.comment = value;
+                    else if (property.equals("flag") || property.equals("flags"))
+                        f.flag = value;
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return reason;
+    }
+
+    private static String readPoint(JsonReader reader, Fields f) throws IOException {
+        String type = null;
+        List<String> coordinates = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("type")) {
+                type = readScalar(reader);
+            } else if (name.equals("coordinates") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext())
+                    coordinates.add(readScalar(reader));
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!"Point".equals(type))
+            return "geometry is not a point";
+        if (coordinates.size() < 2)
+            return "missing coordinates";
+        f.lng = coordinates.get(0);     //GeoJSON lists longitude first
+        f.lat = coordinates.get(1);
+        return null;
+    }
+
+    /**
+     * Read a JSON value as a string; objects and arrays are skipped and yield null
+     */
+    private static String readScalar(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    /**
+     * Validate a record and insert it
+     *
+     * @return null if the record was inserted, otherwise the reason for rejecting it
+     */
+    private String insert(DBHelper.BulkInsert insert, Fields f) {
+        double lat;
+        double lng;
+        int flag = 0;
+        try {
+            lat = Double.parseDouble(f.lat.trim());
+            lng = Double.parseDouble(f.lng.trim());
+        } catch (NullPointerException | NumberFormatException e) {
+            return "invalid location";
+        }
+        if (lat < -90 || lat > 90 || lng < -180 || lng > 180)
+            return "location out of range";
+        if (f.flag != null && f.flag.trim().length() > 0) {
+            try {
+                flag = Integer.parseInt(f.flag.trim());
+            } catch (NumberFormatException e) {
+                return "invalid flag";
+            }
+        }
+
+        try {
+            insert.insert(lat, lng, nonNull(f.type), nonNull(f.subtype), nonNull(f.comment), flag);
+        } catch (SQLException e) {
+            return "DB error: " + e.getMessage();
+        }
+
+        if (++mImported % PROGRESS_INTERVAL == 0)
+            reportProgress();
+        return null;
+    }
+
+    private void reject(String line) throws IOException {
+        if (mRejects == null) {
+            mRejectsFile = new File(mSource.getPath() + REJECTS_SUFFIX);
+            mRejects = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mRejectsFile), "UTF-8"));
+            if (mRejectsHeader != null) {
+                mRejects.write(mRejectsHeader);
+                mRejects.write('\n');
+            }
+        }
+        mRejects.write(line);
+        mRejects.write('\n');
+
+        if (++mRejected % PROGRESS_INTERVAL == 0)
+            reportProgress();
+    }
+
+    private void closeRejects() {
+        if (mRejects == null)
+            return;
+        try {
+            mRejects.close();
+        } catch (IOException e) {
+            Log.e(MapsActivity.APP_NAME, "Failed to write rejects", e);
+        }
+    }
+
+    private void reportProgress() {
+        if (mListener == null)
+            return;
+        final int imported = mImported;
+        final int rejected = mRejected;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onProgress(imported, rejected);
+            }
+        });
+    }
+
+    /**
+     * Read one CSV record, following RFC 4180: fields may be quoted, and quoted fields may contain
+     * commas, line breaks and doubled quotes.
+     *
+     * @param in  source
+     * @param raw receives the text of the record, without the line terminator
+     * @return list of fields, or null at end of input
+     */
+    private static List<String> readCsvRecord(Reader in, StringBuilder raw) throws IOException {
+        raw.setLength(0);
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        int c = in.read();
+        if (c == -1)
+            return null;
+        while (c != -1) {
+            if (quoted) {
+                if (c == '"') {
+                    in.mark(1);
+                    int next = in.read();
+                    if (next == '"') {
+                        field.append('"');
+                        raw.append('"');
+                    } else {
+                        quoted = false;
+                        in.reset();
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+            if (c != '\r' || quoted)
+                raw.append((char) c);
+            c = in.read();
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static int column(HashMap<String, Integer> columns, String... names) {
+        for (String name : names) {
+            Integer index = columns.get(name);
+            if (index != null)
+                return index;
+        }
+        return -1;
+    }
+
+    private static String field(List<String> record, int column) {
+        return (column >= 0 && column < record.size()) ? record.get(column) : null;
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+}
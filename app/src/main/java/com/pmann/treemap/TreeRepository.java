@@ -0,0 +1,384 @@
+package com.pmann.treemap;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.pmann.treemap.core.TreeRecord;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Asynchronous front end for {@code DBHelper}. All SQLite work submitted through this class
+ * runs off the UI thread; results are delivered back on the UI thread via a callback.</p>
+ * <p>
+ * Reads run on a small, fixed pool of threads. Writes are queued to a single thread, so they are
+ * applied in the order they were submitted and never contend with each other for the DB lock.
+ * The DB uses write-ahead logging, so reads are not blocked while a write is in progress.</p>
+ * <p>
+ * Edits of single records (insert, update, delete) are committed in groups: edits that arrive
+ * within {@code COMMIT_WINDOW_MS} of the first one share a single transaction, and thus a single
+ * sync to storage. Consecutive updates of the same record and fields are collapsed into one, so
+ * rapidly tagging trees costs little more than tagging one. Callbacks run once the group is
+ * committed. A group succeeds or fails as a whole: if one of its edits throws an exception, the
+ * transaction is rolled back and every edit in the group reports null.</p>
+ * <p>
+ * Changes that {@code DBHelper} publishes within a transaction are released to the
+ * {@code ChangeBus} once the task or group commit that made them has finished, or dropped if it
+ * failed. The same holds for new type and subtype names, which only enter the dictionaries once
+ * they are committed.</p>
+ * <p>
+ * A task that throws an exception is logged, and its callback receives null, so callers always
+ * hear back.</p>
+ * <p>
+ * A singleton instance is made available through {@code DB.repository()}.</p>
+ */
+class TreeRepository {
+    private static final int READ_THREADS = 2;
+
+    // Edits that arrive within this time of the first pending edit are committed together
+    private static final long COMMIT_WINDOW_MS = 50;
+
+    // Kinds of edits. Consecutive edits of the same record and kind are collapsed.
+    private static final int EDIT_INSERT = 0;
+    private static final int EDIT_FIELDS = 1;
+    private static final int EDIT_LOCATION = 2;
+    private static final int EDIT_DELETE = 3;
+
+    /**
+     * Receives the result of a DB operation on the UI thread
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    /**
+     * A unit of DB work. It runs on a background thread and must not touch the UI.
+     */
+    public interface Task<T> {
+        T run(DBHelper helper);
+    }
+
+    final private DBHelper mHelper;
+    final private ExecutorService mReadExecutor;
+    final private ScheduledExecutorService mWriteExecutor;
+    final private ExecutorService mBackgroundExecutor;
+    final private Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Edits waiting for the next group commit, in submission order, and the last pending edit
+    // of each record. Guarded by mPendingLock.
+    final private Object mPendingLock = new Object();
+    private List<Edit<?>> mPending = new ArrayList<>();
+    final private HashMap<Long, Edit<?>> mLastEdit = new HashMap<>();
+    private boolean mCommitScheduled = false;
+
+    final private Runnable mCommit = new Runnable() {
+        @Override
+        public void run() {
+            commitEdits();
+        }
+    };
+
+    public TreeRepository(DBHelper helper) {
+        mHelper = helper;
+        mReadExecutor = Executors.newFixedThreadPool(READ_THREADS, new NamedThreadFactory("TreeMap-read"));
+        mWriteExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("TreeMap-write"));
+        mBackgroundExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("TreeMap-background"));
+    }
+
+    /**
+     * Run a read-only task in the background
+     *
+     * @param task     the DB work
+     * @param callback receives the result on the UI thread; may be null
+     * @return future for the result; it yields null, as does the callback, if the task failed
+     */
+    public <T> Future<T> read(Task<T> task, Callback<T> callback) {
+        return submit(mReadExecutor, task, callback);
+    }
+
+    /**
+     * Queue a task that modifies the DB. Writes are applied one at a time in submission order;
+     * pending edits are committed before the task runs.
+     *
+     * @param task     the DB work
+     * @param callback receives the result on the UI thread; may be null
+     * @return future for the result; it yields null, as does the callback, if the task failed
+     */
+    public <T> Future<T> write(final Task<T> task, Callback<T> callback) {
+        return submit(mWriteExecutor, new Task<T>() {
+            @Override
+            public T run(DBHelper helper) {
+                commitEdits();
+                return task.run(helper);
+            }
+        }, callback);
+    }
+
+    /**
+     * Run a long task that mostly waits for something other than the DB, e.g. the network. Such
+     * tasks run one at a time on their own thread, so they don't hold up reads and writes. They
+     * should submit their DB changes through {@code write()}.
+     *
+     * @param task     the work
+     * @param callback receives the result on the UI thread; may be null
+     * @return future for the result; it yields null, as does the callback, if the task failed
+     */
+    public <T> Future<T> background(Task<T> task, Callback<T> callback) {
+        return submit(mBackgroundExecutor, task, callback);
+    }
+
+    /**
+     * Commit pending edits right away instead of waiting for the end of the commit window, e.g.
+     * when the app goes into the background
+     */
+    public void flush() {
+        mWriteExecutor.execute(mCommit);
+    }
+
+    /**
+     * Read a DB record. See {@code DBHelper.getRecord()}.
+     *
+     * @param callback receives the record, or null if it could not be retrieved
+     */
+    public void getRecord(final long rowID, Callback<TreeRecord> callback) {
+        read(new Task<TreeRecord>() {
+            @Override
+            public TreeRecord run(DBHelper helper) {
+                return helper.getRecord(rowID);
+            }
+        }, callback);
+    }
+
+    /**
+     * Create a new DB record. See {@code DBHelper.insertTree()}.
+     *
+     * @param callback receives the row ID of the new record, or -1 if an error occurred
+     */
+    public void insertTree(final double lat, final double lng, final String type, final String subtype,
+                           final String comment, final int flag, Callback<Long> callback) {
+        edit(EDIT_INSERT, -1, new Task<Long>() {
+            @Override
+            public Long run(DBHelper helper) {
+                return helper.insertTree(lat, lng, type, subtype, comment, flag);
+            }
+        }, orDefault(callback, -1L));
+    }
+
+    /**
+     * Update the descriptive fields of a DB record. See {@code TreeStore.updateFields()}.
+     *
+     * @param callback receives true, if the record was updated
+     */
+    public void updateRow(final long rowID, final String type, final String subtype, final String comment,
+                          final int flag, Callback<Boolean> callback) {
+        edit(EDIT_FIELDS, rowID, new Task<Boolean>() {
+            @Override
+            public Boolean run(DBHelper helper) {
+                return helper.updateFields(rowID, type, subtype, comment, flag);
+            }
+        }, orDefault(callback, false));
+    }
+
+    /**
+     * Update the location of a DB record. See {@code TreeStore.updateLocation()}.
+     *
+     * @param callback receives true, if the record was updated
+     */
+    public void updateLocation(final long rowID, final double lat, final double lng, Callback<Boolean> callback) {
+        edit(EDIT_LOCATION, rowID, new Task<Boolean>() {
+            @Override
+            public Boolean run(DBHelper helper) {
+                return helper.updateLocation(rowID, lat, lng);
+            }
+        }, orDefault(callback, false));
+    }
+
+    /**
+     * Delete a DB record. See {@code TreeStore.deleteTree()}.
+     *
+     * @param callback receives true, if the record was deleted
+     */
+    public void deleteRow(final long rowID, Callback<Boolean> callback) {
+        edit(EDIT_DELETE, rowID, new Task<Boolean>() {
+            @Override
+            public Boolean run(DBHelper helper) {
+                return helper.deleteTree(rowID);
+            }
+        }, orDefault(callback, false));
+    }
+
+    /**
+     * A pending edit of a single record. If it absorbs later edits, it applies the last one's
+     * task and reports the result to all callbacks.
+     */
+    private static class Edit<T> {
+        final int mKind;
+        final long mRowID;
+        Task<T> mTask;
+        final List<Callback<T>> mCallbacks = new ArrayList<>(1);
+        T mResult = null;
+
+        Edit(int kind, long rowID, Task<T> task, Callback<T> callback) {
+            mKind = kind;
+            mRowID = rowID;
+            mTask = task;
+            if (callback != null)
+                mCallbacks.add(callback);
+        }
+
+        void absorb(Edit<T> later) {
+            mTask = later.mTask;
+            mCallbacks.addAll(later.mCallbacks);
+        }
+    }
+
+    /**
+     * Queue an edit for the next group commit. If the last pending edit of the same record is of
+     * the same kind, the new edit replaces it.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> void edit(int kind, long rowID, Task<T> task, Callback<T> callback) {
+        Edit<T> edit = new Edit<>(kind, rowID, task, callback);
+        synchronized (mPendingLock) {
+            Edit<?> last = rowID != -1 ? mLastEdit.get(rowID) : null;
+            if (last != null && last.mKind == kind && kind != EDIT_DELETE) {
+                ((Edit<T>) last).absorb(edit);
+                return;
+            }
+            mPending.add(edit);
+            if (rowID != -1)
+                mLastEdit.put(rowID, edit);
+            if (!mCommitScheduled) {
+                mCommitScheduled = true;
+                mWriteExecutor.schedule(mCommit, COMMIT_WINDOW_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Apply all pending edits in a single transaction and report the results. If an edit or the
+     * commit fails, nothing is committed and all edits report null. Runs on the write thread.
+     */
+    private void commitEdits() {
+        List<Edit<?>> batch;
+        synchronized (mPendingLock) {
+            batch = mPending;
+            mPending = new ArrayList<>();
+            mLastEdit.clear();
+            mCommitScheduled = false;
+        }
+        if (batch.isEmpty())
+            return;
+
+        try {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                for (Edit<?> edit : batch)
+                    apply(edit);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            // Not only SQLiteException: the callbacks must be delivered and the staged changes
+            // dropped whatever went wrong
+            Log.e(MapsActivity.APP_NAME, "DB failure: commit of " + batch.size() + " edits", e);
+            for (Edit<?> edit : batch)
+                edit.mResult = null;
+            mHelper.discardStaged();
+            try {
+                mHelper.reloadDictionaries();
+            } catch (RuntimeException e2) {
+                Log.e(MapsActivity.APP_NAME, "DB failure: reloading types", e2);
+            }
+        }
+
+        for (Edit<?> edit : batch) {
+            if (edit.mRowID != -1)
+                mHelper.invalidateRecord(edit.mRowID);
+            deliverAll(edit);
+        }
+        mHelper.commitStaged();
+    }
+
+    private <T> void apply(Edit<T> edit) {
+        edit.mResult = edit.mTask.run(mHelper);
+    }
+
+    private <T> void deliverAll(Edit<T> edit) {
+        for (Callback<T> callback : edit.mCallbacks)
+            deliver(callback, edit.mResult);
+    }
+
+    private <T> Future<T> submit(ExecutorService executor, final Task<T> task, final Callback<T> callback) {
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() {
+                T result = null;
+                try {
+                    result = task.run(mHelper);
+                    mHelper.commitStaged();
+                } catch (RuntimeException e) {
+                    // Not only SQLiteException: whatever goes wrong, the caller must get its
+                    // callback, or a dialog waiting for it would never finish
+                    Log.e(MapsActivity.APP_NAME, "DB failure", e);
+                    mHelper.discardStaged();
+                }
+                if (callback != null)
+                    deliver(callback, result);
+                return result;
+            }
+        });
+    }
+
+    private <T> void deliver(final Callback<T> callback, final T result) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(result);
+            }
+        });
+    }
+
+    /**
+     * Wrap a callback so that it receives the given value instead of null, if the task failed
+     */
+    private static <T> Callback<T> orDefault(final Callback<T> callback, final T value) {
+        if (callback == null)
+            return null;
+        return new Callback<T>() {
+            @Override
+            public void onResult(T result) {
+                callback.onResult(result != null ? result : value);
+            }
+        };
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        final private String mName;
+        private int mCount = 0;
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, mName + "-" + (++mCount));
+            t.setPriority(Thread.NORM_PRIORITY - 1);    //stay out of the way of the UI thread
+            return t;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.pmann.treemap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.pmann.treemap.sync.Change;
+import com.pmann.treemap.sync.SyncClient;
+import com.pmann.treemap.sync.SyncSession;
+import com.pmann.treemap.sync.SyncStore;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Synchronizes the tree records with a sync server. See {@code SyncProtocol} for the protocol
+ * and {@code SyncSession} for the client side of it, which runs on the DB as its store. The DB
+ * logs the records changed since the last push, so a sync only transfers those, plus the records
+ * other devices changed since the last pull.</p>
+ * <p>
+ * Network I/O happens on the calling thread; DB work is submitted through
+ * {@code TreeRepository.write()}, each step in one transaction, so it is ordered with the user's
+ * edits.</p>
+ */
+class TreeSync implements SyncStore {
+    /**
+     * Receives progress reports on the UI thread
+     */
+    public interface ProgressListener {
+        void onProgress(int pushed, int pulled);
+    }
+
+    /**
+     * Outcome of a sync
+     */
+    public static class Result {
+        public final int pushed;
+        public final int rejected;
+        public final int pulled;
+        public final String error;      //null, unless the sync was aborted
+
+        Result(int pushed, int rejected, int pulled, String error) {
+            this.pushed = pushed;
+            this.rejected = rejected;
+            this.pulled = pulled;
+            this.error = error;
+        }
+    }
+
+    final private SyncClient mClient;
+    final private TreeRepository mRepository;
+    final private ProgressListener mListener;
+    final private Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param serverUrl  base URL of the sync server
+     * @param repository DB to sync
+     * @param listener   receives progress reports; may be null
+     */
+    public TreeSync(String serverUrl, TreeRepository repository, ProgressListener listener) {
+        mClient = new SyncClient(serverUrl);
+        mRepository = repository;
+        mListener = listener;
+    }
+
+    /**
+     * Run the sync. This does network I/O and must not be called on the UI thread, nor on the
+     * write thread of the repository; use {@code TreeRepository.background()}.
+     *
+     * @return counts of pushed, rejected and pulled changes
+     */
+    public Result run() {
+        SyncSession session = new SyncSession(mClient, this, new SyncSession.ProgressListener() {
+            @Override
+            public void onProgress(int pushed, int pulled) {
+                reportProgress(pushed, pulled);
+            }
+        });
+        String error = null;
+        try {
+            session.run();
+        } catch (IOException e) {
+            Log.e(MapsActivity.APP_NAME, "Sync failed", e);
+            error = e.getMessage();
+        }
+        return new Result(session.getPushed(), session.getRejected(), session.getPulled(), error);
+    }
+
+    /**
+     * Run a step of the sync in a DB transaction on the write thread. The repository reports DB
+     * failures as null; we turn them into exceptions, so they abort the sync.
+     */
+    @Override
+    public <T> T write(final Transaction<T> transaction) throws IOException {
+        Future<T> future = mRepository.write(new TreeRepository.Task<T>() {
+            @Override
+            public T run(DBHelper helper) {
+                T result;
+                SQLiteDatabase db = helper.getWritableDatabase();
+                db.beginTransactionNonExclusive();
+                try {
+                    result = transaction.run(new Records(helper));
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                // Readers may have cached the old state of applied records before the commit
+                helper.invalidateRecord(-1);
+                return result;
+            }
+        }, null);
+        try {
+            T result = future.get();
+            if (result == null)
+                throw new IOException("DB failure");
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Sync interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * The sync state and change log of the DB, within a transaction
+     */
+    private static class Records implements SyncStore.Records {
+        final private DBHelper mHelper;
+
+        Records(DBHelper helper) {
+            mHelper = helper;
+        }
+
+        @Override
+        public String getState(String name) {
+            return mHelper.getSyncState(name);
+        }
+
+        @Override
+        public void setState(String name, String value) {
+            mHelper.setSyncState(name, value);
+        }
+
+        @Override
+        public Pending getChanges(int limit) {
+            Pending pending = new Pending();
+            Cursor res = mHelper.getChanges(0, limit);
+            while (!res.isAfterLast()) {
+                pending.lastSeq = res.getLong(0);
+                String uuid = res.getString(1);
+                long base = res.getLong(3);
+                if (res.isNull(2)) {
+                    pending.changes.add(Change.tombstone(uuid, base, base + 1));
+                } else {
+                    pending.changes.add(new Change(uuid, base, base + 1, res.getDouble(4), res.getDouble(5),
+                            res.getString(6), res.getString(7), res.getString(8), res.getInt(9), res.getString(10)));
+                }
+                res.moveToNext();
+            }
+            res.close();
+            return pending;
+        }
+
+        @Override
+        public void clearChanges(long throughSeq) {
+            mHelper.clearChanges(throughSeq);
+        }
+
+        @Override
+        public long getVersion(String uuid) {
+            return mHelper.getSyncVersion(uuid);
+        }
+
+        @Override
+        public void setVersion(String uuid, long version) {
+            mHelper.setSyncVersion(uuid, version);
+        }
+
+        @Override
+        public void apply(Change change) {
+            mHelper.applyChange(change);
+        }
+    }
+
+    private void reportProgress(final int pushed, final int pulled) {
+        if (mListener == null)
+            return;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onProgress(pushed, pulled);
+            }
+        });
+    }
+}
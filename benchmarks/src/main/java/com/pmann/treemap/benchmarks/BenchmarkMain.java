@@ -0,0 +1,43 @@
+package com.pmann.treemap.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>Runs the benchmarks. Takes the same options as the JMH command line, but writes the results
+ * as JSON by default, so they can be compared between releases with the usual JMH tooling.</p>
+ * <p>
+ * The datasets are generated on first use and cached in the temp directory; see
+ * {@code Datasets}. The first run with the 1M dataset takes a few minutes longer.</p>
+ */
+public class BenchmarkMain {
+    private static final String DEFAULT_RESULT = "jmh-result.json";
+
+    public static void main(String[] args) throws RunnerException {
+        CommandLineOptions cmd;
+        try {
+            cmd = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            System.err.println("Error parsing command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        if (!cmd.getResultFormat().hasValue())
+            options.resultFormat(ResultFormatType.JSON);
+        if (!cmd.getResult().hasValue())
+            options.result(DEFAULT_RESULT);
+
+        Runner runner = new Runner(options.build());
+        if (cmd.shouldList())
+            runner.list();
+        else
+            runner.run();
+    }
+}
@@ -0,0 +1,269 @@
+package com.pmann.treemap.benchmarks;
+
+import com.pmann.treemap.core.TreeFlags;
+import com.pmann.treemap.core.TreeTypes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * <p>Generates the tree inventory of a synthetic city, for load and replay tests at realistic
+ * scale. The same seed and count always produce the same trees in the same order.</p>
+ * <p>
+ * The city consists of districts, which are denser near the city center. Each district has a
+ * street grid of its own, with its own orientation and block size. Most trees stand in a row
+ * along a street, a few meters from its center line; the rest stand in the parks and orchards of
+ * the district, which hold a few types only.</p>
+ * <p>
+ * Types follow a long-tailed distribution, and each district favors a few of them, as neighbors
+ * tend to plant alike. Some records name a cultivar as the subtype. Flags and comments are rare,
+ * and spelling of types varies a little, as with data entered by hand.</p>
+ * <p>
+ * Geometry is computed with {@code StrictMath}, so that the output doesn't depend on the JVM.</p>
+ */
+class CityGenerator {
+    private static final double METERS_PER_DEGREE = 111320;
+
+    // Types beyond the standard ones
+    private static final String[] MORE_TYPES = {"Lemon", "Orange", "Walnut", "Avocado", "Apricot", "Olive",
+            "Mulberry", "Pomegranate", "Feijoa", "Kumquat", "Chestnut", "Medlar"};
+
+    // Cultivars by type; types not listed here never have a subtype
+    private static final String[][] CULTIVARS = {
+            {"Apple", "Fuji", "Gala", "Gravenstein", "Honeycrisp", "Granny Smith", "Pink Lady"},
+            {"Cherry", "Bing", "Rainier", "Stella", "Lapins"},
+            {"Fig", "Black Mission", "Brown Turkey", "Kadota"},
+            {"Pear", "Bartlett", "Bosc", "Comice", "Asian"},
+            {"Plum", "Santa Rosa", "Satsuma", "Italian Prune", "Greengage"},
+            {"Peach", "Elberta", "Redhaven", "Donut"},
+            {"Persimmon", "Fuyu", "Hachiya"},
+            {"Lemon", "Meyer", "Eureka", "Lisbon"},
+            {"Orange", "Valencia", "Navel", "Blood"},
+            {"Avocado", "Hass", "Fuerte", "Bacon"},
+    };
+
+    // Types that are grafted, so their scion wood is of interest
+    private static final List<String> GRAFTED = Arrays.asList("Apple", "Pear", "Plum", "Cherry", "Peach");
+
+    private static final String[] COMMENTS = {
+            "Fruit drops on sidewalk", "Owner agreed to harvest", "Ask owner before picking", "Needs ladder",
+            "Heavy crop this year", "Overhangs the fence", "Behind the gate, ring bell", "Young tree",
+            "Leaning, check after storms", "Very productive", "Shaded by neighbor's oak", "Fruit is small but sweet"};
+
+    /**
+     * Receives the generated trees
+     */
+    public interface Sink {
+        void tree(double lat, double lng, String type, String subtype, String comment, int flag);
+    }
+
+    // A district and its street grid, in meters relative to the city center
+    private static class District {
+        double x;
+        double y;
+        double radius;
+        double cos;             //rotation of the street grid
+        double sin;
+        double block;           //distance between parallel streets
+        double spacing;         //distance between trees in a row
+        double weight;          //share of the trees
+        int[] favorites;        //type indexes planted more often here
+        double[][] parks;       //x, y, radius and type index of each park or orchard
+    }
+
+    final private long mSeed;
+    final private double mCenterLat;
+    final private double mCenterLng;
+    final private double mRadius;
+    final private String[] mTypes;
+    final private double[] mTypeWeights;
+
+    /**
+     * @param seed      seed of the random generator
+     * @param centerLat latitude of the city center
+     * @param centerLng longitude of the city center
+     * @param radius    radius of the city in meters
+     */
+    public CityGenerator(long seed, double centerLat, double centerLng, double radius) {
+        mSeed = seed;
+        mCenterLat = centerLat;
+        mCenterLng = centerLng;
+        mRadius = radius;
+
+        // Zipf distribution over a shuffled order, so the standard types aren't all on top
+        List<String> types = new ArrayList<>(Arrays.asList(TreeTypes.standardTypes()));
+        types.addAll(Arrays.asList(MORE_TYPES));
+        Collections.shuffle(types, new Random(seed));
+        mTypes = types.toArray(new String[types.size()]);
+        mTypeWeights = new double[mTypes.length];
+        for (int i = 0; i < mTypes.length; i++)
+            mTypeWeights[i] = 1.0 / (i + 1);
+    }
+
+    /**
+     * Generate trees
+     *
+     * @param count number of trees
+     * @param sink  receives the trees
+     */
+    public void generate(int count, Sink sink) {
+        Random random = new Random(mSeed);
+        District[] districts = createDistricts(random, Math.max(4, Math.min(60, count / 5000)));
+        double[] weights = new double[districts.length];
+        for (int i = 0; i < districts.length; i++)
+            weights[i] = districts[i].weight;
+
+        for (int i = 0; i < count; i++) {
+            District d = districts[pick(random, weights)];
+            double[] xy = new double[2];
+            int typeIndex;
+            if (d.parks.length > 0 && random.nextInt(100) < 15) {
+                double[] park = d.parks[random.nextInt(d.parks.length)];
+                xy[0] = park[0] + random.nextGaussian() * park[2] / 2;
+                xy[1] = park[1] + random.nextGaussian() * park[2] / 2;
+                typeIndex = random.nextInt(3) > 0 ? (int) park[3] : pickType(random, d);
+            } else {
+                placeOnStreet(random, d, xy);
+                typeIndex = pickType(random, d);
+            }
+
+            String type = mTypes[typeIndex];
+            String subtype = pickSubtype(random, type);
+            int roll = random.nextInt(1000);
+            if (roll < 10)
+                type = type.toLowerCase(Locale.US);     //entered by hand
+            else if (roll < 15)
+                type = null;                            //unknown
+            else if (roll < 20)
+                type = type + " tree";
+
+            String comment = random.nextInt(100) < 12 ? COMMENTS[random.nextInt(COMMENTS.length)] : null;
+            if (comment != null && random.nextInt(4) == 0)
+                comment = comment + ". Approx. " + (5 + random.nextInt(30)) + " ft tall";
+
+            sink.tree(mCenterLat + xy[1] / METERS_PER_DEGREE,
+                    mCenterLng + xy[0] / (METERS_PER_DEGREE * StrictMath.cos(StrictMath.toRadians(mCenterLat))),
+                    type, subtype, comment, pickFlags(random, mTypes[typeIndex]));
+        }
+    }
+
+    private District[] createDistricts(Random random, int n) {
+        // Most cities have a dominant street orientation, with some districts deviating from it
+        double baseAngle = random.nextDouble() * StrictMath.PI / 2;
+        District[] districts = new District[n];
+        for (int i = 0; i < n; i++) {
+            District d = new District();
+            double distance = StrictMath.min(StrictMath.abs(random.nextGaussian()) * mRadius / 2, mRadius);
+            double bearing = random.nextDouble() * 2 * StrictMath.PI;
+            d.x = distance * StrictMath.cos(bearing);
+            d.y = distance * StrictMath.sin(bearing);
+            d.radius = 300 + random.nextDouble() * 1200;
+
+            double angle = random.nextInt(3) == 0 ? random.nextDouble() * StrictMath.PI / 2 :
+                    baseAngle + random.nextGaussian() * 0.05;
+            d.cos = StrictMath.cos(angle);
+            d.sin = StrictMath.sin(angle);
+            d.block = 80 + random.nextDouble() * 70;
+            d.spacing = 7 + random.nextDouble() * 5;
+
+            // Denser near the center, with a few hot spots
+            d.weight = (1 - 0.7 * distance / mRadius) * (random.nextInt(8) == 0 ? 4 : 1);
+
+            d.favorites = new int[]{pickType(random, null), pickType(random, null)};
+            d.parks = new double[random.nextInt(4)][];
+            for (int p = 0; p < d.parks.length; p++) {
+                double r = d.radius * random.nextDouble() * 0.7;
+                double b = random.nextDouble() * 2 * StrictMath.PI;
+                d.parks[p] = new double[]{d.x + r * StrictMath.cos(b), d.y + r * StrictMath.sin(b),
+                        30 + random.nextDouble() * 50, pickType(random, null)};
+            }
+            districts[i] = d;
+        }
+        return districts;
+    }
+
+    /**
+     * Place a tree in a row along a street of the district
+     */
+    private static void placeOnStreet(Random random, District d, double[] xy) {
+        int streets = (int) (d.radius / d.block);
+        double u;
+        double v;
+        do {
+            // Position along the street, snapped to the spacing of the row, with a little jitter
+            double along = (random.nextDouble() * 2 - 1) * d.radius;
+            along = StrictMath.floor(along / d.spacing) * d.spacing + random.nextGaussian() * 0.5;
+            // Street, and the side of the street
+            double across = (random.nextInt(2 * streets + 1) - streets) * d.block +
+                    (random.nextBoolean() ? 1 : -1) * (4 + random.nextDouble() * 2);
+            if (random.nextBoolean()) {
+                u = along;
+                v = across;
+            } else {
+                u = across;
+                v = along;
+            }
+        } while (u * u + v * v > d.radius * d.radius);
+
+        xy[0] = d.x + u * d.cos - v * d.sin;
+        xy[1] = d.y + u * d.sin + v * d.cos;
+    }
+
+    /**
+     * @param d district whose favorites are more likely, or null
+     * @return index into mTypes
+     */
+    private int pickType(Random random, District d) {
+        if (d != null && random.nextInt(100) < 30)
+            return d.favorites[random.nextInt(d.favorites.length)];
+        return pick(random, mTypeWeights);
+    }
+
+    private static String pickSubtype(Random random, String type) {
+        for (String[] cultivars : CULTIVARS) {
+            if (cultivars[0].equals(type)) {
+                if (random.nextInt(100) >= 45)
+                    return null;
+                // Earlier cultivars are more common
+                int i = 1 + (int) (StrictMath.pow(random.nextDouble(), 2) * (cultivars.length - 1));
+                return cultivars[i];
+            }
+        }
+        return null;
+    }
+
+    private static int pickFlags(Random random, String type) {
+        int flag = 0;
+        if (random.nextInt(1000) < 30)
+            flag |= TreeFlags.MASK_SHORTLIST;
+        if (random.nextInt(1000) < 40)
+            flag |= TreeFlags.MASK_FOLLOWUP;
+        if (random.nextInt(1000) < 80)
+            flag |= TreeFlags.MASK_HARVEST;
+        if (random.nextInt(1000) < 60)
+            flag |= TreeFlags.MASK_PRUNE;
+        if (GRAFTED.contains(type) && random.nextInt(1000) < 50)
+            flag |= TreeFlags.MASK_SCION;
+        return flag;
+    }
+
+    /**
+     * @return an index, chosen with probability proportional to its weight
+     */
+    private static int pick(Random random, double[] weights) {
+        double total = 0;
+        for (double w : weights)
+            total += w;
+        double r = random.nextDouble() * total;
+        for (int i = 0; i < weights.length; i++) {
+            r -= weights[i];
+            if (r < 0)
+                return i;
+        }
+        return weights.length - 1;
+    }
+}
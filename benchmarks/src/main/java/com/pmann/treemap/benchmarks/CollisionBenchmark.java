@@ -0,0 +1,59 @@
+package com.pmann.treemap.benchmarks;
+
+import com.pmann.treemap.core.SpatialHash;
+import com.pmann.treemap.core.TreeStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The in-memory collision check of the map, which finds a free spot for a new tree next to an
+ * existing one. Compare with {@code StoreBenchmark.collisionCheck}, the same check in SQL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollisionBenchmark {
+    // As in Map
+    private static final double MIN_SEPARATION = 2.0;
+    private static final int MAX_SEPARATION_RINGS = 3;
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private final SpatialHash mPositions = new SpatialHash(MIN_SEPARATION);
+    private Picks mPicks;
+
+    @Setup
+    public void setUp() {
+        JdbcTreeStore store = Datasets.open(size);
+        store.forEachTree(new TreeStore.TreeVisitor() {
+            @Override
+            public void visit(long rowID, double lat, double lng, int typeID, int subtypeID, int flag) {
+                mPositions.put(rowID, lat, lng);
+            }
+        });
+        mPicks = new Picks(store);
+        store.close();
+    }
+
+    @Benchmark
+    public double[] findFreePosition() {
+        int i = mPicks.next();
+        return mPositions.findFreePosition(mPicks.lat(i), mPicks.lng(i), MIN_SEPARATION, MAX_SEPARATION_RINGS);
+    }
+}
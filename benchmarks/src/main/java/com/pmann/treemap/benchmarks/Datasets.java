@@ -0,0 +1,89 @@
+package com.pmann.treemap.benchmarks;
+
+import com.pmann.treemap.core.TreeSchema;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * <p>Synthetic tree inventories for the benchmarks, generated by {@code CityGenerator}. The same
+ * size and seed always produce the same records, so results are comparable between runs and
+ * releases.</p>
+ * <p>
+ * Filling a DB with a million records takes minutes, so the DBs are kept in the temp directory
+ * and reused as long as their record count matches. The file name includes the schema version,
+ * so a schema change starts over. Delete the files to regenerate them. Code that modifies
+ * records works on a copy; see {@code openCopy()}.</p>
+ */
+class Datasets {
+    public static final long SEED = 20150801;
+
+    public static final double CENTER_LAT = 37.77;
+    public static final double CENTER_LNG = -122.42;
+    public static final double CITY_RADIUS = 10000;
+
+    private Datasets() {
+    }
+
+    /**
+     * Open a store holding a dataset, generating it on first use
+     *
+     * @param size number of records
+     */
+    public static JdbcTreeStore open(int size) {
+        File file = fileOf(size);
+        JdbcTreeStore store = new JdbcTreeStore(file.getPath());
+        if (store.count() == size)
+            return store;
+
+        store.close();
+        for (String suffix : new String[]{"", "-wal", "-shm"})
+            new File(file.getPath() + suffix).delete();
+        store = new JdbcTreeStore(file.getPath());
+        fill(store, size, SEED);
+        return store;
+    }
+
+    /**
+     * Open a private copy of a dataset, which may be modified without affecting other runs. The
+     * copy is deleted when the JVM exits.
+     *
+     * @param size number of records
+     * @throws IOException if the copy can't be made
+     */
+    public static JdbcTreeStore openCopy(int size) throws IOException {
+        open(size).close();     //generate the dataset if needed, and fold the WAL into the DB file
+        File copy = File.createTempFile("treemap-city-" + size + "-", ".db");
+        Files.copy(fileOf(size).toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        for (String suffix : new String[]{"", "-wal", "-shm"})
+            new File(copy.getPath() + suffix).deleteOnExit();
+        return new JdbcTreeStore(copy.getPath());
+    }
+
+    private static File fileOf(int size) {
+        return new File(System.getProperty("java.io.tmpdir"),
+                "treemap-city-" + size + "-" + SEED + "-v" + TreeSchema.VERSION + ".db");
+    }
+
+    /**
+     * Add the trees of a synthetic city to a store
+     *
+     * @param size number of records to add
+     * @param seed seed of the generator
+     */
+    public static void fill(final JdbcTreeStore store, final int size, final long seed) {
+        store.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                new CityGenerator(seed, CENTER_LAT, CENTER_LNG, CITY_RADIUS).generate(size, new CityGenerator.Sink() {
+                    @Override
+                    public void tree(double lat, double lng, String type, String subtype, String comment, int flag) {
+                        store.insertTree(lat, lng, type, subtype, comment, flag);
+                    }
+                });
+            }
+        });
+    }
+}
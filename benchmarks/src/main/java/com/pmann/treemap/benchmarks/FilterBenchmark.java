@@ -0,0 +1,84 @@
+package com.pmann.treemap.benchmarks;
+
+import com.pmann.treemap.core.FilterEngine;
+import com.pmann.treemap.core.MarkerRegistry;
+import com.pmann.treemap.core.RowBitmap;
+import com.pmann.treemap.core.TreeFlags;
+import com.pmann.treemap.core.TreeStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Filter evaluation in memory, and applying a filter to the markers: the work the map does
+ * when the user changes the filter settings.</p>
+ * <p>
+ * {@code apply} alternates between two filters, so that every call changes the visibility of
+ * many markers, like a user switching between filters. Markers are plain objects; the cost of
+ * showing or hiding a marker on a device is not included.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+    private static final FilterEngine.Criteria[] CRITERIA = {
+            new FilterEngine.Criteria("Apple", null, 0),
+            new FilterEngine.Criteria("P%", null, TreeFlags.MASK_HARVEST | TreeFlags.MASK_PRUNE),
+    };
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private FilterEngine mEngine;
+    private final MarkerRegistry<Object> mRegistry = new MarkerRegistry<>();
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() {
+        JdbcTreeStore store = Datasets.open(size);
+        mEngine = new FilterEngine(store.types(), store.subtypes());
+        store.forEachTree(new TreeStore.TreeVisitor() {
+            @Override
+            public void visit(long rowID, double lat, double lng, int typeID, int subtypeID, int flag) {
+                mEngine.add(rowID, typeID, subtypeID, flag);
+                mRegistry.put(new Object(), rowID, flag, typeID, true);
+            }
+        });
+        store.close();
+    }
+
+    @Benchmark
+    public RowBitmap evaluateType() {
+        return mEngine.evaluate(CRITERIA[0]);
+    }
+
+    @Benchmark
+    public RowBitmap evaluateWildcardAndFlags() {
+        return mEngine.evaluate(CRITERIA[1]);
+    }
+
+    @Benchmark
+    public int apply() {
+        RowBitmap matches = mEngine.evaluate(CRITERIA[mNext++ & 1]);
+        int changed = 0;
+        for (int i = 0; i < mRegistry.size(); i++) {
+            if (mRegistry.setVisibleAt(i, matches.contains(mRegistry.rowIDAt(i))))
+                changed++;
+        }
+        return changed;
+    }
+}
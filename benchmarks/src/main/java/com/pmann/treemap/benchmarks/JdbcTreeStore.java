@@ -0,0 +1,391 @@
+package com.pmann.treemap.benchmarks;
+
+import com.pmann.treemap.core.SpatialGrid;
+import com.pmann.treemap.core.TreeRecord;
+import com.pmann.treemap.core.TreeSchema;
+import com.pmann.treemap.core.TreeStore;
+import com.pmann.treemap.core.TreeTypes;
+import com.pmann.treemap.core.TypeDictionary;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>{@code TreeStore} over SQLite through JDBC, so the queries of the app can be measured on a
+ * workstation. The schema, with its full-text and sync triggers, the search query and its
+ * ranking come from {@code TreeSchema}, and the spatial criteria from {@code SpatialGrid}, as in
+ * {@code DBHelper}. Writes therefore pay for the same triggers and change log as in the app.</p>
+ * <p>
+ * Left out is the record cache of {@code DBHelper.getRecord()}, so that record fetches always
+ * measure the query.</p>
+ * <p>
+ * Errors are thrown as {@code IllegalStateException}; a benchmark that silently failed would
+ * report meaningless numbers. Not thread-safe.</p>
+ */
+public class JdbcTreeStore implements TreeStore, Closeable {
+    private static final String TABLE_TREES = TreeSchema.TABLE_TREES;
+    private static final String TABLE_TYPES = TreeSchema.TABLE_TYPES;
+    private static final String TABLE_SUBTYPES = TreeSchema.TABLE_SUBTYPES;
+    private static final String VIEW_TREES = TreeSchema.VIEW_TREES;
+
+    private static final String SQL_RECORD_COLUMNS = "SELECT _id,lat,long,type,subtype,comment,flag,date FROM " + VIEW_TREES;
+    private static final String SQL_GET_RECORD = SQL_RECORD_COLUMNS + " WHERE _id=?";
+    private static final String SQL_FOR_EACH = "SELECT _id,lat,long,type_id,subtype_id,flag FROM " + TABLE_TREES;
+    private static final String SQL_UPDATE_FIELDS =
+            "UPDATE " + TABLE_TREES + " SET type_id=?,subtype_id=?,comment=?,flag=? WHERE _id=?";
+    private static final String SQL_UPDATE_LOCATION =
+            "UPDATE " + TABLE_TREES + " SET lat=?,long=?,cell=? WHERE _id=?";
+    private static final String SQL_DELETE_TREE = "DELETE FROM " + TABLE_TREES + " WHERE _id=?";
+    private static final String SQL_COUNT = "SELECT COUNT(*) FROM " + TABLE_TREES;
+
+    final private Connection mConnection;
+    final private HashMap<String, PreparedStatement> mStatements = new HashMap<>();
+    final private TypeDictionary mTypes = new TypeDictionary();
+    final private TypeDictionary mSubtypes = new TypeDictionary();
+
+    /**
+     * Open a DB file, creating the schema if it doesn't exist yet
+     *
+     * @param path DB file; ":memory:" for a DB that only lives as long as the store
+     */
+    public JdbcTreeStore(String path) {
+        try {
+            mConnection = DriverManager.getConnection("jdbc:sqlite:" + path);
+            Statement s = mConnection.createStatement();
+            s.execute("PRAGMA journal_mode=WAL");
+            for (String sql : TreeSchema.createStatements())
+                s.execute(sql);
+            String[] names = TreeTypes.standardTypes();
+            for (int i = 0; i < names.length; i++) {
+                update(TreeSchema.SQL_INSERT_STANDARD_TYPE, names[i]);
+                update(TreeSchema.SQL_SET_HUE, TreeTypes.standardHue(i), names[i]);
+            }
+            s.close();
+            loadDictionary(TABLE_TYPES, "hue", mTypes);
+            loadDictionary(TABLE_SUBTYPES, null, mSubtypes);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Can't open " + path, e);
+        }
+    }
+
+    private void loadDictionary(String table, String hueColumn, TypeDictionary dict) throws SQLException {
+        ResultSet res = statement("SELECT _id,name," + (hueColumn != null ? hueColumn : "NULL") + " FROM " + table)
+                .executeQuery();
+        dict.clear();
+        while (res.next()) {
+            float hue = res.getFloat(3);
+            dict.put(res.getInt(1), res.getString(2), res.wasNull() ? null : hue);
+        }
+        res.close();
+    }
+
+    @Override
+    public void close() {
+        try {
+            for (PreparedStatement s : mStatements.values())
+                s.close();
+            mConnection.close();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Run a task in a single transaction, e.g. to fill the store quickly
+     */
+    public void runInTransaction(Runnable task) {
+        try {
+            mConnection.setAutoCommit(false);
+            try {
+                task.run();
+                mConnection.commit();
+            } catch (RuntimeException e) {
+                mConnection.rollback();
+                throw e;
+            } finally {
+                mConnection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return number of records
+     */
+    public long count() {
+        try {
+            ResultSet res = statement(SQL_COUNT).executeQuery();
+            res.next();
+            long count = res.getLong(1);
+            res.close();
+            return count;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public TypeDictionary types() {
+        return mTypes;
+    }
+
+    @Override
+    public TypeDictionary subtypes() {
+        return mSubtypes;
+    }
+
+    @Override
+    public TreeRecord getRecord(long rowID) {
+        try {
+            PreparedStatement s = statement(SQL_GET_RECORD);
+            s.setLong(1, rowID);
+            ResultSet res = s.executeQuery();
+            TreeRecord record = res.next() ? toRecord(res) : null;
+            res.close();
+            return record;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public List<TreeRecord> getRecords(double south, double west, double north, double east) {
+        List<String> args = new ArrayList<>();
+        String sql = SQL_RECORD_COLUMNS + " WHERE " + SpatialGrid.boundingBoxCriteria(south, west, north, east, args);
+        try {
+            ResultSet res = query(sql, args);
+            List<TreeRecord> records = new ArrayList<>();
+            while (res.next())
+                records.add(toRecord(res));
+            res.close();
+            return records;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static TreeRecord toRecord(ResultSet res) throws SQLException {
+        return new TreeRecord(res.getLong(1), res.getDouble(2), res.getDouble(3), res.getString(4),
+                res.getString(5), res.getString(6), res.getInt(7), res.getString(8));
+    }
+
+    @Override
+    public void forEachTree(TreeVisitor visitor) {
+        try {
+            ResultSet res = statement(SQL_FOR_EACH).executeQuery();
+            while (res.next()) {
+                visitor.visit(res.getLong(1), res.getDouble(2), res.getDouble(3),
+                        getTypeID(res, 4), getTypeID(res, 5), res.getInt(6));
+            }
+            res.close();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int getTypeID(ResultSet res, int column) throws SQLException {
+        int id = res.getInt(column);
+        return res.wasNull() ? TypeDictionary.NONE : id;
+    }
+
+    /**
+     * The filter query of {@code DBHelper.selectRecords()}: row IDs of the records matching a type
+     * and subtype, compared case-insensitively, with LIKE if they contain wildcards
+     *
+     * @param type    match this type, or null for any type
+     * @param subtype match this subtype, or null for any subtype
+     */
+    public long[] selectRecords(String type, String subtype) {
+        List<String> args = new ArrayList<>();
+        StringBuilder sb = new StringBuilder("SELECT _id FROM ").append(VIEW_TREES);
+        String conjunction = " WHERE ";
+        if (type != null) {
+            sb.append(conjunction).append(matchCriteria("type", type));
+            args.add(type);
+            conjunction = " AND ";
+        }
+        if (subtype != null) {
+            sb.append(conjunction).append(matchCriteria("subtype", subtype));
+            args.add(subtype);
+        }
+        try {
+            return toRowIDs(query(sb.toString(), args));
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String matchCriteria(String column, String pattern) {
+        if (pattern.indexOf('%') >= 0 || pattern.indexOf('_') >= 0)
+            return column + " LIKE ?";
+        return column + "=? COLLATE NOCASE";
+    }
+
+    /**
+     * The collision query of {@code DBHelper.queryWithinRadius()}
+     *
+     * @param radius in meters
+     * @return row IDs of the records within the distance of the point
+     */
+    public long[] queryWithinRadius(double lat, double lng, double radius) {
+        List<String> args = new ArrayList<>();
+        String sql = "SELECT _id FROM " + TABLE_TREES + " WHERE " + SpatialGrid.radiusCriteria(lat, lng, radius, args);
+        try {
+            return toRowIDs(query(sql, args));
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public long[] search(String query) {
+        List<Long> rowIDs = new ArrayList<>();
+        final List<Double> scores = new ArrayList<>();
+        try {
+            PreparedStatement s = statement(TreeSchema.SQL_SEARCH);
+            s.setString(1, query);
+            ResultSet res = s.executeQuery();
+            while (res.next()) {
+                rowIDs.add(res.getLong(1));
+                scores.add(TreeSchema.rank(res.getBytes(2)));
+            }
+            res.close();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // Sort by descending score
+        int n = rowIDs.size();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+        long[] result = new long[n];
+        for (int i = 0; i < n; i++)
+            result[i] = rowIDs.get(order[i]);
+        return result;
+    }
+
+    @Override
+    public long insertTree(double lat, double lng, String type, String subtype, String comment, int flag) {
+        try {
+            PreparedStatement s = statement(TreeSchema.SQL_INSERT_TREE);
+            s.setDouble(1, lat);
+            s.setDouble(2, lng);
+            s.setLong(3, SpatialGrid.spatialKey(lat, lng));
+            s.setObject(4, resolve(TABLE_TYPES, mTypes, type));
+            s.setObject(5, resolve(TABLE_SUBTYPES, mSubtypes, subtype));
+            s.setString(6, comment);
+            s.setInt(7, flag);
+            s.executeUpdate();
+            ResultSet keys = s.getGeneratedKeys();
+            long rowID = keys.next() ? keys.getLong(1) : -1;
+            keys.close();
+            return rowID;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean updateFields(long rowID, String type, String subtype, String comment, int flag) {
+        try {
+            return update(SQL_UPDATE_FIELDS, resolve(TABLE_TYPES, mTypes, type),
+                    resolve(TABLE_SUBTYPES, mSubtypes, subtype), comment, flag, rowID) == 1;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean updateLocation(long rowID, double lat, double lng) {
+        try {
+            return update(SQL_UPDATE_LOCATION, lat, lng, SpatialGrid.spatialKey(lat, lng), rowID) == 1;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean deleteTree(long rowID) {
+        try {
+            return update(SQL_DELETE_TREE, rowID) == 1;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Find the ID of a type or subtype, adding it to the lookup table if it is new
+     *
+     * @return the ID, or null if the name is null
+     */
+    private Long resolve(String table, TypeDictionary dict, String name) throws SQLException {
+        if (name == null)
+            return null;
+        int id = dict.idOf(name);
+        if (id != TypeDictionary.NONE)
+            return (long) id;
+
+        PreparedStatement s = statement("INSERT INTO " + table + "(name) VALUES (?)");
+        s.setString(1, name);
+        s.executeUpdate();
+        ResultSet keys = s.getGeneratedKeys();
+        keys.next();
+        long rowID = keys.getLong(1);
+        keys.close();
+        dict.put((int) rowID, name, null);
+        return rowID;
+    }
+
+    private PreparedStatement statement(String sql) throws SQLException {
+        PreparedStatement s = mStatements.get(sql);
+        if (s == null) {
+            s = mConnection.prepareStatement(sql);
+            mStatements.put(sql, s);
+        }
+        return s;
+    }
+
+    private ResultSet query(String sql, List<String> args) throws SQLException {
+        PreparedStatement s = statement(sql);
+        for (int i = 0; i < args.size(); i++)
+            s.setString(i + 1, args.get(i));
+        return s.executeQuery();
+    }
+
+    private int update(String sql, Object... args) throws SQLException {
+        PreparedStatement s = statement(sql);
+        for (int i = 0; i < args.length; i++)
+            s.setObject(i + 1, args[i]);
+        return s.executeUpdate();
+    }
+
+    private static long[] toRowIDs(ResultSet res) throws SQLException {
+        long[] rowIDs = new long[64];
+        int n = 0;
+        while (res.next()) {
+            if (n == rowIDs.length)
+                rowIDs = Arrays.copyOf(rowIDs, n * 2);
+            rowIDs[n++] = res.getLong(1);
+        }
+        res.close();
+        return Arrays.copyOf(rowIDs, n);
+    }
+}
@@ -0,0 +1,85 @@
+package com.pmann.treemap.benchmarks;
+
+import com.pmann.treemap.core.MarkerRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Marker bookkeeping: looking up the record of a tapped marker, the marker of a changed
+ * record, and replacing the marker of a record after an edit.</p>
+ * <p>
+ * The registry holds plain objects with identity hash codes, like the markers of the map. Row
+ * IDs are consecutive, as SQLite assigns them. Lookups hit random entries in a fixed order.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarkerRegistryBenchmark {
+    private static final int PICKS = 4096;      //power of 2
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private final MarkerRegistry<Object> mRegistry = new MarkerRegistry<>();
+    private final Object[] mMarkers = new Object[PICKS];
+    private final long[] mRowIDs = new long[PICKS];
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() {
+        Object[] markers = new Object[size];
+        for (int i = 0; i < size; i++) {
+            markers[i] = new Object();
+            mRegistry.put(markers[i], i + 1, 0, i % 12, true);
+        }
+        Random random = new Random(Datasets.SEED);
+        for (int i = 0; i < PICKS; i++) {
+            int index = random.nextInt(size);
+            mMarkers[i] = markers[index];
+            mRowIDs[i] = index + 1;
+        }
+    }
+
+    @Benchmark
+    public long rowIDOfMarker() {
+        return mRegistry.getRowID(mMarkers[mNext++ & (PICKS - 1)]);
+    }
+
+    @Benchmark
+    public Object markerOfRow() {
+        return mRegistry.getMarker(mRowIDs[mNext++ & (PICKS - 1)]);
+    }
+
+    @Benchmark
+    public int updateEntry() {
+        int index = mRegistry.indexOfRow(mRowIDs[mNext++ & (PICKS - 1)]);
+        mRegistry.setAt(index, mNext & 0x1F, mNext % 12);
+        return index;
+    }
+
+    @Benchmark
+    public Object replaceMarker() {
+        int pick = mNext++ & (PICKS - 1);
+        Object marker = new Object();
+        mRegistry.removeRow(mRowIDs[pick]);
+        mRegistry.put(marker, mRowIDs[pick], 0, 0, true);
+        mMarkers[pick] = marker;
+        return marker;
+    }
+}
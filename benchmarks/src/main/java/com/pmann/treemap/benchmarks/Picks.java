@@ -0,0 +1,70 @@
+package com.pmann.treemap.benchmarks;
+
+import com.pmann.treemap.core.TreeStore;
+
+import java.util.Random;
+
+/**
+ * A fixed random sample of the records in a store, to pick query targets from without the cost
+ * of a random generator in the measured code. The sample is taken with a fixed seed, so every
+ * run visits the same records in the same order.
+ */
+class Picks {
+    private static final int SAMPLE_SIZE = 4096;    //power of 2
+
+    final private long[] mRowIDs = new long[SAMPLE_SIZE];
+    final private double[] mLats = new double[SAMPLE_SIZE];
+    final private double[] mLngs = new double[SAMPLE_SIZE];
+    private int mNext = 0;
+
+    /**
+     * Sample the records of a store. The store must not be empty.
+     */
+    public Picks(TreeStore store) {
+        final Random random = new Random(Datasets.SEED);
+        final int[] seen = {0};
+        store.forEachTree(new TreeStore.TreeVisitor() {
+            @Override
+            public void visit(long rowID, double lat, double lng, int typeID, int subtypeID, int flag) {
+                // Reservoir sampling, so every record has the same chance
+                int n = seen[0]++;
+                int slot = n < SAMPLE_SIZE ? n : random.nextInt(n + 1);
+                if (slot < SAMPLE_SIZE) {
+                    mRowIDs[slot] = rowID;
+                    mLats[slot] = lat;
+                    mLngs[slot] = lng;
+                }
+            }
+        });
+        // Fill up the sample of a small store with repetitions
+        for (int i = seen[0]; i < SAMPLE_SIZE; i++) {
+            int from = i % seen[0];
+            mRowIDs[i] = mRowIDs[from];
+            mLats[i] = mLats[from];
+            mLngs[i] = mLngs[from];
+        }
+    }
+
+    /**
+     * @return position of the next pick in the sample
+     */
+    public int next() {
+        return mNext++ & (SAMPLE_SIZE - 1);
+    }
+
+    public long nextRowID() {
+        return mRowIDs[next()];
+    }
+
+    public long rowID(int i) {
+        return mRowIDs[i];
+    }
+
+    public double lat(int i) {
+        return mLats[i];
+    }
+
+    public double lng(int i) {
+        return mLngs[i];
+    }
+}
@@ -0,0 +1,102 @@
+package com.pmann.treemap.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * <p>Replays a session against a synthetic city and prints the latency percentiles of each kind
+ * of step. Options:</p>
+ * <ul>
+ * <li>{@code -size N}: number of trees in the city, default 100000</li>
+ * <li>{@code -seed S}: seed for generating the session and picking trees</li>
+ * <li>{@code -session FILE}: replay a recorded session; see {@code Session}</li>
+ * <li>{@code -steps N}: length of the generated session, if none is given; default 2000</li>
+ * <li>{@code -save FILE}: save the generated session, e.g. to replay it against a later release</li>
+ * <li>{@code -json FILE}: write the percentiles as JSON, too</li>
+ * </ul>
+ * <p>
+ * The replay runs on a private copy of the dataset, so the cached dataset stays unchanged.</p>
+ */
+public class ReplayMain {
+    private static final String CHARSET = "UTF-8";
+
+    public static void main(String[] args) throws IOException {
+        int size = 100000;
+        long seed = Datasets.SEED;
+        String sessionFile = null;
+        int steps = 2000;
+        String saveFile = null;
+        String jsonFile = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("Missing value of " + option);
+                String value = args[++i];
+                switch (option) {
+                    case "-size":
+                        size = Integer.parseInt(value);
+                        break;
+                    case "-seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "-session":
+                        sessionFile = value;
+                        break;
+                    case "-steps":
+                        steps = Integer.parseInt(value);
+                        break;
+                    case "-save":
+                        saveFile = value;
+                        break;
+                    case "-json":
+                        jsonFile = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error parsing command line: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        try (JdbcTreeStore store = Datasets.openCopy(size)) {
+            List<Session.Step> session;
+            if (sessionFile != null) {
+                try (Reader in = new InputStreamReader(new FileInputStream(sessionFile), CHARSET)) {
+                    session = Session.read(in);
+                }
+            } else {
+                // Start at a random tree, so the steward is in the city
+                Picks picks = new Picks(store);
+                int start = picks.next();
+                session = new SessionGenerator(seed).generate(steps, picks.lat(start), picks.lng(start));
+                if (saveFile != null) {
+                    try (Writer out = new OutputStreamWriter(new FileOutputStream(saveFile), CHARSET)) {
+                        Session.write(session, out);
+                    }
+                }
+            }
+
+            SessionReplay replay = new SessionReplay(store, seed);
+            replay.load();
+            replay.run(session);
+
+            System.out.println("Replayed " + session.size() + " steps against " + size + " trees; latencies in ms");
+            replay.printReport(System.out);
+            if (jsonFile != null) {
+                try (Writer out = new OutputStreamWriter(new FileOutputStream(jsonFile), CHARSET)) {
+                    replay.writeJson(out);
+                }
+            }
+        }
+    }
+}
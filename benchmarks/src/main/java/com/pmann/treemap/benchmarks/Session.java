@@ -0,0 +1,141 @@
+package com.pmann.treemap.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A recorded user session: the steps a user took on the map, for {@code SessionReplay}.</p>
+ * <p>
+ * Sessions are stored as text, one step per line. Blank lines and lines starting with # are
+ * ignored. The steps are:</p>
+ * <ul>
+ * <li>{@code pan <lat> <lng> <zoom>}: move the camera</li>
+ * <li>{@code filter <type> <subtype> <flags>}: set a filter; * stands for any type or subtype,
+ * flags is the hexadecimal bit mask of {@code TreeFlags}, 0 for any flags</li>
+ * <li>{@code search <terms>}: show the results of a full-text search only</li>
+ * <li>{@code showall}: remove the filter</li>
+ * <li>{@code open}: open the edit dialog of a visible tree</li>
+ * <li>{@code add <type> <subtype>}: add a tree at the camera position; * for no subtype</li>
+ * <li>{@code edit}: change the flags and comment of a visible tree</li>
+ * <li>{@code relocate}: move a visible tree by a few meters</li>
+ * <li>{@code delete}: delete a visible tree</li>
+ * </ul>
+ * <p>
+ * Record IDs aren't part of a session, since they differ between datasets. The replay picks the
+ * visible tree for a step itself, with a seeded random generator.</p>
+ */
+class Session {
+    public static final String PAN = "pan";
+    public static final String FILTER = "filter";
+    public static final String SEARCH = "search";
+    public static final String SHOW_ALL = "showall";
+    public static final String OPEN = "open";
+    public static final String ADD = "add";
+    public static final String EDIT = "edit";
+    public static final String RELOCATE = "relocate";
+    public static final String DELETE = "delete";
+
+    // Wildcard for any type or subtype
+    public static final String ANY = "*";
+
+    private static final List<String> OPS = Arrays.asList(PAN, FILTER, SEARCH, SHOW_ALL, OPEN, ADD, EDIT, RELOCATE, DELETE);
+
+    /**
+     * A single step of a session
+     */
+    public static class Step {
+        public final String op;
+        public final List<String> args;
+
+        public Step(String op, String... args) {
+            this.op = op;
+            this.args = Collections.unmodifiableList(Arrays.asList(args));
+        }
+
+        public double getDouble(int i) {
+            return Double.parseDouble(args.get(i));
+        }
+
+        /**
+         * @return the argument, or null if it is the wildcard
+         */
+        public String getName(int i) {
+            String name = args.get(i);
+            return ANY.equals(name) ? null : name.replace('_', ' ');
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(op);
+            for (String arg : args)
+                sb.append(' ').append(arg);
+            return sb.toString();
+        }
+    }
+
+    private Session() {
+    }
+
+    /**
+     * Format a type or subtype as an argument. Names are single words, with _ for blanks.
+     */
+    public static String toArg(String name) {
+        return name == null ? ANY : name.replace(' ', '_');
+    }
+
+    /**
+     * Read a session
+     *
+     * @throws IOException if the session can't be read, or has a malformed step
+     */
+    public static List<Step> read(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        List<Step> steps = new ArrayList<>();
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] words = line.split("\\s+");
+            if (!OPS.contains(words[0]))
+                throw new IOException("Unknown step in line " + lineNumber + ": " + line);
+            Step step;
+            if (SEARCH.equals(words[0]))
+                step = new Step(SEARCH, line.substring(SEARCH.length()).trim());
+            else
+                step = new Step(words[0], Arrays.copyOfRange(words, 1, words.length));
+            if (step.args.size() != argCount(step.op))
+                throw new IOException("Wrong number of arguments in line " + lineNumber + ": " + line);
+            steps.add(step);
+        }
+        return steps;
+    }
+
+    private static int argCount(String op) {
+        if (PAN.equals(op) || FILTER.equals(op))
+            return 3;
+        if (ADD.equals(op))
+            return 2;
+        if (SEARCH.equals(op))
+            return 1;
+        return 0;
+    }
+
+    /**
+     * Write a session in the format read by {@code read()}
+     */
+    public static void write(List<Step> steps, Writer out) throws IOException {
+        out.write("# TreeMap session, " + steps.size() + " steps\n");
+        for (Step step : steps)
+            out.write(step + "\n");
+        out.flush();
+    }
+}
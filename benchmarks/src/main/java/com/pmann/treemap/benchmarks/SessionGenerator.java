@@ -0,0 +1,110 @@
+package com.pmann.treemap.benchmarks;
+
+import com.pmann.treemap.core.TreeFlags;
+import com.pmann.treemap.core.TreeTypes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Generates the session of a steward surveying a neighborhood, for when no recorded session
+ * is at hand. The same seed always produces the same session.</p>
+ * <p>
+ * The steward walks the streets at street level, panning by part of a screen at a time, and
+ * now and then zooms out for an overview. Along the way they open, edit, add, move and delete
+ * trees, and switch between a few filters.</p>
+ */
+class SessionGenerator {
+    // Relative frequency of the steps
+    private static final String[] OPS = {Session.PAN, Session.OPEN, Session.EDIT, Session.ADD, Session.FILTER,
+            Session.SHOW_ALL, Session.RELOCATE, Session.DELETE, Session.SEARCH};
+    private static final int[] WEIGHTS = {55, 12, 8, 8, 6, 3, 3, 3, 2};
+
+    private static final String[] SEARCHES = {"harvest", "ladder", "owner", "fuji", "fruit drops", "bing OR rainier"};
+
+    // Zoom levels: walking, and the overview
+    private static final int STREET_ZOOM = 18;
+    private static final int OVERVIEW_ZOOM = 13;
+
+    private static final double METERS_PER_DEGREE = 111320;
+
+    final private Random mRandom;
+
+    public SessionGenerator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * @param steps    number of steps
+     * @param startLat where the steward starts
+     * @param startLng where the steward starts
+     * @return the session
+     */
+    public List<Session.Step> generate(int steps, double startLat, double startLng) {
+        List<Session.Step> session = new ArrayList<>(steps);
+        double lat = startLat;
+        double lng = startLng;
+        int zoom = STREET_ZOOM;
+        double heading = mRandom.nextDouble() * 2 * Math.PI;
+        String[] types = TreeTypes.standardTypes();
+
+        session.add(pan(lat, lng, zoom));
+        while (session.size() < steps) {
+            String op = pick();
+            boolean needsMarker = Session.OPEN.equals(op) || Session.EDIT.equals(op) ||
+                    Session.RELOCATE.equals(op) || Session.DELETE.equals(op) || Session.ADD.equals(op);
+            if (needsMarker && zoom != STREET_ZOOM) {
+                // Trees can only be picked at street level; zoom in first
+                zoom = STREET_ZOOM;
+                session.add(pan(lat, lng, zoom));
+                continue;
+            }
+            if (Session.PAN.equals(op)) {
+                if (zoom != STREET_ZOOM) {
+                    zoom = STREET_ZOOM;
+                } else if (mRandom.nextInt(20) == 0) {
+                    zoom = OVERVIEW_ZOOM;
+                } else {
+                    // Walk on, mostly in the same direction; a screen at street level is ~100m
+                    heading += mRandom.nextGaussian() * 0.5;
+                    double meters = 20 + mRandom.nextDouble() * 60;
+                    lat += meters * Math.cos(heading) / METERS_PER_DEGREE;
+                    lng += meters * Math.sin(heading) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+                }
+                session.add(pan(lat, lng, zoom));
+            } else if (Session.FILTER.equals(op)) {
+                String type = mRandom.nextBoolean() ? types[mRandom.nextInt(types.length)] : null;
+                int flags = mRandom.nextBoolean() ? 1 << mRandom.nextInt(5) : 0;
+                if (type == null && flags == 0)
+                    flags = TreeFlags.MASK_HARVEST;
+                session.add(new Session.Step(Session.FILTER, Session.toArg(type), Session.ANY,
+                        Integer.toHexString(flags)));
+            } else if (Session.SEARCH.equals(op)) {
+                session.add(new Session.Step(Session.SEARCH, SEARCHES[mRandom.nextInt(SEARCHES.length)]));
+            } else if (Session.ADD.equals(op)) {
+                session.add(new Session.Step(Session.ADD, types[mRandom.nextInt(types.length)], Session.ANY));
+            } else {
+                session.add(new Session.Step(op));
+            }
+        }
+        return session;
+    }
+
+    private static Session.Step pan(double lat, double lng, int zoom) {
+        return new Session.Step(Session.PAN, String.valueOf(lat), String.valueOf(lng), String.valueOf(zoom));
+    }
+
+    private String pick() {
+        int total = 0;
+        for (int w : WEIGHTS)
+            total += w;
+        int r = mRandom.nextInt(total);
+        for (int i = 0; i < WEIGHTS.length; i++) {
+            r -= WEIGHTS[i];
+            if (r < 0)
+                return OPS[i];
+        }
+        return OPS[0];
+    }
+}
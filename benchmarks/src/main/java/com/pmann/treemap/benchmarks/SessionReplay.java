@@ -0,0 +1,398 @@
+package com.pmann.treemap.benchmarks;
+
+import com.pmann.treemap.core.ClusterEngine;
+import com.pmann.treemap.core.FilterEngine;
+import com.pmann.treemap.core.LatencyHistogram;
+import com.pmann.treemap.core.MarkerRegistry;
+import com.pmann.treemap.core.RowBitmap;
+import com.pmann.treemap.core.SpatialHash;
+import com.pmann.treemap.core.TreeFlags;
+import com.pmann.treemap.core.TreeRecord;
+import com.pmann.treemap.core.TreeStore;
+import com.pmann.treemap.core.TypeDictionary;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * <p>Replays recorded sessions against the data layer, headless, and measures the latency of
+ * every step. The replay does the work of the map for each step: the DB queries and writes, the
+ * updates of the filter, cluster and collision engines, and the marker bookkeeping. Drawing
+ * isn't included, so the latencies are those of the data layer alone.</p>
+ * <p>
+ * The logic follows {@code Map}: at street level, markers are created for the visible region
+ * plus a margin, and only reloaded once the camera leaves it; when zoomed out, clusters are shown
+ * instead. Edits are applied the way the map applies changes published by the DB: by reading the
+ * record and updating engines and marker, then evaluating the filter again. Unlike the app, all
+ * of this happens on the calling thread, and a filter change updates all markers at once.</p>
+ * <p>
+ * Steps that need a visible tree are skipped if there is none. Trees are picked with a seeded
+ * random generator, so a replay against the same dataset always does the same work.</p>
+ */
+class SessionReplay {
+    // As in Map
+    private static final double VIEWPORT_MARGIN = 0.5;
+    private static final double MIN_SEPARATION = 2.0;
+    private static final int MAX_SEPARATION_RINGS = 3;
+
+    // Size of a phone screen in dp; a tile of the map is 256dp at every zoom level
+    private static final int SCREEN_WIDTH = 411;
+    private static final int SCREEN_HEIGHT = 731;
+    private static final int TILE_SIZE = 256;
+
+    // Stand-in for a map marker
+    private static class Marker {
+        double lat;
+        double lng;
+
+        Marker(double lat, double lng) {
+            this.lat = lat;
+            this.lng = lng;
+        }
+    }
+
+    final private JdbcTreeStore mStore;
+    final private TypeDictionary mTypes;
+    final private TypeDictionary mSubtypes;
+    final private FilterEngine mFilterEngine;
+    final private ClusterEngine mClusterEngine;
+    final private SpatialHash mPositions = new SpatialHash(MIN_SEPARATION);
+    final private MarkerRegistry<Marker> mRegistry = new MarkerRegistry<>();
+    final private Random mRandom;
+
+    final private Map<String, LatencyHistogram> mLatencies = new LinkedHashMap<>();
+    private int mSkipped = 0;
+
+    private double mLat;
+    private double mLng;
+    private int mZoom;
+    private double[] mLoadedBounds = null;     //south, west, north, east; null if nothing is loaded
+    private FilterEngine.Criteria mCriteria = new FilterEngine.Criteria(null, null, 0);
+    private RowBitmap mFilter = null;           //null, if no filter is active
+
+    /**
+     * @param store the DB to run against
+     * @param seed  seed for picking trees
+     */
+    public SessionReplay(JdbcTreeStore store, long seed) {
+        mStore = store;
+        mTypes = store.types();
+        mSubtypes = store.subtypes();
+        mFilterEngine = new FilterEngine(mTypes, mSubtypes);
+        mClusterEngine = new ClusterEngine(mTypes);
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Load all records into the engines, as the map does on start. The time this takes is
+     * reported as the step "load".
+     */
+    public void load() {
+        long start = System.nanoTime();
+        mStore.forEachTree(new TreeStore.TreeVisitor() {
+            @Override
+            public void visit(long rowID, double lat, double lng, int typeID, int subtypeID, int flag) {
+                mClusterEngine.add(rowID, lat, lng, typeID, flag);
+                mPositions.put(rowID, lat, lng);
+                mFilterEngine.add(rowID, typeID, subtypeID, flag);
+            }
+        });
+        record("load", start);
+    }
+
+    /**
+     * Replay the steps of a session
+     */
+    public void run(List<Session.Step> steps) {
+        for (Session.Step step : steps) {
+            long start = System.nanoTime();
+            if (execute(step))
+                record(step.op, start);
+            else
+                mSkipped++;
+        }
+    }
+
+    private void record(String op, long start) {
+        long elapsed = System.nanoTime() - start;
+        LatencyHistogram histogram = mLatencies.get(op);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            mLatencies.put(op, histogram);
+        }
+        histogram.record(elapsed);
+    }
+
+    /**
+     * @return false, if the step was skipped
+     */
+    private boolean execute(Session.Step step) {
+        switch (step.op) {
+            case Session.PAN:
+                pan(step.getDouble(0), step.getDouble(1), (int) step.getDouble(2));
+                return true;
+            case Session.FILTER:
+                setFilter(new FilterEngine.Criteria(step.getName(0), step.getName(1),
+                        Integer.parseInt(step.args.get(2), 16)));
+                return true;
+            case Session.SEARCH:
+                setFilter(new FilterEngine.Criteria(null, null, 0, toBitmap(mStore.search(step.args.get(0)))));
+                return true;
+            case Session.SHOW_ALL:
+                setFilter(new FilterEngine.Criteria(null, null, 0));
+                return true;
+            case Session.ADD:
+                return add(step.getName(0), step.getName(1));
+            default:
+                return edit(step.op);
+        }
+    }
+
+    private void pan(double lat, double lng, int zoom) {
+        mLat = lat;
+        mLng = lng;
+        mZoom = zoom;
+        double[] visible = viewport(0);
+        if (zoom <= ClusterEngine.MAX_CLUSTER_ZOOM) {
+            evictMarkers(null);
+            mLoadedBounds = null;
+            double[] b = viewport(VIEWPORT_MARGIN);
+            mClusterEngine.getClusters(zoom, b[0], b[1], b[2], b[3], clusterFilter());
+        } else if (!isLoaded(visible)) {
+            double[] b = viewport(VIEWPORT_MARGIN);
+            List<TreeRecord> records = mStore.getRecords(b[0], b[1], b[2], b[3]);
+            evictMarkers(b);
+            for (TreeRecord r : records) {
+                if (mRegistry.indexOfRow(r.rowID) < 0)
+                    createMarker(r);
+            }
+            mLoadedBounds = b;
+        }
+    }
+
+    /**
+     * @param margin fraction of the span to add on each side
+     * @return south, west, north and east boundary of the visible region
+     */
+    private double[] viewport(double margin) {
+        double degreesPerDp = 360.0 / (TILE_SIZE * Math.pow(2, mZoom));
+        double lngSpan = SCREEN_WIDTH * degreesPerDp * (1 + 2 * margin);
+        double latSpan = SCREEN_HEIGHT * degreesPerDp * Math.cos(Math.toRadians(mLat)) * (1 + 2 * margin);
+        return new double[]{mLat - latSpan / 2, mLng - lngSpan / 2, mLat + latSpan / 2, mLng + lngSpan / 2};
+    }
+
+    // See Map.isLoaded()
+    private boolean isLoaded(double[] visible) {
+        if (mLoadedBounds == null)
+            return false;
+        if (!contains(mLoadedBounds, visible[0], visible[1]) || !contains(mLoadedBounds, visible[2], visible[3]))
+            return false;
+        double loadedSpan = mLoadedBounds[2] - mLoadedBounds[0];
+        double visibleSpan = visible[2] - visible[0];
+        return visibleSpan * (1 + 2 * VIEWPORT_MARGIN) * 2 > loadedSpan;
+    }
+
+    private static boolean contains(double[] bounds, double lat, double lng) {
+        return lat >= bounds[0] && lat <= bounds[2] && lng >= bounds[1] && lng <= bounds[3];
+    }
+
+    private void evictMarkers(double[] bounds) {
+        for (int i = mRegistry.size() - 1; i >= 0; i--) {
+            Marker m = mRegistry.markerAt(i);
+            if (bounds == null || !contains(bounds, m.lat, m.lng))
+                mRegistry.removeAt(i);
+        }
+    }
+
+    private void createMarker(TreeRecord r) {
+        boolean visible = mFilter == null || mFilter.contains(r.rowID);
+        mRegistry.put(new Marker(r.lat, r.lng), r.rowID, r.flag, mTypes.idOf(r.type), visible);
+    }
+
+    private ClusterEngine.Filter clusterFilter() {
+        if (mFilter == null)
+            return null;
+        final RowBitmap filter = mFilter;
+        return new ClusterEngine.Filter() {
+            @Override
+            public boolean accept(long rowID, int flag) {
+                return filter.contains(rowID);
+            }
+        };
+    }
+
+    // See Map.applyFilter()
+    private void setFilter(FilterEngine.Criteria criteria) {
+        RowBitmap previous = mFilter;
+        mCriteria = criteria;
+        mFilter = criteria.isEmpty() ? null : mFilterEngine.evaluate(criteria);
+        if (previous != null || mFilter != null) {
+            RowBitmap before = previous != null ? previous : mFilterEngine.all();
+            RowBitmap after = mFilter != null ? mFilter : mFilterEngine.all();
+            updateVisibility(before.xor(after));
+        }
+        if (mZoom <= ClusterEngine.MAX_CLUSTER_ZOOM) {
+            double[] b = viewport(VIEWPORT_MARGIN);
+            mClusterEngine.getClusters(mZoom, b[0], b[1], b[2], b[3], clusterFilter());
+        }
+    }
+
+    private void updateVisibility(RowBitmap changed) {
+        for (long rowID : changed.toArray()) {
+            int index = mRegistry.indexOfRow(rowID);
+            if (index >= 0)
+                mRegistry.setVisibleAt(index, mFilter == null || mFilter.contains(rowID));
+        }
+    }
+
+    private static RowBitmap toBitmap(long[] rowIDs) {
+        RowBitmap bitmap = new RowBitmap();
+        for (long rowID : rowIDs)
+            bitmap.add(rowID);
+        return bitmap;
+    }
+
+    /**
+     * Add a tree at the camera position, moved aside if it is too close to another one
+     */
+    private boolean add(String type, String subtype) {
+        double[] free = mPositions.findFreePosition(mLat, mLng, MIN_SEPARATION, MAX_SEPARATION_RINGS);
+        if (free == null)
+            return false;
+        long rowID = mStore.insertTree(free[0], free[1], type, subtype, null, 0);
+        applyChange(rowID);
+        return true;
+    }
+
+    /**
+     * Open, edit, relocate or delete a visible tree
+     */
+    private boolean edit(String op) {
+        long rowID = pickVisible();
+        if (rowID < 0)
+            return false;
+
+        TreeRecord r = mStore.getRecord(rowID);
+        switch (op) {
+            case Session.OPEN:
+                break;
+            case Session.EDIT:
+                String comment = r.comment == null ? "Checked" : r.comment + ". Checked";
+                mStore.updateFields(rowID, r.type, r.subtype, comment, r.flag ^ TreeFlags.MASK_FOLLOWUP);
+                applyChange(rowID);
+                break;
+            case Session.RELOCATE:
+                double[] free = mPositions.findFreePosition(r.lat + (mRandom.nextDouble() - 0.5) / 10000,
+                        r.lng + (mRandom.nextDouble() - 0.5) / 10000, MIN_SEPARATION, MAX_SEPARATION_RINGS);
+                if (free == null)
+                    return false;
+                mStore.updateLocation(rowID, free[0], free[1]);
+                applyChange(rowID);
+                break;
+            case Session.DELETE:
+                mStore.deleteTree(rowID);
+                applyChange(rowID);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * @return row ID of a random visible marker, or -1 if there is none
+     */
+    private long pickVisible() {
+        int n = mRegistry.size();
+        if (n == 0)
+            return -1;
+        int start = mRandom.nextInt(n);
+        for (int i = 0; i < n; i++) {
+            int index = (start + i) % n;
+            if (mRegistry.isVisibleAt(index))
+                return mRegistry.rowIDAt(index);
+        }
+        return -1;
+    }
+
+    /**
+     * Bring engines and markers up to date after a record changed; see Map.applyQueuedChanges()
+     */
+    private void applyChange(long rowID) {
+        TreeRecord r = mStore.getRecord(rowID);
+        if (r == null) {
+            mClusterEngine.remove(rowID);
+            mPositions.remove(rowID);
+            mFilterEngine.remove(rowID);
+            mRegistry.removeRow(rowID);
+        } else {
+            int typeID = mTypes.idOf(r.type);
+            mClusterEngine.add(r.rowID, r.lat, r.lng, typeID, r.flag);
+            mPositions.put(r.rowID, r.lat, r.lng);
+            mFilterEngine.add(r.rowID, typeID, mSubtypes.idOf(r.subtype), r.flag);
+            int index = mRegistry.indexOfRow(rowID);
+            if (index >= 0) {
+                Marker m = mRegistry.markerAt(index);
+                m.lat = r.lat;
+                m.lng = r.lng;
+                mRegistry.setAt(index, r.flag, typeID);
+            } else if (mLoadedBounds != null && contains(mLoadedBounds, r.lat, r.lng)) {
+                createMarker(r);
+            }
+        }
+
+        // See Map.refilter()
+        RowBitmap changed = new RowBitmap();
+        changed.add(rowID);
+        if (mFilter != null)
+            mFilter = mFilterEngine.evaluate(mCriteria);
+        updateVisibility(changed);
+        if (mZoom <= ClusterEngine.MAX_CLUSTER_ZOOM) {
+            double[] b = viewport(VIEWPORT_MARGIN);
+            mClusterEngine.getClusters(mZoom, b[0], b[1], b[2], b[3], clusterFilter());
+        }
+    }
+
+    /**
+     * @return number of steps skipped for lack of a visible tree or a free spot
+     */
+    public int getSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * Print the latency percentiles of each kind of step, in milliseconds
+     */
+    public void printReport(PrintStream out) {
+        out.println(String.format(Locale.US, "%-10s %8s %9s %9s %9s %9s %9s",
+                "step", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Map.Entry<String, LatencyHistogram> e : mLatencies.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            out.println(String.format(Locale.US, "%-10s %8d %9.3f %9.3f %9.3f %9.3f %9.3f",
+                    e.getKey(), h.getCount(), h.getMean() / 1e6, h.getPercentile(50) / 1e6,
+                    h.getPercentile(90) / 1e6, h.getPercentile(99) / 1e6, h.getMax() / 1e6));
+        }
+        if (mSkipped > 0)
+            out.println(mSkipped + " steps skipped");
+    }
+
+    /**
+     * Write the latency percentiles of each kind of step as JSON, in nanoseconds
+     */
+    public void writeJson(Writer out) throws IOException {
+        out.write("{\n");
+        for (Map.Entry<String, LatencyHistogram> e : mLatencies.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            out.write(String.format(Locale.US,
+                    "  \"%s\": {\"count\": %d, \"mean\": %.0f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d},\n",
+                    e.getKey(), h.getCount(), h.getMean(), h.getPercentile(50), h.getPercentile(90),
+                    h.getPercentile(99), h.getMax()));
+        }
+        out.write("  \"skipped\": " + mSkipped + "\n}\n");
+        out.flush();
+    }
+}
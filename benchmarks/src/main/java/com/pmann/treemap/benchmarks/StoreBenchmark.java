@@ -0,0 +1,110 @@
+package com.pmann.treemap.benchmarks;
+
+import com.pmann.treemap.core.TreeRecord;
+import com.pmann.treemap.core.TreeStore;
+import com.pmann.treemap.core.TreeTypes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>The query shapes of {@code DBHelper}: fetching a single record, the filter select, the
+ * collision check, a viewport and loading all records into the in-memory engines.</p>
+ * <p>
+ * Records are picked at random, but the sequence of picks is the same in every run.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+    // Size of a viewport at street level, in degrees
+    private static final double VIEWPORT_SPAN = 0.005;
+
+    // Radius of the collision check; the minimum separation of markers in Map
+    private static final double COLLISION_RADIUS = 2.0;
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private JdbcTreeStore mStore;
+    private Picks mPicks;
+    private String[] mTypes;
+    private int mNextType = 0;
+
+    @Setup
+    public void setUp() {
+        mStore = Datasets.open(size);
+        mPicks = new Picks(mStore);
+        mTypes = TreeTypes.standardTypes();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStore.close();
+    }
+
+    @Benchmark
+    public TreeRecord getRecord() {
+        return mStore.getRecord(mPicks.nextRowID());
+    }
+
+    @Benchmark
+    public long[] filterSelect() {
+        String type = mTypes[mNextType++ % mTypes.length];
+        return mStore.selectRecords(type, null);
+    }
+
+    @Benchmark
+    public long[] filterSelectWildcard() {
+        return mStore.selectRecords("P%", "%a%");
+    }
+
+    @Benchmark
+    public long[] collisionCheck() {
+        int i = mPicks.next();
+        return mStore.queryWithinRadius(mPicks.lat(i), mPicks.lng(i), COLLISION_RADIUS);
+    }
+
+    @Benchmark
+    public List<TreeRecord> viewport() {
+        int i = mPicks.next();
+        double lat = mPicks.lat(i);
+        double lng = mPicks.lng(i);
+        return mStore.getRecords(lat - VIEWPORT_SPAN / 2, lng - VIEWPORT_SPAN / 2,
+                lat + VIEWPORT_SPAN / 2, lng + VIEWPORT_SPAN / 2);
+    }
+
+    @Benchmark
+    public long[] search() {
+        return mStore.search("harvest");
+    }
+
+    @Benchmark
+    public void fullLoad(final Blackhole blackhole) {
+        mStore.forEachTree(new TreeStore.TreeVisitor() {
+            @Override
+            public void visit(long rowID, double lat, double lng, int typeID, int subtypeID, int flag) {
+                blackhole.consume(rowID);
+                blackhole.consume(lat + lng);
+                blackhole.consume(typeID + subtypeID + flag);
+            }
+        });
+    }
+}
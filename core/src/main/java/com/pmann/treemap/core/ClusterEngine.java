@@ -0,0 +1,330 @@
+package com.pmann.treemap.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>Aggregates trees into grid clusters for the zoom levels at which individual markers would
+ * clutter the map.</p>
+ * <p>
+ * For every zoom level up to {@code MAX_CLUSTER_ZOOM} we divide the map into square grid cells
+ * (measured in screen pixels, i.e. on the Mercator projection) and keep a running count per cell
+ * and tree type ID. The grids are updated incrementally when trees are added, modified or removed,
+ * so listing the clusters for an unfiltered view never has to look at individual trees. With an
+ * active filter the clusters are computed from the trees that pass the filter.</p>
+ * <p>
+ * The position, type and flag of every tree are kept in parallel arrays of primitives indexed by
+ * row ID, so there is no object per tree. Row IDs are assigned in ascending order and never
+ * reused, so the arrays are about as long as the table; they grow as needed.</p>
+ * <p>
+ * All methods are synchronized, so clusters can be computed on a background thread while the UI
+ * thread keeps the engine up to date.</p>
+ */
+public class ClusterEngine {
+    // Trees are clustered at this zoom level and below; above it we show individual markers
+    public static final int MAX_CLUSTER_ZOOM = 12;
+
+    // A map tile is 256 pixels wide; we want clusters to cover roughly 64 x 64 pixels
+    private static final int CELLS_PER_TILE = 4;
+
+    // Mercator projection is undefined at the poles, so clamp to the range Google Maps displays
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /**
+     * Decides which trees are included in the clusters
+     */
+    public interface Filter {
+        boolean accept(long rowID, int flag);
+    }
+
+    /**
+     * A group of trees that is shown as a single marker
+     */
+    public static class Cluster {
+        public final double lat;    //centroid
+        public final double lng;
+        public final int count;
+        private final TypeDictionary mTypeNames;
+        private final long[] mTypeCounts;   //count in the upper, type ID in the lower 32 bits
+
+        private Cluster(Cell cell, TypeDictionary typeNames) {
+            lat = cell.mSumLat / cell.mCount;
+            lng = cell.mSumLng / cell.mCount;
+            count = cell.mCount;
+            mTypeNames = typeNames;
+
+            // Sort by descending count
+            mTypeCounts = new long[cell.mTypeSize];
+            for (int i = 0; i < cell.mTypeSize; i++)
+                mTypeCounts[i] = -((long) cell.mTypeCounts[i] << 32 | (cell.mTypeIDs[i] & 0xFFFFFFFFL));
+            Arrays.sort(mTypeCounts);
+            for (int i = 0; i < mTypeCounts.length; i++)
+                mTypeCounts[i] = -mTypeCounts[i];
+        }
+
+        /**
+         * @return ID of the most common tree type in this cluster
+         */
+        public int getDominantTypeID() {
+            return mTypeCounts.length == 0 ? TypeDictionary.NONE : (int) mTypeCounts[0];
+        }
+
+        /**
+         * @return per-type counts, most common type first, e.g. "Apple: 12, Pear: 3"
+         */
+        public String describeTypes() {
+            StringBuilder sb = new StringBuilder();
+            for (long typeCount : mTypeCounts) {
+                if (sb.length() > 0)
+                    sb.append(", ");
+                sb.append(mTypeNames.nameOf((int) typeCount)).append(": ").append(typeCount >>> 32);
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final int MIN_CAPACITY = 1024;
+
+    // Running totals for one grid cell. A cell only holds a few types, so the counts are kept in
+    // small parallel arrays that are searched linearly.
+    private static class Cell {
+        int mCount = 0;
+        double mSumLat = 0;
+        double mSumLng = 0;
+        int[] mTypeIDs = new int[2];
+        int[] mTypeCounts = new int[2];
+        int mTypeSize = 0;
+
+        void add(double lat, double lng, int typeID) {
+            mCount++;
+            mSumLat += lat;
+            mSumLng += lng;
+            int i = indexOf(typeID);
+            if (i >= 0) {
+                mTypeCounts[i]++;
+                return;
+            }
+            if (mTypeSize == mTypeIDs.length) {
+                mTypeIDs = Arrays.copyOf(mTypeIDs, mTypeSize * 2);
+                mTypeCounts = Arrays.copyOf(mTypeCounts, mTypeSize * 2);
+            }
+            mTypeIDs[mTypeSize] = typeID;
+            mTypeCounts[mTypeSize++] = 1;
+        }
+
+        void remove(double lat, double lng, int typeID) {
+            mCount--;
+            mSumLat -= lat;
+            mSumLng -= lng;
+            int i = indexOf(typeID);
+            if (i >= 0 && --mTypeCounts[i] == 0) {
+                int last = --mTypeSize;
+                mTypeIDs[i] = mTypeIDs[last];
+                mTypeCounts[i] = mTypeCounts[last];
+            }
+        }
+
+        private int indexOf(int typeID) {
+            for (int i = 0; i < mTypeSize; i++) {
+                if (mTypeIDs[i] == typeID)
+                    return i;
+            }
+            return -1;
+        }
+    }
+
+    private final TypeDictionary mTypeNames;
+    private final List<HashMap<Long, Cell>> mLevels = new ArrayList<>();
+
+    // Trees by row ID. A NaN latitude marks a row ID without a tree.
+    private double[] mLats;
+    private double[] mLngs;
+    private int[] mTypeIDs;
+    private int[] mFlags;
+    private int mSize = 0;
+
+    /**
+     * @param typeNames names of the type IDs, for describing clusters
+     */
+    public ClusterEngine(TypeDictionary typeNames) {
+        mTypeNames = typeNames;
+        for (int zoom = 0; zoom <= MAX_CLUSTER_ZOOM; zoom++)
+            mLevels.add(new HashMap<Long, Cell>());
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Add a tree to the clusters. If the tree is already known, its previous values are replaced.
+     *
+     * @param rowID DB record ID
+     * @param lat   latitude
+     * @param lng   longitude
+     * @param typeID type of tree; see {@code TypeDictionary.idOf()}
+     * @param flag  bit vector of flag settings; see {@code TreeFlags}
+     */
+    public synchronized void add(long rowID, double lat, double lng, int typeID, int flag) {
+        if (rowID < 0 || rowID >= Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Row ID out of range: " + rowID);
+        remove(rowID);
+        if (rowID >= mLats.length)
+            allocate((int) Math.min(Integer.MAX_VALUE, Math.max(rowID + 1, 2L * mLats.length)));
+        int i = (int) rowID;
+        mLats[i] = lat;
+        mLngs[i] = lng;
+        mTypeIDs[i] = typeID;
+        mFlags[i] = flag;
+        mSize++;
+        for (int zoom = 0; zoom <= MAX_CLUSTER_ZOOM; zoom++) {
+            HashMap<Long, Cell> level = mLevels.get(zoom);
+            long key = cellKey(zoom, lat, lng);
+            Cell cell = level.get(key);
+            if (cell == null) {
+                cell = new Cell();
+                level.put(key, cell);
+            }
+            cell.add(lat, lng, typeID);
+        }
+    }
+
+    /**
+     * Change type and flag of a known tree, keeping its position
+     */
+    public synchronized void update(long rowID, int typeID, int flag) {
+        if (contains(rowID))
+            add(rowID, mLats[(int) rowID], mLngs[(int) rowID], typeID, flag);
+    }
+
+    /**
+     * Change the position of a known tree, keeping type and flag
+     */
+    public synchronized void move(long rowID, double lat, double lng) {
+        if (contains(rowID))
+            add(rowID, lat, lng, mTypeIDs[(int) rowID], mFlags[(int) rowID]);
+    }
+
+    /**
+     * Remove a tree from the clusters; unknown row IDs are ignored
+     */
+    public synchronized void remove(long rowID) {
+        if (!contains(rowID))
+            return;
+        int i = (int) rowID;
+        for (int zoom = 0; zoom <= MAX_CLUSTER_ZOOM; zoom++) {
+            HashMap<Long, Cell> level = mLevels.get(zoom);
+            long key = cellKey(zoom, mLats[i], mLngs[i]);
+            Cell cell = level.get(key);
+            if (cell == null)
+                continue;
+            cell.remove(mLats[i], mLngs[i], mTypeIDs[i]);
+            if (cell.mCount == 0)
+                level.remove(key);
+        }
+        mLats[i] = Double.NaN;
+        mSize--;
+    }
+
+    /**
+     * Forget all trees
+     */
+    public synchronized void clear() {
+        allocate(MIN_CAPACITY);
+        mSize = 0;
+        for (HashMap<Long, Cell> level : mLevels)
+            level.clear();
+    }
+
+    /**
+     * @return number of trees
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * List the clusters whose centroid lies in the given region. If west is greater than east,
+     * the region is assumed to cross the 180th meridian.
+     *
+     * @param zoom   zoom level; values above {@code MAX_CLUSTER_ZOOM} are treated as the maximum
+     * @param south  southern latitude boundary
+     * @param west   western longitude boundary
+     * @param north  northern latitude boundary
+     * @param east   eastern longitude boundary
+     * @param filter trees to include, or null to include all trees
+     * @return list of clusters
+     */
+    public synchronized List<Cluster> getClusters(int zoom, double south, double west, double north, double east,
+                                                  Filter filter) {
+        zoom = Math.max(0, Math.min(zoom, MAX_CLUSTER_ZOOM));
+
+        HashMap<Long, Cell> level;
+        if (filter == null) {
+            level = mLevels.get(zoom);
+        } else {
+            level = new HashMap<>();
+            for (int i = 0; i < mLats.length; i++) {
+                if (Double.isNaN(mLats[i]) || !filter.accept(i, mFlags[i]))
+                    continue;
+                long key = cellKey(zoom, mLats[i], mLngs[i]);
+                Cell cell = level.get(key);
+                if (cell == null) {
+                    cell = new Cell();
+                    level.put(key, cell);
+                }
+                cell.add(mLats[i], mLngs[i], mTypeIDs[i]);
+            }
+        }
+
+        List<Cluster> result = new ArrayList<>();
+        for (Cell cell : level.values()) {
+            double lat = cell.mSumLat / cell.mCount;
+            double lng = cell.mSumLng / cell.mCount;
+            if (lat < south || lat > north)
+                continue;
+            if (west <= east ? (lng < west || lng > east) : (lng < west && lng > east))
+                continue;
+            result.add(new Cluster(cell, mTypeNames));
+        }
+        return result;
+    }
+
+    private boolean contains(long rowID) {
+        return rowID >= 0 && rowID < mLats.length && !Double.isNaN(mLats[(int) rowID]);
+    }
+
+    /**
+     * Resize the arrays of trees, keeping the trees with row IDs below the new capacity
+     */
+    private void allocate(int capacity) {
+        int keep = mLats == null ? 0 : Math.min(mLats.length, capacity);
+        double[] lats = new double[capacity];
+        Arrays.fill(lats, keep, capacity, Double.NaN);
+        if (keep > 0) {
+            System.arraycopy(mLats, 0, lats, 0, keep);
+            mLngs = Arrays.copyOf(mLngs, capacity);
+            mTypeIDs = Arrays.copyOf(mTypeIDs, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+        } else {
+            mLngs = new double[capacity];
+            mTypeIDs = new int[capacity];
+            mFlags = new int[capacity];
+        }
+        mLats = lats;
+    }
+
+    /**
+     * Compute the grid cell of a location at the given zoom level
+     */
+    private static long cellKey(int zoom, double lat, double lng) {
+        long cells = (1L << zoom) * CELLS_PER_TILE;
+
+        double x = (lng + 180) / 360;
+        double sinLat = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat))));
+        double y = 0.5 - Math.log((1 + sinLat) / (1 - sinLat)) / (4 * Math.PI);
+
+        long cx = Math.min(cells - 1, (long) (x * cells));
+        long cy = Math.min(cells - 1, (long) (y * cells));
+        return (cx << 32) | cy;
+    }
+}
@@ -0,0 +1,221 @@
+package com.pmann.treemap.core;
+
+import java.util.Arrays;
+
+/**
+ * <p>Evaluates filters in memory. For every tree type, every subtype and every flag bit we keep a
+ * {@code RowBitmap} of the trees that have it, so a filter is evaluated with a few bitmap
+ * operations instead of a DB query. The bitmaps are updated incrementally when trees are added,
+ * modified or removed.</p>
+ * <p>
+ * Trees are added with their type and subtype IDs, which index the bitmaps directly. Filter
+ * criteria name types and subtypes; the names are resolved through the lookup tables, case-
+ * insensitively and with the same wildcards as SQL LIKE: % matches any sequence of characters
+ * and _ matches a single character.</p>
+ * <p>
+ * The type, subtype and flag of every tree are also kept in arrays indexed by row ID, so that
+ * modifying or removing a tree only touches the bitmaps it is in, not those of every type.</p>
+ * <p>
+ * All methods are synchronized, so the engine can be loaded on a background thread while the UI
+ * thread keeps it up to date.</p>
+ */
+public class FilterEngine {
+    private static final int FLAG_BITS = 32;
+    private static final int MIN_CAPACITY = 1024;
+
+    /**
+     * Filter settings. A tree passes if it matches the type and the subtype pattern, has at
+     * least one of the flags set, and is among the results of a full-text search. Unset criteria
+     * match any tree.
+     */
+    public static class Criteria {
+        public final String type;           //null for any type
+        public final String subtype;        //null for any subtype
+        public final int flags;             //0 or 0xFFFF for any flags
+        public final RowBitmap matches;     //null for any tree; must not be modified
+
+        public Criteria(String type, String subtype, int flags) {
+            this(type, subtype, flags, null);
+        }
+
+        /**
+         * @param matches result of a full-text search; see {@code TreeStore.search()}. Trees
+         *                added later never match, even if they contain the search terms.
+         */
+        public Criteria(String type, String subtype, int flags, RowBitmap matches) {
+            this.type = type;
+            this.subtype = subtype;
+            this.flags = flags;
+            this.matches = matches;
+        }
+
+        public boolean hasFlags() {
+            return flags != 0 && flags != 0xFFFF;
+        }
+
+        public boolean isEmpty() {
+            return type == null && subtype == null && !hasFlags() && matches == null;
+        }
+    }
+
+    private final TypeDictionary mTypeNames;
+    private final TypeDictionary mSubtypeNames;
+
+    private final RowBitmap mAll = new RowBitmap();
+    private RowBitmap[] mTypes = new RowBitmap[0];      //by type ID; null if no tree has the type
+    private RowBitmap[] mSubtypes = new RowBitmap[0];   //by subtype ID
+    private final RowBitmap[] mFlags = new RowBitmap[FLAG_BITS];
+
+    // Values of the trees in mAll, by row ID
+    private int[] mRowTypes = new int[MIN_CAPACITY];
+    private int[] mRowSubtypes = new int[MIN_CAPACITY];
+    private int[] mRowFlags = new int[MIN_CAPACITY];
+
+    /**
+     * @param types    names of the type IDs
+     * @param subtypes names of the subtype IDs
+     */
+    public FilterEngine(TypeDictionary types, TypeDictionary subtypes) {
+        mTypeNames = types;
+        mSubtypeNames = subtypes;
+        for (int bit = 0; bit < FLAG_BITS; bit++)
+            mFlags[bit] = new RowBitmap();
+    }
+
+    /**
+     * Add a tree. If the tree is already known, its previous values are replaced.
+     *
+     * @param rowID     DB record ID
+     * @param typeID    type of tree; see {@code TypeDictionary.idOf()}
+     * @param subtypeID subtype of tree; see {@code TypeDictionary.idOf()}
+     * @param flag      bit vector of flag settings; see {@code TreeFlags}
+     */
+    public synchronized void add(long rowID, int typeID, int subtypeID, int flag) {
+        remove(rowID);
+        mAll.add(rowID);    //checks the range of the row ID
+        if (rowID >= mRowTypes.length) {
+            int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(rowID + 1, 2L * mRowTypes.length));
+            mRowTypes = Arrays.copyOf(mRowTypes, capacity);
+            mRowSubtypes = Arrays.copyOf(mRowSubtypes, capacity);
+            mRowFlags = Arrays.copyOf(mRowFlags, capacity);
+        }
+        int i = (int) rowID;
+        mRowTypes[i] = typeID;
+        mRowSubtypes[i] = subtypeID;
+        mRowFlags[i] = flag;
+
+        if (typeID != TypeDictionary.NONE) {
+            mTypes = grow(mTypes, typeID);
+            lookup(mTypes, typeID).add(rowID);
+        }
+        if (subtypeID != TypeDictionary.NONE) {
+            mSubtypes = grow(mSubtypes, subtypeID);
+            lookup(mSubtypes, subtypeID).add(rowID);
+        }
+        for (int bit = 0; bit < FLAG_BITS; bit++) {
+            if ((flag & (1 << bit)) != 0)
+                mFlags[bit].add(rowID);
+        }
+    }
+
+    /**
+     * Remove a tree; unknown row IDs are ignored
+     */
+    public synchronized void remove(long rowID) {
+        if (!mAll.contains(rowID))
+            return;
+        mAll.remove(rowID);
+        int i = (int) rowID;
+        removeFrom(mTypes, mRowTypes[i], rowID);
+        removeFrom(mSubtypes, mRowSubtypes[i], rowID);
+        for (int bit = 0; bit < FLAG_BITS; bit++) {
+            if ((mRowFlags[i] & (1 << bit)) != 0)
+                mFlags[bit].remove(rowID);
+        }
+    }
+
+    /**
+     * Forget all trees
+     */
+    public synchronized void clear() {
+        mAll.clear();
+        mTypes = new RowBitmap[0];
+        mSubtypes = new RowBitmap[0];
+        for (RowBitmap b : mFlags)
+            b.clear();
+        mRowTypes = new int[MIN_CAPACITY];
+        mRowSubtypes = new int[MIN_CAPACITY];
+        mRowFlags = new int[MIN_CAPACITY];
+    }
+
+    /**
+     * Determine the trees that pass a filter
+     *
+     * @param criteria filter settings
+     * @return a new bitmap of row IDs, which the caller may keep or modify
+     */
+    public synchronized RowBitmap evaluate(Criteria criteria) {
+        RowBitmap result = mAll;
+        if (criteria.type != null)
+            result = result.and(match(mTypes, mTypeNames.match(criteria.type.trim())));
+        if (criteria.subtype != null)
+            result = result.and(match(mSubtypes, mSubtypeNames.match(criteria.subtype.trim())));
+        if (criteria.hasFlags())
+            result = result.and(anyFlag(criteria.flags));
+        if (criteria.matches != null)
+            result = result.and(criteria.matches);
+        return result == mAll ? mAll.copy() : result;
+    }
+
+    /**
+     * @return a new bitmap of the trees that have at least one of the given flags set
+     */
+    public synchronized RowBitmap anyFlag(int flags) {
+        RowBitmap result = new RowBitmap();
+        for (int bit = 0; bit < FLAG_BITS; bit++) {
+            if ((flags & (1 << bit)) != 0)
+                result = result.or(mFlags[bit]);
+        }
+        return result;
+    }
+
+    /**
+     * @return a new bitmap of all known trees
+     */
+    public synchronized RowBitmap all() {
+        return mAll.copy();
+    }
+
+    /**
+     * Combine the bitmaps of the given IDs
+     */
+    private static RowBitmap match(RowBitmap[] index, int[] ids) {
+        RowBitmap result = new RowBitmap();
+        for (int id : ids) {
+            if (id < index.length && index[id] != null)
+                result = result.or(index[id]);
+        }
+        return result;
+    }
+
+    private static RowBitmap[] grow(RowBitmap[] index, int id) {
+        return id < index.length ? index : Arrays.copyOf(index, Math.max(id + 1, index.length * 2));
+    }
+
+    private static RowBitmap lookup(RowBitmap[] index, int id) {
+        RowBitmap b = index[id];
+        if (b == null) {
+            b = new RowBitmap();
+            index[id] = b;
+        }
+        return b;
+    }
+
+    private static void removeFrom(RowBitmap[] index, int id, long rowID) {
+        if (id < 0 || id >= index.length || index[id] == null)
+            return;
+        index[id].remove(rowID);
+        if (index[id].isEmpty())
+            index[id] = null;
+    }
+}
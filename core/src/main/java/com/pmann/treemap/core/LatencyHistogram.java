@@ -0,0 +1,135 @@
+package com.pmann.treemap.core;
+
+import java.util.Arrays;
+
+/**
+ * <p>Distribution of latencies, for reporting percentiles. Recording a value takes constant time
+ * and no allocation, so it can be done on hot paths.</p>
+ * <p>
+ * Values are counted in log-linear buckets: every power of 2 is split into {@code SUB_BUCKETS}
+ * buckets of equal width. Percentiles are therefore accurate to about 6%, over the full range of
+ * a long, with less than a thousand buckets.</p>
+ * <p>
+ * All methods are synchronized, so latencies can be recorded from any thread.</p>
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    final private long[] mCounts = new long[BUCKETS];
+    private long mCount = 0;
+    private long mSum = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    /**
+     * Count a value
+     *
+     * @param value latency, usually in nanoseconds; negative values are counted as 0
+     */
+    public synchronized void record(long value) {
+        value = Math.max(value, 0);
+        mCounts[bucketOf(value)]++;
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * Add the values counted by another histogram
+     */
+    public synchronized void add(LatencyHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < BUCKETS; i++)
+                mCounts[i] += other.mCounts[i];
+            mCount += other.mCount;
+            mSum += other.mSum;
+            mMin = Math.min(mMin, other.mMin);
+            mMax = Math.max(mMax, other.mMax);
+        }
+    }
+
+    /**
+     * @return a copy, which is no longer affected by values recorded here
+     */
+    public synchronized LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * Forget all values
+     */
+    public synchronized void clear() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return mean of the values, or 0 if there are none
+     */
+    public synchronized double getMean() {
+        return mCount == 0 ? 0 : (double) mSum / mCount;
+    }
+
+    /**
+     * @return smallest value, or 0 if there are none
+     */
+    public synchronized long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    /**
+     * @return largest value, or 0 if there are none
+     */
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 99 for the 99th percentile
+     * @return the value that this percentage of values don't exceed, or 0 if there are none. The
+     * value is the upper end of its bucket, but never more than the largest value.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mCount == 0)
+            return 0;
+        long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * mCount);
+        rank = Math.max(rank, 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank)
+                return Math.max(Math.min(upperBound(i), mMax), mMin);
+        }
+        return mMax;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + width - 1;
+    }
+}
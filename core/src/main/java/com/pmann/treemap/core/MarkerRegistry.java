@@ -0,0 +1,281 @@
+package com.pmann.treemap.core;
+
+import java.util.Arrays;
+
+/**
+ * <p>Associates map markers with their DB records. Lookups work in both directions, from marker to
+ * row ID and from row ID to marker, in constant time. The flag and type ID of each record are
+ * stored alongside, so filtering doesn't need to go back to the DB. So is the visibility last
+ * applied to the marker, so that filtering only needs to touch markers whose visibility
+ * changes.</p>
+ * <p>
+ * Entries are kept in parallel arrays of primitives, so there is no boxing and no per-entry
+ * object. Two open-addressing hash tables (linear probing) map markers and row IDs to entry
+ * positions. Removing an entry moves the last entry into its place, so the positions of other
+ * entries may change. When removing while iterating by position, iterate backwards.</p>
+ * <p>
+ * The registry doesn't depend on the map API; {@code M} is the type of the markers. Markers must
+ * implement {@code equals()} and {@code hashCode()} consistently.</p>
+ * <p>
+ * Not thread-safe; use it from the UI thread only.</p>
+ */
+public class MarkerRegistry<M> {
+    private static final int MIN_CAPACITY = 64;
+
+    // Entries, by position
+    private Object[] mMarkers;
+    private long[] mRowIDs;
+    private int[] mFlags;
+    private int[] mTypeIDs;
+    private boolean[] mVisible;
+    private int mSize = 0;
+
+    // Hash tables holding entry position + 1; 0 marks an empty slot. The tables are kept at most
+    // half full, so probe sequences stay short.
+    private int[] mByMarker;
+    private int[] mByRowID;
+
+    public MarkerRegistry() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Add an entry. If the marker or the row ID is already registered, the old entry is replaced.
+     *
+     * @param marker map marker
+     * @param rowID  ID of the DB record shown by the marker
+     * @param flag   bit vector of flag settings; see {@code TreeFlags}
+     * @param typeID type of tree; see {@code TreeStore.types()}
+     * @param visible current visibility of the marker
+     */
+    public void put(M marker, long rowID, int flag, int typeID, boolean visible) {
+        remove(marker);
+        removeRow(rowID);
+        if (mSize == mMarkers.length)
+            allocate(mMarkers.length * 2);
+
+        int index = mSize++;
+        mMarkers[index] = marker;
+        mRowIDs[index] = rowID;
+        mFlags[index] = flag;
+        mTypeIDs[index] = typeID;
+        mVisible[index] = visible;
+        mByMarker[freeSlot(mByMarker, hash(marker))] = index + 1;
+        mByRowID[freeSlot(mByRowID, hash(rowID))] = index + 1;
+    }
+
+    /**
+     * @return position of the marker's entry, or -1 if the marker is not registered
+     */
+    public int indexOf(M marker) {
+        int slot = findMarker(marker);
+        return slot < 0 ? -1 : mByMarker[slot] - 1;
+    }
+
+    /**
+     * @return position of the row's entry, or -1 if the row has no marker
+     */
+    public int indexOfRow(long rowID) {
+        int slot = findRow(rowID);
+        return slot < 0 ? -1 : mByRowID[slot] - 1;
+    }
+
+    /**
+     * @return row ID for the marker, or -1 if the marker is not registered
+     */
+    public long getRowID(M marker) {
+        int index = indexOf(marker);
+        return index < 0 ? -1 : mRowIDs[index];
+    }
+
+    /**
+     * @return marker for the row, or null if the row has no marker
+     */
+    public M getMarker(long rowID) {
+        int index = indexOfRow(rowID);
+        return index < 0 ? null : markerAt(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    public M markerAt(int index) {
+        return (M) mMarkers[index];
+    }
+
+    public long rowIDAt(int index) {
+        return mRowIDs[index];
+    }
+
+    public int flagAt(int index) {
+        return mFlags[index];
+    }
+
+    public int typeIDAt(int index) {
+        return mTypeIDs[index];
+    }
+
+    public boolean isVisibleAt(int index) {
+        return mVisible[index];
+    }
+
+    /**
+     * Record the visibility of the marker at the given position
+     *
+     * @return true, if the visibility changed; the caller then shows or hides the marker
+     */
+    public boolean setVisibleAt(int index, boolean visible) {
+        if (mVisible[index] == visible)
+            return false;
+        mVisible[index] = visible;
+        return true;
+    }
+
+    /**
+     * Change flag and type ID of an entry
+     */
+    public void setAt(int index, int flag, int typeID) {
+        mFlags[index] = flag;
+        mTypeIDs[index] = typeID;
+    }
+
+    /**
+     * Remove a marker's entry
+     *
+     * @return row ID of the removed entry, or -1 if the marker was not registered
+     */
+    public long remove(M marker) {
+        int index = indexOf(marker);
+        if (index < 0)
+            return -1;
+        long rowID = mRowIDs[index];
+        removeAt(index);
+        return rowID;
+    }
+
+    /**
+     * Remove a row's entry
+     *
+     * @return the marker of the removed entry, or null if the row had no marker
+     */
+    public M removeRow(long rowID) {
+        int index = indexOfRow(rowID);
+        if (index < 0)
+            return null;
+        M marker = markerAt(index);
+        removeAt(index);
+        return marker;
+    }
+
+    /**
+     * Remove the entry at the given position. The last entry takes its place.
+     */
+    public void removeAt(int index) {
+        deleteSlot(mByMarker, findMarker(mMarkers[index]));
+        deleteSlot(mByRowID, findRow(mRowIDs[index]));
+
+        int last = --mSize;
+        if (index != last) {
+            mMarkers[index] = mMarkers[last];
+            mRowIDs[index] = mRowIDs[last];
+            mFlags[index] = mFlags[last];
+            mTypeIDs[index] = mTypeIDs[last];
+            mVisible[index] = mVisible[last];
+            mByMarker[findMarker(mMarkers[index])] = index + 1;
+            mByRowID[findRow(mRowIDs[index])] = index + 1;
+        }
+        mMarkers[last] = null;
+    }
+
+    /**
+     * Remove all entries
+     */
+    public void clear() {
+        Arrays.fill(mMarkers, 0, mSize, null);
+        Arrays.fill(mByMarker, 0);
+        Arrays.fill(mByRowID, 0);
+        mSize = 0;
+    }
+
+    private int findMarker(Object marker) {
+        int mask = mByMarker.length - 1;
+        for (int slot = hash(marker) & mask; mByMarker[slot] != 0; slot = (slot + 1) & mask) {
+            if (mMarkers[mByMarker[slot] - 1].equals(marker))
+                return slot;
+        }
+        return -1;
+    }
+
+    private int findRow(long rowID) {
+        int mask = mByRowID.length - 1;
+        for (int slot = hash(rowID) & mask; mByRowID[slot] != 0; slot = (slot + 1) & mask) {
+            if (mRowIDs[mByRowID[slot] - 1] == rowID)
+                return slot;
+        }
+        return -1;
+    }
+
+    private static int freeSlot(int[] table, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Empty a slot of a linear probing table. Entries further along the probe sequence are moved
+     * back, so that lookups don't stop early at the gap.
+     */
+    private void deleteSlot(int[] table, int slot) {
+        int mask = table.length - 1;
+        int gap = slot;
+        for (int i = (gap + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+            int home = hashOfEntry(table, table[i] - 1) & mask;
+            // Move the entry into the gap, unless its home slot lies cyclically in (gap, i]
+            if (gap <= i ? (home <= gap || home > i) : (home <= gap && home > i)) {
+                table[gap] = table[i];
+                gap = i;
+            }
+        }
+        table[gap] = 0;
+    }
+
+    private int hashOfEntry(int[] table, int index) {
+        return table == mByMarker ? hash(mMarkers[index]) : hash(mRowIDs[index]);
+    }
+
+    private static int hash(Object marker) {
+        return mix(marker.hashCode());
+    }
+
+    private static int hash(long rowID) {
+        return mix((int) (rowID ^ (rowID >>> 32)));
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void allocate(int capacity) {
+        int size = mSize;
+        mMarkers = mMarkers == null ? new Object[capacity] : Arrays.copyOf(mMarkers, capacity);
+        mRowIDs = mRowIDs == null ? new long[capacity] : Arrays.copyOf(mRowIDs, capacity);
+        mFlags = mFlags == null ? new int[capacity] : Arrays.copyOf(mFlags, capacity);
+        mTypeIDs = mTypeIDs == null ? new int[capacity] : Arrays.copyOf(mTypeIDs, capacity);
+        mVisible = mVisible == null ? new boolean[capacity] : Arrays.copyOf(mVisible, capacity);
+
+        mByMarker = new int[capacity * 2];
+        mByRowID = new int[capacity * 2];
+        for (int i = 0; i < size; i++) {
+            mByMarker[freeSlot(mByMarker, hash(mMarkers[i]))] = i + 1;
+            mByRowID[freeSlot(mByRowID, hash(mRowIDs[i]))] = i + 1;
+        }
+    }
+}
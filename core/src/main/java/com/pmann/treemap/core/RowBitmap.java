@@ -0,0 +1,416 @@
+package com.pmann.treemap.core;
+
+import java.util.Arrays;
+
+/**
+ * <p>Compressed set of row IDs, organized like a Roaring bitmap. Row IDs are split into a high
+ * and a low 16-bit half. For each distinct high half there is a container holding the low
+ * halves: a sorted array while the container is sparse, or a plain 65536-bit bitmap once it
+ * holds more than {@code ARRAY_MAX} values. Set operations work container by container, and on
+ * bitmap containers a word at a time.</p>
+ * <p>
+ * Row IDs must be in the range 0 to {@code Integer.MAX_VALUE}, which covers anything SQLite
+ * assigns to a table with fewer than two billion inserts.</p>
+ * <p>
+ * Not thread-safe. The set operations return new bitmaps and leave their operands unchanged, so
+ * a bitmap that is no longer modified can be shared between threads.</p>
+ */
+public class RowBitmap {
+    // A container switches between array and bitmap representation at this size, where both
+    // take 8kB
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    // Containers, sorted by the high half of the row IDs they hold
+    private char[] mKeys;
+    private Container[] mContainers;
+    private int mSize = 0;
+
+    public RowBitmap() {
+        mKeys = new char[4];
+        mContainers = new Container[4];
+    }
+
+    private RowBitmap(int capacity) {
+        mKeys = new char[Math.max(capacity, 1)];
+        mContainers = new Container[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Add a row ID
+     */
+    public void add(long rowID) {
+        char high = high(rowID);
+        int i = Arrays.binarySearch(mKeys, 0, mSize, high);
+        if (i < 0) {
+            i = -i - 1;
+            insertContainer(i, high, new Container());
+        }
+        mContainers[i].add(low(rowID));
+    }
+
+    /**
+     * Remove a row ID; IDs that aren't in the set are ignored
+     */
+    public void remove(long rowID) {
+        if (rowID < 0 || rowID > Integer.MAX_VALUE)
+            return;
+        int i = Arrays.binarySearch(mKeys, 0, mSize, high(rowID));
+        if (i < 0)
+            return;
+        Container c = mContainers[i];
+        c.remove(low(rowID));
+        if (c.mCount == 0)
+            removeContainer(i);
+    }
+
+    public boolean contains(long rowID) {
+        if (rowID < 0 || rowID > Integer.MAX_VALUE)
+            return false;
+        int i = Arrays.binarySearch(mKeys, 0, mSize, high(rowID));
+        return i >= 0 && mContainers[i].contains(low(rowID));
+    }
+
+    /**
+     * @return number of row IDs in the set
+     */
+    public int cardinality() {
+        int n = 0;
+        for (int i = 0; i < mSize; i++)
+            n += mContainers[i].mCount;
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(mContainers, 0, mSize, null);
+        mSize = 0;
+    }
+
+    /**
+     * @return all row IDs in the set, in ascending order
+     */
+    public long[] toArray() {
+        long[] result = new long[cardinality()];
+        int n = 0;
+        for (int i = 0; i < mSize; i++)
+            n = mContainers[i].copyTo(result, n, mKeys[i] << 16);
+        return result;
+    }
+
+    /**
+     * @return an independent copy of this set
+     */
+    public RowBitmap copy() {
+        RowBitmap result = new RowBitmap(mSize);
+        for (int i = 0; i < mSize; i++)
+            result.appendContainer(mKeys[i], mContainers[i].copy());
+        return result;
+    }
+
+    /**
+     * @return a new set holding the row IDs contained in both sets
+     */
+    public RowBitmap and(RowBitmap other) {
+        RowBitmap result = new RowBitmap(Math.min(mSize, other.mSize));
+        int i = 0;
+        int j = 0;
+        while (i < mSize && j < other.mSize) {
+            if (mKeys[i] < other.mKeys[j]) {
+                i++;
+            } else if (mKeys[i] > other.mKeys[j]) {
+                j++;
+            } else {
+                Container c = Container.and(mContainers[i], other.mContainers[j]);
+                if (c.mCount > 0)
+                    result.appendContainer(mKeys[i], c);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a new set holding the row IDs contained in either set
+     */
+    public RowBitmap or(RowBitmap other) {
+        RowBitmap result = new RowBitmap(mSize + other.mSize);
+        int i = 0;
+        int j = 0;
+        while (i < mSize || j < other.mSize) {
+            if (j == other.mSize || (i < mSize && mKeys[i] < other.mKeys[j])) {
+                result.appendContainer(mKeys[i], mContainers[i].copy());
+                i++;
+            } else if (i == mSize || mKeys[i] > other.mKeys[j]) {
+                result.appendContainer(other.mKeys[j], other.mContainers[j].copy());
+                j++;
+            } else {
+                result.appendContainer(mKeys[i], Container.or(mContainers[i], other.mContainers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a new set holding the row IDs contained in this set but not in the other
+     */
+    public RowBitmap andNot(RowBitmap other) {
+        RowBitmap result = new RowBitmap(mSize);
+        int j = 0;
+        for (int i = 0; i < mSize; i++) {
+            while (j < other.mSize && other.mKeys[j] < mKeys[i])
+                j++;
+            Container c;
+            if (j < other.mSize && other.mKeys[j] == mKeys[i])
+                c = Container.andNot(mContainers[i], other.mContainers[j]);
+            else
+                c = mContainers[i].copy();
+            if (c.mCount > 0)
+                result.appendContainer(mKeys[i], c);
+        }
+        return result;
+    }
+
+    /**
+     * @return a new set holding the row IDs contained in exactly one of the sets
+     */
+    public RowBitmap xor(RowBitmap other) {
+        return andNot(other).or(other.andNot(this));
+    }
+
+    private void insertContainer(int index, char key, Container c) {
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            mContainers = Arrays.copyOf(mContainers, mSize * 2);
+        }
+        System.arraycopy(mKeys, index, mKeys, index + 1, mSize - index);
+        System.arraycopy(mContainers, index, mContainers, index + 1, mSize - index);
+        mKeys[index] = key;
+        mContainers[index] = c;
+        mSize++;
+    }
+
+    private void appendContainer(char key, Container c) {
+        insertContainer(mSize, key, c);
+    }
+
+    private void removeContainer(int index) {
+        System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+        System.arraycopy(mContainers, index + 1, mContainers, index, mSize - index - 1);
+        mContainers[--mSize] = null;
+    }
+
+    private static char high(long rowID) {
+        if (rowID < 0 || rowID > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Row ID out of range: " + rowID);
+        return (char) (rowID >>> 16);
+    }
+
+    private static char low(long rowID) {
+        return (char) rowID;
+    }
+
+    /**
+     * The low halves of the row IDs sharing one high half. Exactly one of mArray and mBits is in
+     * use, depending on the number of values.
+     */
+    private static class Container {
+        char[] mArray;  //sorted; the first mCount entries are valid
+        long[] mBits;
+        int mCount = 0;
+
+        Container() {
+            mArray = new char[4];
+        }
+
+        private Container(char[] array, long[] bits, int count) {
+            mArray = array;
+            mBits = bits;
+            mCount = count;
+        }
+
+        void add(char value) {
+            if (mBits != null) {
+                long bit = 1L << value;
+                if ((mBits[value >>> 6] & bit) == 0) {
+                    mBits[value >>> 6] |= bit;
+                    mCount++;
+                }
+                return;
+            }
+            int i = Arrays.binarySearch(mArray, 0, mCount, value);
+            if (i >= 0)
+                return;
+            i = -i - 1;
+            if (mCount == mArray.length)
+                mArray = Arrays.copyOf(mArray, Math.min(mCount * 2, ARRAY_MAX + 1));
+            System.arraycopy(mArray, i, mArray, i + 1, mCount - i);
+            mArray[i] = value;
+            if (++mCount > ARRAY_MAX)
+                toBitmap();
+        }
+
+        void remove(char value) {
+            if (mBits != null) {
+                long bit = 1L << value;
+                if ((mBits[value >>> 6] & bit) != 0) {
+                    mBits[value >>> 6] &= ~bit;
+                    if (--mCount <= ARRAY_MAX)
+                        toArray();
+                }
+                return;
+            }
+            int i = Arrays.binarySearch(mArray, 0, mCount, value);
+            if (i < 0)
+                return;
+            System.arraycopy(mArray, i + 1, mArray, i, mCount - i - 1);
+            mCount--;
+        }
+
+        boolean contains(char value) {
+            if (mBits != null)
+                return (mBits[value >>> 6] & (1L << value)) != 0;
+            return Arrays.binarySearch(mArray, 0, mCount, value) >= 0;
+        }
+
+        int copyTo(long[] dest, int pos, int high) {
+            if (mBits == null) {
+                for (int i = 0; i < mCount; i++)
+                    dest[pos++] = high | mArray[i];
+                return pos;
+            }
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                long word = mBits[w];
+                while (word != 0) {
+                    dest[pos++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return pos;
+        }
+
+        Container copy() {
+            return new Container(
+                    mBits == null ? Arrays.copyOf(mArray, Math.max(mCount, 1)) : null,
+                    mBits == null ? null : mBits.clone(),
+                    mCount);
+        }
+
+        private void toBitmap() {
+            mBits = new long[BITMAP_WORDS];
+            for (int i = 0; i < mCount; i++)
+                mBits[mArray[i] >>> 6] |= 1L << mArray[i];
+            mArray = null;
+        }
+
+        private void toArray() {
+            char[] array = new char[Math.max(mCount, 1)];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                long word = mBits[w];
+                while (word != 0) {
+                    array[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            mArray = array;
+            mBits = null;
+        }
+
+        /**
+         * Build a container from bitmap words, choosing the representation by size
+         */
+        private static Container fromBits(long[] bits) {
+            int count = 0;
+            for (long word : bits)
+                count += Long.bitCount(word);
+            Container c = new Container(null, bits, count);
+            if (count <= ARRAY_MAX)
+                c.toArray();
+            return c;
+        }
+
+        static Container and(Container a, Container b) {
+            if (a.mBits != null && b.mBits != null) {
+                long[] bits = new long[BITMAP_WORDS];
+                for (int w = 0; w < BITMAP_WORDS; w++)
+                    bits[w] = a.mBits[w] & b.mBits[w];
+                return fromBits(bits);
+            }
+            // At least one side is an array; the result is no larger than that array
+            if (a.mBits != null || (b.mBits == null && b.mCount < a.mCount)) {
+                Container t = a;
+                a = b;
+                b = t;
+            }
+            char[] array = new char[Math.max(a.mCount, 1)];
+            int n = 0;
+            for (int i = 0; i < a.mCount; i++) {
+                if (b.contains(a.mArray[i]))
+                    array[n++] = a.mArray[i];
+            }
+            return new Container(array, null, n);
+        }
+
+        static Container or(Container a, Container b) {
+            if (a.mBits == null && b.mBits == null && a.mCount + b.mCount <= ARRAY_MAX) {
+                char[] array = new char[Math.max(a.mCount + b.mCount, 1)];
+                int i = 0;
+                int j = 0;
+                int n = 0;
+                while (i < a.mCount || j < b.mCount) {
+                    if (j == b.mCount || (i < a.mCount && a.mArray[i] < b.mArray[j]))
+                        array[n++] = a.mArray[i++];
+                    else if (i == a.mCount || a.mArray[i] > b.mArray[j])
+                        array[n++] = b.mArray[j++];
+                    else {
+                        array[n++] = a.mArray[i++];
+                        j++;
+                    }
+                }
+                return new Container(array, null, n);
+            }
+            long[] bits = new long[BITMAP_WORDS];
+            orInto(bits, a);
+            orInto(bits, b);
+            return fromBits(bits);
+        }
+
+        static Container andNot(Container a, Container b) {
+            if (a.mBits == null) {
+                char[] array = new char[Math.max(a.mCount, 1)];
+                int n = 0;
+                for (int i = 0; i < a.mCount; i++) {
+                    if (!b.contains(a.mArray[i]))
+                        array[n++] = a.mArray[i];
+                }
+                return new Container(array, null, n);
+            }
+            long[] bits = a.mBits.clone();
+            if (b.mBits != null) {
+                for (int w = 0; w < BITMAP_WORDS; w++)
+                    bits[w] &= ~b.mBits[w];
+            } else {
+                for (int i = 0; i < b.mCount; i++)
+                    bits[b.mArray[i] >>> 6] &= ~(1L << b.mArray[i]);
+            }
+            return fromBits(bits);
+        }
+
+        private static void orInto(long[] bits, Container c) {
+            if (c.mBits != null) {
+                for (int w = 0; w < BITMAP_WORDS; w++)
+                    bits[w] |= c.mBits[w];
+            } else {
+                for (int i = 0; i < c.mCount; i++)
+                    bits[c.mArray[i] >>> 6] |= 1L << c.mArray[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.pmann.treemap.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>The grid behind the spatial index of the trees table. The world is divided into cells of
+ * {@code CELL_SIZE} degrees and each record stores the number of the cell it lies in, its spatial
+ * key, in the indexed column {@code COLUMN_CELL}.</p>
+ * <p>
+ * The criteria built here select the index ranges of the cells a query area overlaps, and then
+ * the exact boundaries, so queries only visit those ranges instead of scanning the whole table.
+ * Parameter values are appended to a list of strings, in the order of the ? placeholders.</p>
+ */
+public class SpatialGrid {
+    public static final String COLUMN_LAT = "lat";
+    public static final String COLUMN_LONG = "long";
+    public static final String COLUMN_CELL = "cell";
+
+    // A cell is about 1km north-south; the number of columns per grid row must exceed 360 / CELL_SIZE.
+    public static final double CELL_SIZE = 0.01;
+    public static final long CELL_COLUMNS = 65536;
+
+    // Bounding box queries that would need more index ranges than this fall back to a
+    // single range covering full rows of the grid
+    private static final int MAX_CELL_RANGES = 32;
+
+    // Approximate length of a degree of latitude
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private SpatialGrid() {
+    }
+
+    /**
+     * Compute the spatial index key for a location
+     * @param lat latitude
+     * @param lng longitude
+     * @return number of the grid cell the location lies in
+     */
+    public static long spatialKey(double lat, double lng) {
+        return cellRow(lat) * CELL_COLUMNS + cellColumn(lng);
+    }
+
+    private static long cellRow(double lat) {
+        return (long) ((lat + 90) / CELL_SIZE);
+    }
+
+    private static long cellColumn(double lng) {
+        return (long) ((lng + 180) / CELL_SIZE);
+    }
+
+    private static double wrapLongitude(double lng) {
+        if (lng < -180)
+            return lng + 360;
+        if (lng > 180)
+            return lng - 360;
+        return lng;
+    }
+
+    /**
+     * Build the WHERE criteria for a bounding box. If west is greater than east, the box is
+     * assumed to cross the 180th meridian.
+     * @param south southern latitude boundary
+     * @param west western longitude boundary
+     * @param north northern latitude boundary
+     * @param east eastern longitude boundary
+     * @param args list to which the parameter values for the criteria are appended
+     * @return criteria for a WHERE clause
+     */
+    public static String boundingBoxCriteria(double south, double west, double north, double east, List<String> args) {
+        south = Math.max(south, -90);
+        north = Math.min(north, 90);
+        long rowFrom = cellRow(south);
+        long rowTo = cellRow(north);
+
+        // Column ranges within a grid row; two of them, if we cross the 180th meridian
+        List<long[]> columns = new ArrayList<>();
+        if (west <= east) {
+            columns.add(new long[]{cellColumn(west), cellColumn(east)});
+        } else {
+            columns.add(new long[]{cellColumn(west), cellColumn(180)});
+            columns.add(new long[]{cellColumn(-180), cellColumn(east)});
+        }
+
+        StringBuilder sb = new StringBuilder("(");
+        int ranges = 0;
+        if ((rowTo - rowFrom + 1) * columns.size() > MAX_CELL_RANGES) {
+            sb.append(COLUMN_CELL).append(" BETWEEN ? AND ?");
+            args.add(String.valueOf(rowFrom * CELL_COLUMNS));
+            args.add(String.valueOf(rowTo * CELL_COLUMNS + CELL_COLUMNS - 1));
+        } else {
+            for (long row = rowFrom; row <= rowTo; row++) {
+                for (long[] range : columns) {
+                    if (ranges++ > 0)
+                        sb.append(" OR ");
+                    sb.append(COLUMN_CELL).append(" BETWEEN ? AND ?");
+                    args.add(String.valueOf(row * CELL_COLUMNS + range[0]));
+                    args.add(String.valueOf(row * CELL_COLUMNS + range[1]));
+                }
+            }
+        }
+        sb.append(") AND ").append(COLUMN_LAT).append(" BETWEEN ? AND ?");
+        args.add(String.valueOf(south));
+        args.add(String.valueOf(north));
+
+        if (west <= east)
+            sb.append(" AND ").append(COLUMN_LONG).append(" BETWEEN ? AND ?");
+        else
+            sb.append(" AND (").append(COLUMN_LONG).append(">=? OR ").append(COLUMN_LONG).append("<=?)");
+        args.add(String.valueOf(west));
+        args.add(String.valueOf(east));
+        return sb.toString();
+    }
+
+    /**
+     * Build the WHERE criteria for the records within a distance of a point. Distances are
+     * approximated on a flat projection, which is accurate enough for the small radii we deal with.
+     * @param lat latitude of the center point
+     * @param lng longitude of the center point
+     * @param radius in meters
+     * @param args list to which the parameter values for the criteria are appended
+     * @return criteria for a WHERE clause
+     */
+    public static String radiusCriteria(double lat, double lng, double radius, List<String> args) {
+        double dLat = radius / METERS_PER_DEGREE;
+        double scale = Math.max(Math.cos(Math.toRadians(lat)), 1e-6);
+        double dLng = Math.min(dLat / scale, 180);
+
+        StringBuilder sb = new StringBuilder(boundingBoxCriteria(
+                lat - dLat, wrapLongitude(lng - dLng), lat + dLat, wrapLongitude(lng + dLng), args));
+
+        // (lat - ?)^2 + ((long - ?) * scale)^2 <= dLat^2
+        sb.append(" AND (").append(COLUMN_LAT).append("-?)*(").append(COLUMN_LAT).append("-?)+")
+                .append("(").append(COLUMN_LONG).append("-?)*(").append(COLUMN_LONG).append("-?)*?<=?");
+        args.add(String.valueOf(lat));
+        args.add(String.valueOf(lat));
+        args.add(String.valueOf(lng));
+        args.add(String.valueOf(lng));
+        args.add(String.valueOf(scale * scale));
+        args.add(String.valueOf(dLat * dLat));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,199 @@
+package com.pmann.treemap.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>In-memory index of tree positions for collision checks. Positions are hashed into a grid of
+ * square cells, so finding the trees near a location only visits the cells around it, regardless
+ * of the number of trees.</p>
+ * <p>
+ * Distances are approximated on a flat projection around the location in question, which is
+ * accurate enough for the few meters we deal with. Cells are {@code cellSize} meters high; their
+ * width in degrees is about the same, so they get narrower towards the poles. The columns of
+ * cells wrap around at the 180th meridian, so positions on either side of it are neighbors.</p>
+ * <p>
+ * All methods are synchronized, so the index can be filled on a background thread.</p>
+ */
+public class SpatialHash {
+    private static final double METERS_PER_DEGREE = 111320;
+
+    // Number of candidate positions tried on each ring around a colliding location
+    private static final int RING_STEPS = 12;
+
+    private static class Point {
+        final long mID;
+        final double mLat;
+        final double mLng;
+
+        Point(long id, double lat, double lng) {
+            mID = id;
+            mLat = lat;
+            mLng = lng;
+        }
+    }
+
+    final private double mCellDegrees;
+    final private long mColumns;            //columns around the globe
+    final private double mColumnDegrees;    //360 / mColumns, so the columns wrap exactly
+    final private HashMap<Long, Point> mPoints = new HashMap<>();
+    final private HashMap<Long, List<Point>> mCells = new HashMap<>();
+    final private Random mRandom = new Random(); //don't care about seed for this application
+
+    /**
+     * @param cellSize height of a grid cell in meters; about the typical query radius works best
+     */
+    public SpatialHash(double cellSize) {
+        mCellDegrees = cellSize / METERS_PER_DEGREE;
+        mColumns = (long) Math.ceil(360 / mCellDegrees);
+        mColumnDegrees = 360.0 / mColumns;
+    }
+
+    /**
+     * Add a position. If the ID is already known, its previous position is replaced.
+     *
+     * @param id  DB record ID
+     * @param lat latitude
+     * @param lng longitude
+     */
+    public synchronized void put(long id, double lat, double lng) {
+        remove(id);
+        Point p = new Point(id, lat, lng);
+        mPoints.put(id, p);
+        long key = cellKey(cellRow(lat), cellColumn(lng));
+        List<Point> cell = mCells.get(key);
+        if (cell == null) {
+            cell = new ArrayList<>(2);
+            mCells.put(key, cell);
+        }
+        cell.add(p);
+    }
+
+    /**
+     * Remove a position; unknown IDs are ignored
+     */
+    public synchronized void remove(long id) {
+        Point p = mPoints.remove(id);
+        if (p == null)
+            return;
+        long key = cellKey(cellRow(p.mLat), cellColumn(p.mLng));
+        List<Point> cell = mCells.get(key);
+        if (cell != null) {
+            cell.remove(p);
+            if (cell.isEmpty())
+                mCells.remove(key);
+        }
+    }
+
+    /**
+     * Forget all positions
+     */
+    public synchronized void clear() {
+        mPoints.clear();
+        mCells.clear();
+    }
+
+    public synchronized int size() {
+        return mPoints.size();
+    }
+
+    /**
+     * Find a position near the given one that keeps a minimum distance from all known positions.
+     * If the given position is free, it is returned as is. Otherwise we try positions on rings of
+     * increasing radius around it, starting at a random angle, and return the first free one.
+     * The known positions in range are collected once, so this takes a single pass over the grid.
+     *
+     * @param lat           latitude
+     * @param lng           longitude
+     * @param minSeparation minimum distance to other positions in meters
+     * @param maxRings      number of rings to try; ring i has a radius of i times minSeparation
+     * @return {latitude, longitude} of a free position, or null if there is none within range
+     */
+    public synchronized double[] findFreePosition(double lat, double lng, double minSeparation, int maxRings) {
+        double scale = Math.max(Math.cos(Math.toRadians(lat)), 1e-6);
+        List<Point> near = collect(lat, lng, minSeparation * (maxRings + 1), scale);
+        if (isFree(near, lat, lng, minSeparation, scale))
+            return new double[]{lat, lng};
+
+        double start = mRandom.nextDouble() * 2 * Math.PI;
+        for (int ring = 1; ring <= maxRings; ring++) {
+            double radius = ring * minSeparation / METERS_PER_DEGREE;
+            for (int step = 0; step < RING_STEPS; step++) {
+                double angle = start + step * 2 * Math.PI / RING_STEPS;
+                double candLat = lat + radius * Math.sin(angle);
+                double candLng = wrapLongitude(lng + radius * Math.cos(angle) / scale);
+                if (isFree(near, candLat, candLng, minSeparation, scale))
+                    return new double[]{candLat, candLng};
+            }
+        }
+        return null;
+    }
+
+    // Collect the positions within the given distance (in meters) of a location, plus some
+    // beyond, since we visit whole cells
+    private List<Point> collect(double lat, double lng, double distance, double scale) {
+        double dLat = distance / METERS_PER_DEGREE;
+        double dLng = dLat / scale;
+        long rowFrom = cellRow(lat - dLat);
+        long rowTo = cellRow(lat + dLat);
+        // Column numbers before wrapping; a range that crosses the 180th meridian continues at
+        // the other end of the grid
+        long colFrom = (long) Math.floor((lng - dLng + 180) / mColumnDegrees);
+        long columns = Math.min((long) Math.floor((lng + dLng + 180) / mColumnDegrees) - colFrom + 1, mColumns);
+
+        List<Point> near = new ArrayList<>();
+        if ((rowTo - rowFrom + 1) * columns > mCells.size()) {
+            // Fewer occupied cells than cells in range; scan the occupied ones
+            for (List<Point> cell : mCells.values()) {
+                for (Point p : cell) {
+                    if (Math.abs(p.mLat - lat) <= dLat && Math.abs(wrapLongitude(p.mLng - lng)) <= dLng)
+                        near.add(p);
+                }
+            }
+            return near;
+        }
+        for (long row = rowFrom; row <= rowTo; row++) {
+            for (long i = 0; i < columns; i++) {
+                List<Point> cell = mCells.get(cellKey(row, wrapColumn(colFrom + i)));
+                if (cell != null)
+                    near.addAll(cell);
+            }
+        }
+        return near;
+    }
+
+    private static boolean isFree(List<Point> near, double lat, double lng, double minSeparation, double scale) {
+        double min = minSeparation / METERS_PER_DEGREE;
+        double minSquared = min * min;
+        for (Point p : near) {
+            double dLat = p.mLat - lat;
+            double dLng = wrapLongitude(p.mLng - lng) * scale;
+            if (dLat * dLat + dLng * dLng < minSquared)
+                return false;
+        }
+        return true;
+    }
+
+    private long cellRow(double lat) {
+        return (long) Math.floor((lat + 90) / mCellDegrees);
+    }
+
+    private long cellColumn(double lng) {
+        return wrapColumn((long) Math.floor((lng + 180) / mColumnDegrees));
+    }
+
+    private long wrapColumn(long col) {
+        return ((col % mColumns) + mColumns) % mColumns;
+    }
+
+    // Bring a longitude or longitude difference into the range -180 to 180
+    private static double wrapLongitude(double lng) {
+        return lng - 360 * Math.floor((lng + 180) / 360);
+    }
+
+    private static long cellKey(long row, long col) {
+        return (row << 32) | (col & 0xFFFFFFFFL);
+    }
+}
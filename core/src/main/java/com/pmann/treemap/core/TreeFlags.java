@@ -0,0 +1,34 @@
+package com.pmann.treemap.core;
+
+/**
+ * <p>Semantics of the flag field of a tree record, a 32-bit field that tracks up to 32 boolean
+ * values per record:</p>
+ * <ul>
+ * <li>Bit 1: short listed</li>
+ * <li>Bit 2: flagged for follow up</li>
+ * <li>Bit 3: needs harvesting</li>
+ * <li>Bit 4: needs pruning</li>
+ * <li>Bit 5: collect scion wood</li>
+ * <li>Bit 6 ... : unassigned</li>
+ * </ul>
+ */
+public class TreeFlags {
+    public static final int MASK_SHORTLIST = 0x0001;
+    public static final int MASK_FOLLOWUP = 0x0002;
+    public static final int MASK_HARVEST = 0x0004;
+    public static final int MASK_PRUNE = 0x0008;
+    public static final int MASK_SCION = 0x0010;
+
+    // All assigned bits
+    public static final int MASK_ALL = MASK_SHORTLIST | MASK_FOLLOWUP | MASK_HARVEST | MASK_PRUNE | MASK_SCION;
+
+    private TreeFlags() {
+    }
+
+    /**
+     * @return true, if any of the bits in mask are set in flag
+     */
+    public static boolean isSet(int flag, int mask) {
+        return (flag & mask) != 0;
+    }
+}
@@ -0,0 +1,35 @@
+package com.pmann.treemap.core;
+
+/**
+ * Immutable copy of a tree record, as read from a {@code TreeStore}. The flag field is a bit vector;
+ * see {@code TreeFlags}.
+ */
+public class TreeRecord {
+    public final long rowID;
+    public final double lat;
+    public final double lng;
+    public final String type;
+    public final String subtype;
+    public final String comment;
+    public final int flag;
+    public final String date;
+
+    public TreeRecord(long rowID, double lat, double lng, String type, String subtype, String comment,
+                      int flag, String date) {
+        this.rowID = rowID;
+        this.lat = lat;
+        this.lng = lng;
+        this.type = type;
+        this.subtype = subtype;
+        this.comment = comment;
+        this.flag = flag;
+        this.date = date;
+    }
+
+    /**
+     * @return title for the map marker of this record
+     */
+    public String getTitle() {
+        return type + ": " + subtype;
+    }
+}
@@ -0,0 +1,266 @@
+package com.pmann.treemap.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * <p>The SQLite schema of a tree store at DB version {@code VERSION}, and the queries that
+ * depend on it. The app's {@code DBHelper} creates and migrates its DB with these statements,
+ * and the benchmarks' {@code JdbcTreeStore} creates the same schema, so that both measure and
+ * run the same tables, indexes and triggers.</p>
+ * <p>
+ * The trees table refers to types and subtypes by ID; their names are stored once each in the
+ * lookup tables, and the view {@code VIEW_TREES} joins them back in. An FTS4 table indexes type,
+ * subtype and comment for full-text search. For sync, every record has a UUID and the version of
+ * the server state it is based on, deleted records leave a tombstone, and {@code TABLE_CHANGES}
+ * logs the records changed since the last push. Triggers maintain the full-text index and the
+ * change log, so every write, whichever way it is made, is searchable and tracked.</p>
+ * <p>
+ * Statements that only migrate older versions stay with {@code DBHelper}.</p>
+ */
+public class TreeSchema {
+    // If you change the schema, you must increment the version and add a migration to DBHelper
+    public static final int VERSION = 6;
+
+    public static final String TABLE_TREES = "trees";
+    public static final String TABLE_TYPES = "tree_types";
+    public static final String TABLE_SUBTYPES = "tree_subtypes";
+    public static final String TABLE_FTS = "trees_fts";
+    public static final String TABLE_TOMBSTONES = "tree_tombstones";
+    public static final String TABLE_CHANGES = "tree_changes";
+    public static final String TABLE_SYNC_STATE = "sync_state";
+    public static final String VIEW_TREES = "tree_records";
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_LAT = SpatialGrid.COLUMN_LAT;
+    public static final String COLUMN_LONG = SpatialGrid.COLUMN_LONG;
+    public static final String COLUMN_CELL = SpatialGrid.COLUMN_CELL;
+    public static final String COLUMN_TYPE = "type";
+    public static final String COLUMN_SUBTYPE = "subtype";
+    public static final String COLUMN_COMMENT = "comment";
+    public static final String COLUMN_FLAG = "flag";
+    public static final String COLUMN_DATE = "date";
+    public static final String COLUMN_TYPE_ID = "type_id";
+    public static final String COLUMN_SUBTYPE_ID = "subtype_id";
+    public static final String COLUMN_NAME = "name";
+    public static final String COLUMN_HUE = "hue";
+    public static final String COLUMN_UUID = "uuid";
+    public static final String COLUMN_VERSION = "version";
+    public static final String COLUMN_SEQ = "seq";
+    public static final String COLUMN_VALUE = "value";
+    public static final String INDEX_CELL = "trees_cell";
+    public static final String INDEX_TYPE = "trees_type";
+    public static final String INDEX_SUBTYPE = "trees_subtype";
+    public static final String INDEX_DATE = "trees_date";
+    public static final String INDEX_UUID = "trees_uuid";
+
+    private static final String _ID = COLUMN_ID;
+
+    public static final String SQL_CREATE_TREES =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_TREES + " (" +
+                    _ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    COLUMN_LAT + " REAL," +
+                    COLUMN_LONG + " REAL," +
+                    COLUMN_TYPE_ID + " INTEGER REFERENCES " + TABLE_TYPES + "(" + _ID + ")," +
+                    COLUMN_SUBTYPE_ID + " INTEGER REFERENCES " + TABLE_SUBTYPES + "(" + _ID + ")," +
+                    COLUMN_COMMENT + " TEXT," +
+                    COLUMN_FLAG + " INTEGER," +
+                    COLUMN_DATE + " TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+                    COLUMN_CELL + " INTEGER," +
+                    COLUMN_UUID + " TEXT," +
+                    COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0" +
+                    " )";
+
+    // Lookup tables. Only types have a hue; types without one are shown in a default color.
+    public static final String SQL_CREATE_TYPES =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_TYPES + " (" +
+                    _ID + " INTEGER PRIMARY KEY," +
+                    COLUMN_NAME + " TEXT NOT NULL COLLATE NOCASE UNIQUE," +
+                    COLUMN_HUE + " REAL" +
+                    " )";
+    public static final String SQL_CREATE_SUBTYPES =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_SUBTYPES + " (" +
+                    _ID + " INTEGER PRIMARY KEY," +
+                    COLUMN_NAME + " TEXT NOT NULL COLLATE NOCASE UNIQUE" +
+                    " )";
+    public static final String SQL_INSERT_STANDARD_TYPE =
+            "INSERT OR IGNORE INTO " + TABLE_TYPES + "(" + COLUMN_NAME + ") VALUES (?)";
+    public static final String SQL_SET_HUE =
+            "UPDATE " + TABLE_TYPES + " SET " + COLUMN_HUE + "=? WHERE " + COLUMN_NAME + "=?";
+
+    // The trees table with type and subtype names instead of IDs. The sync columns were added
+    // to the view in version 6.
+    public static final String SQL_VIEW_COLUMNS =
+            TABLE_TREES + "." + _ID + " AS " + _ID + "," + COLUMN_LAT + "," + COLUMN_LONG + "," +
+                    TABLE_TYPES + "." + COLUMN_NAME + " AS " + COLUMN_TYPE + "," +
+                    TABLE_SUBTYPES + "." + COLUMN_NAME + " AS " + COLUMN_SUBTYPE + "," +
+                    COLUMN_COMMENT + "," + COLUMN_FLAG + "," + COLUMN_DATE + "," + COLUMN_CELL + "," +
+                    COLUMN_TYPE_ID + "," + COLUMN_SUBTYPE_ID;
+    public static final String SQL_VIEW_JOINS =
+            " FROM " + TABLE_TREES +
+                    " LEFT JOIN " + TABLE_TYPES + " ON " + TABLE_TYPES + "." + _ID + "=" + COLUMN_TYPE_ID +
+                    " LEFT JOIN " + TABLE_SUBTYPES + " ON " + TABLE_SUBTYPES + "." + _ID + "=" + COLUMN_SUBTYPE_ID;
+    public static final String SQL_CREATE_VIEW =
+            "CREATE VIEW IF NOT EXISTS " + VIEW_TREES + " AS SELECT " + SQL_VIEW_COLUMNS + "," +
+                    COLUMN_UUID + "," + COLUMN_VERSION + SQL_VIEW_JOINS;
+
+    public static final String SQL_CREATE_CELL_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_CELL + " ON " + TABLE_TREES + " (" + COLUMN_CELL + ")";
+
+    // The type index includes the subtype, so it serves filters on both columns
+    public static final String SQL_CREATE_TYPE_ID_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_TYPE + " ON " + TABLE_TREES + " (" +
+                    COLUMN_TYPE_ID + "," + COLUMN_SUBTYPE_ID + ")";
+    public static final String SQL_CREATE_SUBTYPE_ID_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_SUBTYPE + " ON " + TABLE_TREES + " (" + COLUMN_SUBTYPE_ID + ")";
+
+    // There is no index on the flag: flags are tested bitwise, which an index can't serve, and
+    // FilterEngine evaluates them in memory anyway
+
+    public static final String SQL_CREATE_DATE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INDEX_DATE + " ON " + TABLE_TREES + " (" + COLUMN_DATE + ")";
+
+    // Full-text index. The row ID of the trees table is used as the docid. Prefix indexes make
+    // prefix queries with short prefixes fast.
+    public static final String SQL_CREATE_FTS =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_FTS + " USING fts4(" +
+                    COLUMN_TYPE + "," + COLUMN_SUBTYPE + "," + COLUMN_COMMENT + ",prefix=\"2,4\")";
+
+    // The full-text index holds the names, which the triggers look up from the IDs
+    private static final String SQL_TYPE_NAME =
+            "(SELECT " + COLUMN_NAME + " FROM " + TABLE_TYPES + " WHERE " + _ID + "=new." + COLUMN_TYPE_ID + ")";
+    private static final String SQL_SUBTYPE_NAME =
+            "(SELECT " + COLUMN_NAME + " FROM " + TABLE_SUBTYPES + " WHERE " + _ID + "=new." + COLUMN_SUBTYPE_ID + ")";
+    public static final String SQL_CREATE_FTS_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS " + TABLE_FTS + "_insert AFTER INSERT ON " + TABLE_TREES + " BEGIN " +
+                    "INSERT INTO " + TABLE_FTS + "(docid," + COLUMN_TYPE + "," + COLUMN_SUBTYPE + "," + COLUMN_COMMENT + ") " +
+                    "VALUES (new." + _ID + "," + SQL_TYPE_NAME + "," + SQL_SUBTYPE_NAME + ",new." + COLUMN_COMMENT + "); END";
+    public static final String SQL_CREATE_FTS_UPDATE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS " + TABLE_FTS + "_update AFTER UPDATE OF " +
+                    COLUMN_TYPE_ID + "," + COLUMN_SUBTYPE_ID + "," + COLUMN_COMMENT + " ON " + TABLE_TREES + " BEGIN " +
+                    "UPDATE " + TABLE_FTS + " SET " + COLUMN_TYPE + "=" + SQL_TYPE_NAME + "," +
+                    COLUMN_SUBTYPE + "=" + SQL_SUBTYPE_NAME + "," + COLUMN_COMMENT + "=new." + COLUMN_COMMENT +
+                    " WHERE docid=new." + _ID + "; END";
+    public static final String SQL_CREATE_FTS_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS " + TABLE_FTS + "_delete AFTER DELETE ON " + TABLE_TREES + " BEGIN " +
+                    "DELETE FROM " + TABLE_FTS + " WHERE docid=old." + _ID + "; END";
+
+    // Change tracking for sync. The version is that of the server state a record is based on,
+    // 0 if it was never synced; see SyncProtocol. Local edits leave the version alone; only sync
+    // changes it. Deleted records leave a tombstone with the UUID and that version.
+    // TABLE_CHANGES logs the UUIDs of the records changed since the last push, one entry per
+    // record; a new change of the same record moves its entry to the end. TABLE_SYNC_STATE holds
+    // named values such as the sync token.
+    public static final String SQL_NEW_UUID = "lower(hex(randomblob(16)))";
+    public static final String SQL_CREATE_UUID_INDEX =
+            "CREATE UNIQUE INDEX IF NOT EXISTS " + INDEX_UUID + " ON " + TABLE_TREES + " (" + COLUMN_UUID + ")";
+    public static final String SQL_CREATE_TOMBSTONES =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_TOMBSTONES + " (" +
+                    COLUMN_UUID + " TEXT PRIMARY KEY," +
+                    COLUMN_VERSION + " INTEGER NOT NULL," +
+                    COLUMN_DATE + " TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
+                    " )";
+    public static final String SQL_CREATE_CHANGES =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_CHANGES + " (" +
+                    COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    COLUMN_UUID + " TEXT NOT NULL UNIQUE" +
+                    " )";
+    public static final String SQL_CREATE_SYNC_STATE =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_SYNC_STATE + " (" +
+                    COLUMN_NAME + " TEXT PRIMARY KEY," +
+                    COLUMN_VALUE + " TEXT" +
+                    " )";
+
+    // Local inserts come without a UUID; records received by sync have one and are not logged.
+    // Likewise, local updates leave the version alone, whereas sync sets the version it received.
+    public static final String SQL_CREATE_SYNC_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS " + TABLE_CHANGES + "_insert AFTER INSERT ON " + TABLE_TREES +
+                    " WHEN new." + COLUMN_UUID + " IS NULL BEGIN " +
+                    "UPDATE " + TABLE_TREES + " SET " + COLUMN_UUID + "=" + SQL_NEW_UUID + " WHERE " + _ID + "=new." + _ID + "; " +
+                    "INSERT OR REPLACE INTO " + TABLE_CHANGES + "(" + COLUMN_UUID + ") SELECT " + COLUMN_UUID +
+                    " FROM " + TABLE_TREES + " WHERE " + _ID + "=new." + _ID + "; END";
+    public static final String SQL_CREATE_SYNC_UPDATE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS " + TABLE_CHANGES + "_update AFTER UPDATE OF " +
+                    COLUMN_LAT + "," + COLUMN_LONG + "," + COLUMN_TYPE_ID + "," + COLUMN_SUBTYPE_ID + "," +
+                    COLUMN_COMMENT + "," + COLUMN_FLAG + " ON " + TABLE_TREES +
+                    " WHEN new." + COLUMN_VERSION + "=old." + COLUMN_VERSION + " BEGIN " +
+                    "INSERT OR REPLACE INTO " + TABLE_CHANGES + "(" + COLUMN_UUID + ") VALUES (new." + COLUMN_UUID + "); END";
+    public static final String SQL_CREATE_SYNC_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS " + TABLE_CHANGES + "_delete AFTER DELETE ON " + TABLE_TREES + " BEGIN " +
+                    "INSERT OR REPLACE INTO " + TABLE_TOMBSTONES + "(" + COLUMN_UUID + "," + COLUMN_VERSION + ") " +
+                    "VALUES (old." + COLUMN_UUID + ",old." + COLUMN_VERSION + "); " +
+                    "INSERT OR REPLACE INTO " + TABLE_CHANGES + "(" + COLUMN_UUID + ") VALUES (old." + COLUMN_UUID + "); END";
+
+    // Insert of a local record; the triggers add the UUID and log the change
+    public static final String SQL_INSERT_TREE =
+            "INSERT INTO " + TABLE_TREES + " (" +
+                    COLUMN_LAT + "," + COLUMN_LONG + "," + COLUMN_CELL + "," + COLUMN_TYPE_ID + "," +
+                    COLUMN_SUBTYPE_ID + "," + COLUMN_COMMENT + "," + COLUMN_FLAG +
+                    ") VALUES (?,?,?,?,?,?,?)";
+
+    // Full-text search. matchinfo() format 'pcx': phrase count, column count, then 3 values per
+    // phrase and column; see rank().
+    public static final String SQL_SEARCH =
+            "SELECT docid, matchinfo(" + TABLE_FTS + ",'pcx') FROM " + TABLE_FTS + " WHERE " + TABLE_FTS + " MATCH ?";
+
+    // Relative weight of a hit in the type, subtype and comment column when ranking search results
+    private static final double[] SEARCH_WEIGHTS = {2.0, 2.0, 1.0};
+
+    // The schema of a new DB, in order
+    private static final String[] SQL_CREATE = {
+            SQL_CREATE_TYPES,
+            SQL_CREATE_SUBTYPES,
+            SQL_CREATE_TREES,
+            SQL_CREATE_FTS,
+            SQL_CREATE_CELL_INDEX,
+            SQL_CREATE_TYPE_ID_INDEX,
+            SQL_CREATE_SUBTYPE_ID_INDEX,
+            SQL_CREATE_DATE_INDEX,
+            SQL_CREATE_FTS_INSERT_TRIGGER,
+            SQL_CREATE_FTS_UPDATE_TRIGGER,
+            SQL_CREATE_FTS_DELETE_TRIGGER,
+            SQL_CREATE_UUID_INDEX,
+            SQL_CREATE_TOMBSTONES,
+            SQL_CREATE_CHANGES,
+            SQL_CREATE_SYNC_STATE,
+            SQL_CREATE_SYNC_INSERT_TRIGGER,
+            SQL_CREATE_SYNC_UPDATE_TRIGGER,
+            SQL_CREATE_SYNC_DELETE_TRIGGER,
+            SQL_CREATE_VIEW
+    };
+
+    private TreeSchema() {
+    }
+
+    /**
+     * @return the statements that create the tables, indexes, triggers and view of the current
+     * version, in order. They leave existing objects alone. The standard types are added
+     * separately with {@code SQL_INSERT_STANDARD_TYPE} and {@code SQL_SET_HUE}.
+     */
+    public static String[] createStatements() {
+        return SQL_CREATE.clone();
+    }
+
+    /**
+     * Score a search hit from its matchinfo 'pcx' data: for every phrase and column, the number
+     * of hits in this record relative to the number of hits in all records, weighted by column.
+     * @param matchinfo second column of {@code SQL_SEARCH}
+     * @return score; higher is better
+     */
+    public static double rank(byte[] matchinfo) {
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int c = 0; c < columns; c++) {
+                int base = 2 + 3 * (p * columns + c);
+                int hits = info.get(base);
+                int allHits = info.get(base + 1);
+                if (hits > 0)
+                    score += SEARCH_WEIGHTS[c] * hits / allHits;
+            }
+        }
+        return score;
+    }
+}
@@ -0,0 +1,82 @@
+package com.pmann.treemap.core;
+
+import java.util.List;
+
+/**
+ * <p>Storage of tree records. The app implements it over SQLite; other implementations, e.g. for
+ * benchmarks on a workstation, only need to provide the same semantics.</p>
+ * <p>
+ * Records are identified by a row ID that the store assigns on insert and never reuses. Types and
+ * subtypes are stored as IDs; {@code types()} and {@code subtypes()} map them to names. Methods may
+ * block on I/O, so don't call them on a UI thread.</p>
+ */
+public interface TreeStore {
+    /**
+     * Receives the compact fields of every record; see {@code forEachTree()}
+     */
+    interface TreeVisitor {
+        void visit(long rowID, double lat, double lng, int typeID, int subtypeID, int flag);
+    }
+
+    /**
+     * @return the tree types, with their IDs and hues
+     */
+    TypeDictionary types();
+
+    /**
+     * @return the tree subtypes, with their IDs
+     */
+    TypeDictionary subtypes();
+
+    /**
+     * Read a single record
+     * @param rowID get this record
+     * @return the record or null, if it could not be retrieved
+     */
+    TreeRecord getRecord(long rowID);
+
+    /**
+     * Read the records located within a bounding box. If west is greater than east, the box is
+     * assumed to cross the 180th meridian.
+     * @return the records, in no particular order
+     */
+    List<TreeRecord> getRecords(double south, double west, double north, double east);
+
+    /**
+     * Feed the position, type, subtype and flag of every record to a visitor, e.g. to fill the
+     * filter and cluster engines
+     */
+    void forEachTree(TreeVisitor visitor);
+
+    /**
+     * Full-text search over type, subtype and comment, ignoring case
+     * @param query search terms
+     * @return row IDs of the matching records, best matches first
+     */
+    long[] search(String query);
+
+    /**
+     * Create a new record
+     * @param flag bit vector of flag settings; see {@code TreeFlags}
+     * @return row ID of the new record or -1, if an error occurred
+     */
+    long insertTree(double lat, double lng, String type, String subtype, String comment, int flag);
+
+    /**
+     * Update the descriptive fields of a record
+     * @return true, if the record was updated
+     */
+    boolean updateFields(long rowID, String type, String subtype, String comment, int flag);
+
+    /**
+     * Update the location of a record
+     * @return true, if the record was updated
+     */
+    boolean updateLocation(long rowID, double lat, double lng);
+
+    /**
+     * Delete a record
+     * @return true, if the record was deleted
+     */
+    boolean deleteTree(long rowID);
+}
@@ -0,0 +1,50 @@
+package com.pmann.treemap.core;
+
+/**
+ * <p>The standard tree types and their marker colors. Any code that references specific tree
+ * names should be in this class, to facilitate maintenance.</p>
+ * <p>
+ * Tree types and their colors live in the store; see {@code TreeStore.types()}. The standard
+ * types listed here are added to a new store, so that common trees get distinct colors.</p>
+ */
+public class TreeTypes {
+    @SuppressWarnings("SpellCheckingInspection")
+    final private static String[] mStandardTrees =
+            {"Apple", "Cherry", "Crabapple", "Fig", "Filbert", "Grape", "Loquat",
+                    "Peach", "Pear", "Persimmon", "Plum", "Quince"};
+    final private static int mHueMultiplier = 360 / mStandardTrees.length;
+
+    // Hue of types without a hue of their own: yellow
+    public static final float HUE_DEFAULT = 60.0f;
+
+    private TreeTypes() {
+    }
+
+    /**
+     * @return display names of the standard tree types
+     */
+    public static String[] standardTypes() {
+        return mStandardTrees.clone();
+    }
+
+    /**
+     * Return the hue of a standard tree type. We are just ensuring that colors are as distinct
+     * as possible, as measured by the hue value.
+     * @param pIndex position of the type in {@code standardTypes()}
+     * @return hue (float between 0 and 360)
+     */
+    public static float standardHue(int pIndex) {
+        return (float) pIndex * mHueMultiplier;
+    }
+
+    /**
+     * Return the marker hue of a tree type
+     * @param types the type dictionary of the store
+     * @param pTypeID ID of the type, or {@code TypeDictionary.NONE}
+     * @return the hue of the type, or {@code HUE_DEFAULT} if it is unknown or has no hue
+     */
+    public static float hueOf(TypeDictionary types, int pTypeID) {
+        Float hue = types.hueOf(pTypeID);
+        return hue != null ? hue : HUE_DEFAULT;
+    }
+}
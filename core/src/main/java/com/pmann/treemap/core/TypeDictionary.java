@@ -0,0 +1,163 @@
+package com.pmann.treemap.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * <p>In-memory copy of a lookup table that maps tree types (or subtypes) to integer IDs. Names
+ * are looked up ignoring the case of ASCII letters, the same rule as SQLite's NOCASE collation,
+ * which the lookup tables use for their unique names. Letters outside ASCII must match exactly,
+ * as they do in the DB. The display name is the spelling under which the name was first stored.
+ * Types also have a marker hue.</p>
+ * <p>
+ * The {@code TreeStore} fills the dictionaries when it is opened and adds to them whenever a new
+ * name is stored. All methods are synchronized, so lookups work from any thread.</p>
+ */
+public class TypeDictionary {
+    // ID of a missing type, e.g. a record stored without one
+    public static final int NONE = -1;
+
+    private final HashMap<String, Integer> mIDs = new HashMap<>();
+    private final ArrayList<String> mNames = new ArrayList<>();   //by ID; null for unused IDs
+    private final ArrayList<Float> mHues = new ArrayList<>();     //by ID; null if no hue is set
+
+    /**
+     * Add or replace an entry
+     *
+     * @param id   ID in the lookup table
+     * @param name display name
+     * @param hue  marker hue (0 to 360), or null if none is assigned
+     */
+    public synchronized void put(int id, String name, Float hue) {
+        while (mNames.size() <= id) {
+            mNames.add(null);
+            mHues.add(null);
+        }
+        mNames.set(id, name);
+        mHues.set(id, hue);
+        mIDs.put(key(name), id);
+    }
+
+    /**
+     * @return ID for a name, ignoring the case of ASCII letters, or {@code NONE} if the name is unknown
+     */
+    public synchronized int idOf(String name) {
+        if (name == null)
+            return NONE;
+        Integer id = mIDs.get(name);
+        if (id == null)
+            id = mIDs.get(key(name));
+        return id != null ? id : NONE;
+    }
+
+    /**
+     * @return display name for an ID, or an empty string if the ID is unknown
+     */
+    public synchronized String nameOf(int id) {
+        String name = (id >= 0 && id < mNames.size()) ? mNames.get(id) : null;
+        return name != null ? name : "";
+    }
+
+    /**
+     * @return marker hue for an ID, or null if none is assigned
+     */
+    public synchronized Float hueOf(int id) {
+        return (id >= 0 && id < mHues.size()) ? mHues.get(id) : null;
+    }
+
+    /**
+     * Find the IDs of all names that match a pattern. Like SQL LIKE, the pattern may contain the
+     * wildcards % for any sequence of characters and _ for a single character. Case is ignored
+     * as in {@code idOf()}.
+     *
+     * @param pattern name or pattern
+     * @return matching IDs
+     */
+    public synchronized int[] match(String pattern) {
+        String p = key(pattern);
+        if (p.indexOf('%') < 0 && p.indexOf('_') < 0) {
+            Integer id = mIDs.get(p);
+            return id != null ? new int[]{id} : new int[0];
+        }
+
+        Pattern regex = likeToRegex(p);
+        List<Integer> ids = new ArrayList<>();
+        for (java.util.Map.Entry<String, Integer> e : mIDs.entrySet()) {
+            if (regex.matcher(e.getKey()).matches())
+                ids.add(e.getValue());
+        }
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = ids.get(i);
+        return result;
+    }
+
+    /**
+     * Add or replace all entries of another dictionary
+     */
+    public void putAll(TypeDictionary other) {
+        List<Integer> ids = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Float> hues = new ArrayList<>();
+        synchronized (other) {
+            for (int id = 0; id < other.mNames.size(); id++) {
+                if (other.mNames.get(id) != null) {
+                    ids.add(id);
+                    names.add(other.mNames.get(id));
+                    hues.add(other.mHues.get(id));
+                }
+            }
+        }
+        synchronized (this) {
+            for (int i = 0; i < ids.size(); i++)
+                put(ids.get(i), names.get(i), hues.get(i));
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return mIDs.isEmpty();
+    }
+
+    /**
+     * Forget all entries
+     */
+    public synchronized void clear() {
+        mIDs.clear();
+        mNames.clear();
+        mHues.clear();
+    }
+
+    private static Pattern likeToRegex(String pattern) {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '%' || c == '_') {
+                if (i > start)
+                    sb.append(Pattern.quote(pattern.substring(start, i)));
+                sb.append(c == '%' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < pattern.length())
+            sb.append(Pattern.quote(pattern.substring(start)));
+        return Pattern.compile(sb.toString(), Pattern.DOTALL);
+    }
+
+    // Fold case like NOCASE: only A to Z are mapped to lower case. Java's toLowerCase() would
+    // also fold other letters, which the DB considers distinct names.
+    private static String key(String name) {
+        char[] chars = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                if (chars == null)
+                    chars = name.toCharArray();
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return chars == null ? name : new String(chars);
+    }
+}
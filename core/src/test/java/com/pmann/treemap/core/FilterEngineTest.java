@@ -0,0 +1,97 @@
+package com.pmann.treemap.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FilterEngineTest {
+    private static final int APPLE = 1;
+    private static final int PEAR = 2;
+    private static final int FUJI = 1;
+    private static final int GALA = 2;
+    private static final int SECKEL = 3;
+
+    private FilterEngine mEngine;
+
+    @Before
+    public void setUp() {
+        TypeDictionary types = new TypeDictionary();
+        types.put(APPLE, "Apple", null);
+        types.put(PEAR, "Pear", null);
+        TypeDictionary subtypes = new TypeDictionary();
+        subtypes.put(FUJI, "Fuji", null);
+        subtypes.put(GALA, "Gala", null);
+        subtypes.put(SECKEL, "Seckel", null);
+
+        mEngine = new FilterEngine(types, subtypes);
+        mEngine.add(1, APPLE, FUJI, 1);
+        mEngine.add(2, APPLE, GALA, 2);
+        mEngine.add(3, PEAR, SECKEL, 3);
+        mEngine.add(4, PEAR, TypeDictionary.NONE, 0);
+        mEngine.add(5, TypeDictionary.NONE, TypeDictionary.NONE, 4);
+    }
+
+    @Test
+    public void emptyCriteriaMatchAll() {
+        assertMatches(new long[]{1, 2, 3, 4, 5}, null, null, 0);
+        assertMatches(new long[]{1, 2, 3, 4, 5}, null, null, 0xFFFF);
+    }
+
+    @Test
+    public void typeIgnoresAsciiCase() {
+        assertMatches(new long[]{1, 2}, "apple", null, 0);
+        assertMatches(new long[]{3, 4}, " PEAR ", null, 0);
+        assertMatches(new long[]{}, "Plum", null, 0);
+    }
+
+    @Test
+    public void subtypeWildcards() {
+        assertMatches(new long[]{1, 2, 3}, null, "%", 0);
+        assertMatches(new long[]{1}, null, "%i", 0);
+        assertMatches(new long[]{2}, null, "G_la", 0);
+        assertMatches(new long[]{3}, null, "s%", 0);
+    }
+
+    @Test
+    public void flagsMatchAnyBit() {
+        assertMatches(new long[]{1, 3}, null, null, 1);
+        assertMatches(new long[]{1, 2, 3}, null, null, 3);
+        assertMatches(new long[]{3}, "Pear", null, 1);
+    }
+
+    @Test
+    public void searchResultsRestrictMatches() {
+        RowBitmap matches = new RowBitmap();
+        matches.add(2);
+        matches.add(3);
+        assertArrayEquals(new long[]{2}, mEngine.evaluate(new FilterEngine.Criteria("Apple", null, 0, matches)).toArray());
+    }
+
+    @Test
+    public void updateAndRemove() {
+        mEngine.add(1, PEAR, SECKEL, 2);
+        assertMatches(new long[]{2}, "Apple", null, 0);
+        assertMatches(new long[]{1, 3, 4}, "Pear", null, 0);
+        assertMatches(new long[]{3}, null, null, 1);
+        assertMatches(new long[]{1, 2, 3}, null, null, 2);
+
+        mEngine.remove(3);
+        mEngine.remove(42);
+        assertMatches(new long[]{1}, null, "Seckel", 0);
+        assertMatches(new long[]{}, null, null, 1);
+        assertMatches(new long[]{1, 2, 4, 5}, null, null, 0);
+    }
+
+    @Test
+    public void rowIDsBeyondInitialCapacity() {
+        mEngine.add(100000, APPLE, GALA, 8);
+        assertMatches(new long[]{2, 100000}, null, "Gala", 0);
+        mEngine.remove(100000);
+        assertMatches(new long[]{}, null, null, 8);
+    }
+
+    private void assertMatches(long[] expected, String type, String subtype, int flags) {
+        assertArrayEquals(expected, mEngine.evaluate(new FilterEngine.Criteria(type, subtype, flags)).toArray());
+    }
+}
@@ -0,0 +1,127 @@
+package com.pmann.treemap.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RowBitmapTest {
+    @Test
+    public void addContainsRemove() {
+        RowBitmap b = new RowBitmap();
+        assertTrue(b.isEmpty());
+        b.add(0);
+        b.add(65535);
+        b.add(65536);
+        b.add(Integer.MAX_VALUE);
+        b.add(65536);
+        assertEquals(4, b.cardinality());
+        assertTrue(b.contains(65535));
+        assertTrue(b.contains(65536));
+        assertFalse(b.contains(1));
+        assertFalse(b.contains(-1));
+        assertFalse(b.contains(Integer.MAX_VALUE + 1L));
+
+        b.remove(65536);
+        b.remove(12345);
+        b.remove(-1);
+        assertEquals(3, b.cardinality());
+        assertArrayEquals(new long[]{0, 65535, Integer.MAX_VALUE}, b.toArray());
+
+        b.clear();
+        assertTrue(b.isEmpty());
+        assertEquals(0, b.toArray().length);
+    }
+
+    @Test
+    public void containerSwitchesRepresentation() {
+        // Fill one container past the size at which it becomes a bitmap, then empty it again
+        RowBitmap b = new RowBitmap();
+        for (long id = 0; id < 10000; id += 2)
+            b.add(id);
+        assertEquals(5000, b.cardinality());
+        assertTrue(b.contains(9998));
+        assertFalse(b.contains(9999));
+
+        for (long id = 0; id < 10000; id += 4)
+            b.remove(id);
+        assertEquals(2500, b.cardinality());
+        assertTrue(b.contains(2));
+        assertFalse(b.contains(4));
+
+        for (long id = 2; id < 10000; id += 4)
+            b.remove(id);
+        assertTrue(b.isEmpty());
+    }
+
+    @Test
+    public void setOperationsMatchReference() {
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            // Mix sparse and dense containers
+            int range = round % 2 == 0 ? 200000 : 20000;
+            TreeSet<Long> x = randomSet(random, range, 1 + random.nextInt(12000));
+            TreeSet<Long> y = randomSet(random, range, 1 + random.nextInt(12000));
+            RowBitmap a = toBitmap(x);
+            RowBitmap b = toBitmap(y);
+
+            TreeSet<Long> and = new TreeSet<>(x);
+            and.retainAll(y);
+            TreeSet<Long> or = new TreeSet<>(x);
+            or.addAll(y);
+            TreeSet<Long> andNot = new TreeSet<>(x);
+            andNot.removeAll(y);
+            TreeSet<Long> xor = new TreeSet<>(or);
+            xor.removeAll(and);
+
+            assertArrayEquals(toArray(and), a.and(b).toArray());
+            assertArrayEquals(toArray(or), a.or(b).toArray());
+            assertArrayEquals(toArray(andNot), a.andNot(b).toArray());
+            assertArrayEquals(toArray(xor), a.xor(b).toArray());
+            assertEquals(xor.size(), a.xor(b).cardinality());
+
+            // Operands are left unchanged
+            assertArrayEquals(toArray(x), a.toArray());
+            assertArrayEquals(toArray(y), b.toArray());
+        }
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        RowBitmap a = new RowBitmap();
+        a.add(1);
+        RowBitmap b = a.copy();
+        b.add(2);
+        a.remove(1);
+        assertFalse(a.contains(2));
+        assertTrue(b.contains(1));
+        assertTrue(b.contains(2));
+    }
+
+    private static TreeSet<Long> randomSet(Random random, int range, int n) {
+        TreeSet<Long> set = new TreeSet<>();
+        for (int i = 0; i < n; i++)
+            set.add((long) random.nextInt(range));
+        return set;
+    }
+
+    private static RowBitmap toBitmap(TreeSet<Long> set) {
+        RowBitmap b = new RowBitmap();
+        for (long id : set)
+            b.add(id);
+        return b;
+    }
+
+    private static long[] toArray(TreeSet<Long> set) {
+        long[] result = new long[set.size()];
+        int i = 0;
+        for (long id : set)
+            result[i++] = id;
+        return result;
+    }
+}
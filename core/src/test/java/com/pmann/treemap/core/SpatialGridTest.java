@@ -0,0 +1,147 @@
+package com.pmann.treemap.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpatialGridTest {
+    private static final double METERS_PER_DEGREE = 111320;
+
+    @Test
+    public void boxEdgesAreInclusive() {
+        Query q = box(47.6, -122.35, 47.62, -122.3);
+        assertTrue(q.matches(47.6, -122.35));
+        assertTrue(q.matches(47.62, -122.3));
+        assertTrue(q.matches(47.61, -122.32));
+        assertFalse(q.matches(47.5999, -122.32));
+        assertFalse(q.matches(47.6201, -122.32));
+        assertFalse(q.matches(47.61, -122.3501));
+        assertFalse(q.matches(47.61, -122.2999));
+    }
+
+    @Test
+    public void boxWithinOneCell() {
+        // Both corners and the trees lie in the same grid cell
+        Query q = box(47.6012, -122.3088, 47.6014, -122.3084);
+        assertTrue(q.matches(47.6013, -122.3086));
+        assertFalse(q.matches(47.6015, -122.3086));
+        assertFalse(q.matches(47.6013, -122.3083));
+    }
+
+    @Test
+    public void treesJustInsideCellEdges() {
+        // The box starts just below and ends just above cell edges; the trees next to the edges
+        // lie in different cells than the box corners
+        double eps = 1e-7;
+        Query q = box(47.59 - eps, -122.31 - eps, 47.61 + eps, -122.29 + eps);
+        assertTrue(q.matches(47.59, -122.31));
+        assertTrue(q.matches(47.61, -122.29));
+        assertTrue(q.matches(47.59 - eps / 2, -122.29 + eps / 2));
+        assertTrue(q.matches(47.61 + eps / 2, -122.31 - eps / 2));
+        assertFalse(q.matches(47.59 - 2 * eps, -122.3));
+    }
+
+    @Test
+    public void boxAcrossAntimeridian() {
+        Query q = box(-17.9, 179.9, -17.7, -179.9);
+        assertTrue(q.matches(-17.8, 179.95));
+        assertTrue(q.matches(-17.8, -179.95));
+        assertTrue(q.matches(-17.8, 180));
+        assertTrue(q.matches(-17.8, -180));
+        assertTrue(q.matches(-17.8, 179.9));
+        assertFalse(q.matches(-17.8, 179.85));
+        assertFalse(q.matches(-17.8, -179.85));
+        assertFalse(q.matches(-17.8, 0));
+    }
+
+    @Test
+    public void largeBoxUsesFullRows() {
+        Query q = box(40, -125, 50, -120);
+        assertTrue(q.matches(40, -125));
+        assertTrue(q.matches(50, -120));
+        assertTrue(q.matches(45.005, -122.995));
+        assertFalse(q.matches(45, -119.99));
+        assertFalse(q.matches(39.99, -122));
+    }
+
+    @Test
+    public void radiusAcrossCellEdge() {
+        // The center lies just above a cell edge; a tree 40m south lies in the row below
+        double radius = 50;
+        Query q = radius(47.6001, -122.3, radius);
+        assertTrue(q.matches(47.6001 - 40 / METERS_PER_DEGREE, -122.3));
+        assertTrue(q.matches(47.6001, -122.3 + 40 / METERS_PER_DEGREE / Math.cos(Math.toRadians(47.6))));
+        assertFalse(q.matches(47.6001 - 60 / METERS_PER_DEGREE, -122.3));
+
+        // Within the bounding box of the circle, but not within the circle
+        double d = 40 / METERS_PER_DEGREE;
+        assertFalse(q.matches(47.6001 - d, -122.3 + d / Math.cos(Math.toRadians(47.6))));
+    }
+
+    private static Query box(double south, double west, double north, double east) {
+        Query q = new Query();
+        q.criteria = SpatialGrid.boundingBoxCriteria(south, west, north, east, q.args);
+        return q;
+    }
+
+    private static Query radius(double lat, double lng, double radius) {
+        Query q = new Query();
+        q.criteria = SpatialGrid.radiusCriteria(lat, lng, radius, q.args);
+        return q;
+    }
+
+    /**
+     * Criteria with their parameters, evaluated for a record the way SQLite would: the spatial
+     * key must lie in one of the cell ranges, and the coordinates within the exact bounds
+     */
+    private static class Query {
+        String criteria;
+        final List<String> args = new ArrayList<>();
+
+        boolean matches(double lat, double lng) {
+            long key = SpatialGrid.spatialKey(lat, lng);
+            String cellRange = SpatialGrid.COLUMN_CELL + " BETWEEN ? AND ?";
+            int ranges = (criteria.length() - criteria.replace(cellRange, "").length()) / cellRange.length();
+            int i = 0;
+            boolean inCells = false;
+            for (int r = 0; r < ranges; r++) {
+                long from = Long.parseLong(args.get(i++));
+                long to = Long.parseLong(args.get(i++));
+                if (key >= from && key <= to)
+                    inCells = true;
+            }
+            if (!inCells)
+                return false;
+
+            if (lat < arg(i++) || lat > arg(i++))
+                return false;
+            double west = arg(i++);
+            double east = arg(i++);
+            if (criteria.contains(SpatialGrid.COLUMN_LONG + ">=? OR ")) {
+                if (lng < west && lng > east)
+                    return false;
+            } else if (lng < west || lng > east) {
+                return false;
+            }
+
+            if (i < args.size()) {
+                // Distance from the center of a radius query
+                double dLat = lat - arg(i++);
+                i++;
+                double dLng = lng - arg(i++);
+                i++;
+                double scaleSquared = arg(i++);
+                return dLat * dLat + dLng * dLng * scaleSquared <= arg(i);
+            }
+            return true;
+        }
+
+        private double arg(int i) {
+            return Double.parseDouble(args.get(i));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.pmann.treemap.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpatialHashTest {
+    private static final double METERS_PER_DEGREE = 111320;
+    private static final double SEPARATION = 2.0;
+
+    // A cell is SEPARATION meters high, so at this latitude the cell rows start at these edges
+    private static final double CELL_DEGREES = SEPARATION / METERS_PER_DEGREE;
+    private static final double EDGE_LAT = Math.floor((47.6 + 90) / CELL_DEGREES) * CELL_DEGREES - 90;
+
+    @Test
+    public void freePositionIsKept() {
+        SpatialHash hash = new SpatialHash(SEPARATION);
+        hash.put(1, 47.6, -122.3);
+        assertArrayEquals(new double[]{47.7, -122.3}, hash.findFreePosition(47.7, -122.3, SEPARATION, 3), 0);
+    }
+
+    @Test
+    public void collisionAcrossCellEdge() {
+        // The tree lies just below a cell edge, the new location just above it
+        SpatialHash hash = new SpatialHash(SEPARATION);
+        double offset = 0.5 / METERS_PER_DEGREE;
+        hash.put(1, EDGE_LAT - offset, -122.3);
+        double[] free = hash.findFreePosition(EDGE_LAT + offset, -122.3, SEPARATION, 3);
+        assertNotNull(free);
+        assertMoved(EDGE_LAT + offset, -122.3, free);
+        assertSeparated(EDGE_LAT - offset, -122.3, free);
+    }
+
+    @Test
+    public void collisionAcrossAntimeridian() {
+        SpatialHash hash = new SpatialHash(SEPARATION);
+        double offset = 0.5 / METERS_PER_DEGREE;
+        hash.put(1, 10, 180 - offset);
+        double[] free = hash.findFreePosition(10, -180 + offset, SEPARATION, 3);
+        assertNotNull(free);
+        assertMoved(10, -180 + offset, free);
+        assertSeparated(10, 180 - offset, free);
+        assertTrue(free[1] >= -180 && free[1] < 180);
+    }
+
+    @Test
+    public void collisionWithManyOccupiedCells() {
+        // Enough trees that the query walks the cells around the location instead of scanning
+        SpatialHash hash = new SpatialHash(SEPARATION);
+        for (int i = 0; i < 1000; i++)
+            hash.put(100 + i, 47.6 + i * 0.001, -122.3);
+        double offset = 0.5 / METERS_PER_DEGREE;
+        hash.put(1, EDGE_LAT - offset, 179.9999);
+        hash.put(2, 10, 180 - offset);
+
+        double[] free = hash.findFreePosition(EDGE_LAT + offset, 179.9999, SEPARATION, 3);
+        assertMoved(EDGE_LAT + offset, 179.9999, free);
+        free = hash.findFreePosition(10, -180 + offset, SEPARATION, 3);
+        assertMoved(10, -180 + offset, free);
+    }
+
+    @Test
+    public void noFreePosition() {
+        // A dense block of trees leaves no room within the rings
+        SpatialHash hash = new SpatialHash(SEPARATION);
+        double step = 1.0 / METERS_PER_DEGREE;
+        long id = 0;
+        for (int i = -10; i <= 10; i++) {
+            for (int j = -10; j <= 10; j++)
+                hash.put(id++, 47.6 + i * step, -122.3 + j * step / Math.cos(Math.toRadians(47.6)));
+        }
+        assertNull(hash.findFreePosition(47.6, -122.3, SEPARATION, 3));
+    }
+
+    @Test
+    public void moveAndRemove() {
+        SpatialHash hash = new SpatialHash(SEPARATION);
+        hash.put(1, 47.6, -122.3);
+        hash.put(1, 47.7, -122.3);
+        assertEquals(1, hash.size());
+        assertArrayEquals(new double[]{47.6, -122.3}, hash.findFreePosition(47.6, -122.3, SEPARATION, 3), 0);
+        assertMoved(47.7, -122.3, hash.findFreePosition(47.7, -122.3, SEPARATION, 3));
+
+        hash.remove(1);
+        hash.remove(2);
+        assertEquals(0, hash.size());
+        assertArrayEquals(new double[]{47.7, -122.3}, hash.findFreePosition(47.7, -122.3, SEPARATION, 3), 0);
+    }
+
+    private static void assertMoved(double lat, double lng, double[] free) {
+        assertNotNull(free);
+        assertTrue(free[0] != lat || free[1] != lng);
+    }
+
+    private static void assertSeparated(double lat, double lng, double[] free) {
+        double dLng = free[1] - lng;
+        dLng -= 360 * Math.floor((dLng + 180) / 360);
+        double dx = dLng * Math.cos(Math.toRadians(lat)) * METERS_PER_DEGREE;
+        double dy = (free[0] - lat) * METERS_PER_DEGREE;
+        assertTrue(Math.sqrt(dx * dx + dy * dy) >= SEPARATION * 0.999);
+    }
+}
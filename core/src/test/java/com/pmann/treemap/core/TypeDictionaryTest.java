@@ -0,0 +1,57 @@
+package com.pmann.treemap.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TypeDictionaryTest {
+    @Test
+    public void lookupFoldsAsciiCaseOnly() {
+        TypeDictionary dict = new TypeDictionary();
+        dict.put(1, "Apple", 30f);
+        dict.put(2, "\u00c4pfel", null);
+
+        assertEquals(1, dict.idOf("APPLE"));
+        assertEquals(1, dict.idOf("apple"));
+        assertEquals("Apple", dict.nameOf(1));
+        assertEquals(30f, dict.hueOf(1), 0);
+
+        // Like SQLite's NOCASE, only A to Z are folded
+        assertEquals(2, dict.idOf("\u00c4PFEL"));
+        assertEquals(TypeDictionary.NONE, dict.idOf("\u00e4pfel"));
+        assertEquals(TypeDictionary.NONE, dict.idOf(null));
+        assertEquals("", dict.nameOf(3));
+    }
+
+    @Test
+    public void matchPatterns() {
+        TypeDictionary dict = new TypeDictionary();
+        dict.put(1, "Apple", null);
+        dict.put(2, "Pear", null);
+        dict.put(3, "Asian Pear", null);
+
+        assertArrayEquals(new int[]{2}, dict.match("PEAR"));
+        assertArrayEquals(new int[]{2, 3}, sorted(dict.match("%pear")));
+        assertArrayEquals(new int[]{1}, dict.match("_pple"));
+        assertArrayEquals(new int[]{}, dict.match("Plum"));
+        // Regex characters in a name have no special meaning
+        assertArrayEquals(new int[]{}, dict.match("P.ar"));
+    }
+
+    @Test
+    public void putAllAddsEntries() {
+        TypeDictionary dict = new TypeDictionary();
+        dict.put(1, "Apple", 30f);
+        TypeDictionary staged = new TypeDictionary();
+        staged.put(4, "Quince", null);
+        dict.putAll(staged);
+        assertEquals(4, dict.idOf("quince"));
+        assertEquals(1, dict.idOf("apple"));
+    }
+
+    private static int[] sorted(int[] ids) {
+        java.util.Arrays.sort(ids);
+        return ids;
+    }
+}
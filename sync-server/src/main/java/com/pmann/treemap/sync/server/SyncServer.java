@@ -0,0 +1,178 @@
+package com.pmann.treemap.sync.server;
+
+import com.pmann.treemap.sync.Change;
+import com.pmann.treemap.sync.SyncProtocol;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Reference implementation of the sync server, for development and integration tests. It
+ * keeps the latest state of every record in memory, so its data is lost when it stops.</p>
+ * <p>
+ * A pushed change is accepted only if it was made on the current version of its record; the
+ * check and the update happen under one lock, so of two devices that change the same version,
+ * exactly one wins. Every accepted change gets the next number of a global sequence, which
+ * serves as the sync token. The latest change of every record is indexed by its number, so a pull only visits the
+ * changes after the client's token.</p>
+ * <p>
+ * Run it with {@code gradlew :sync-server:run}, or start it from a test with {@code start()}.
+ * It listens on the loopback interface only.</p>
+ */
+public class SyncServer {
+    public static final int DEFAULT_PORT = 8080;
+
+    private static final Logger LOG = Logger.getLogger(SyncServer.class.getName());
+
+    final private HttpServer mServer;
+    final private ExecutorService mExecutor = Executors.newFixedThreadPool(4);
+
+    // Latest state of each record by UUID, and the sequence number of that state. Guarded by this.
+    final private HashMap<String, Change> mRecords = new HashMap<>();
+    final private HashMap<String, Long> mSeqByRecord = new HashMap<>();
+    final private TreeMap<Long, String> mRecordBySeq = new TreeMap<>();
+    private long mSeq = 0;
+
+    /**
+     * @param port TCP port to listen on, or 0 for any free port
+     * @throws IOException if the port can't be opened
+     */
+    public SyncServer(int port) throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        mServer.createContext(SyncProtocol.PATH_PUSH, new Endpoint() {
+            @Override
+            SyncProtocol.Message handle(InputStream body) throws IOException {
+                return push(SyncProtocol.PushRequest.read(body));
+            }
+        });
+        mServer.createContext(SyncProtocol.PATH_PULL, new Endpoint() {
+            @Override
+            SyncProtocol.Message handle(InputStream body) throws IOException {
+                SyncProtocol.PullRequest request = SyncProtocol.PullRequest.read(body);
+                return pull(request.token, request.limit);
+            }
+        });
+        mServer.setExecutor(mExecutor);
+    }
+
+    public void start() {
+        mServer.start();
+        LOG.info("Sync server listening on " + getUrl());
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdown();
+    }
+
+    /**
+     * @return base URL of the server, for {@code SyncClient}
+     */
+    public String getUrl() {
+        InetSocketAddress address = mServer.getAddress();
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+
+    /**
+     * Store the changes that were made on the current version of their record, or that create a
+     * record. For every other change, respond with the current state of its record.
+     */
+    public synchronized SyncProtocol.PushResponse push(SyncProtocol.PushRequest request) {
+        int accepted = 0;
+        List<Change> rejected = new ArrayList<>();
+        for (Change c : request.changes) {
+            Change current = mRecords.get(c.uuid);
+            if (current != null && current.version != c.base) {
+                rejected.add(current);
+                continue;
+            }
+            Long previousSeq = mSeqByRecord.get(c.uuid);
+            if (previousSeq != null)
+                mRecordBySeq.remove(previousSeq);
+            long seq = ++mSeq;
+            mRecords.put(c.uuid, c);
+            mSeqByRecord.put(c.uuid, seq);
+            mRecordBySeq.put(seq, c.uuid);
+            accepted++;
+        }
+        LOG.fine(request.device + " pushed " + accepted + " changes, " + rejected.size() + " rejected");
+        return new SyncProtocol.PushResponse(accepted, rejected);
+    }
+
+    /**
+     * List the latest changes of records changed after a sync token
+     */
+    public synchronized SyncProtocol.PullResponse pull(long token, int limit) {
+        limit = Math.max(1, Math.min(limit, SyncProtocol.MAX_BATCH));
+        List<Change> changes = new ArrayList<>();
+        long last = token;
+        Iterator<java.util.Map.Entry<Long, String>> it = mRecordBySeq.tailMap(token, false).entrySet().iterator();
+        while (it.hasNext() && changes.size() < limit) {
+            java.util.Map.Entry<Long, String> e = it.next();
+            changes.add(mRecords.get(e.getValue()));
+            last = e.getKey();
+        }
+        return new SyncProtocol.PullResponse(last, it.hasNext(), changes);
+    }
+
+    /**
+     * @return number of records known to the server, including deleted ones
+     */
+    public synchronized int size() {
+        return mRecords.size();
+    }
+
+    /**
+     * Handles POST requests to a protocol path. Requests that can't be parsed get status 400.
+     */
+    private abstract static class Endpoint implements HttpHandler {
+        abstract SyncProtocol.Message handle(InputStream body) throws IOException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                SyncProtocol.Message response;
+                try {
+                    response = handle(exchange.getRequestBody());
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Bad sync request", e);
+                    exchange.sendResponseHeaders(400, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", SyncProtocol.CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, 0);
+                response.write(exchange.getResponseBody());
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        try {
+            new SyncServer(port).start();
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Can't start sync server on port " + port, e);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.pmann.treemap.sync.server;
+
+import com.pmann.treemap.sync.Change;
+import com.pmann.treemap.sync.SyncStore;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * A device for sync tests: keeps its records in memory and tracks local edits the way the
+ * triggers of the app's DB do
+ */
+class MemoryStore implements SyncStore, SyncStore.Records {
+    // Latest state of each record by UUID, tombstones included, with the version it is based on
+    final private HashMap<String, Change> mRecords = new HashMap<>();
+    final private HashMap<String, Long> mSeqByRecord = new HashMap<>();
+    final private TreeMap<Long, String> mLog = new TreeMap<>();
+    final private HashMap<String, String> mState = new HashMap<>();
+    private long mSeq = 0;
+
+    /**
+     * Add a record as a user would
+     *
+     * @return its UUID
+     */
+    synchronized String insert(String type, String comment) {
+        String uuid = UUID.randomUUID().toString();
+        mRecords.put(uuid, new Change(uuid, 0, 0, 47.6, -122.3, type, null, comment, 0, "2015-06-01 12:00:00"));
+        log(uuid);
+        return uuid;
+    }
+
+    /**
+     * Change the comment of a record as a user would
+     */
+    synchronized void update(String uuid, String comment) {
+        Change c = mRecords.get(uuid);
+        mRecords.put(uuid, new Change(uuid, c.base, c.version, c.lat, c.lng, c.type, c.subtype, comment, c.flag,
+                c.date));
+        log(uuid);
+    }
+
+    /**
+     * Delete a record as a user would
+     */
+    synchronized void delete(String uuid) {
+        mRecords.put(uuid, Change.tombstone(uuid, 0, mRecords.get(uuid).version));
+        log(uuid);
+    }
+
+    /**
+     * @return current state of a record, or null if it is unknown
+     */
+    synchronized Change get(String uuid) {
+        return mRecords.get(uuid);
+    }
+
+    synchronized boolean hasChanges() {
+        return !mLog.isEmpty();
+    }
+
+    @Override
+    public synchronized <T> T write(Transaction<T> transaction) {
+        return transaction.run(this);
+    }
+
+    @Override
+    public String getState(String name) {
+        return mState.get(name);
+    }
+
+    @Override
+    public void setState(String name, String value) {
+        mState.put(name, value);
+    }
+
+    @Override
+    public Pending getChanges(int limit) {
+        Pending pending = new Pending();
+        Iterator<java.util.Map.Entry<Long, String>> it = mLog.entrySet().iterator();
+        while (it.hasNext() && pending.changes.size() < limit) {
+            java.util.Map.Entry<Long, String> e = it.next();
+            Change c = mRecords.get(e.getValue());
+            pending.changes.add(c.deleted
+                    ? Change.tombstone(c.uuid, c.version, c.version + 1)
+                    : new Change(c.uuid, c.version, c.version + 1, c.lat, c.lng, c.type, c.subtype, c.comment,
+                    c.flag, c.date));
+            pending.lastSeq = e.getKey();
+        }
+        return pending;
+    }
+
+    @Override
+    public void clearChanges(long throughSeq) {
+        Iterator<java.util.Map.Entry<Long, String>> it = mLog.headMap(throughSeq, true).entrySet().iterator();
+        while (it.hasNext()) {
+            mSeqByRecord.remove(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    @Override
+    public long getVersion(String uuid) {
+        Change c = mRecords.get(uuid);
+        return c != null ? c.version : -1;
+    }
+
+    @Override
+    public void setVersion(String uuid, long version) {
+        Change c = mRecords.get(uuid);
+        if (c == null)
+            return;
+        mRecords.put(uuid, c.deleted
+                ? Change.tombstone(uuid, c.base, version)
+                : new Change(uuid, c.base, version, c.lat, c.lng, c.type, c.subtype, c.comment, c.flag, c.date));
+    }
+
+    @Override
+    public void apply(Change change) {
+        mRecords.put(change.uuid, change);
+        Long seq = mSeqByRecord.remove(change.uuid);
+        if (seq != null)
+            mLog.remove(seq);
+    }
+
+    // Move the record's entry to the end of the change log
+    private void log(String uuid) {
+        Long previous = mSeqByRecord.get(uuid);
+        if (previous != null)
+            mLog.remove(previous);
+        long seq = ++mSeq;
+        mSeqByRecord.put(uuid, seq);
+        mLog.put(seq, uuid);
+    }
+}
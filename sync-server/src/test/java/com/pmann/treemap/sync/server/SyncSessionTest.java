@@ -0,0 +1,185 @@
+package com.pmann.treemap.sync.server;
+
+import com.pmann.treemap.sync.Change;
+import com.pmann.treemap.sync.SyncClient;
+import com.pmann.treemap.sync.SyncProtocol;
+import com.pmann.treemap.sync.SyncSession;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Syncs two devices through a running server and checks that they converge on conflicts
+ */
+public class SyncSessionTest {
+    private SyncServer mServer;
+    private MemoryStore mDeviceA;
+    private MemoryStore mDeviceB;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new SyncServer(0);
+        mServer.start();
+        mDeviceA = new MemoryStore();
+        mDeviceB = new MemoryStore();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void newRecordReachesOtherDevice() throws IOException {
+        String uuid = mDeviceA.insert("Apple", "first");
+        SyncSession a = sync(mDeviceA);
+        assertEquals(1, a.getPushed());
+        assertEquals(1, mDeviceA.get(uuid).version);
+        assertFalse(mDeviceA.hasChanges());
+
+        SyncSession b = sync(mDeviceB);
+        assertEquals(1, b.getPulled());
+        assertEquals("first", mDeviceB.get(uuid).comment);
+        assertEquals(1, mDeviceB.get(uuid).version);
+
+        // Our own accepted change comes back on the next pull, but is not applied again
+        assertEquals(0, sync(mDeviceA).getPulled());
+    }
+
+    @Test
+    public void concurrentEditFirstPushWins() throws IOException {
+        String uuid = shareRecord();
+        mDeviceA.update(uuid, "by A");
+        mDeviceB.update(uuid, "by B");
+
+        assertEquals(1, sync(mDeviceA).getPushed());
+        SyncSession b = sync(mDeviceB);
+        assertEquals(0, b.getPushed());
+        assertEquals(1, b.getRejected());
+
+        assertEquals("by A", mDeviceB.get(uuid).comment);
+        assertEquals(2, mDeviceB.get(uuid).version);
+        assertFalse(mDeviceB.hasChanges());
+        assertConverged(uuid);
+    }
+
+    @Test
+    public void editAfterSyncIsNotLost() throws IOException {
+        String uuid = shareRecord();
+        mDeviceA.update(uuid, "by A");
+        sync(mDeviceA);
+        sync(mDeviceB);
+        assertEquals("by A", mDeviceB.get(uuid).comment);
+
+        // Device B now edits the version it received, so its push is accepted
+        mDeviceB.update(uuid, "by B");
+        SyncSession b = sync(mDeviceB);
+        assertEquals(1, b.getPushed());
+        assertEquals(0, b.getRejected());
+        sync(mDeviceA);
+        assertEquals("by B", mDeviceA.get(uuid).comment);
+        assertConverged(uuid);
+    }
+
+    @Test
+    public void deleteBeforeEditWins() throws IOException {
+        String uuid = shareRecord();
+        mDeviceA.delete(uuid);
+        mDeviceB.update(uuid, "by B");
+
+        sync(mDeviceA);
+        SyncSession b = sync(mDeviceB);
+        assertEquals(1, b.getRejected());
+        assertTrue(mDeviceB.get(uuid).deleted);
+        assertConverged(uuid);
+    }
+
+    @Test
+    public void editBeforeDeleteWins() throws IOException {
+        String uuid = shareRecord();
+        mDeviceA.delete(uuid);
+        mDeviceB.update(uuid, "by B");
+
+        sync(mDeviceB);
+        SyncSession a = sync(mDeviceA);
+        assertEquals(1, a.getRejected());
+        assertFalse(mDeviceA.get(uuid).deleted);
+        assertEquals("by B", mDeviceA.get(uuid).comment);
+        assertConverged(uuid);
+    }
+
+    @Test
+    public void rejectedPushTakesServerStateFromResponse() throws IOException {
+        String uuid = shareRecord();
+        mDeviceA.update(uuid, "by A");
+        sync(mDeviceA);
+        mDeviceB.update(uuid, "by B");
+
+        // Move device B's token past the winning change, so the pull can't deliver it
+        final long token = mServer.pull(0, SyncProtocol.MAX_BATCH).token;
+        mDeviceB.setState(SyncSession.STATE_TOKEN, String.valueOf(token));
+
+        SyncSession b = sync(mDeviceB);
+        assertEquals(1, b.getRejected());
+        assertEquals(0, b.getPulled());
+        assertEquals("by A", mDeviceB.get(uuid).comment);
+        assertConverged(uuid);
+    }
+
+    @Test
+    public void serverRespondsWithCurrentState() {
+        Change created = new Change("r1", 0, 1, 1, 2, "Pear", null, "created", 0, null);
+        Change first = new Change("r1", 1, 2, 1, 2, "Pear", null, "first", 0, null);
+        Change second = new Change("r1", 1, 2, 1, 2, "Pear", null, "second", 0, null);
+
+        assertEquals(1, push(created).accepted);
+        assertEquals(1, push(first).accepted);
+        SyncProtocol.PushResponse response = push(second);
+        assertEquals(0, response.accepted);
+        assertEquals(1, response.rejected.size());
+        Change current = response.rejected.get(0);
+        assertEquals("first", current.comment);
+        assertEquals(2, current.version);
+    }
+
+    // Create a record on device A and sync it to device B
+    private String shareRecord() throws IOException {
+        String uuid = mDeviceA.insert("Apple", "original");
+        sync(mDeviceA);
+        sync(mDeviceB);
+        assertNotNull(mDeviceB.get(uuid));
+        return uuid;
+    }
+
+    private SyncSession sync(MemoryStore device) throws IOException {
+        SyncSession session = new SyncSession(new SyncClient(mServer.getUrl()), device, null);
+        session.run();
+        return session;
+    }
+
+    private SyncProtocol.PushResponse push(Change change) {
+        return mServer.push(new SyncProtocol.PushRequest("test", Collections.singletonList(change)));
+    }
+
+    // Sync both devices once more; afterwards both must have the server's state of the record
+    private void assertConverged(String uuid) throws IOException {
+        sync(mDeviceA);
+        sync(mDeviceB);
+        Change a = mDeviceA.get(uuid);
+        Change b = mDeviceB.get(uuid);
+        assertEquals(a.version, b.version);
+        assertEquals(a.deleted, b.deleted);
+        assertEquals(a.comment, b.comment);
+        assertFalse(mDeviceA.hasChanges());
+        assertFalse(mDeviceB.hasChanges());
+    }
+}
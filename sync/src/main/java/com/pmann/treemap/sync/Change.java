@@ -0,0 +1,54 @@
+package com.pmann.treemap.sync;
+
+/**
+ * <p>Immutable state of one tree record as exchanged during sync. Records are identified by a
+ * UUID, since row IDs are local to each device.</p>
+ * <p>
+ * Versions are numbered by the server: the first state of a record it accepts has version 1,
+ * and each following one the next number. A change names the version it was made on as its base,
+ * and has the version it would become, {@code base + 1}. The server only accepts it if the base
+ * is still the server's current version; see {@code SyncProtocol}.</p>
+ * <p>
+ * A deleted record is represented by a tombstone: a change with {@code deleted} set and no
+ * other fields.</p>
+ */
+public class Change {
+    public final String uuid;
+    public final long base;         //version this state was made on; 0 for a new record
+    public final long version;
+    public final boolean deleted;
+    public final double lat;
+    public final double lng;
+    public final String type;
+    public final String subtype;
+    public final String comment;
+    public final int flag;
+    public final String date;
+
+    public Change(String uuid, long base, long version, double lat, double lng, String type, String subtype,
+                  String comment, int flag, String date) {
+        this(uuid, base, version, false, lat, lng, type, subtype, comment, flag, date);
+    }
+
+    private Change(String uuid, long base, long version, boolean deleted, double lat, double lng, String type,
+                   String subtype, String comment, int flag, String date) {
+        this.uuid = uuid;
+        this.base = base;
+        this.version = version;
+        this.deleted = deleted;
+        this.lat = lat;
+        this.lng = lng;
+        this.type = type;
+        this.subtype = subtype;
+        this.comment = comment;
+        this.flag = flag;
+        this.date = date;
+    }
+
+    /**
+     * @return a tombstone for a deleted record
+     */
+    public static Change tombstone(String uuid, long base, long version) {
+        return new Change(uuid, base, version, true, 0, 0, null, null, null, 0, null);
+    }
+}
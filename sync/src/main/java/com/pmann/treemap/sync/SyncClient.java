@@ -0,0 +1,82 @@
+package com.pmann.treemap.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Sends sync messages to a server over HTTP. See {@code SyncProtocol} for the protocol. The
+ * methods block until the response has arrived, so don't call them on a UI thread.
+ */
+public class SyncClient {
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    final private String mBaseUrl;
+
+    /**
+     * @param baseUrl server address, e.g. http://localhost:8080
+     */
+    public SyncClient(String baseUrl) {
+        mBaseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    /**
+     * Send changes to the server
+     *
+     * @param device  ID of this device
+     * @param changes at most {@code SyncProtocol.MAX_BATCH} changes
+     * @return which changes the server accepted
+     * @throws IOException if the request failed
+     */
+    public SyncProtocol.PushResponse push(String device, List<Change> changes) throws IOException {
+        HttpURLConnection connection = open(SyncProtocol.PATH_PUSH);
+        try {
+            OutputStream out = connection.getOutputStream();
+            new SyncProtocol.PushRequest(device, changes).write(out);
+            return SyncProtocol.PushResponse.read(responseBody(connection));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Get the changes the server received after a sync token
+     *
+     * @param token token returned by the previous pull, or 0 to get all changes
+     * @param limit maximum number of changes to return
+     * @return the changes and the token for the next pull
+     * @throws IOException if the request failed
+     */
+    public SyncProtocol.PullResponse pull(long token, int limit) throws IOException {
+        HttpURLConnection connection = open(SyncProtocol.PATH_PULL);
+        try {
+            OutputStream out = connection.getOutputStream();
+            new SyncProtocol.PullRequest(token, limit).write(out);
+            return SyncProtocol.PullResponse.read(responseBody(connection));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mBaseUrl + path).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(0);
+        connection.setRequestProperty("Content-Type", SyncProtocol.CONTENT_TYPE);
+        return connection;
+    }
+
+    private static InputStream responseBody(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK)
+            throw new IOException("Sync server responded " + status + " " + connection.getResponseMessage());
+        return connection.getInputStream();
+    }
+}
@@ -0,0 +1,245 @@
+package com.pmann.treemap.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>Messages of the delta sync protocol and their wire format.</p>
+ * <p>
+ * A client first pushes the records it changed since its last push, then pulls the changes the
+ * server received since the client's last pull. The server numbers the changes it accepts; the
+ * number of the last change a client has seen is its sync token. Both directions transfer only
+ * changed records, in batches of at most {@code MAX_BATCH}, so the cost of a sync depends on
+ * the number of edits and not on the size of the inventory.</p>
+ * <p>
+ * The server accepts a pushed change only if its base version is the server's current version
+ * of the record, i.e. no other device changed the record since the client last synced it. A
+ * record the server doesn't know yet is always accepted. A rejected change lost a conflict; the
+ * response carries the server's current state of its record, which the client takes over right
+ * away. It can't wait for a pull, since its sync token may already be past the winning change.
+ * </p>
+ * <p>
+ * A pulled change is only applied if its version is higher than the version the client's state
+ * of the record is based on. Clients only advance that version when they take over a server
+ * state, so an equal version means the client already has the change, possibly with local
+ * edits on top that are still to be pushed.</p>
+ * <p>
+ * Messages are sent as HTTP POST bodies of type {@code CONTENT_TYPE}: gzip-compressed binary
+ * data, written with {@code DataOutputStream} and starting with {@code FORMAT_VERSION}.</p>
+ */
+public class SyncProtocol {
+    public static final String PATH_PUSH = "/sync/push";
+    public static final String PATH_PULL = "/sync/pull";
+    public static final String CONTENT_TYPE = "application/x-treemap-sync";
+
+    public static final int FORMAT_VERSION = 2;
+
+    // Maximum number of changes per message
+    public static final int MAX_BATCH = 500;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A message that can be sent
+     */
+    public interface Message {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Changes sent from a client to the server
+     */
+    public static class PushRequest implements Message {
+        public final String device;
+        public final List<Change> changes;
+
+        public PushRequest(String device, List<Change> changes) {
+            this.device = device;
+            this.changes = changes;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            DataOutputStream data = open(out);
+            data.writeUTF(device);
+            writeChanges(data, changes);
+            data.close();
+        }
+
+        public static PushRequest read(InputStream in) throws IOException {
+            DataInputStream data = open(in);
+            return new PushRequest(data.readUTF(), readChanges(data));
+        }
+    }
+
+    /**
+     * Outcome of a push. Changes that are not listed as rejected were accepted.
+     */
+    public static class PushResponse implements Message {
+        public final int accepted;
+        public final List<Change> rejected;     //server's current state of each rejected record
+
+        public PushResponse(int accepted, List<Change> rejected) {
+            this.accepted = accepted;
+            this.rejected = rejected;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            DataOutputStream data = open(out);
+            data.writeInt(accepted);
+            writeChanges(data, rejected);
+            data.close();
+        }
+
+        public static PushResponse read(InputStream in) throws IOException {
+            DataInputStream data = open(in);
+            return new PushResponse(data.readInt(), readChanges(data));
+        }
+    }
+
+    /**
+     * Request for the changes after a sync token
+     */
+    public static class PullRequest implements Message {
+        public final long token;    //0 for all changes
+        public final int limit;
+
+        public PullRequest(long token, int limit) {
+            this.token = token;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            DataOutputStream data = open(out);
+            data.writeLong(token);
+            data.writeInt(limit);
+            data.close();
+        }
+
+        public static PullRequest read(InputStream in) throws IOException {
+            DataInputStream data = open(in);
+            return new PullRequest(data.readLong(), data.readInt());
+        }
+    }
+
+    /**
+     * Changes after the requested sync token, oldest first
+     */
+    public static class PullResponse implements Message {
+        public final long token;        //token for the next pull
+        public final boolean more;      //true, if there are further changes after token
+        public final List<Change> changes;
+
+        public PullResponse(long token, boolean more, List<Change> changes) {
+            this.token = token;
+            this.more = more;
+            this.changes = changes;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            DataOutputStream data = open(out);
+            data.writeLong(token);
+            data.writeBoolean(more);
+            writeChanges(data, changes);
+            data.close();
+        }
+
+        public static PullResponse read(InputStream in) throws IOException {
+            DataInputStream data = open(in);
+            return new PullResponse(data.readLong(), data.readBoolean(), readChanges(data));
+        }
+    }
+
+    private static DataOutputStream open(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)));
+        data.writeInt(FORMAT_VERSION);
+        return data;
+    }
+
+    private static DataInputStream open(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+        int version = data.readInt();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unsupported sync format version " + version);
+        return data;
+    }
+
+    private static void writeChanges(DataOutputStream data, List<Change> changes) throws IOException {
+        data.writeInt(changes.size());
+        for (Change c : changes) {
+            data.writeUTF(c.uuid);
+            data.writeLong(c.base);
+            data.writeLong(c.version);
+            data.writeBoolean(c.deleted);
+            if (c.deleted)
+                continue;
+            data.writeDouble(c.lat);
+            data.writeDouble(c.lng);
+            writeString(data, c.type);
+            writeString(data, c.subtype);
+            writeString(data, c.comment);
+            data.writeInt(c.flag);
+            writeString(data, c.date);
+        }
+    }
+
+    private static List<Change> readChanges(DataInputStream data) throws IOException {
+        int n = checkCount(data.readInt());
+        if (n == 0)
+            return Collections.emptyList();
+        List<Change> changes = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String uuid = data.readUTF();
+            long base = data.readLong();
+            long version = data.readLong();
+            if (data.readBoolean()) {
+                changes.add(Change.tombstone(uuid, base, version));
+            } else {
+                changes.add(new Change(uuid, base, version, data.readDouble(), data.readDouble(),
+                        readString(data), readString(data), readString(data), data.readInt(), readString(data)));
+            }
+        }
+        return changes;
+    }
+
+    // Strings are written as UTF-8 with a length prefix; -1 stands for null. Unlike writeUTF()
+    // this has no length limit, so long comments survive.
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        if (s == null) {
+            data.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        int length = data.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static int checkCount(int n) throws IOException {
+        if (n < 0 || n > MAX_BATCH)
+            throw new IOException("Invalid batch size " + n);
+        return n;
+    }
+}
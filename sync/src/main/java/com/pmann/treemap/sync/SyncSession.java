@@ -0,0 +1,166 @@
+package com.pmann.treemap.sync;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * <p>One sync of a {@code SyncStore} with a server: the client side of {@code SyncProtocol}.</p>
+ * <p>
+ * We push first, then pull. The server's response to a push settles every change in it: an
+ * accepted change is now the server's current version of its record, and for a rejected one the
+ * server's current state comes back and replaces the local one. Each pulled batch is applied in
+ * one transaction along with the new sync token, so an interrupted sync resumes where it left
+ * off.</p>
+ * <p>
+ * Network I/O happens on the calling thread; the store's work is done in its transactions.</p>
+ */
+public class SyncSession {
+    // Names of sync state values in the store
+    public static final String STATE_DEVICE = "device";
+    public static final String STATE_TOKEN = "pull_token";
+
+    /**
+     * Receives progress reports on the syncing thread
+     */
+    public interface ProgressListener {
+        void onProgress(int pushed, int pulled);
+    }
+
+    final private SyncClient mClient;
+    final private SyncStore mStore;
+    final private ProgressListener mListener;
+
+    private int mPushed = 0;
+    private int mRejected = 0;
+    private int mPulled = 0;
+
+    /**
+     * @param client   connection to the server
+     * @param store    records to sync
+     * @param listener receives progress reports; may be null
+     */
+    public SyncSession(SyncClient client, SyncStore store, ProgressListener listener) {
+        mClient = client;
+        mStore = store;
+        mListener = listener;
+    }
+
+    /**
+     * Run the sync. This blocks until it is done, so don't call it on a UI thread.
+     *
+     * @throws IOException if the sync was aborted; the changes that were already synced are kept
+     */
+    public void run() throws IOException {
+        push();
+        pull();
+    }
+
+    /**
+     * @return number of local changes the server accepted
+     */
+    public int getPushed() {
+        return mPushed;
+    }
+
+    /**
+     * @return number of local changes the server rejected in favor of its own state
+     */
+    public int getRejected() {
+        return mRejected;
+    }
+
+    /**
+     * @return number of server changes applied locally
+     */
+    public int getPulled() {
+        return mPulled;
+    }
+
+    private void push() throws IOException {
+        String device = mStore.write(new SyncStore.Transaction<String>() {
+            @Override
+            public String run(SyncStore.Records records) {
+                String device = records.getState(STATE_DEVICE);
+                if (device == null) {
+                    device = UUID.randomUUID().toString();
+                    records.setState(STATE_DEVICE, device);
+                }
+                return device;
+            }
+        });
+
+        while (true) {
+            final SyncStore.Pending pending = mStore.write(new SyncStore.Transaction<SyncStore.Pending>() {
+                @Override
+                public SyncStore.Pending run(SyncStore.Records records) {
+                    return records.getChanges(SyncProtocol.MAX_BATCH);
+                }
+            });
+            if (pending.changes.isEmpty())
+                return;
+
+            final SyncProtocol.PushResponse response = mClient.push(device, pending.changes);
+            mStore.write(new SyncStore.Transaction<Boolean>() {
+                @Override
+                public Boolean run(SyncStore.Records records) {
+                    Set<String> rejected = new HashSet<>();
+                    for (Change current : response.rejected) {
+                        rejected.add(current.uuid);
+                        records.apply(current);
+                    }
+                    for (Change change : pending.changes) {
+                        if (!rejected.contains(change.uuid))
+                            records.setVersion(change.uuid, change.version);
+                    }
+                    records.clearChanges(pending.lastSeq);
+                    return true;
+                }
+            });
+            mPushed += response.accepted;
+            mRejected += response.rejected.size();
+            reportProgress();
+        }
+    }
+
+    private void pull() throws IOException {
+        String state = mStore.write(new SyncStore.Transaction<String>() {
+            @Override
+            public String run(SyncStore.Records records) {
+                String token = records.getState(STATE_TOKEN);
+                return token != null ? token : "0";
+            }
+        });
+        long token = Long.parseLong(state);
+
+        boolean more = true;
+        while (more) {
+            final SyncProtocol.PullResponse response = mClient.pull(token, SyncProtocol.MAX_BATCH);
+            mPulled += mStore.write(new SyncStore.Transaction<Integer>() {
+                @Override
+                public Integer run(SyncStore.Records records) {
+                    int applied = 0;
+                    for (Change change : response.changes) {
+                        // An equal version is the state the record is already based on, e.g. our
+                        // own accepted push. Any local change is made on top of it, so keep that.
+                        if (change.version > records.getVersion(change.uuid)) {
+                            records.apply(change);
+                            applied++;
+                        }
+                    }
+                    records.setState(STATE_TOKEN, String.valueOf(response.token));
+                    return applied;
+                }
+            });
+            token = response.token;
+            more = response.more;
+            reportProgress();
+        }
+    }
+
+    private void reportProgress() {
+        if (mListener != null)
+            mListener.onProgress(mPushed, mPulled);
+    }
+}
@@ -0,0 +1,85 @@
+package com.pmann.treemap.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Local storage of the records that a {@code SyncSession} synchronizes.</p>
+ * <p>
+ * The store logs which records were changed locally since they were last pushed, and for every
+ * record and tombstone it keeps the version of the server state it is based on. Local edits must
+ * leave that version alone; it only changes when a sync takes over a server state.</p>
+ */
+public interface SyncStore {
+    /**
+     * Work on the records that is done in one transaction
+     */
+    interface Transaction<T> {
+        /**
+         * @return the result, which must not be null
+         */
+        T run(Records records);
+    }
+
+    /**
+     * Access to the records within a transaction
+     */
+    interface Records {
+        /**
+         * @return a named value of the sync state, or null if it was never set
+         */
+        String getState(String name);
+
+        void setState(String name, String value);
+
+        /**
+         * List the records changed since they were last pushed, oldest change first. Each change
+         * has the record's current state, with the version it is based on as its base and the
+         * next version as its version.
+         *
+         * @param limit maximum number of changes to return
+         */
+        Pending getChanges(int limit);
+
+        /**
+         * Remove pushed changes from the log. Records changed again in the meantime have a
+         * higher sequence number, so they stay in the log.
+         */
+        void clearChanges(long throughSeq);
+
+        /**
+         * @return version of the server state that a record or tombstone is based on, or -1 if
+         * the record is unknown
+         */
+        long getVersion(String uuid);
+
+        /**
+         * Note that the state of a record or tombstone is now based on the given server version,
+         * e.g. because the server accepted it. Not logged as a change.
+         */
+        void setVersion(String uuid, long version);
+
+        /**
+         * Replace the state of a record with a server state, dropping any local change of it
+         * that was not yet pushed. Not logged as a change.
+         */
+        void apply(Change change);
+    }
+
+    /**
+     * Local changes to be pushed, and the sequence number of the last one in the change log
+     */
+    class Pending {
+        public final List<Change> changes = new ArrayList<>();
+        public long lastSeq = 0;
+    }
+
+    /**
+     * Run a transaction. The store orders it with local edits, so no edit interleaves with it.
+     *
+     * @return the result of the transaction
+     * @throws IOException if the transaction failed and was rolled back
+     */
+    <T> T write(Transaction<T> transaction) throws IOException;
+}
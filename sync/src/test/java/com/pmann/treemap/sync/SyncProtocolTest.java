@@ -0,0 +1,116 @@
+package com.pmann.treemap.sync;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SyncProtocolTest {
+    private static final Change RECORD = new Change("7f3a", 2, 3, 47.5588789, -122.2695519, "Apple", "Spitzenberg",
+            "2015 bumper crop \u2713", 5, "2015-06-01 12:00:00");
+    private static final Change EMPTY_FIELDS = new Change("9b1c", 0, 1, -17.8, 179.95, null, null, null, 0, null);
+    private static final Change TOMBSTONE = Change.tombstone("c2d4", 4, 5);
+
+    @Test
+    public void pushRequestRoundTrip() throws IOException {
+        SyncProtocol.PushRequest request = new SyncProtocol.PushRequest("device-1",
+                Arrays.asList(RECORD, EMPTY_FIELDS, TOMBSTONE));
+        SyncProtocol.PushRequest read = SyncProtocol.PushRequest.read(encode(request));
+        assertEquals("device-1", read.device);
+        assertEquals(3, read.changes.size());
+        assertChange(RECORD, read.changes.get(0));
+        assertChange(EMPTY_FIELDS, read.changes.get(1));
+        assertChange(TOMBSTONE, read.changes.get(2));
+    }
+
+    @Test
+    public void pushResponseRoundTrip() throws IOException {
+        SyncProtocol.PushResponse response = new SyncProtocol.PushResponse(7, Arrays.asList(RECORD, TOMBSTONE));
+        SyncProtocol.PushResponse read = SyncProtocol.PushResponse.read(encode(response));
+        assertEquals(7, read.accepted);
+        assertEquals(2, read.rejected.size());
+        assertChange(RECORD, read.rejected.get(0));
+        assertChange(TOMBSTONE, read.rejected.get(1));
+    }
+
+    @Test
+    public void pullRoundTrip() throws IOException {
+        SyncProtocol.PullRequest request = SyncProtocol.PullRequest.read(
+                encode(new SyncProtocol.PullRequest(1234567890123L, 250)));
+        assertEquals(1234567890123L, request.token);
+        assertEquals(250, request.limit);
+
+        SyncProtocol.PullResponse response = SyncProtocol.PullResponse.read(
+                encode(new SyncProtocol.PullResponse(42, true, Collections.singletonList(EMPTY_FIELDS))));
+        assertEquals(42, response.token);
+        assertTrue(response.more);
+        assertEquals(1, response.changes.size());
+        assertChange(EMPTY_FIELDS, response.changes.get(0));
+
+        response = SyncProtocol.PullResponse.read(
+                encode(new SyncProtocol.PullResponse(42, false, Collections.<Change>emptyList())));
+        assertFalse(response.more);
+        assertTrue(response.changes.isEmpty());
+    }
+
+    @Test
+    public void longCommentSurvives() throws IOException {
+        // Longer than writeUTF() can encode
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 70000)
+            sb.append("Very tasty ");
+        Change c = new Change("long", 0, 1, 0, 0, "Pear", null, sb.toString(), 0, null);
+        SyncProtocol.PullResponse read = SyncProtocol.PullResponse.read(
+                encode(new SyncProtocol.PullResponse(1, false, Collections.singletonList(c))));
+        assertEquals(sb.toString(), read.changes.get(0).comment);
+    }
+
+    @Test
+    public void rejectsOversizedBatch() throws IOException {
+        List<Change> changes = new ArrayList<>();
+        for (int i = 0; i <= SyncProtocol.MAX_BATCH; i++)
+            changes.add(Change.tombstone("r" + i, 0, 1));
+        try {
+            SyncProtocol.PushRequest.read(encode(new SyncProtocol.PushRequest("device-1", changes)));
+            fail("Batch of " + changes.size() + " accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static InputStream encode(SyncProtocol.Message message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.write(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    private static void assertChange(Change expected, Change actual) {
+        assertEquals(expected.uuid, actual.uuid);
+        assertEquals(expected.base, actual.base);
+        assertEquals(expected.version, actual.version);
+        assertEquals(expected.deleted, actual.deleted);
+        if (expected.deleted) {
+            assertNull(actual.type);
+            return;
+        }
+        assertEquals(expected.lat, actual.lat, 0);
+        assertEquals(expected.lng, actual.lng, 0);
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.subtype, actual.subtype);
+        assertEquals(expected.comment, actual.comment);
+        assertEquals(expected.flag, actual.flag);
+        assertEquals(expected.date, actual.date);
+    }
+}